@@ -49,6 +49,26 @@ public interface Map<K, V> extends Iterable<K> {
      */
     boolean containsKey(K key);
 
+    /**
+     * Remove the association for this key, if any.
+     * @param key The key to remove.
+     * @return The value that was associated with this key, null if none existed
+     */
+    V remove(K key);
 
+    /**
+     * Add a batch of associations to the map, as if each were put in
+     * turn; where a key appears more than once, the last value wins.
+     * By default this does exactly that, but implementations may merge
+     * the batch in all at once.
+     * @param keys The keys, in any order
+     * @param values The values, parallel to keys
+     */
+    default void putAll(K[] keys, V[] values) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException(keys.length + " keys but " + values.length + " values");
+        for (int i = 0; i < keys.length; i++)
+            put(keys[i], values[i]);
+    }
 
 }
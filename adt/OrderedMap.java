@@ -16,5 +16,86 @@ public interface OrderedMap<K extends Comparable<K>,V> extends Map<K,V> {
      */
     K max();
 
+    /**
+     * Remove the minimum key and its association, if any
+     * @return The key that was removed, or null if empty
+     */
+    K pollFirst();
+
+    /**
+     * Remove the maximum key and its association, if any
+     * @return The key that was removed, or null if empty
+     */
+    K pollLast();
+
+    /**
+     * Return the number of associations in this map.
+     * @return The number of keys in this map
+     */
+    int size();
+
+    /**
+     * Find the rank of a key, which need not be in the map.
+     * @return The number of keys in the map that come before key
+     */
+    int rank(K key);
+
+    /**
+     * Find the key with a given rank, that is, the key that would
+     * be at the given position in an iteration over the map. If the
+     * rank is invalid, an IndexOutOfBoundsException is thrown.
+     * @param rank The number of keys that come before the one to return
+     * @return The key with that rank
+     */
+    K select(int rank);
+
+    /**
+     * Count the keys in a range.
+     * @return The number of keys k in the map with lo <= k <= hi,
+     * or 0 if hi comes before lo
+     */
+    int countInRange(K lo, K hi);
+
+    /**
+     * Find the greatest key less than or equal to a given key
+     * @return The key found, or null if there is none
+     */
+    K floor(K key);
+
+    /**
+     * Find the least key greater than or equal to a given key
+     * @return The key found, or null if there is none
+     */
+    K ceiling(K key);
+
+    /**
+     * Find the greatest key strictly less than a given key
+     * @return The key found, or null if there is none
+     */
+    K lower(K key);
+
+    /**
+     * Find the least key strictly greater than a given key
+     * @return The key found, or null if there is none
+     */
+    K higher(K key);
+
+    /**
+     * A view of the keys k with fromKey <= k < toKey, which iterates 
+     * over them in order. The view is not a copy: each iterator it 
+     * returns walks the map itself.
+     */
+    Iterable<K> subMap(K fromKey, K toKey);
+
+    /**
+     * A view of the keys k with k < toKey, in the manner of subMap.
+     */
+    Iterable<K> headMap(K toKey);
+
+    /**
+     * A view of the keys k with fromKey <= k, in the manner of subMap.
+     */
+    Iterable<K> tailMap(K fromKey);
+
 
 }
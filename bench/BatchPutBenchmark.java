@@ -0,0 +1,80 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import adt.OrderedMap;
+
+/**
+ * BatchPutBenchmark
+ *
+ * Adding a batch of keys in random order to a map of size keys, half
+ * of the batch new and half already present, either by put()ing them
+ * one at a time or with one putAll(). Each operation is one whole
+ * batch; the map is rebuilt before each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class BatchPutBenchmark {
+
+    @Param({ "AVL", "TRADITIONAL_RB", "LEFT_LEANING_RB" })
+    public TreeKind tree;
+
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    @Param({ "1000", "10000" })
+    public int batch;
+
+    private Integer[] loaded;
+    private Integer[] keys;
+    private OrderedMap<Integer, Integer> map;
+
+    @Setup(Level.Trial)
+    public void makeKeys() {
+        loaded = new Integer[size];
+        for (int i = 0; i < size; i++)
+            loaded[i] = 2 * i;
+        Random rand = new Random(42);
+        keys = new Integer[batch];
+        for (int i = 0; i < batch; i++)
+            keys[i] = rand.nextInt(2 * size);
+    }
+
+    @Setup(Level.Invocation)
+    public void load() {
+        map = tree.create();
+        for (Integer key : loaded)
+            map.put(key, key);
+    }
+
+    @Benchmark
+    public OrderedMap<Integer, Integer> putEach() {
+        for (Integer key : keys)
+            map.put(key, key);
+        return map;
+    }
+
+    @Benchmark
+    public OrderedMap<Integer, Integer> putAll() {
+        map.putAll(keys, keys);
+        return map;
+    }
+}
@@ -0,0 +1,132 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import adt.OrderedMap;
+import impl.AVLBSTMap;
+import impl.ConcurrentAVLMap;
+
+/**
+ * ConcurrentReadBenchmark
+ *
+ * Lookups on one map shared by many threads, with and without a
+ * writer overwriting keys at the same time. The map holds the even
+ * integers in [0, 2 * size), so about half of the lookups miss, as in
+ * OrderedMapBenchmark. The shared map is either an AVLBSTMap behind
+ * one lock or a ConcurrentAVLMap, whose lookups take no locks.
+ *
+ * The thread counts are set for a large machine; use -t (for "read")
+ * and -tg (for "mixed") to match the cores available.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class ConcurrentReadBenchmark {
+
+    private static final int OPERANDS = 1 << 16;
+
+    public enum Sharing {
+        SYNCHRONIZED_AVL,
+        CONCURRENT_AVL
+    }
+
+    @Param({ "SYNCHRONIZED_AVL", "CONCURRENT_AVL" })
+    public Sharing sharing;
+
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    private OrderedMap<Integer, Integer> map;
+
+    private boolean locked;
+
+    @Setup(Level.Trial)
+    public void populate() {
+        locked = sharing == Sharing.SYNCHRONIZED_AVL;
+        map = locked ? new AVLBSTMap<Integer, Integer>(false) : new ConcurrentAVLMap<Integer, Integer>(false);
+        int[] order = OrderedMapBenchmark.shuffledRange(size, new Random(42));
+        for (int i = 0; i < size; i++)
+            map.put(2 * order[i], order[i]);
+    }
+
+    /**
+     * Each thread's own operands, so the threads share only the map.
+     */
+    @State(Scope.Thread)
+    public static class Operands {
+        private Integer[] keys;
+        private int cursor;
+
+        @Setup(Level.Trial)
+        public void draw(ConcurrentReadBenchmark shared) {
+            Random rand = new Random(Thread.currentThread().getId());
+            keys = new Integer[OPERANDS];
+            for (int i = 0; i < OPERANDS; i++)
+                keys[i] = rand.nextInt(2 * shared.size);
+        }
+
+        Integer next() {
+            cursor = (cursor + 1) & (OPERANDS - 1);
+            return keys[cursor];
+        }
+    }
+
+    private Integer get(Integer key) {
+        if (! locked)
+            return map.get(key);
+        synchronized (map) {
+            return map.get(key);
+        }
+    }
+
+    private void put(Integer key) {
+        // overwrite a stored key, so the size stays fixed
+        key &= ~1;
+        if (! locked)
+            map.put(key, key);
+        else
+            synchronized (map) {
+                map.put(key, key);
+            }
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Integer read(Operands operands) {
+        return get(operands.next());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(31)
+    public Integer mixedRead(Operands operands) {
+        return get(operands.next());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedWrite(Operands operands) {
+        put(operands.next());
+    }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import impl.RecursiveBSTMap;
+
+/**
+ * FingerBenchmark
+ *
+ * Loading a map with size ascending keys and then reading them back in
+ * order, through the map itself or through a finger, which starts each
+ * search from where the last one ended. Each operation is one whole
+ * load or one whole pass of reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class FingerBenchmark {
+
+    @Param({ "AVL", "TRADITIONAL_RB", "LEFT_LEANING_RB" })
+    public TreeKind tree;
+
+    @Param({ "INTEGER", "STRING" })
+    public KeyType keyType;
+
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    private Comparable<?>[] keys;
+    @SuppressWarnings("rawtypes")
+    private RecursiveBSTMap loaded;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void makeKeys() {
+        keys = keyType.keys(KeyDistribution.SEQUENTIAL.indices(size, size, null));
+        loaded = newMap();
+        for (Comparable<?> key : keys)
+            loaded.put(key, key);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private RecursiveBSTMap newMap() {
+        return (RecursiveBSTMap) tree.create();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Benchmark
+    public Object loadByPut() {
+        RecursiveBSTMap map = newMap();
+        for (Comparable<?> key : keys)
+            map.put(key, key);
+        return map;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Benchmark
+    public Object loadByFinger() {
+        RecursiveBSTMap map = newMap();
+        RecursiveBSTMap.Finger finger = map.finger();
+        for (Comparable<?> key : keys)
+            finger.put(key, key);
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public int readByGet() {
+        int found = 0;
+        for (Comparable<?> key : keys)
+            if (loaded.get(key) != null)
+                found++;
+        return found;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Benchmark
+    public int readByFinger() {
+        RecursiveBSTMap.Finger finger = loaded.finger();
+        int found = 0;
+        for (Comparable<?> key : keys)
+            if (finger.get(key) != null)
+                found++;
+        return found;
+    }
+}
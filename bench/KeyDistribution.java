@@ -0,0 +1,87 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * KeyDistribution
+ * 
+ * Patterns in which the benchmarks touch keys. Each produces a
+ * sequence of indices in [0, n); KeyType turns those into keys.
+ */
+public enum KeyDistribution {
+    /**
+     * Ascending indices, wrapping around at n.
+     */
+    SEQUENTIAL {
+        int[] indices(int count, int n, Random rand) {
+            int[] indices = new int[count];
+            for (int i = 0; i < count; i++)
+                indices[i] = i % n;
+            return indices;
+        }
+    },
+    /**
+     * Indices drawn uniformly at random.
+     */
+    RANDOM {
+        int[] indices(int count, int n, Random rand) {
+            int[] indices = new int[count];
+            for (int i = 0; i < count; i++)
+                indices[i] = rand.nextInt(n);
+            return indices;
+        }
+    },
+    /**
+     * Indices drawn with a Zipfian skew (theta = 0.99, as in YCSB),
+     * so a few keys are very hot. The ranks are scattered over the
+     * key space so the hot keys are not all neighbors in the tree.
+     */
+    ZIPFIAN {
+        int[] indices(int count, int n, Random rand) {
+            final double theta = 0.99;
+            double zetan = zeta(n, theta);
+            double zeta2 = zeta(2, theta);
+            double alpha = 1.0 / (1.0 - theta);
+            double eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+            int[] indices = new int[count];
+            for (int i = 0; i < count; i++) {
+                double u = rand.nextDouble();
+                double uz = u * zetan;
+                long rank;
+                if (uz < 1.0)
+                    rank = 0;
+                else if (uz < 1.0 + Math.pow(0.5, theta))
+                    rank = 1;
+                else
+                    rank = (long) (n * Math.pow(eta * u - eta + 1, alpha));
+                if (rank >= n)
+                    rank = n - 1;
+                indices[i] = scatter(rank, n);
+            }
+            return indices;
+        }
+    };
+
+    /**
+     * Produce count indices in [0, n) following this distribution.
+     */
+    abstract int[] indices(int count, int n, Random rand);
+
+    /**
+     * The generalized harmonic number H(n, theta).
+     */
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++)
+            sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    /**
+     * Map a rank to an index with a multiplicative hash, so that
+     * consecutive ranks land far apart.
+     */
+    private static int scatter(long rank, int n) {
+        return (int) Math.floorMod(rank * 0x9E3779B97F4A7C15L, (long) n);
+    }
+}
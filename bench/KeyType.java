@@ -0,0 +1,42 @@
+package bench;
+
+/**
+ * KeyType
+ * 
+ * The kinds of keys the benchmarks use. Both map a non-negative
+ * index to a key so that the order of the keys is the order of
+ * the indices; this lets the key distributions work on indices
+ * alone.
+ */
+public enum KeyType {
+    INTEGER {
+        Comparable<?> key(int index) {
+            return Integer.valueOf(index);
+        }
+    },
+    /**
+     * Zero-padded strings with a shared prefix, so comparisons
+     * have to scan past the common part as they do for real
+     * string keys.
+     */
+    STRING {
+        Comparable<?> key(int index) {
+            return String.format("key-%010d", index);
+        }
+    };
+
+    /**
+     * The key for the given index.
+     */
+    abstract Comparable<?> key(int index);
+
+    /**
+     * The keys for all the given indices, in the same order.
+     */
+    Comparable<?>[] keys(int[] indices) {
+        Comparable<?>[] keys = new Comparable<?>[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            keys[i] = key(indices[i]);
+        return keys;
+    }
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import adt.OrderedMap;
+
+/**
+ * LoadBenchmark
+ * 
+ * Building a map from empty by put()ing size keys, in ascending or
+ * random order. Each operation is one whole load, so divide by size
+ * for the cost per insertion. Ascending loads of the unbalanced tree
+ * are quadratic and recurse once per key, so expect the larger of
+ * those runs to be slow or to overflow the stack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class LoadBenchmark {
+
+    @Param({ "AVL", "ARRAY_AVL", "CONCURRENT_AVL", "TRADITIONAL_RB", "LEFT_LEANING_RB", "BASIC" })
+    public TreeKind tree;
+
+    @Param({ "INTEGER", "STRING" })
+    public KeyType keyType;
+
+    @Param({ "true", "false" })
+    public boolean ascending;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    private Comparable<?>[] keys;
+
+    @Setup(Level.Trial)
+    public void makeKeys() {
+        int[] indices = ascending ? KeyDistribution.SEQUENTIAL.indices(size, size, null)
+                : OrderedMapBenchmark.shuffledRange(size, new Random(42));
+        keys = keyType.keys(indices);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Benchmark
+    public OrderedMap load() {
+        OrderedMap map = tree.create();
+        for (Comparable<?> key : keys)
+            map.put(key, key);
+        return map;
+    }
+}
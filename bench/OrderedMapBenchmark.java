@@ -0,0 +1,147 @@
+package bench;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import adt.OrderedMap;
+
+/**
+ * OrderedMapBenchmark
+ * 
+ * Steady-state operations on a populated map. The map holds the keys
+ * for the even indices in [0, 2 * size), loaded in random order so
+ * even the unbalanced tree has a reasonable shape. Lookups are drawn
+ * from the whole range [0, 2 * size), so about half of them miss.
+ * put() overwrites existing keys, which keeps the size fixed across
+ * iterations.
+ * 
+ * Throughput and sample-time (latency percentiles) modes are both
+ * reported; run with "-prof gc" (BenchmarkMain does this) to get the
+ * allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class OrderedMapBenchmark {
+
+    /**
+     * The number of distinct operands precomputed for each operation;
+     * a power of two so the cursor can wrap with a mask.
+     */
+    private static final int OPERANDS = 1 << 16;
+
+    @Param({ "AVL", "ARRAY_AVL", "CONCURRENT_AVL", "TRADITIONAL_RB", "LEFT_LEANING_RB", "BASIC" })
+    public TreeKind tree;
+
+    @Param({ "INTEGER", "STRING" })
+    public KeyType keyType;
+
+    @Param({ "SEQUENTIAL", "RANDOM", "ZIPFIAN" })
+    public KeyDistribution distribution;
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int size;
+
+    @SuppressWarnings("rawtypes")
+    private OrderedMap map;
+
+    /**
+     * Keys to look up, drawn from distribution over [0, 2 * size).
+     */
+    private Comparable<?>[] probes;
+
+    /**
+     * Keys to overwrite, drawn from distribution over the stored keys.
+     */
+    private Comparable<?>[] stored;
+
+    private int cursor;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void populate() {
+        Random rand = new Random(42);
+        map = tree.create();
+        int[] order = shuffledRange(size, rand);
+        for (int i = 0; i < size; i++) {
+            Comparable<?> key = keyType.key(2 * order[i]);
+            map.put(key, key);
+        }
+
+        probes = keyType.keys(distribution.indices(OPERANDS, 2 * size, rand));
+        int[] storedIndices = distribution.indices(OPERANDS, size, rand);
+        for (int i = 0; i < OPERANDS; i++)
+            storedIndices[i] *= 2;
+        stored = keyType.keys(storedIndices);
+        cursor = 0;
+    }
+
+    /**
+     * A random permutation of [0, n).
+     */
+    static int[] shuffledRange(int n, Random rand) {
+        int[] range = new int[n];
+        for (int i = 0; i < n; i++)
+            range[i] = i;
+        for (int i = n - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int temp = range[i];
+            range[i] = range[j];
+            range[j] = temp;
+        }
+        return range;
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & (OPERANDS - 1);
+        return cursor;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public Object get() {
+        return map.get(probes[next()]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public boolean containsKey() {
+        return map.containsKey(probes[next()]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public void put() {
+        Comparable<?> key = stored[next()];
+        map.put(key, key);
+    }
+
+    /**
+     * A full in-order scan; one operation visits every key.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void iterate(Blackhole bh) {
+        for (Iterator<?> it = map.iterator(); it.hasNext(); )
+            bh.consume(it.next());
+    }
+}
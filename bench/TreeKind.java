@@ -0,0 +1,75 @@
+package bench;
+
+import adt.OrderedMap;
+import impl.AVLBSTMap;
+import impl.ArrayAVLMap;
+import impl.BPlusTreeMap;
+import impl.BasicRecursiveBSTMap;
+import impl.ConcurrentAVLMap;
+import impl.LLRedBlackTreeMap;
+import impl.TraditionalRedBlackTreeMap;
+
+/**
+ * TreeKind
+ * 
+ * The OrderedMap implementations the benchmarks compare. Every map
+ * is built with verification off, since the verification strategies
+ * walk the whole tree and would swamp whatever is being measured.
+ */
+public enum TreeKind {
+    AVL {
+        <K extends Comparable<K>, V> OrderedMap<K, V> create() {
+            return new AVLBSTMap<K, V>(false);
+        }
+    },
+    /**
+     * The AVL tree with its nodes in parallel arrays.
+     */
+    ARRAY_AVL {
+        <K extends Comparable<K>, V> OrderedMap<K, V> create() {
+            return new ArrayAVLMap<K, V>(false);
+        }
+    },
+    /**
+     * The thread-safe AVL tree, used from one thread, to show what its
+     * versions and locks cost when there is no contention.
+     */
+    CONCURRENT_AVL {
+        <K extends Comparable<K>, V> OrderedMap<K, V> create() {
+            return new ConcurrentAVLMap<K, V>(false);
+        }
+    },
+    /**
+     * The B+ tree, at its default fan-out.
+     */
+    B_PLUS {
+        <K extends Comparable<K>, V> OrderedMap<K, V> create() {
+            return new BPlusTreeMap<K, V>(false);
+        }
+    },
+    TRADITIONAL_RB {
+        <K extends Comparable<K>, V> OrderedMap<K, V> create() {
+            return new TraditionalRedBlackTreeMap<K, V>(false);
+        }
+    },
+    LEFT_LEANING_RB {
+        <K extends Comparable<K>, V> OrderedMap<K, V> create() {
+            return new LLRedBlackTreeMap<K, V>(false);
+        }
+    },
+    /**
+     * The unbalanced tree. Loading it in ascending order degenerates
+     * into a linked list, so large sequential loads are expected to
+     * be slow (or overflow the stack) -- that is the point of comparing it.
+     */
+    BASIC {
+        <K extends Comparable<K>, V> OrderedMap<K, V> create() {
+            return new BasicRecursiveBSTMap<K, V>(false);
+        }
+    };
+
+    /**
+     * Make a new, empty, non-verifying map of this kind.
+     */
+    abstract <K extends Comparable<K>, V> OrderedMap<K, V> create();
+}
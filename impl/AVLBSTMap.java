@@ -1,5 +1,11 @@
 package impl;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
 /**
  * AVLBSTMap
  * 
@@ -77,6 +83,11 @@ public class AVLBSTMap<K extends Comparable<K>, V> extends RecursiveBSTMap<K, V,
 			recompute();
 		}
 
+		@Override
+		protected int compare(K a, K b) {
+			return AVLBSTMap.this.compare(a, b);
+		}
+
 		/**
 		 * The total number of associations in the subtree rooted here.
 		 */
@@ -142,11 +153,14 @@ public class AVLBSTMap<K extends Comparable<K>, V> extends RecursiveBSTMap<K, V,
 					current = rlChild;
 					current.right.recompute();
 					current.left.recompute();
+					metrics.rotations(2);
 
 				}
 
-				// right-right violation
-				else if (right.balance() < 0) {
+				// right-right violation (after a removal the right
+				// child may also be perfectly balanced, which is
+				// fixed the same way)
+				else {
 
 					// right child to the current node
 					AVLRealNode rChild = (AVLBSTMap<K, V>.AVLRealNode) right;
@@ -156,6 +170,7 @@ public class AVLBSTMap<K extends Comparable<K>, V> extends RecursiveBSTMap<K, V,
 
 					// recompute the left node which use to be current
 					current.left.recompute();
+					metrics.rotations(1);
 				}
 
 			// violation on the left of the current node
@@ -182,11 +197,13 @@ public class AVLBSTMap<K extends Comparable<K>, V> extends RecursiveBSTMap<K, V,
 					current = lrChild;
 					current.left.recompute();
 					current.right.recompute();
+					metrics.rotations(2);
 
 				}
 
-				// left-left violation
-				else if (left.balance() > 0) {
+				// left-left violation (or a perfectly balanced left
+				// child, after a removal)
+				else {
 
 					// left child to the current node
 					AVLRealNode lChild = (AVLBSTMap<K, V>.AVLRealNode) left;
@@ -196,6 +213,7 @@ public class AVLBSTMap<K extends Comparable<K>, V> extends RecursiveBSTMap<K, V,
 
 					// recompute the right node which use to be current
 					current.right.recompute();
+					metrics.rotations(1);
 				}
 			}
 
@@ -204,6 +222,15 @@ public class AVLBSTMap<K extends Comparable<K>, V> extends RecursiveBSTMap<K, V,
 			return current;
 		}
 
+		/**
+		 * After a removal the subtrees are AVL trees whose heights differ
+		 * by at most two, the same situation as after a put, so the same
+		 * rotations apply.
+		 */
+		public AVLNode<K, V> removeFixup() {
+			return putFixup();
+		}
+
 		/**
 		 * Recompute the attributes of this node and the subtree rooted here
 		 * without descending the tree but instead assuming the stored
@@ -270,8 +297,204 @@ public class AVLBSTMap<K extends Comparable<K>, V> extends RecursiveBSTMap<K, V,
 	 * Basic constructor for an empty map
 	 */
 	public AVLBSTMap(boolean verifying) {
-		super(new AVLVerify<K, V, AVLNode<K, V>>(), verifying);
-		root = nully = new AVLNullNode();
+		this(null, verifying);
+	}
+
+	/**
+	 * Constructor for an empty map whose keys are ordered by a comparator
+	 * 
+	 * @param comparator The order of the keys, or null for their natural
+	 *            order
+	 */
+	public AVLBSTMap(Comparator<? super K> comparator, boolean verifying) {
+		super(new AVLVerify<K, V, AVLNode<K, V>>(), verifying, comparator);
+		root = nullNode = nully = new AVLNullNode();
+	}
+
+	/**
+	 * Build a map from associations sorted by key, in linear time.
+	 * 
+	 * @param keys
+	 *            The keys, in strictly increasing order
+	 * @param values
+	 *            The values, in the order of their keys
+	 * @param size
+	 *            The number of associations to take
+	 * @throws IllegalArgumentException
+	 *             if the keys are not increasing
+	 */
+	public static <K extends Comparable<K>, V> AVLBSTMap<K, V> fromSorted(Iterator<K> keys, Iterator<V> values,
+			int size, boolean verifying) {
+		AVLBSTMap<K, V> map = new AVLBSTMap<K, V>(verifying);
+		map.buildFromSorted(keys, values, size);
+		return map;
+	}
+
+	/**
+	 * Build a map from parallel arrays of keys, in strictly increasing
+	 * order, and values, in linear time.
+	 */
+	public static <K extends Comparable<K>, V> AVLBSTMap<K, V> fromSorted(K[] keys, V[] values, boolean verifying) {
+		return fromSorted(Arrays.asList(keys).iterator(), Arrays.asList(values).iterator(), keys.length, verifying);
+	}
+
+	/**
+	 * Read a map from a snapshot written by writeSnapshot, in linear time,
+	 * restoring the exact shape of the tree that was written.
+	 */
+	public static <K extends Comparable<K>, V> AVLBSTMap<K, V> readSnapshot(ReadableByteChannel channel,
+			Codec<K> keyCodec, Codec<V> valueCodec, boolean verifying) throws IOException {
+		AVLBSTMap<K, V> map = new AVLBSTMap<K, V>(verifying);
+		map.loadSnapshot(channel, keyCodec, valueCodec);
+		return map;
+	}
+
+	/**
+	 * A perfectly balanced tree is an AVL tree as it stands; the node
+	 * computes its height and size from its children.
+	 */
+	@Override
+	protected AVLNode<K, V> bulkNodeFactory(K key, V val, AVLNode<K, V> left, AVLNode<K, V> right,
+			boolean deepest) {
+		return realNodeFactory(key, val, left, right);
+	}
+
+	/**
+	 * A copy keeps the height, size and balance the original stores,
+	 * instead of recomputing them.
+	 */
+	@Override
+	protected AVLNode<K, V> copyNode(AVLNode<K, V> node, AVLNode<K, V> left, AVLNode<K, V> right) {
+		AVLRealNode copy = new AVLRealNode(node.key(), ((AVLRealNode) node).value, left, right);
+		copy.height = node.height();
+		copy.size = node.size();
+		copy.balance = node.balance();
+		return copy;
+	}
+
+	/**
+	 * The stored size of the root is the size of the map.
+	 */
+	@Override
+	public int size() {
+		return root.size();
+	}
+
+	/**
+	 * Find the rank of a key in one descent, adding up the sizes of the
+	 * subtrees passed on the left.
+	 */
+	@Override
+	public int rank(K key) {
+		int rank = 0;
+		AVLNode<K, V> current = root;
+		while (current != nully) {
+			AVLRealNode node = (AVLRealNode) current;
+			int compare = compare(key, node.key);
+			if (compare < 0)
+				current = node.left;
+			else if (compare == 0)
+				return rank + node.left.size();
+			else {
+				rank += node.left.size() + 1;
+				current = node.right;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * Find the key with a given rank in one descent, steering by the sizes
+	 * of the left subtrees.
+	 */
+	@Override
+	public K select(int rank) {
+		if (rank < 0 || rank >= root.size())
+			throw new IndexOutOfBoundsException();
+		AVLRealNode node = (AVLRealNode) root;
+		while (true) {
+			int leftSize = node.left.size();
+			if (rank < leftSize)
+				node = (AVLRealNode) node.left;
+			else if (rank == leftSize)
+				return node.key;
+			else {
+				rank -= leftSize + 1;
+				node = (AVLRealNode) node.right;
+			}
+		}
+	}
+
+	/**
+	 * The stored height of the root is exactly the longest path.
+	 */
+	@Override
+	protected int heightBound() {
+		return root.height();
+	}
+
+	/**
+	 * Join AVL trees of any heights. If one is more than one taller than
+	 * the other, the node is joined into its inner spine, down to the
+	 * first subtree no more than one taller than the other tree; each
+	 * ancestor on the way back up has subtrees differing in height by at
+	 * most two, which putFixup repairs as after an insertion.
+	 */
+	@Override
+	protected AVLNode<K, V> join(AVLNode<K, V> left, AVLNode<K, V> middle, AVLNode<K, V> right) {
+		if (left.height() > right.height() + 1) {
+			AVLRealNode node = (AVLRealNode) left;
+			node.right = join(node.right, middle, right);
+			return node.putFixup();
+		}
+		if (right.height() > left.height() + 1) {
+			AVLRealNode node = (AVLRealNode) right;
+			node.left = join(left, middle, node.left);
+			return node.putFixup();
+		}
+		AVLRealNode node = (AVLRealNode) middle;
+		node.left = left;
+		node.right = right;
+		node.recompute();
+		return node;
+	}
+
+	/**
+	 * Retrace the path bottom-up only while the height of the subtree keeps
+	 * growing. A rotation, or a node whose height does not change, ends the
+	 * retracing, and the ancestors above it need only their sizes bumped.
+	 */
+	@Override
+	protected AVLNode<K, V> fixPath(RealNode<K, V, AVLNode<K, V>>[] path, boolean[] wentLeft, int depth,
+			AVLNode<K, V> child) {
+		int levels = 0;
+		while (depth > 0) {
+			AVLRealNode parent = (AVLRealNode) path[--depth];
+			levels++;
+			if (wentLeft[depth])
+				parent.left = child;
+			else
+				parent.right = child;
+			int oldHeight = parent.height;
+			child = parent.putFixup();
+			if (child.height() == oldHeight) {
+				// the subtree stopped growing (possibly by rotating);
+				// reattach it and account for the new node above it
+				if (depth > 0) {
+					AVLRealNode above = (AVLRealNode) path[depth - 1];
+					if (wentLeft[depth - 1])
+						above.left = child;
+					else
+						above.right = child;
+				}
+				while (depth > 0)
+					((AVLRealNode) path[--depth]).size++;
+				metrics.fixup(levels);
+				return root == parent ? child : root;
+			}
+		}
+		metrics.fixup(levels);
+		return child;
 	}
 
 	/**
@@ -11,6 +11,25 @@ public class AVLVerify<K extends Comparable<K>,V, N extends AVLBSTMap.AVLNode<K,
     @Override
     public void verify(N root){
         getHeight(root);
+        getSize(root);
+    }
+
+    /**
+     * Check the balance, height and size stored at one node against
+     * what its children store.
+     */
+    @Override
+    public void verifyNode(N node) {
+        AVLNode<K, V> left = node.left();
+        AVLNode<K, V> right = node.right();
+        if (Math.abs(left.height() - right.height()) > 1)
+            throw new ImbalanceException("Left Height ="+ left.height() +", Right Height =" + right.height());
+        if (node.height() != Math.max(left.height(), right.height()) + 1)
+            throw new IgnorantNodeException("The root of: "+ node.toString() + "thinks its height is "+
+                                            node.height() + ", but it is actually "+(Math.max(left.height(), right.height()) + 1));
+        if (node.size() != left.size() + right.size() + 1)
+            throw new IgnorantNodeException("The root of: "+ node.toString() + "thinks its size is "+
+                                            node.size() + ", but it is actually "+(left.size() + right.size() + 1));
     }
     /**
      * getHeight returns the height of an avl tree rooted at avlNode. In the process, 
@@ -35,4 +54,20 @@ public class AVLVerify<K extends Comparable<K>,V, N extends AVLBSTMap.AVLNode<K,
         
     }
 
+    /**
+     * getSize returns the number of nodes in the tree rooted at avlNode, checking
+     * along the way that every node's stored size is correct.
+     * @param avlNode the root of the given tree
+     * @return the number of nodes in the tree
+     */
+    public int getSize(AVLNode<K, V> avlNode) {
+        if (avlNode.isNull())
+            return 0;
+        int size = getSize(avlNode.left()) + getSize(avlNode.right()) + 1;
+        if (size != avlNode.size())
+            throw new IgnorantNodeException("The root of: "+ avlNode.toString() + "thinks its size is "+ 
+                                            avlNode.size() + ", but it is actually "+size);
+        return size;
+    }
+
 }
@@ -0,0 +1,222 @@
+package impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * ArrayAVLMap
+ *
+ * An AVL tree map whose nodes are not objects but slots in parallel
+ * arrays: a node is an int index, its links are indexes into the
+ * left and right arrays, and its height and subtree size are kept in
+ * a byte array and an int array. Slot 0 is the null node, with height
+ * and size 0. Slots freed by removals are chained through the left
+ * array into a free list and reused before the arrays grow.
+ *
+ * Compared with AVLBSTMap, a node costs no object header and no
+ * references besides its key and value, and a descent reads small
+ * primitive arrays instead of chasing pointers, which keeps large maps
+ * smaller and easier on the garbage collector. The algorithms are
+ * those of IndexedAVLTree; this class only keeps the slots.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ArrayAVLMap<K extends Comparable<K>, V> extends IndexedAVLTree<K, V> {
+
+    private Object[] keys;
+    private Object[] values;
+    private int[] left;
+    private int[] right;
+    private int[] size;
+    private byte[] height;
+
+    /**
+     * The index of the root, NIL when the map is empty.
+     */
+    private int root = NIL;
+
+    /**
+     * The first slot that has never been used.
+     */
+    private int next = 1;
+
+    /**
+     * The first slot of the free list, NIL if it is empty.
+     */
+    private int free = NIL;
+
+    /**
+     * Basic constructor for an empty map
+     */
+    public ArrayAVLMap(boolean verifying) {
+        this(16, verifying);
+    }
+
+    /**
+     * Constructor for an empty map with room for a number of
+     * associations before the arrays have to grow.
+     */
+    public ArrayAVLMap(int capacity, boolean verifying) {
+        super(verifying);
+        if (capacity < 0)
+            throw new IllegalArgumentException("negative capacity " + capacity);
+        int length = capacity + 1;
+        keys = new Object[length];
+        values = new Object[length];
+        left = new int[length];
+        right = new int[length];
+        size = new int[length];
+        height = new byte[length];
+    }
+
+    /**
+     * Build a map from keys, in strictly increasing order, and their
+     * values, in linear time, in the manner of AVLBSTMap.fromSorted.
+     * The nodes are laid out in key order, so iteration over the new
+     * map walks the arrays sequentially.
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> ArrayAVLMap<K, V> fromSorted(Iterator<K> keys, Iterator<V> values,
+            int size, boolean verifying) {
+        ArrayAVLMap<K, V> map = new ArrayAVLMap<K, V>(size, verifying);
+        map.root = map.build(keys, values, size);
+        map.verify();
+        return map;
+    }
+
+    /**
+     * Build a map from parallel arrays of keys, in strictly increasing
+     * order, and values, in linear time.
+     */
+    public static <K extends Comparable<K>, V> ArrayAVLMap<K, V> fromSorted(K[] keys, V[] values, boolean verifying) {
+        return fromSorted(Arrays.asList(keys).iterator(), Arrays.asList(values).iterator(), keys.length, verifying);
+    }
+
+    @Override
+    protected int left(int node) {
+        return left[node];
+    }
+
+    @Override
+    protected int right(int node) {
+        return right[node];
+    }
+
+    @Override
+    protected int height(int node) {
+        return height[node];
+    }
+
+    @Override
+    protected int size(int node) {
+        return size[node];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected K key(int node) {
+        return (K) keys[node];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected V value(int node) {
+        return (V) values[node];
+    }
+
+    @Override
+    protected void setLeft(int node, int child) {
+        left[node] = child;
+    }
+
+    @Override
+    protected void setRight(int node, int child) {
+        right[node] = child;
+    }
+
+    @Override
+    protected void setHeight(int node, int height) {
+        this.height[node] = (byte) height;
+    }
+
+    @Override
+    protected void setSize(int node, int size) {
+        this.size[node] = size;
+    }
+
+    @Override
+    protected void setValue(int node, V val) {
+        values[node] = val;
+    }
+
+    @Override
+    protected int root() {
+        return root;
+    }
+
+    @Override
+    protected void setRoot(int node) {
+        root = node;
+    }
+
+    /**
+     * Take a slot for a new leaf, from the free list if possible.
+     */
+    @Override
+    protected int allocate(K key, V val) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = left[node];
+        }
+        else {
+            if (next == keys.length)
+                grow();
+            node = next++;
+        }
+        keys[node] = key;
+        values[node] = val;
+        left[node] = right[node] = NIL;
+        height[node] = 1;
+        size[node] = 1;
+        return node;
+    }
+
+    /**
+     * Put a slot on the free list, dropping its key and value.
+     */
+    @Override
+    protected void release(int node) {
+        keys[node] = null;
+        values[node] = null;
+        left[node] = free;
+        right[node] = NIL;
+        height[node] = 0;
+        size[node] = 0;
+        free = node;
+    }
+
+    private void grow() {
+        int length = keys.length + (keys.length >> 1) + 1;
+        keys = Arrays.copyOf(keys, length);
+        values = Arrays.copyOf(values, length);
+        left = Arrays.copyOf(left, length);
+        right = Arrays.copyOf(right, length);
+        size = Arrays.copyOf(size, length);
+        height = Arrays.copyOf(height, length);
+    }
+
+    /**
+     * Check that every slot is either in the tree or on the free list.
+     */
+    @Override
+    protected void checkStorage() {
+        int freeSlots = 0;
+        for (int slot = free; slot != NIL; slot = left[slot])
+            freeSlots++;
+        if (size[root] + freeSlots != next - 1)
+            throw new IgnorantNodeException((next - 1) + " slots are used, but " + size[root]
+                    + " are in the tree and " + freeSlots + " are free");
+    }
+}
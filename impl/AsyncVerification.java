@@ -0,0 +1,143 @@
+package impl;
+
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+
+/**
+ * AsyncVerification
+ *
+ * A verification strategy that runs another strategy's full verification
+ * in the background, on a copy of the tree, so the operation that asked
+ * for it does not wait for it. On every Nth call, if the last background
+ * check has finished, the tree is copied on the calling thread and the
+ * copy is handed to the executor. The copy is linear in the size of the
+ * tree, but it is much cheaper than the verification, and it happens only
+ * on the sampled calls.
+ *
+ * A failure found in the background is thrown from the next call to
+ * verify, or from await, on the thread using the map, so a broken tree
+ * is reported a few operations after it broke.
+ */
+public class AsyncVerification<K extends Comparable<K>, V, N extends RecursiveBSTMap.Node<K, V, ? super N>>
+        implements VerificationStrategy<K, V, N> {
+
+    /**
+     * The strategy run on the copies.
+     */
+    private final VerificationStrategy<K, V, N> base;
+
+    /**
+     * The number of calls per verification.
+     */
+    private final int every;
+
+    /**
+     * Copies a tree, given its root, into nodes no one else can reach.
+     */
+    private final UnaryOperator<N> copier;
+
+    /**
+     * Runs the verifications.
+     */
+    private final Executor executor;
+
+    /**
+     * The calls since the last verification was started (or skipped
+     * because one was still running).
+     */
+    private int calls;
+
+    /**
+     * Whether a background verification has been handed to the executor
+     * and has not finished. Guarded by this.
+     */
+    private boolean running;
+
+    /**
+     * The first failure found in the background that has not yet been
+     * thrown. Guarded by this.
+     */
+    private RuntimeException failure;
+
+    /**
+     * @param base The strategy run on the copies
+     * @param every Start a verification on one call out of this many
+     * @param copier Copies a tree into nodes no one else can reach
+     * @param executor Runs the verifications
+     * @throws IllegalArgumentException if every is not positive
+     */
+    public AsyncVerification(VerificationStrategy<K, V, N> base, int every, UnaryOperator<N> copier,
+            Executor executor) {
+        if (every < 1)
+            throw new IllegalArgumentException("every must be positive: " + every);
+        this.base = base;
+        this.every = every;
+        this.copier = copier;
+        this.executor = executor;
+    }
+
+    public void verify(N root) {
+        synchronized (this) {
+            rethrow();
+            if (++calls < every || running)
+                return;
+            calls = 0;
+            running = true;
+        }
+        try {
+            N copy = copier.apply(root);
+            executor.execute(() -> check(copy));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                running = false;
+            }
+            throw e;
+        }
+    }
+
+    private void check(N copy) {
+        RuntimeException found = null;
+        try {
+            base.verify(copy);
+        } catch (RuntimeException e) {
+            found = e;
+        }
+        synchronized (this) {
+            if (failure == null)
+                failure = found;
+            running = false;
+            notifyAll();
+        }
+    }
+
+    public void verifyNode(N node) {
+        base.verifyNode(node);
+    }
+
+    /**
+     * Wait for the background verification, if one is running, to finish.
+     * @throws RuntimeException the first failure found in the background
+     * that has not yet been thrown
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void await() throws InterruptedException {
+        while (running)
+            wait();
+        rethrow();
+    }
+
+    private void rethrow() {
+        RuntimeException toThrow = failure;
+        if (toThrow != null) {
+            failure = null;
+            throw toThrow;
+        }
+    }
+
+    /**
+     * Get the strategy run on the copies.
+     */
+    public VerificationStrategy<K, V, N> getBase() {
+        return base;
+    }
+}
@@ -0,0 +1,933 @@
+package impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import adt.OrderedMap;
+import impl.AVLBSTMap.ImbalanceException;
+
+/**
+ * BPlusTreeMap
+ *
+ * An ordered map kept in a B+ tree. Every association is in a leaf, all
+ * the leaves are at the same depth and are linked in key order, and the
+ * internal nodes above them hold only separating keys and links. Each
+ * node keeps its keys in one array of at most fanOut - 1 keys, and every
+ * node but the root is at least half full, so a lookup in a map of n
+ * keys visits about log n / log(fanOut / 2) nodes, where the binary
+ * trees visit about log2 n, and iterating walks the leaves' arrays in
+ * order.
+ *
+ * The arrays hold references, so a binary search within a node still
+ * reads a few key objects from wherever they are; what the wide nodes
+ * save is the node-to-node pointer chasing. Internal nodes also keep the
+ * number of associations below them, for rank and select.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class BPlusTreeMap<K extends Comparable<K>, V> implements OrderedMap<K, V> {
+
+    /**
+     * The fan-out of a map constructed without one.
+     */
+    public static final int DEFAULT_FAN_OUT = 64;
+
+    /**
+     * A node: its keys, in increasing order, in the first size slots of
+     * keys. The arrays have room for one key more than a node may keep,
+     * so that a node can take the key that overfills it before it splits.
+     */
+    private abstract static class Node {
+        final Object[] keys;
+
+        /**
+         * The number of keys in the node.
+         */
+        int size;
+
+        /**
+         * The number of associations in the subtree rooted here.
+         */
+        int count;
+
+        Node(int capacity) {
+            keys = new Object[capacity];
+        }
+    }
+
+    /**
+     * A leaf, holding associations, and linked to its neighbors.
+     */
+    private static final class Leaf extends Node {
+        final Object[] values;
+        Leaf prev, next;
+
+        Leaf(int capacity) {
+            super(capacity);
+            values = new Object[capacity];
+        }
+    }
+
+    /**
+     * An internal node, with size + 1 children. Every key in children[i]
+     * is at least keys[i - 1] and less than keys[i].
+     */
+    private static final class Inner extends Node {
+        final Node[] children;
+
+        Inner(int capacity) {
+            super(capacity);
+            children = new Node[capacity + 1];
+        }
+    }
+
+    /**
+     * The most keys a node may hold, fanOut - 1.
+     */
+    private final int maxKeys;
+
+    /**
+     * The fewest keys a node other than the root may hold.
+     */
+    private final int minKeys;
+
+    private Node root;
+
+    /**
+     * The number of levels of internal nodes; 0 when the root is a leaf.
+     */
+    private int height;
+
+    /**
+     * The leftmost and rightmost leaves.
+     */
+    private Leaf first, last;
+
+    /**
+     * The separating key for the new right sibling made by the last
+     * split, on its way up to the parent.
+     */
+    private Object splitKey;
+
+    /**
+     * Whether the current put added a key, or the current remove found
+     * one, so that the counts on the way back up must change.
+     */
+    private boolean changed;
+
+    /**
+     * True if the map checks its invariants before and after each
+     * operation.
+     */
+    private final boolean verifying;
+
+    /**
+     * Basic constructor for an empty map
+     */
+    public BPlusTreeMap(boolean verifying) {
+        this(DEFAULT_FAN_OUT, verifying);
+    }
+
+    /**
+     * Constructor for an empty map whose nodes have at most fanOut
+     * children.
+     * @throws IllegalArgumentException if fanOut is less than 3
+     */
+    public BPlusTreeMap(int fanOut, boolean verifying) {
+        if (fanOut < 3)
+            throw new IllegalArgumentException("fan-out " + fanOut + " is less than 3");
+        this.verifying = verifying;
+        maxKeys = fanOut - 1;
+        minKeys = maxKeys / 2;
+        root = first = last = new Leaf(maxKeys + 1);
+    }
+
+    /**
+     * Build a map from parallel arrays of keys, in strictly increasing
+     * order, and values, in linear time, with the default fan-out.
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> BPlusTreeMap<K, V> fromSorted(K[] keys, V[] values, boolean verifying) {
+        return fromSorted(keys, values, DEFAULT_FAN_OUT, verifying);
+    }
+
+    /**
+     * Build a map from parallel arrays of keys, in strictly increasing
+     * order, and values, in linear time. The tree is built bottom-up: the
+     * associations are spread evenly over as few leaves as will hold
+     * them, and each level of internal nodes likewise over the level
+     * below, so every node is at least half full.
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> BPlusTreeMap<K, V> fromSorted(K[] keys, V[] values, int fanOut,
+            boolean verifying) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException(keys.length + " keys but " + values.length + " values");
+        for (int i = 1; i < keys.length; i++)
+            if (keys[i - 1].compareTo(keys[i]) >= 0)
+                throw new IllegalArgumentException("keys are not in increasing order at " + keys[i]);
+        BPlusTreeMap<K, V> map = new BPlusTreeMap<K, V>(fanOut, verifying);
+        int n = keys.length;
+        if (n == 0)
+            return map;
+        int capacity = map.maxKeys + 1;
+        Node[] level = new Node[(n + map.maxKeys - 1) / map.maxKeys];
+        // the least key below each node of the level, for the separators
+        Object[] least = new Object[level.length];
+        Leaf previous = null;
+        for (int j = 0; j < level.length; j++) {
+            int lo = (int) ((long) j * n / level.length);
+            int hi = (int) ((long) (j + 1) * n / level.length);
+            Leaf leaf = new Leaf(capacity);
+            System.arraycopy(keys, lo, leaf.keys, 0, hi - lo);
+            System.arraycopy(values, lo, leaf.values, 0, hi - lo);
+            leaf.size = leaf.count = hi - lo;
+            leaf.prev = previous;
+            if (previous != null)
+                previous.next = leaf;
+            previous = leaf;
+            level[j] = leaf;
+            least[j] = keys[lo];
+        }
+        map.first = (Leaf) level[0];
+        map.last = previous;
+        while (level.length > 1) {
+            int parents = (level.length + map.maxKeys) / (map.maxKeys + 1);
+            Node[] up = new Node[parents];
+            Object[] upLeast = new Object[parents];
+            for (int p = 0; p < parents; p++) {
+                int lo = (int) ((long) p * level.length / parents);
+                int hi = (int) ((long) (p + 1) * level.length / parents);
+                Inner inner = new Inner(capacity);
+                for (int c = lo; c < hi; c++) {
+                    inner.children[c - lo] = level[c];
+                    inner.count += level[c].count;
+                    if (c > lo)
+                        inner.keys[c - lo - 1] = least[c];
+                }
+                inner.size = hi - lo - 1;
+                up[p] = inner;
+                upLeast[p] = least[lo];
+            }
+            level = up;
+            least = upLeast;
+            map.height++;
+        }
+        map.root = level[0];
+        map.verify();
+        return map;
+    }
+
+    // ---------- searching within a node
+
+    /**
+     * Search the keys of a node.
+     * @return The index of key, if the node has it, or else -(i + 1)
+     * where i is the index of the first key after it
+     */
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> int search(Node node, K key) {
+        int lo = 0;
+        int hi = node.size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int compare = ((K) node.keys[mid]).compareTo(key);
+            if (compare < 0)
+                lo = mid + 1;
+            else if (compare > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * The index of the child of an internal node whose subtree would
+     * hold key: the number of separating keys not after it.
+     */
+    private static <K extends Comparable<K>> int childIndex(Inner node, K key) {
+        int i = search(node, key);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+
+    /**
+     * The leaf whose range of keys holds key.
+     */
+    private Leaf findLeaf(K key) {
+        Node node = root;
+        for (int level = height; level > 0; level--) {
+            Inner inner = (Inner) node;
+            node = inner.children[childIndex(inner, key)];
+        }
+        return (Leaf) node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K key(Node node, int i) {
+        return (K) node.keys[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(Leaf leaf, int i) {
+        return (V) leaf.values[i];
+    }
+
+    private static void insertAt(Object[] array, int length, int at, Object item) {
+        System.arraycopy(array, at, array, at + 1, length - at);
+        array[at] = item;
+    }
+
+    private static void removeAt(Object[] array, int length, int at) {
+        System.arraycopy(array, at + 1, array, at, length - at - 1);
+        array[length - 1] = null;
+    }
+
+    // ---------- map operations
+
+    /**
+     * Add an association to the map.
+     * @param key The key to this association
+     * @param val The value to which this key is associated
+     */
+    public void put(K key, V val) {
+        verify();
+        changed = false;
+        Node sibling = insert(root, height, key, val);
+        if (sibling != null) {
+            // the root split; the tree grows a level at the top
+            Inner newRoot = new Inner(maxKeys + 1);
+            newRoot.keys[0] = splitKey;
+            newRoot.children[0] = root;
+            newRoot.children[1] = sibling;
+            newRoot.size = 1;
+            newRoot.count = root.count + sibling.count;
+            root = newRoot;
+            height++;
+        }
+        splitKey = null;
+        verify();
+    }
+
+    /**
+     * Put an association into a subtree.
+     * @param level The number of levels of internal nodes in the subtree
+     * @return The new right sibling of node if it split, with splitKey
+     * set to the key that separates them, or null
+     */
+    private Node insert(Node node, int level, K key, V val) {
+        if (level == 0) {
+            Leaf leaf = (Leaf) node;
+            int i = search(leaf, key);
+            if (i >= 0) {
+                leaf.values[i] = val;
+                return null;
+            }
+            i = -(i + 1);
+            insertAt(leaf.keys, leaf.size, i, key);
+            insertAt(leaf.values, leaf.size, i, val);
+            leaf.size++;
+            leaf.count++;
+            changed = true;
+            return leaf.size > maxKeys ? splitLeaf(leaf) : null;
+        }
+        Inner inner = (Inner) node;
+        int i = childIndex(inner, key);
+        Node sibling = insert(inner.children[i], level - 1, key, val);
+        if (changed)
+            inner.count++;
+        if (sibling == null)
+            return null;
+        insertAt(inner.keys, inner.size, i, splitKey);
+        insertAt(inner.children, inner.size + 1, i + 1, sibling);
+        inner.size++;
+        return inner.size > maxKeys ? splitInner(inner) : null;
+    }
+
+    /**
+     * Move the upper half of an overfull leaf into a new leaf after it.
+     * The first key of the new leaf separates them.
+     */
+    private Leaf splitLeaf(Leaf leaf) {
+        int keep = leaf.size / 2;
+        int moved = leaf.size - keep;
+        Leaf right = new Leaf(maxKeys + 1);
+        System.arraycopy(leaf.keys, keep, right.keys, 0, moved);
+        System.arraycopy(leaf.values, keep, right.values, 0, moved);
+        Arrays.fill(leaf.keys, keep, leaf.size, null);
+        Arrays.fill(leaf.values, keep, leaf.size, null);
+        right.size = right.count = moved;
+        leaf.size = leaf.count = keep;
+        right.next = leaf.next;
+        if (right.next != null)
+            right.next.prev = right;
+        else
+            last = right;
+        right.prev = leaf;
+        leaf.next = right;
+        splitKey = right.keys[0];
+        return right;
+    }
+
+    /**
+     * Move the upper half of an overfull internal node into a new node
+     * after it. The middle key moves up, to separate them.
+     */
+    private Inner splitInner(Inner inner) {
+        int mid = inner.size / 2;
+        int moved = inner.size - mid - 1;
+        Inner right = new Inner(maxKeys + 1);
+        System.arraycopy(inner.keys, mid + 1, right.keys, 0, moved);
+        System.arraycopy(inner.children, mid + 1, right.children, 0, moved + 1);
+        splitKey = inner.keys[mid];
+        Arrays.fill(inner.keys, mid, inner.size, null);
+        Arrays.fill(inner.children, mid + 1, inner.size + 1, null);
+        right.size = moved;
+        inner.size = mid;
+        for (int c = 0; c <= moved; c++)
+            right.count += right.children[c].count;
+        inner.count -= right.count;
+        return right;
+    }
+
+    /**
+     * Remove the association for a key, if there is one.
+     * @param key The key to remove
+     * @return The value that was associated with the key, null if none
+     */
+    public V remove(K key) {
+        verify();
+        changed = false;
+        V toReturn = delete(root, height, key);
+        if (height > 0 && root.size == 0) {
+            // the root is down to one child; the tree loses its top level
+            root = ((Inner) root).children[0];
+            height--;
+        }
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * Remove a key from a subtree. A child left with too few keys takes
+     * one from a sibling that can spare one, or else is merged with it.
+     * @param level The number of levels of internal nodes in the subtree
+     * @return The value that was associated with the key, null if none
+     */
+    private V delete(Node node, int level, K key) {
+        if (level == 0) {
+            Leaf leaf = (Leaf) node;
+            int i = search(leaf, key);
+            if (i < 0)
+                return null;
+            V toReturn = value(leaf, i);
+            removeAt(leaf.keys, leaf.size, i);
+            removeAt(leaf.values, leaf.size, i);
+            leaf.size--;
+            leaf.count--;
+            changed = true;
+            return toReturn;
+        }
+        Inner inner = (Inner) node;
+        int i = childIndex(inner, key);
+        Node child = inner.children[i];
+        V toReturn = delete(child, level - 1, key);
+        if (changed) {
+            inner.count--;
+            if (child.size < minKeys)
+                refill(inner, i, level - 1 == 0);
+        }
+        return toReturn;
+    }
+
+    /**
+     * Bring an underfull child back to at least minKeys keys, from its
+     * left sibling if it has one, or else from its right sibling.
+     */
+    private void refill(Inner parent, int i, boolean leaves) {
+        int left = i > 0 ? i - 1 : i;
+        Node leftChild = parent.children[left];
+        Node rightChild = parent.children[left + 1];
+        Node sibling = left < i ? leftChild : rightChild;
+        if (sibling.size > minKeys) {
+            if (leaves)
+                shiftLeaves(parent, left, (Leaf) leftChild, (Leaf) rightChild, left < i);
+            else
+                shiftInner(parent, left, (Inner) leftChild, (Inner) rightChild, left < i);
+        }
+        else
+            merge(parent, left, leaves);
+    }
+
+    /**
+     * Move one association between neighboring leaves, and update the
+     * key that separates them.
+     * @param rightward Move the last of left to the front of right (or
+     * else the first of right to the end of left)
+     */
+    private void shiftLeaves(Inner parent, int at, Leaf left, Leaf right, boolean rightward) {
+        if (rightward) {
+            int last = left.size - 1;
+            insertAt(right.keys, right.size, 0, left.keys[last]);
+            insertAt(right.values, right.size, 0, left.values[last]);
+            left.keys[last] = null;
+            left.values[last] = null;
+            left.size--;
+            right.size++;
+            left.count--;
+            right.count++;
+        }
+        else {
+            left.keys[left.size] = right.keys[0];
+            left.values[left.size] = right.values[0];
+            removeAt(right.keys, right.size, 0);
+            removeAt(right.values, right.size, 0);
+            left.size++;
+            right.size--;
+            left.count++;
+            right.count--;
+        }
+        parent.keys[at] = right.keys[0];
+    }
+
+    /**
+     * Move one child between neighboring internal nodes, rotating the
+     * key that separates them through the parent.
+     * @param rightward Move the last child of left to the front of right
+     * (or else the first child of right to the end of left)
+     */
+    private void shiftInner(Inner parent, int at, Inner left, Inner right, boolean rightward) {
+        Node moved;
+        if (rightward) {
+            moved = left.children[left.size];
+            insertAt(right.keys, right.size, 0, parent.keys[at]);
+            insertAt(right.children, right.size + 1, 0, moved);
+            parent.keys[at] = left.keys[left.size - 1];
+            left.keys[left.size - 1] = null;
+            left.children[left.size] = null;
+            left.size--;
+            right.size++;
+            left.count -= moved.count;
+            right.count += moved.count;
+        }
+        else {
+            moved = right.children[0];
+            left.keys[left.size] = parent.keys[at];
+            left.children[left.size + 1] = moved;
+            parent.keys[at] = right.keys[0];
+            removeAt(right.keys, right.size, 0);
+            removeAt(right.children, right.size + 1, 0);
+            left.size++;
+            right.size--;
+            left.count += moved.count;
+            right.count -= moved.count;
+        }
+    }
+
+    /**
+     * Merge the child after at into the child at at, and take the key
+     * that separated them out of the parent.
+     */
+    private void merge(Inner parent, int at, boolean leaves) {
+        Node left = parent.children[at];
+        Node right = parent.children[at + 1];
+        if (leaves) {
+            Leaf leftLeaf = (Leaf) left;
+            Leaf rightLeaf = (Leaf) right;
+            System.arraycopy(rightLeaf.keys, 0, leftLeaf.keys, leftLeaf.size, rightLeaf.size);
+            System.arraycopy(rightLeaf.values, 0, leftLeaf.values, leftLeaf.size, rightLeaf.size);
+            leftLeaf.size += rightLeaf.size;
+            leftLeaf.next = rightLeaf.next;
+            if (leftLeaf.next != null)
+                leftLeaf.next.prev = leftLeaf;
+            else
+                last = leftLeaf;
+        }
+        else {
+            Inner leftInner = (Inner) left;
+            Inner rightInner = (Inner) right;
+            leftInner.keys[leftInner.size] = parent.keys[at];
+            System.arraycopy(rightInner.keys, 0, leftInner.keys, leftInner.size + 1, rightInner.size);
+            System.arraycopy(rightInner.children, 0, leftInner.children, leftInner.size + 1, rightInner.size + 1);
+            leftInner.size += rightInner.size + 1;
+        }
+        left.count += right.count;
+        removeAt(parent.keys, parent.size, at);
+        removeAt(parent.children, parent.size + 1, at + 1);
+        parent.size--;
+    }
+
+    /**
+     * Get the value for a key.
+     * @param key The key whose value we're retrieving.
+     * @return The value associated with this key, null if none exists
+     */
+    public V get(K key) {
+        verify();
+        Leaf leaf = findLeaf(key);
+        int i = search(leaf, key);
+        V toReturn = i >= 0 ? value(leaf, i) : null;
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     * @param key The key to test.
+     * @return true if there is an association for this key, false otherwise
+     */
+    public boolean containsKey(K key) {
+        verify();
+        boolean toReturn = search(findLeaf(key), key) >= 0;
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * Get the minimum element in the map, or null if none exists
+     */
+    public K min() {
+        return first.size == 0 ? null : key(first, 0);
+    }
+
+    /**
+     * Get the maximum element in the map, or null if none exists
+     */
+    public K max() {
+        return last.size == 0 ? null : key(last, last.size - 1);
+    }
+
+    /**
+     * Remove the minimum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public K pollFirst() {
+        K first = min();
+        if (first != null)
+            remove(first);
+        return first;
+    }
+
+    /**
+     * Remove the maximum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public K pollLast() {
+        K last = max();
+        if (last != null)
+            remove(last);
+        return last;
+    }
+
+    /**
+     * The count of the root is the size of the map.
+     */
+    public int size() {
+        return root.count;
+    }
+
+    /**
+     * Find the rank of a key in one descent, adding up the counts of the
+     * children passed over on the left.
+     */
+    public int rank(K key) {
+        verify();
+        int rank = 0;
+        Node node = root;
+        for (int level = height; level > 0; level--) {
+            Inner inner = (Inner) node;
+            int i = childIndex(inner, key);
+            for (int c = 0; c < i; c++)
+                rank += inner.children[c].count;
+            node = inner.children[i];
+        }
+        int i = search(node, key);
+        return rank + (i >= 0 ? i : -(i + 1));
+    }
+
+    /**
+     * Find the key with a given rank in one descent, steering by the
+     * counts of the children.
+     */
+    public K select(int rank) {
+        verify();
+        if (rank < 0 || rank >= root.count)
+            throw new IndexOutOfBoundsException();
+        Node node = root;
+        for (int level = height; level > 0; level--) {
+            Inner inner = (Inner) node;
+            int c = 0;
+            while (rank >= inner.children[c].count)
+                rank -= inner.children[c++].count;
+            node = inner.children[c];
+        }
+        return key(node, rank);
+    }
+
+    /**
+     * Count the keys k with lo <= k <= hi, by way of rank.
+     */
+    public int countInRange(K lo, K hi) {
+        if (hi.compareTo(lo) < 0)
+            return 0;
+        int count = rank(hi) - rank(lo);
+        if (containsKey(hi))
+            count++;
+        return count;
+    }
+
+    /**
+     * The greatest key less than or equal to key, or null if none.
+     */
+    public K floor(K key) {
+        return nearest(key, true, true);
+    }
+
+    /**
+     * The least key greater than or equal to key, or null if none.
+     */
+    public K ceiling(K key) {
+        return nearest(key, false, true);
+    }
+
+    /**
+     * The greatest key strictly less than key, or null if none.
+     */
+    public K lower(K key) {
+        return nearest(key, true, false);
+    }
+
+    /**
+     * The least key strictly greater than key, or null if none.
+     */
+    public K higher(K key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Find the key nearest to a given key on one side of it. The leaf
+     * whose range holds the key has the answer, unless it is the last
+     * key of the leaf before or the first key of the leaf after.
+     */
+    private K nearest(K key, boolean below, boolean inclusive) {
+        verify();
+        Leaf leaf = findLeaf(key);
+        int i = search(leaf, key);
+        if (i >= 0 && inclusive)
+            return key;
+        // the index of the first key after key
+        int after = i >= 0 ? i + 1 : -(i + 1);
+        if (below) {
+            // the key before that, skipping key itself
+            int at = (i >= 0 ? i : after) - 1;
+            if (at >= 0)
+                return key(leaf, at);
+            return leaf.prev == null ? null : key(leaf.prev, leaf.prev.size - 1);
+        }
+        if (after < leaf.size)
+            return key(leaf, after);
+        return leaf.next == null ? null : key(leaf.next, 0);
+    }
+
+    /**
+     * Iterate over the keys of this map in order.
+     */
+    public Iterator<K> iterator() {
+        verify();
+        return new LeafIterator(null, null);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive).
+     */
+    public Iterable<K> subMap(final K fromKey, final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                verify();
+                return new LeafIterator(fromKey, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys before toKey, in the manner of subMap.
+     */
+    public Iterable<K> headMap(final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                verify();
+                return new LeafIterator(null, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys from fromKey on, in the manner of subMap.
+     */
+    public Iterable<K> tailMap(final K fromKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                verify();
+                return new LeafIterator(fromKey, null);
+            }
+        };
+    }
+
+    /**
+     * Iterator over the keys that walks along the linked leaves.
+     */
+    private class LeafIterator implements Iterator<K> {
+
+        /**
+         * The leaf holding the next key, or null at the end.
+         */
+        private Leaf leaf;
+
+        /**
+         * The index of the next key in leaf.
+         */
+        private int index;
+
+        /**
+         * The (exclusive) upper bound, or null if there is none.
+         */
+        private final K toKey;
+
+        LeafIterator(K fromKey, K toKey) {
+            this.toKey = toKey;
+            if (fromKey == null)
+                leaf = first;
+            else {
+                leaf = findLeaf(fromKey);
+                int i = search(leaf, fromKey);
+                index = i >= 0 ? i : -(i + 1);
+            }
+            settle();
+        }
+
+        /**
+         * Move on to the next leaf if this one is used up, and end the
+         * iteration if the next key is not before toKey.
+         */
+        private void settle() {
+            if (leaf != null && index == leaf.size) {
+                leaf = leaf.next;
+                index = 0;
+            }
+            if (leaf != null && toKey != null && key(leaf, index).compareTo(toKey) >= 0)
+                leaf = null;
+        }
+
+        public boolean hasNext() {
+            verify();
+            return leaf != null;
+        }
+
+        public K next() {
+            verify();
+            if (leaf == null)
+                throw new NoSuchElementException();
+            K toReturn = key(leaf, index++);
+            settle();
+            return toReturn;
+        }
+    }
+
+    /**
+     * The tree with each leaf's keys in brackets and each internal node
+     * in parentheses, its children separated by its keys.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, root, height);
+        return builder.toString();
+    }
+
+    private void appendTo(StringBuilder builder, Node node, int level) {
+        if (level == 0) {
+            builder.append('[');
+            for (int i = 0; i < node.size; i++)
+                builder.append(i == 0 ? "" : " ").append(node.keys[i]);
+            builder.append(']');
+            return;
+        }
+        Inner inner = (Inner) node;
+        builder.append('(');
+        for (int i = 0; i <= inner.size; i++) {
+            if (i > 0)
+                builder.append(' ').append(inner.keys[i - 1]).append(' ');
+            appendTo(builder, inner.children[i], level - 1);
+        }
+        builder.append(')');
+    }
+
+    /**
+     * Check that every leaf is at the same depth, that every node but
+     * the root is at least half full, that the keys are in order and
+     * within the bounds their ancestors set, that the counts are right,
+     * and that the leaves are linked in order, if this map is verifying
+     * itself.
+     */
+    public final void verify() {
+        if (! verifying)
+            return;
+        Leaf[] previous = new Leaf[1];
+        check(root, height, null, null, previous);
+        if (previous[0] != last || last.next != null)
+            throw new IllegalStateException("The last leaf is not linked as the last");
+    }
+
+    /**
+     * Get whether or not the map is currently verifying itself.
+     */
+    public final boolean isVerifying() {
+        return verifying;
+    }
+
+    /**
+     * Check a subtree whose keys must be at least lo and less than hi
+     * (where null is no bound).
+     * @param previous Holds the last leaf checked, which must link to the
+     * next one
+     * @return The number of associations in the subtree
+     */
+    private int check(Node node, int level, K lo, K hi, Leaf[] previous) {
+        if (node != root && node.size < minKeys)
+            throw new ImbalanceException("A node has " + node.size + " keys, fewer than " + minKeys);
+        if (node.size > maxKeys)
+            throw new ImbalanceException("A node has " + node.size + " keys, more than " + maxKeys);
+        for (int i = 0; i < node.size; i++) {
+            K key = key(node, i);
+            if (i > 0 ? key(node, i - 1).compareTo(key) >= 0 : lo != null && lo.compareTo(key) > 0)
+                throw new IllegalStateException("A node has " + key + " out of order");
+            if (hi != null && key.compareTo(hi) >= 0)
+                throw new IllegalStateException("A node has " + key + ", not before " + hi);
+        }
+        int count;
+        if (level == 0) {
+            if (! (node instanceof Leaf))
+                throw new ImbalanceException("An internal node is at the depth of the leaves");
+            Leaf leaf = (Leaf) node;
+            if (leaf.prev != previous[0] || (previous[0] == null ? first != leaf : previous[0].next != leaf))
+                throw new IllegalStateException("The leaves are not linked in order at " + leaf.keys[0]);
+            previous[0] = leaf;
+            count = leaf.size;
+        }
+        else {
+            if (node.size == 0 || ! (node instanceof Inner))
+                throw new ImbalanceException("A leaf is above the depth of the leaves");
+            Inner inner = (Inner) node;
+            count = 0;
+            for (int c = 0; c <= inner.size; c++)
+                count += check(inner.children[c], level - 1, c == 0 ? lo : key(inner, c - 1),
+                        c == inner.size ? hi : key(inner, c), previous);
+        }
+        if (node.count != count)
+            throw new IgnorantNodeException("A node thinks its count is " + node.count + ", but it is actually "
+                    + count);
+        return count;
+    }
+}
@@ -1,5 +1,11 @@
 package impl;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
 /**
  * BasicRecursiveBSTMap
  * 
@@ -36,6 +42,11 @@ public class BasicRecursiveBSTMap<K extends Comparable<K>, V> extends RecursiveB
             super(key, val, left, right);
         }
 
+        @Override
+        protected int compare(K a, K b) {
+            return BasicRecursiveBSTMap.this.compare(a, b);
+        }
+
         protected BasicNode<K, V> self() {
             return this;
         }
@@ -71,9 +82,57 @@ public class BasicRecursiveBSTMap<K extends Comparable<K>, V> extends RecursiveB
      * Basic constructor for an empty map
      */
     public BasicRecursiveBSTMap(boolean debug) {
+        this(null, debug);
+    }
+
+    /**
+     * Constructor for an empty map whose keys are ordered by a comparator
+     * @param comparator The order of the keys, or null for their natural order
+     */
+    public BasicRecursiveBSTMap(Comparator<? super K> comparator, boolean debug) {
         // since basic recursive BST map has no rules, its verification strategy checks for nothing
-        super(new DumbVerification<K,V,BasicNode<K,V>>(),debug);
-        root = nully = new BasicNullNode();
+        super(new DumbVerification<K,V,BasicNode<K,V>>(),debug,comparator);
+        root = nullNode = nully = new BasicNullNode();
+    }
+
+    /**
+     * Build a map from associations sorted by key, in linear time. 
+     * Unlike put()ing them in order, this gives a balanced tree.
+     * @param keys The keys, in strictly increasing order
+     * @param values The values, in the order of their keys
+     * @param size The number of associations to take
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> BasicRecursiveBSTMap<K, V> fromSorted(Iterator<K> keys,
+            Iterator<V> values, int size, boolean debug) {
+        BasicRecursiveBSTMap<K, V> map = new BasicRecursiveBSTMap<K, V>(debug);
+        map.buildFromSorted(keys, values, size);
+        return map;
+    }
+
+    /**
+     * Build a map from parallel arrays of keys, in strictly increasing
+     * order, and values, in linear time.
+     */
+    public static <K extends Comparable<K>, V> BasicRecursiveBSTMap<K, V> fromSorted(K[] keys, V[] values,
+            boolean debug) {
+        return fromSorted(Arrays.asList(keys).iterator(), Arrays.asList(values).iterator(), keys.length, debug);
+    }
+
+    /**
+     * Read a map from a snapshot written by writeSnapshot, in linear time,
+     * restoring the exact shape of the tree that was written.
+     */
+    public static <K extends Comparable<K>, V> BasicRecursiveBSTMap<K, V> readSnapshot(ReadableByteChannel channel,
+            Codec<K> keyCodec, Codec<V> valueCodec, boolean debug) throws IOException {
+        BasicRecursiveBSTMap<K, V> map = new BasicRecursiveBSTMap<K, V>(debug);
+        map.loadSnapshot(channel, keyCodec, valueCodec);
+        return map;
+    }
+
+    protected BasicNode<K, V> bulkNodeFactory(K key, V val, BasicNode<K, V> left, BasicNode<K, V> right,
+            boolean deepest) {
+        return new BasicRealNode(key, val, left, right);
     }
     
     
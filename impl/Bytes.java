@@ -0,0 +1,78 @@
+package impl;
+
+import java.util.Arrays;
+
+/**
+ * Bytes
+ *
+ * A byte array as a map key, ordered lexicographically by unsigned byte,
+ * like the keys of most key-value stores. The array is not copied, so it
+ * must not be changed while it is a key. PrefixComparator.BYTES orders
+ * Bytes the same way, skipping the prefixes a search has already matched.
+ */
+public final class Bytes implements Comparable<Bytes> {
+
+    private final byte[] bytes;
+
+    private Bytes(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Make a key of an array, without copying it.
+     */
+    public static Bytes wrap(byte[] bytes) {
+        if (bytes == null)
+            throw new NullPointerException();
+        return new Bytes(bytes);
+    }
+
+    /**
+     * Get the array this key wraps.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Get a byte of the key as an unsigned value.
+     */
+    public int byteAt(int index) {
+        return bytes[index] & 0xff;
+    }
+
+    /**
+     * Find how long a prefix this key shares with another.
+     * PRECONDITION: they share a prefix at least from long
+     */
+    int mismatch(Bytes other, int from) {
+        int mismatch = Arrays.mismatch(bytes, from, bytes.length, other.bytes, from, other.bytes.length);
+        return mismatch < 0 ? bytes.length : from + mismatch;
+    }
+
+    public int compareTo(Bytes other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Bytes && Arrays.equals(bytes, ((Bytes) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+}
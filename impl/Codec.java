@@ -0,0 +1,145 @@
+package impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec
+ *
+ * Converts keys or values to and from a fixed number of bytes, so they
+ * can be stored in the fixed-size records of MappedAVLMap. Variable-length
+ * data such as strings is stored length-prefixed within a fixed
+ * maximum width. Streamed formats such as snapshots need not pad to
+ * that width, and store only the length(item) bytes of each object.
+ *
+ * @param <T> The type of the objects encoded
+ */
+public interface Codec<T> {
+
+    /**
+     * The number of bytes every encoded object takes.
+     */
+    int width();
+
+    /**
+     * Whether every encoded object takes exactly width() bytes. The
+     * codecs that say no override length.
+     */
+    default boolean isFixedWidth() {
+        return true;
+    }
+
+    /**
+     * The number of bytes write uses for an object, at most width().
+     */
+    default int length(T item) {
+        return width();
+    }
+
+    /**
+     * Encode an object at an absolute position in a buffer, using at
+     * most width() bytes.
+     * @throws IllegalArgumentException if the object does not fit
+     */
+    void write(ByteBuffer buffer, int offset, T item);
+
+    /**
+     * Decode the object at an absolute position in a buffer.
+     */
+    T read(ByteBuffer buffer, int offset);
+
+    /**
+     * Four-byte ints.
+     */
+    Codec<Integer> INTEGER = new Codec<Integer>() {
+        public int width() {
+            return 4;
+        }
+
+        public void write(ByteBuffer buffer, int offset, Integer item) {
+            buffer.putInt(offset, item);
+        }
+
+        public Integer read(ByteBuffer buffer, int offset) {
+            return buffer.getInt(offset);
+        }
+    };
+
+    /**
+     * Eight-byte longs.
+     */
+    Codec<Long> LONG = new Codec<Long>() {
+        public int width() {
+            return 8;
+        }
+
+        public void write(ByteBuffer buffer, int offset, Long item) {
+            buffer.putLong(offset, item);
+        }
+
+        public Long read(ByteBuffer buffer, int offset) {
+            return buffer.getLong(offset);
+        }
+    };
+
+    /**
+     * Strings in UTF-8, prefixed with their length as a short.
+     * @param maxBytes The greatest encoded length of a string
+     */
+    static Codec<String> string(final int maxBytes) {
+        if (maxBytes < 0 || maxBytes > Short.MAX_VALUE)
+            throw new IllegalArgumentException("bad maximum length " + maxBytes);
+        return new Codec<String>() {
+            public int width() {
+                return 2 + maxBytes;
+            }
+
+            public boolean isFixedWidth() {
+                return false;
+            }
+
+            public int length(String item) {
+                return 2 + encodedLength(item);
+            }
+
+            public void write(ByteBuffer buffer, int offset, String item) {
+                byte[] bytes = item.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > maxBytes)
+                    throw new IllegalArgumentException("\"" + item + "\" takes more than " + maxBytes + " bytes");
+                buffer.putShort(offset, (short) bytes.length);
+                for (int i = 0; i < bytes.length; i++)
+                    buffer.put(offset + 2 + i, bytes[i]);
+            }
+
+            public String read(ByteBuffer buffer, int offset) {
+                byte[] bytes = new byte[buffer.getShort(offset)];
+                for (int i = 0; i < bytes.length; i++)
+                    bytes[i] = buffer.get(offset + 2 + i);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * The length of a string in UTF-8, as getBytes would encode it, with
+     * an unpaired surrogate taking the one byte of its replacement.
+     */
+    private static int encodedLength(String item) {
+        int length = 0;
+        for (int i = 0, n = item.length(); i < n; i++) {
+            char c = item.charAt(i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(item.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c))
+                length++;
+            else
+                length += 3;
+        }
+        return length;
+    }
+}
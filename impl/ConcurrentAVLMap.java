@@ -0,0 +1,1311 @@
+package impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import adt.OrderedMap;
+import impl.AVLBSTMap.ImbalanceException;
+
+/**
+ * ConcurrentAVLMap
+ *
+ * A thread-safe AVL tree map after Bronson, Casper, Chafi and Olukotun,
+ * "A Practical Concurrent Binary Search Tree" (PPoPP 2010). Lookups
+ * take no locks: each node has a version number that changes whenever
+ * a rotation shrinks its subtree, and a search checks the version of
+ * each node after reading the link to the next one, backing up to
+ * retry if the node has since been rotated. Updates lock only the
+ * nodes they change: an insertion locks the parent of the new leaf,
+ * and each rotation locks the nodes it moves, always a parent before
+ * its child, so locks cannot deadlock.
+ *
+ * Balance is relaxed while updates are in progress: the thread that
+ * damages a node (makes its height wrong or its balance too great) is
+ * responsible for repairing it, walking up the tree afterwards. Once
+ * every update has finished, the tree is a valid AVL tree.
+ *
+ * Removing a key from a node with two children does not restructure the
+ * tree; the node just loses its value and stays as a routing node, to
+ * be unlinked when rebalancing leaves it with fewer than two children.
+ *
+ * get, containsKey, put and remove are linearizable. The navigation
+ * methods, iterators and order statistics are weakly consistent: each
+ * answer is right for the keys that are not updated while it is worked
+ * out. Iterators step by searching for the next higher key, so they
+ * never fail because of concurrent updates. The order statistics walk
+ * the keys, as there are no subtree sizes to maintain.
+ *
+ * Verification (of the AVL property, heights, parent links and routing
+ * nodes) checks the whole tree and is meant for single-threaded tests.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ConcurrentAVLMap<K extends Comparable<K>, V> implements OrderedMap<K, V> {
+
+    // the bits of a version
+    private static final long UNLINKED = 1L;
+    private static final long SHRINKING = 2L;
+    private static final long SHRINK_COUNT_INCREMENT = 4L;
+
+    /**
+     * How many times to spin, then yield, waiting for a rotation to
+     * finish before blocking on the lock of the rotating node.
+     */
+    private static final int SPIN_COUNT = 100;
+    private static final int YIELD_COUNT = 10;
+
+    // results of nodeCondition, besides a new height
+    private static final int UNLINK_REQUIRED = -1;
+    private static final int REBALANCE_REQUIRED = -2;
+    private static final int NOTHING_REQUIRED = -3;
+
+    /**
+     * Returned by the attempts at operations when they must be retried
+     * from higher up the tree.
+     */
+    private static final Object RETRY = new Object();
+
+    /**
+     * Stored in place of a null value, as a node without a value is a
+     * routing node.
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile int height;
+        /**
+         * The value, NULL_VALUE for null, or null for a routing node
+         */
+        volatile Object value;
+        volatile Node<K, V> parent;
+        volatile long version;
+        volatile Node<K, V> left;
+        volatile Node<K, V> right;
+
+        Node(K key, int height, Object value, Node<K, V> parent, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.height = height;
+            this.value = value;
+            this.parent = parent;
+            this.left = left;
+            this.right = right;
+        }
+
+        Node<K, V> child(int direction) {
+            return direction < 0 ? left : right;
+        }
+
+        void setChild(int direction, Node<K, V> child) {
+            if (direction < 0)
+                left = child;
+            else
+                right = child;
+        }
+
+        /**
+         * Wait until a rotation that was shrinking this node when its
+         * version was read has finished.
+         */
+        void waitUntilShrinkCompleted(long readVersion) {
+            if (! isShrinking(readVersion))
+                return;
+            for (int tries = 0; tries < SPIN_COUNT; tries++)
+                if (version != readVersion)
+                    return;
+            for (int tries = 0; tries < YIELD_COUNT; tries++) {
+                Thread.yield();
+                if (version != readVersion)
+                    return;
+            }
+            // the rotation holds the lock until it is over
+            synchronized (this) {
+            }
+        }
+    }
+
+    private static boolean isShrinking(long version) {
+        return (version & SHRINKING) != 0;
+    }
+
+    private static boolean isUnlinked(long version) {
+        return (version & UNLINKED) != 0;
+    }
+
+    private static boolean isShrinkingOrUnlinked(long version) {
+        return (version & (SHRINKING | UNLINKED)) != 0;
+    }
+
+    private static long beginShrink(long version) {
+        return version | SHRINKING;
+    }
+
+    private static long endShrink(long version) {
+        return (version & ~SHRINKING) + SHRINK_COUNT_INCREMENT;
+    }
+
+    private static int height(Node<?, ?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * A node without a key whose right child is the root, so the root
+     * has a parent to lock like any other node.
+     */
+    private final Node<K, V> rootHolder = new Node<K, V>(null, 1, null, null, null, null);
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final boolean verifying;
+
+    /**
+     * Basic constructor for an empty map
+     */
+    public ConcurrentAVLMap(boolean verifying) {
+        this.verifying = verifying;
+    }
+
+    /**
+     * Build a map from keys, in strictly increasing order, and their
+     * values, in linear time, in the manner of AVLBSTMap.fromSorted.
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> ConcurrentAVLMap<K, V> fromSorted(K[] keys, V[] values,
+            boolean verifying) {
+        for (int i = 1; i < keys.length; i++)
+            if (keys[i - 1].compareTo(keys[i]) >= 0)
+                throw new IllegalArgumentException("keys are not in increasing order at " + keys[i]);
+        ConcurrentAVLMap<K, V> map = new ConcurrentAVLMap<K, V>(verifying);
+        map.rootHolder.right = map.build(keys, values, 0, keys.length, map.rootHolder);
+        map.size.set(keys.length);
+        map.verify();
+        return map;
+    }
+
+    private Node<K, V> build(K[] keys, V[] values, int lo, int hi, Node<K, V> parent) {
+        if (lo == hi)
+            return null;
+        int mid = lo + (hi - lo - 1) / 2;
+        Node<K, V> node = new Node<K, V>(keys[mid], 0, encode(values[mid]), parent, null, null);
+        node.left = build(keys, values, lo, mid, node);
+        node.right = build(keys, values, mid + 1, hi, node);
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        return node;
+    }
+
+    private static Object encode(Object val) {
+        return val == null ? NULL_VALUE : val;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V decode(Object stored) {
+        return stored == NULL_VALUE ? null : (V) stored;
+    }
+
+    //-------------------------------------------------------------------
+    // lookup
+
+    /**
+     * Find the stored value for a key without locking.
+     * @return The stored value, or null if the key is absent
+     */
+    private Object find(K key) {
+        while (true) {
+            Node<K, V> right = rootHolder.right;
+            if (right == null)
+                return null;
+            int compare = key.compareTo(right.key);
+            if (compare == 0)
+                return right.value;
+            long rightVersion = right.version;
+            if (isShrinkingOrUnlinked(rightVersion))
+                right.waitUntilShrinkCompleted(rightVersion);
+            else if (right == rootHolder.right) {
+                // the reread of the root is the one protected by rightVersion
+                Object found = attemptFind(key, right, compare, rightVersion);
+                if (found != RETRY)
+                    return found;
+            }
+        }
+    }
+
+    /**
+     * Continue a search below a node, whose version was nodeVersion when
+     * the link to it was known to be right.
+     * @param direction The sign of the comparison of the key with node's
+     */
+    private Object attemptFind(K key, Node<K, V> node, int direction, long nodeVersion) {
+        while (true) {
+            Node<K, V> child = node.child(direction);
+            if (child == null) {
+                if (node.version != nodeVersion)
+                    return RETRY;
+                // the link was read while the path to node was valid
+                return null;
+            }
+            int compare = key.compareTo(child.key);
+            if (compare == 0)
+                return child.value;
+            long childVersion = child.version;
+            if (isShrinkingOrUnlinked(childVersion)) {
+                child.waitUntilShrinkCompleted(childVersion);
+                if (node.version != nodeVersion)
+                    return RETRY;
+            }
+            else if (child != node.child(direction)) {
+                if (node.version != nodeVersion)
+                    return RETRY;
+            }
+            else {
+                if (node.version != nodeVersion)
+                    return RETRY;
+                // both the path to node and the link to child were valid
+                // at this point, so node no longer needs checking
+                Object found = attemptFind(key, child, compare, childVersion);
+                if (found != RETRY)
+                    return found;
+            }
+        }
+    }
+
+    /**
+     * Get the value for a key, without locking.
+     * @param key The key whose value we're retrieving.
+     * @return The value associated with this key, null if none exists
+     */
+    public V get(K key) {
+        verify();
+        V toReturn = decode(find(key));
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * Test if this map contains an association for this key, without
+     * locking.
+     */
+    public boolean containsKey(K key) {
+        verify();
+        boolean toReturn = find(key) != null;
+        verify();
+        return toReturn;
+    }
+
+    //-------------------------------------------------------------------
+    // update
+
+    /**
+     * Add an association to the map.
+     * @param key The key to this association
+     * @param val The value to which this key is associated
+     */
+    public void put(K key, V val) {
+        verify();
+        if (update(key, encode(val)) == null)
+            size.incrementAndGet();
+        verify();
+    }
+
+    /**
+     * Remove the association for a key, if there is one.
+     * @param key The key to remove
+     * @return The value that was associated with the key, null if none
+     */
+    public V remove(K key) {
+        verify();
+        Object previous = update(key, null);
+        if (previous != null)
+            size.decrementAndGet();
+        verify();
+        return decode(previous);
+    }
+
+    /**
+     * Set the stored value for a key, null meaning removal.
+     * @return The stored value the key had before, or null if it was absent
+     */
+    private Object update(K key, Object newValue) {
+        while (true) {
+            Node<K, V> right = rootHolder.right;
+            if (right == null) {
+                if (newValue == null || attemptInsertIntoEmpty(key, newValue))
+                    return null;
+            }
+            else {
+                long rightVersion = right.version;
+                if (isShrinkingOrUnlinked(rightVersion))
+                    right.waitUntilShrinkCompleted(rightVersion);
+                else if (right == rootHolder.right) {
+                    Object previous = attemptUpdate(key, newValue, rootHolder, right, rightVersion);
+                    if (previous != RETRY)
+                        return previous;
+                }
+            }
+        }
+    }
+
+    private boolean attemptInsertIntoEmpty(K key, Object value) {
+        synchronized (rootHolder) {
+            if (rootHolder.right != null)
+                return false;
+            rootHolder.right = new Node<K, V>(key, 1, value, rootHolder, null, null);
+            return true;
+        }
+    }
+
+    /**
+     * Continue an update below a node, in the manner of attemptFind.
+     * Once the update reaches the parent of a new leaf, it locks it and
+     * checks its version again, so no rotation can interfere.
+     */
+    private Object attemptUpdate(K key, Object newValue, Node<K, V> parent, Node<K, V> node, long nodeVersion) {
+        int direction = key.compareTo(node.key);
+        if (direction == 0)
+            return attemptNodeUpdate(newValue, parent, node);
+        while (true) {
+            Node<K, V> child = node.child(direction);
+            if (node.version != nodeVersion)
+                return RETRY;
+            if (child == null) {
+                // the key is absent
+                if (newValue == null)
+                    return null;
+                Node<K, V> damaged = null;
+                boolean inserted = false;
+                synchronized (node) {
+                    if (node.version != nodeVersion)
+                        return RETRY;
+                    if (node.child(direction) == null) {
+                        node.setChild(direction, new Node<K, V>(key, 1, newValue, node, null, null));
+                        damaged = fixHeight(node);
+                        inserted = true;
+                    }
+                }
+                if (inserted) {
+                    fixHeightAndRebalance(damaged);
+                    return null;
+                }
+                // lost a race with another insertion; retry here
+            }
+            else {
+                long childVersion = child.version;
+                if (isShrinkingOrUnlinked(childVersion))
+                    child.waitUntilShrinkCompleted(childVersion);
+                else if (child == node.child(direction)) {
+                    if (node.version != nodeVersion)
+                        return RETRY;
+                    Object previous = attemptUpdate(key, newValue, node, child, childVersion);
+                    if (previous != RETRY)
+                        return previous;
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the value of the node holding the key. Removal from a node
+     * with at most one child unlinks it, which needs the locks of the node
+     * and its parent; otherwise only the node is locked.
+     */
+    private Object attemptNodeUpdate(Object newValue, Node<K, V> parent, Node<K, V> node) {
+        if (newValue == null && node.value == null)
+            return null;
+        if (newValue == null && (node.left == null || node.right == null)) {
+            Object previous;
+            Node<K, V> damaged;
+            synchronized (parent) {
+                if (isUnlinked(parent.version) || node.parent != parent)
+                    return RETRY;
+                synchronized (node) {
+                    previous = node.value;
+                    if (previous == null)
+                        return null;
+                    if (! attemptUnlink(parent, node))
+                        return RETRY;
+                }
+                damaged = fixHeight(parent);
+            }
+            fixHeightAndRebalance(damaged);
+            return previous;
+        }
+        synchronized (node) {
+            if (isUnlinked(node.version))
+                return RETRY;
+            // a removal that has become an unlink goes the other way
+            if (newValue == null && (node.left == null || node.right == null))
+                return RETRY;
+            Object previous = node.value;
+            node.value = newValue;
+            return previous;
+        }
+    }
+
+    /**
+     * Splice a node with at most one child out of the tree.
+     * PRECONDITION: parent and node are locked, and parent is linked.
+     * @return false if node is no longer parent's child or has two children
+     */
+    private boolean attemptUnlink(Node<K, V> parent, Node<K, V> node) {
+        Node<K, V> parentLeft = parent.left;
+        Node<K, V> parentRight = parent.right;
+        if (parentLeft != node && parentRight != node)
+            return false;
+        Node<K, V> left = node.left;
+        Node<K, V> right = node.right;
+        if (left != null && right != null)
+            return false;
+        Node<K, V> splice = left != null ? left : right;
+        if (parentLeft == node)
+            parent.left = splice;
+        else
+            parent.right = splice;
+        if (splice != null)
+            splice.parent = parent;
+        node.version = UNLINKED;
+        node.value = null;
+        return true;
+    }
+
+    //-------------------------------------------------------------------
+    // rebalancing
+
+    /**
+     * What a node needs, judging from a possibly inconsistent look at it
+     * and its children: to be unlinked (a routing node with fewer than two
+     * children), to be rotated, a new height, or nothing. Whoever changes
+     * a node promises to fix it, so if the look was inconsistent some
+     * other thread is responsible for the node.
+     */
+    private int nodeCondition(Node<K, V> node) {
+        Node<K, V> left = node.left;
+        Node<K, V> right = node.right;
+        if ((left == null || right == null) && node.value == null)
+            return UNLINK_REQUIRED;
+        int nodeHeight = node.height;
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        int balance = leftHeight - rightHeight;
+        if (balance < -1 || balance > 1)
+            return REBALANCE_REQUIRED;
+        int newHeight = 1 + Math.max(leftHeight, rightHeight);
+        return nodeHeight != newHeight ? newHeight : NOTHING_REQUIRED;
+    }
+
+    /**
+     * Repair damaged nodes from the given one up, until none is left
+     * that this thread is responsible for. A rotation that leaves a node
+     * below it damaged changes the height of its subtree before that node
+     * is repaired, and repairing it may not reach back up; so after any
+     * rotation or unlink, look again at the node it was done to and at
+     * that node's new sibling, which a double rotation may also have left
+     * damaged, then walk on up and carry on repairing if an ancestor
+     * turns out to need it.
+     *
+     * A node that looks as if it needs nothing is looked at again under
+     * its lock before the repair stops there. Another thread may hold the
+     * lock while fixing the node's height from a child's height read
+     * before this thread changed it, and neither thread would otherwise
+     * see the damage that leaves.
+     */
+    private void fixHeightAndRebalance(Node<K, V> node) {
+        while (true) {
+            Node<K, V> restructured = null;
+            while (node != null && node.parent != null) {
+                int condition = nodeCondition(node);
+                if (isUnlinked(node.version))
+                    break;
+                if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED)
+                    // fixHeight looks again, and returns null if there is nothing to do
+                    synchronized (node) {
+                        node = fixHeight(node);
+                    }
+                else {
+                    Node<K, V> parent = node.parent;
+                    synchronized (parent) {
+                        if (! isUnlinked(parent.version) && node.parent == parent)
+                            synchronized (node) {
+                                restructured = node;
+                                node = rebalance(parent, node);
+                            }
+                    }
+                }
+            }
+            if (restructured == null)
+                return;
+            node = damageAround(restructured);
+        }
+    }
+
+    /**
+     * Find a damaged node among one that was rotated or unlinked, its
+     * sibling, and their ancestors.
+     * @return A damaged node, or null if there is none
+     */
+    private Node<K, V> damageAround(Node<K, V> node) {
+        // an unlinked node keeps the link to its last parent
+        Node<K, V> parent = node.parent;
+        if (! isUnlinked(node.version) && nodeCondition(node) != NOTHING_REQUIRED)
+            return node;
+        Node<K, V> sibling = parent.left == node ? parent.right : parent.left;
+        if (sibling != null && ! isUnlinked(sibling.version) && nodeCondition(sibling) != NOTHING_REQUIRED)
+            return sibling;
+        for (node = parent; node.parent != null; node = node.parent)
+            if (nodeCondition(node) != NOTHING_REQUIRED)
+                return node;
+        return null;
+    }
+
+    /**
+     * Fix the height of a locked node, if that is all it needs.
+     * @return The next damaged node this thread is responsible for, or null
+     */
+    private Node<K, V> fixHeight(Node<K, V> node) {
+        int condition = nodeCondition(node);
+        switch (condition) {
+        case REBALANCE_REQUIRED:
+        case UNLINK_REQUIRED:
+            return node;
+        case NOTHING_REQUIRED:
+            return null;
+        default:
+            node.height = condition;
+            // the parent is damaged now, but its lock is not held
+            return node.parent;
+        }
+    }
+
+    /**
+     * Unlink or rotate a node, or fix its height.
+     * PRECONDITION: parent and node are locked.
+     * @return The next damaged node this thread is responsible for, or null
+     */
+    private Node<K, V> rebalance(Node<K, V> parent, Node<K, V> node) {
+        Node<K, V> left = node.left;
+        Node<K, V> right = node.right;
+        if ((left == null || right == null) && node.value == null)
+            return attemptUnlink(parent, node) ? fixHeight(parent) : node;
+        int nodeHeight = node.height;
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        int newHeight = 1 + Math.max(leftHeight, rightHeight);
+        int balance = leftHeight - rightHeight;
+        if (balance > 1)
+            return rebalanceToRight(parent, node, left, rightHeight);
+        if (balance < -1)
+            return rebalanceToLeft(parent, node, right, leftHeight);
+        if (newHeight != nodeHeight) {
+            node.height = newHeight;
+            return fixHeight(parent);
+        }
+        return null;
+    }
+
+    /**
+     * Fix a node whose left subtree is too tall, by a single or double
+     * rotation to the right.
+     */
+    private Node<K, V> rebalanceToRight(Node<K, V> parent, Node<K, V> node, Node<K, V> left, int rightHeight) {
+        synchronized (left) {
+            int leftHeight = left.height;
+            if (leftHeight - rightHeight <= 1)
+                return node;
+            Node<K, V> leftRight = left.right;
+            int leftLeftHeight = height(left.left);
+            int leftRightHeight = height(leftRight);
+            if (leftLeftHeight >= leftRightHeight)
+                return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightHeight);
+            synchronized (leftRight) {
+                // the height read before locking may be stale
+                leftRightHeight = leftRight.height;
+                if (leftLeftHeight >= leftRightHeight)
+                    return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight,
+                            leftRightHeight);
+                // do the double rotation only if it leaves left balanced
+                int leftRightLeftHeight = height(leftRight.left);
+                int balance = leftLeftHeight - leftRightLeftHeight;
+                if (balance >= -1 && balance <= 1)
+                    return rotateRightOverLeft(parent, node, left, rightHeight, leftLeftHeight, leftRight,
+                            leftRightLeftHeight);
+            }
+            // otherwise fix left first; node will be fixed afterwards
+            return rebalanceToLeft(node, left, leftRight, leftLeftHeight);
+        }
+    }
+
+    /**
+     * Fix a node whose right subtree is too tall, by a single or double
+     * rotation to the left.
+     */
+    private Node<K, V> rebalanceToLeft(Node<K, V> parent, Node<K, V> node, Node<K, V> right, int leftHeight) {
+        synchronized (right) {
+            int rightHeight = right.height;
+            if (leftHeight - rightHeight >= -1)
+                return node;
+            Node<K, V> rightLeft = right.left;
+            int rightLeftHeight = height(rightLeft);
+            int rightRightHeight = height(right.right);
+            if (rightRightHeight >= rightLeftHeight)
+                return rotateLeft(parent, node, leftHeight, right, rightLeft, rightLeftHeight, rightRightHeight);
+            synchronized (rightLeft) {
+                rightLeftHeight = rightLeft.height;
+                if (rightRightHeight >= rightLeftHeight)
+                    return rotateLeft(parent, node, leftHeight, right, rightLeft, rightLeftHeight,
+                            rightRightHeight);
+                int rightLeftRightHeight = height(rightLeft.right);
+                int balance = rightRightHeight - rightLeftRightHeight;
+                if (balance >= -1 && balance <= 1)
+                    return rotateLeftOverRight(parent, node, leftHeight, right, rightLeft, rightRightHeight,
+                            rightLeftRightHeight);
+            }
+            return rebalanceToRight(node, right, rightLeft, rightRightHeight);
+        }
+    }
+
+    /**
+     * Rotate node's left child up into its place. The heights passed in
+     * were read under the locks of the nodes concerned, except that of
+     * leftRight, which is read again once leftRight is linked to node:
+     * a thread that changes its height meanwhile then either finds node
+     * as its parent or has changed it before the read, so the damage
+     * cannot be missed by both threads.
+     * PRECONDITION: parent, node and left are locked.
+     * @return The next damaged node this thread is responsible for, or null
+     */
+    private Node<K, V> rotateRight(Node<K, V> parent, Node<K, V> node, Node<K, V> left, int rightHeight,
+            int leftLeftHeight, Node<K, V> leftRight, int leftRightHeight) {
+        long nodeVersion = node.version;
+        Node<K, V> parentLeft = parent.left;
+        node.version = beginShrink(nodeVersion);
+
+        node.left = leftRight;
+        if (leftRight != null)
+            leftRight.parent = node;
+        left.right = node;
+        node.parent = left;
+        if (parentLeft == node)
+            parent.left = left;
+        else
+            parent.right = left;
+        left.parent = parent;
+
+        // read again now that leftRight is linked to node; see rotations
+        leftRightHeight = height(leftRight);
+        int nodeHeight = 1 + Math.max(leftRightHeight, rightHeight);
+        node.height = nodeHeight;
+        left.height = 1 + Math.max(leftLeftHeight, nodeHeight);
+
+        node.version = endShrink(nodeVersion);
+
+        // node is the deepest damaged node, then left, then parent
+        int nodeBalance = leftRightHeight - rightHeight;
+        if (nodeBalance < -1 || nodeBalance > 1)
+            return node;
+        if ((leftRight == null || rightHeight == 0) && node.value == null)
+            return node;
+        int leftBalance = leftLeftHeight - nodeHeight;
+        if (leftBalance < -1 || leftBalance > 1)
+            return left;
+        if (leftLeftHeight == 0 && left.value == null)
+            return left;
+        return fixHeight(parent);
+    }
+
+    /**
+     * Rotate node's right child up into its place, in the manner of
+     * rotateRight.
+     */
+    private Node<K, V> rotateLeft(Node<K, V> parent, Node<K, V> node, int leftHeight, Node<K, V> right,
+            Node<K, V> rightLeft, int rightLeftHeight, int rightRightHeight) {
+        long nodeVersion = node.version;
+        Node<K, V> parentLeft = parent.left;
+        node.version = beginShrink(nodeVersion);
+
+        node.right = rightLeft;
+        if (rightLeft != null)
+            rightLeft.parent = node;
+        right.left = node;
+        node.parent = right;
+        if (parentLeft == node)
+            parent.left = right;
+        else
+            parent.right = right;
+        right.parent = parent;
+
+        rightLeftHeight = height(rightLeft);
+        int nodeHeight = 1 + Math.max(leftHeight, rightLeftHeight);
+        node.height = nodeHeight;
+        right.height = 1 + Math.max(nodeHeight, rightRightHeight);
+
+        node.version = endShrink(nodeVersion);
+
+        int nodeBalance = leftHeight - rightLeftHeight;
+        if (nodeBalance < -1 || nodeBalance > 1)
+            return node;
+        if ((rightLeft == null || leftHeight == 0) && node.value == null)
+            return node;
+        int rightBalance = nodeHeight - rightRightHeight;
+        if (rightBalance < -1 || rightBalance > 1)
+            return right;
+        if (rightRightHeight == 0 && right.value == null)
+            return right;
+        return fixHeight(parent);
+    }
+
+    /**
+     * Rotate the right child of node's left child up into node's place.
+     * PRECONDITION: parent, node, left and leftRight are locked.
+     * @return The next damaged node this thread is responsible for, or null
+     */
+    private Node<K, V> rotateRightOverLeft(Node<K, V> parent, Node<K, V> node, Node<K, V> left, int rightHeight,
+            int leftLeftHeight, Node<K, V> leftRight, int leftRightLeftHeight) {
+        long nodeVersion = node.version;
+        long leftVersion = left.version;
+        Node<K, V> parentLeft = parent.left;
+        Node<K, V> leftRightLeft = leftRight.left;
+        Node<K, V> leftRightRight = leftRight.right;
+
+        node.version = beginShrink(nodeVersion);
+        left.version = beginShrink(leftVersion);
+
+        node.left = leftRightRight;
+        if (leftRightRight != null)
+            leftRightRight.parent = node;
+        left.right = leftRightLeft;
+        if (leftRightLeft != null)
+            leftRightLeft.parent = left;
+        leftRight.left = left;
+        left.parent = leftRight;
+        leftRight.right = node;
+        node.parent = leftRight;
+        if (parentLeft == node)
+            parent.left = leftRight;
+        else
+            parent.right = leftRight;
+        leftRight.parent = parent;
+
+        // read now that the grandchildren are linked to their new parents
+        leftRightLeftHeight = height(leftRightLeft);
+        int leftRightRightHeight = height(leftRightRight);
+        int nodeHeight = 1 + Math.max(leftRightRightHeight, rightHeight);
+        node.height = nodeHeight;
+        int leftNewHeight = 1 + Math.max(leftLeftHeight, leftRightLeftHeight);
+        left.height = leftNewHeight;
+        leftRight.height = 1 + Math.max(leftNewHeight, nodeHeight);
+
+        node.version = endShrink(nodeVersion);
+        left.version = endShrink(leftVersion);
+
+        // the caller made sure left is balanced, unless leftRightLeft has
+        // changed height since; if it is a routing node left with one
+        // child, unlink it now, while it is still locked
+        if ((leftLeftHeight == 0 || leftRightLeftHeight == 0) && left.value == null) {
+            attemptUnlink(leftRight, left);
+            leftNewHeight--;
+            leftRight.height = 1 + Math.max(leftNewHeight, nodeHeight);
+        }
+
+        int nodeBalance = leftRightRightHeight - rightHeight;
+        if (nodeBalance < -1 || nodeBalance > 1)
+            return node;
+        if ((leftRightRight == null || rightHeight == 0) && node.value == null)
+            return node;
+        int leftBalance = leftLeftHeight - leftRightLeftHeight;
+        if ((leftBalance < -1 || leftBalance > 1) && ! isUnlinked(left.version))
+            return left;
+        int leftRightBalance = leftNewHeight - nodeHeight;
+        if (leftRightBalance < -1 || leftRightBalance > 1)
+            return leftRight;
+        return fixHeight(parent);
+    }
+
+    /**
+     * Rotate the left child of node's right child up into node's place,
+     * in the manner of rotateRightOverLeft.
+     */
+    private Node<K, V> rotateLeftOverRight(Node<K, V> parent, Node<K, V> node, int leftHeight, Node<K, V> right,
+            Node<K, V> rightLeft, int rightRightHeight, int rightLeftRightHeight) {
+        long nodeVersion = node.version;
+        long rightVersion = right.version;
+        Node<K, V> parentLeft = parent.left;
+        Node<K, V> rightLeftLeft = rightLeft.left;
+        Node<K, V> rightLeftRight = rightLeft.right;
+
+        node.version = beginShrink(nodeVersion);
+        right.version = beginShrink(rightVersion);
+
+        node.right = rightLeftLeft;
+        if (rightLeftLeft != null)
+            rightLeftLeft.parent = node;
+        right.left = rightLeftRight;
+        if (rightLeftRight != null)
+            rightLeftRight.parent = right;
+        rightLeft.right = right;
+        right.parent = rightLeft;
+        rightLeft.left = node;
+        node.parent = rightLeft;
+        if (parentLeft == node)
+            parent.left = rightLeft;
+        else
+            parent.right = rightLeft;
+        rightLeft.parent = parent;
+
+        int rightLeftLeftHeight = height(rightLeftLeft);
+        rightLeftRightHeight = height(rightLeftRight);
+        int nodeHeight = 1 + Math.max(leftHeight, rightLeftLeftHeight);
+        node.height = nodeHeight;
+        int rightNewHeight = 1 + Math.max(rightLeftRightHeight, rightRightHeight);
+        right.height = rightNewHeight;
+        rightLeft.height = 1 + Math.max(nodeHeight, rightNewHeight);
+
+        node.version = endShrink(nodeVersion);
+        right.version = endShrink(rightVersion);
+
+        if ((rightRightHeight == 0 || rightLeftRightHeight == 0) && right.value == null) {
+            attemptUnlink(rightLeft, right);
+            rightNewHeight--;
+            rightLeft.height = 1 + Math.max(nodeHeight, rightNewHeight);
+        }
+
+        int nodeBalance = leftHeight - rightLeftLeftHeight;
+        if (nodeBalance < -1 || nodeBalance > 1)
+            return node;
+        if ((rightLeftLeft == null || leftHeight == 0) && node.value == null)
+            return node;
+        int rightBalance = rightRightHeight - rightLeftRightHeight;
+        if ((rightBalance < -1 || rightBalance > 1) && ! isUnlinked(right.version))
+            return right;
+        int rightLeftBalance = nodeHeight - rightNewHeight;
+        if (rightLeftBalance < -1 || rightLeftBalance > 1)
+            return rightLeft;
+        return fixHeight(parent);
+    }
+
+    //-------------------------------------------------------------------
+    // navigation
+
+    /**
+     * Find the node nearest to a key on one side of it, live or routing,
+     * with the same validation as attemptFind.
+     * @param below Whether to look for keys before key (rather than after)
+     * @param inclusive Whether key itself is an acceptable answer
+     * @return The nearest node, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, V> nearestNode(K key, boolean below, boolean inclusive) {
+        Node<K, V>[] best = (Node<K, V>[]) new Node<?, ?>[1];
+        while (true) {
+            best[0] = null;
+            Node<K, V> right = rootHolder.right;
+            if (right == null)
+                return null;
+            long rightVersion = right.version;
+            if (isShrinkingOrUnlinked(rightVersion))
+                right.waitUntilShrinkCompleted(rightVersion);
+            else if (right == rootHolder.right) {
+                Object found = attemptNearest(key, right, rightVersion, below, inclusive, best);
+                if (found != RETRY)
+                    return best[0];
+            }
+        }
+    }
+
+    /**
+     * Continue a search for the nearest node at a node, whose version
+     * was nodeVersion when the link to it was known to be right. The
+     * best candidate so far is in best[0].
+     */
+    private Object attemptNearest(K key, Node<K, V> node, long nodeVersion, boolean below, boolean inclusive,
+            Node<K, V>[] best) {
+        int compare = key.compareTo(node.key);
+        if (compare == 0 && inclusive) {
+            best[0] = node;
+            return null;
+        }
+        int direction;
+        if (compare == 0)
+            direction = below ? -1 : 1;
+        else
+            direction = compare;
+        if (below ? direction > 0 && compare > 0 : direction < 0 && compare < 0)
+            best[0] = node;
+        Node<K, V> candidate = best[0];
+        while (true) {
+            Node<K, V> child = node.child(direction);
+            if (child == null)
+                return node.version != nodeVersion ? RETRY : null;
+            long childVersion = child.version;
+            if (isShrinkingOrUnlinked(childVersion)) {
+                child.waitUntilShrinkCompleted(childVersion);
+                if (node.version != nodeVersion)
+                    return RETRY;
+            }
+            else if (child != node.child(direction)) {
+                if (node.version != nodeVersion)
+                    return RETRY;
+            }
+            else {
+                if (node.version != nodeVersion)
+                    return RETRY;
+                Object found = attemptNearest(key, child, childVersion, below, inclusive, best);
+                if (found != RETRY)
+                    return found;
+                best[0] = candidate;
+            }
+        }
+    }
+
+    /**
+     * The nearest live key to a key on one side of it: a routing node
+     * found by the search stands for no key, so the search goes on past it.
+     */
+    private K nearest(K key, boolean below, boolean inclusive) {
+        verify();
+        while (true) {
+            Node<K, V> node = nearestNode(key, below, inclusive);
+            if (node == null)
+                return null;
+            if (node.value != null)
+                return node.key;
+            key = node.key;
+            inclusive = false;
+        }
+    }
+
+    /**
+     * Find the leftmost or rightmost node, live or routing.
+     */
+    private Node<K, V> extremeNode(int direction) {
+        while (true) {
+            Node<K, V> right = rootHolder.right;
+            if (right == null)
+                return null;
+            long rightVersion = right.version;
+            if (isShrinkingOrUnlinked(rightVersion))
+                right.waitUntilShrinkCompleted(rightVersion);
+            else if (right == rootHolder.right) {
+                Object found = attemptExtreme(right, rightVersion, direction);
+                if (found != RETRY)
+                    return cast(found);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<K, V> cast(Object node) {
+        return (Node<K, V>) node;
+    }
+
+    private Object attemptExtreme(Node<K, V> node, long nodeVersion, int direction) {
+        while (true) {
+            Node<K, V> child = node.child(direction);
+            if (child == null)
+                return node.version != nodeVersion ? RETRY : node;
+            long childVersion = child.version;
+            if (isShrinkingOrUnlinked(childVersion)) {
+                child.waitUntilShrinkCompleted(childVersion);
+                if (node.version != nodeVersion)
+                    return RETRY;
+            }
+            else if (child != node.child(direction)) {
+                if (node.version != nodeVersion)
+                    return RETRY;
+            }
+            else {
+                if (node.version != nodeVersion)
+                    return RETRY;
+                Object found = attemptExtreme(child, childVersion, direction);
+                if (found != RETRY)
+                    return found;
+            }
+        }
+    }
+
+    private K extreme(int direction) {
+        verify();
+        Node<K, V> node = extremeNode(direction);
+        if (node == null)
+            return null;
+        if (node.value != null)
+            return node.key;
+        return nearest(node.key, direction < 0 ? false : true, false);
+    }
+
+    /**
+     * Get the minimum element in the map, or null if none exists
+     */
+    public K min() {
+        return extreme(-1);
+    }
+
+    /**
+     * Get the maximum element in the map, or null if none exists
+     */
+    public K max() {
+        return extreme(1);
+    }
+
+    /**
+     * Remove the minimum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public K pollFirst() {
+        return poll(-1);
+    }
+
+    /**
+     * Remove the maximum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public K pollLast() {
+        return poll(1);
+    }
+
+    /**
+     * Remove the least or greatest key, trying again if another thread
+     * removes it first.
+     */
+    private K poll(int direction) {
+        while (true) {
+            K key = extreme(direction);
+            if (key == null)
+                return null;
+            verify();
+            if (update(key, null) != null) {
+                size.decrementAndGet();
+                verify();
+                return key;
+            }
+        }
+    }
+
+    /**
+     * The greatest key less than or equal to key, or null if none.
+     */
+    public K floor(K key) {
+        return nearest(key, true, true);
+    }
+
+    /**
+     * The least key greater than or equal to key, or null if none.
+     */
+    public K ceiling(K key) {
+        return nearest(key, false, true);
+    }
+
+    /**
+     * The greatest key strictly less than key, or null if none.
+     */
+    public K lower(K key) {
+        return nearest(key, true, false);
+    }
+
+    /**
+     * The least key strictly greater than key, or null if none.
+     */
+    public K higher(K key) {
+        return nearest(key, false, false);
+    }
+
+    //-------------------------------------------------------------------
+    // size and order statistics
+
+    /**
+     * Return the number of associations in this map.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Find the number of keys that come before a key, by walking them.
+     */
+    public int rank(K key) {
+        int rank = 0;
+        for (Iterator<K> it = headMap(key).iterator(); it.hasNext(); it.next())
+            rank++;
+        return rank;
+    }
+
+    /**
+     * Find the key with a given rank, by walking the keys before it.
+     */
+    public K select(int rank) {
+        if (rank < 0)
+            throw new IndexOutOfBoundsException();
+        Iterator<K> it = iterator();
+        for (int i = 0; i < rank && it.hasNext(); i++)
+            it.next();
+        if (! it.hasNext())
+            throw new IndexOutOfBoundsException();
+        return it.next();
+    }
+
+    /**
+     * Count the keys k with lo <= k <= hi, by walking them.
+     */
+    public int countInRange(K lo, K hi) {
+        if (hi.compareTo(lo) < 0)
+            return 0;
+        int count = 0;
+        for (K key = ceiling(lo); key != null && key.compareTo(hi) <= 0; key = higher(key))
+            count++;
+        return count;
+    }
+
+    //-------------------------------------------------------------------
+    // iteration
+
+    /**
+     * Iterate over the keys of this map in order.
+     */
+    public Iterator<K> iterator() {
+        verify();
+        return new KeyIterator(null, null);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive).
+     */
+    public Iterable<K> subMap(final K fromKey, final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(fromKey, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys before toKey, in the manner of subMap.
+     */
+    public Iterable<K> headMap(final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(null, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys from fromKey on, in the manner of subMap.
+     */
+    public Iterable<K> tailMap(final K fromKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(fromKey, null);
+            }
+        };
+    }
+
+    /**
+     * Iterator that finds each key by searching for the one after the
+     * last, so it holds no part of the tree and concurrent updates
+     * cannot break it.
+     */
+    private class KeyIterator implements Iterator<K> {
+
+        private final K toKey;
+
+        private K next;
+
+        KeyIterator(K fromKey, K toKey) {
+            this.toKey = toKey;
+            next = fromKey == null ? min() : ceiling(fromKey);
+            checkUpperBound();
+        }
+
+        private void checkUpperBound() {
+            if (toKey != null && next != null && next.compareTo(toKey) >= 0)
+                next = null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public K next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            K toReturn = next;
+            next = higher(toReturn);
+            checkUpperBound();
+            return toReturn;
+        }
+    }
+
+    /**
+     * The associations in the form described by adt.Map, in key order.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (K key = min(); key != null; key = higher(key)) {
+            if (builder.length() > 1)
+                builder.append(", ");
+            builder.append(key).append('=').append(get(key));
+        }
+        return builder.append(']').toString();
+    }
+
+    //-------------------------------------------------------------------
+    // verification
+
+    /**
+     * Check that the tree is a valid AVL tree with correct heights and
+     * parent links, no removable routing nodes and the right size, if
+     * this map is verifying itself. This is only meaningful when no
+     * other thread is updating the map.
+     */
+    public final void verify() {
+        if (verifying)
+            verifyNow();
+    }
+
+    /**
+     * Check the tree as verify does, whether or not this map is verifying
+     * itself, for use once concurrent updates have finished.
+     */
+    public final void verifyNow() {
+        int[] count = new int[1];
+        Node<K, V> root = rootHolder.right;
+        if (root != null && root.parent != rootHolder)
+            throw new IgnorantNodeException("The root does not know its parent");
+        check(root, count);
+        if (count[0] != size.get())
+            throw new IgnorantNodeException("The map thinks its size is " + size.get()
+                    + ", but it is actually " + count[0]);
+    }
+
+    /**
+     * Get whether or not the map is currently verifying itself.
+     */
+    public final boolean isVerifying() {
+        return verifying;
+    }
+
+    private int check(Node<K, V> node, int[] count) {
+        if (node == null)
+            return 0;
+        if (node.value != null)
+            count[0]++;
+        else if (node.left == null || node.right == null)
+            throw new IgnorantNodeException("A routing node has fewer than two children");
+        for (Node<K, V> child : Arrays.asList(node.left, node.right))
+            if (child != null && child.parent != node)
+                throw new IgnorantNodeException("A node does not know its parent");
+        if (node.left != null && node.left.key.compareTo(node.key) >= 0
+                || node.right != null && node.right.key.compareTo(node.key) <= 0)
+            throw new IgnorantNodeException("Keys out of order around " + node.key);
+        int leftHeight = check(node.left, count);
+        int rightHeight = check(node.right, count);
+        if (Math.abs(leftHeight - rightHeight) > 1)
+            throw new ImbalanceException("Left Height =" + leftHeight + ", Right Height =" + rightHeight);
+        int actual = Math.max(leftHeight, rightHeight) + 1;
+        if (actual != node.height)
+            throw new IgnorantNodeException("A node thinks its height is " + node.height
+                    + ", but it is actually " + actual);
+        return actual;
+    }
+}
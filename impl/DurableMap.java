@@ -0,0 +1,562 @@
+package impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import adt.OrderedMap;
+
+/**
+ * DurableMap
+ *
+ * An OrderedMap whose updates survive a crash, made of an in-memory
+ * RecursiveBSTMap, a write-ahead log and periodic snapshots, all kept
+ * in one directory.
+ *
+ * Every put and remove appends a record to the log before changing the
+ * tree. Records are written with group commit: they collect in a buffer,
+ * and a background thread writes and fsyncs the buffer at most a latency
+ * budget after its first record, so one fsync covers every update of the
+ * batch. An update is therefore durable within the budget of returning;
+ * sync() waits until everything so far is durable, and a budget of zero
+ * makes every update wait for its own batch. Each record carries a CRC,
+ * so a record torn by a crash is recognized and dropped, with everything
+ * after it, when the log is replayed.
+ *
+ * When the log grows past a given size the map checkpoints: it writes a
+ * snapshot of the tree (see RecursiveBSTMap.writeSnapshot) and starts a
+ * new, empty log. The files of a generation g are snapshot-g (the state
+ * when log-g was started; missing for generation 0) and log-g. A snapshot
+ * is written under a temporary name and renamed once it is complete, so
+ * on startup the map loads the newest snapshot, replays the log of the
+ * same generation and deletes the files of any other generation.
+ *
+ * All the operations are synchronized, so several threads may update the
+ * map, but the iterators and range views walk the tree directly and must
+ * not be used while other threads update it. A checkpoint holds the lock
+ * while it writes the snapshot.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class DurableMap<K extends Comparable<K>, V> implements OrderedMap<K, V>, Closeable {
+
+    private static final byte PUT = 1, REMOVE = 2;
+    private static final byte NULL_VALUE = 1;
+
+    /**
+     * The offsets in a record: the CRC of the rest of the record, the
+     * operation, whether the value is null, then the key and the value.
+     */
+    private static final int OP_AT = 4, FLAGS_AT = 5, KEY_AT = 6;
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final Supplier<? extends RecursiveBSTMap<K, V, ?>> emptyTree;
+    private final long syncBudgetNanos;
+    private final long checkpointBytes;
+    private final int recordSize;
+    private final CRC32 crc = new CRC32();
+
+    private RecursiveBSTMap<K, V, ?> tree;
+    private int generation;
+    private FileChannel log;
+    private long logSize;
+
+    /**
+     * The records not yet handed to the flusher, and the buffer the
+     * flusher writes from; they are swapped for each batch.
+     */
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+
+    /**
+     * When the first record now pending was appended.
+     */
+    private long firstPendingNanos;
+
+    /**
+     * The number of records appended, and the number known to be on disk.
+     */
+    private long appended;
+    private long durable;
+
+    /**
+     * Whether a thread is waiting for the pending records to be synced.
+     */
+    private boolean syncRequested;
+
+    private boolean closed;
+
+    /**
+     * The failure of the flusher, after which no update can be durable.
+     */
+    private IOException failure;
+
+    /**
+     * Held while writing to the log or rotating it, so batches and
+     * checkpoints are written in order. It is always taken before
+     * the lock on the map.
+     */
+    private final Object logLock = new Object();
+
+    private final Thread flusher;
+
+    /**
+     * Open the map kept in a directory, creating the directory and an
+     * empty map if need be, and recover its contents.
+     * @param emptyTree Makes the empty tree that holds the map in memory;
+     * it must make the same kind of tree every time the directory is opened
+     * @param syncBudgetMillis The longest time an update may wait to be
+     * synced to the disk
+     * @param checkpointBytes The size of the log that triggers a checkpoint
+     * @throws IllegalArgumentException if the codecs do not match the
+     * ones the map was written with
+     */
+    public static <K extends Comparable<K>, V> DurableMap<K, V> open(Path directory,
+            Supplier<? extends RecursiveBSTMap<K, V, ?>> emptyTree, Codec<K> keyCodec, Codec<V> valueCodec,
+            long syncBudgetMillis, long checkpointBytes) throws IOException {
+        if (syncBudgetMillis < 0)
+            throw new IllegalArgumentException("negative sync budget " + syncBudgetMillis);
+        Files.createDirectories(directory);
+        return new DurableMap<K, V>(directory, emptyTree, keyCodec, valueCodec, syncBudgetMillis, checkpointBytes);
+    }
+
+    private DurableMap(Path directory, Supplier<? extends RecursiveBSTMap<K, V, ?>> emptyTree, Codec<K> keyCodec,
+            Codec<V> valueCodec, long syncBudgetMillis, long checkpointBytes) throws IOException {
+        this.directory = directory;
+        this.emptyTree = emptyTree;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.syncBudgetNanos = TimeUnit.MILLISECONDS.toNanos(syncBudgetMillis);
+        this.checkpointBytes = checkpointBytes;
+        recordSize = KEY_AT + keyCodec.width() + valueCodec.width();
+        pending = ByteBuffer.allocate(recordSize * 256);
+        writing = ByteBuffer.allocate(recordSize * 256);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            if (log != null)
+                log.close();
+            throw e;
+        }
+        flusher = new Thread(this::flushLoop, "DurableMap flusher " + directory);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private Path snapshotFile(int gen) {
+        return directory.resolve("snapshot-" + gen);
+    }
+
+    private Path logFile(int gen) {
+        return directory.resolve("log-" + gen);
+    }
+
+    /**
+     * Load the newest snapshot, replay its log up to the first bad record,
+     * cut the log there and delete the files of other generations.
+     */
+    private void recover() throws IOException {
+        generation = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring("snapshot-".length());
+                if (suffix.matches("[0-9]+"))
+                    generation = Math.max(generation, Integer.parseInt(suffix));
+            }
+        }
+        tree = emptyTree.get();
+        if (Files.exists(snapshotFile(generation)))
+            try (FileChannel snapshot = FileChannel.open(snapshotFile(generation), StandardOpenOption.READ)) {
+                tree.loadSnapshot(snapshot, keyCodec, valueCodec);
+            }
+        log = FileChannel.open(logFile(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        logSize = replay();
+        log.truncate(logSize);
+        log.position(logSize);
+        log.force(true);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if ((name.startsWith("snapshot-") || name.startsWith("log-"))
+                        && ! file.equals(snapshotFile(generation)) && ! file.equals(logFile(generation)))
+                    Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Apply the records of the log to the tree, stopping at the end of
+     * the log or at the first record that is incomplete or fails its CRC.
+     * @return The length of the valid part of the log
+     */
+    private long replay() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize * 1024);
+        long valid = 0;
+        log.position(0);
+        boolean atEnd = false;
+        while (! atEnd) {
+            while (buffer.hasRemaining())
+                if (log.read(buffer) < 0) {
+                    atEnd = true;
+                    break;
+                }
+            buffer.flip();
+            while (buffer.remaining() >= recordSize) {
+                int position = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), position + OP_AT, recordSize - OP_AT);
+                byte op = buffer.get(position + OP_AT);
+                if (buffer.getInt(position) != (int) crc.getValue() || (op != PUT && op != REMOVE))
+                    return valid;
+                K key = keyCodec.read(buffer, position + KEY_AT);
+                if (op == PUT)
+                    tree.put(key, buffer.get(position + FLAGS_AT) == NULL_VALUE ? null
+                            : valueCodec.read(buffer, position + KEY_AT + keyCodec.width()));
+                else
+                    tree.remove(key);
+                buffer.position(position + recordSize);
+                valid += recordSize;
+            }
+            buffer.compact();
+        }
+        return valid;
+    }
+
+    /**
+     * Append a record to the pending batch.
+     */
+    private void append(byte op, K key, V val) {
+        checkUsable();
+        if (pending.remaining() < recordSize) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int position = pending.position();
+        keyCodec.write(pending, position + KEY_AT, key);
+        if (val != null)
+            valueCodec.write(pending, position + KEY_AT + keyCodec.width(), val);
+        pending.put(position + OP_AT, op);
+        pending.put(position + FLAGS_AT, val == null ? NULL_VALUE : 0);
+        crc.reset();
+        crc.update(pending.array(), position + OP_AT, recordSize - OP_AT);
+        pending.putInt(position, (int) crc.getValue());
+        pending.position(position + recordSize);
+        if (position == 0)
+            firstPendingNanos = System.nanoTime();
+        appended++;
+        if (syncBudgetNanos == 0)
+            awaitDurable(appended);
+        else if (position == 0)
+            notifyAll();
+    }
+
+    private void checkUsable() {
+        if (closed)
+            throw new IllegalStateException("the map is closed");
+        if (failure != null)
+            throw new UncheckedIOException("the log can no longer be written", failure);
+    }
+
+    /**
+     * Wait until the given number of records are on disk.
+     */
+    private void awaitDurable(long target) {
+        boolean interrupted = false;
+        while (durable < target) {
+            checkUsable();
+            syncRequested = true;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * The body of the flusher thread: wait for a batch to start, let it
+     * collect records for the sync budget (unless someone is waiting for
+     * it), write it and sync it, and checkpoint when the log is too long.
+     */
+    private void flushLoop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (! closed && pending.position() == 0)
+                        wait();
+                    if (closed && pending.position() == 0)
+                        return;
+                    long deadline = firstPendingNanos + syncBudgetNanos;
+                    long now;
+                    while (! closed && ! syncRequested && (now = System.nanoTime()) < deadline)
+                        TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+                }
+                flushBatch();
+                synchronized (logLock) {
+                    synchronized (this) {
+                        if (! closed && logSize >= checkpointBytes)
+                            rotate();
+                    }
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            fail(e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause());
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("the flusher was interrupted"));
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * Write and sync the pending records.
+     */
+    private void flushBatch() throws IOException {
+        synchronized (logLock) {
+            ByteBuffer batch;
+            long batchEnd;
+            synchronized (this) {
+                batch = pending;
+                pending = writing;
+                writing = batch;
+                batchEnd = appended;
+                syncRequested = false;
+            }
+            batch.flip();
+            writeFully(batch);
+            batch.clear();
+            log.force(false);
+            synchronized (this) {
+                durable = batchEnd;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            logSize += log.write(buffer);
+    }
+
+    /**
+     * Write a snapshot of the map and start a new, empty log, so that the
+     * records so far need not be replayed. Updates wait while the snapshot
+     * is written.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (logLock) {
+            synchronized (this) {
+                checkUsable();
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * Do a checkpoint, holding both locks.
+     */
+    private void rotate() throws IOException {
+        pending.flip();
+        writeFully(pending);
+        pending.clear();
+        log.force(false);
+        durable = appended;
+        syncRequested = false;
+        notifyAll();
+
+        int next = generation + 1;
+        Path temporary = directory.resolve("snapshot-" + next + ".tmp");
+        try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            tree.writeSnapshot(snapshot, keyCodec, valueCodec);
+            snapshot.force(true);
+        }
+        FileChannel nextLog = FileChannel.open(logFile(next), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // the rename is the moment the new generation takes over
+        Files.move(temporary, snapshotFile(next), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        log.close();
+        Files.deleteIfExists(snapshotFile(generation));
+        Files.delete(logFile(generation));
+        log = nextLog;
+        logSize = 0;
+        generation = next;
+    }
+
+    /**
+     * Sync the directory, so a rename in it is durable. Not every
+     * platform can open a directory; there this is left to the
+     * file system.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not supported here
+        }
+    }
+
+    /**
+     * Wait until every update so far is on disk.
+     */
+    public synchronized void sync() {
+        awaitDurable(appended);
+    }
+
+    /**
+     * Sync every update, stop the flusher and close the log.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive())
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        synchronized (logLock) {
+            log.close();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Add an association to the map. It is durable within the sync budget.
+     * @param key The key to this association
+     * @param val The value to which this key is associated
+     */
+    public synchronized void put(K key, V val) {
+        append(PUT, key, val);
+        tree.put(key, val);
+    }
+
+    /**
+     * Remove the association for a key, if there is one. The removal is
+     * durable within the sync budget.
+     * @param key The key to remove
+     * @return The value that was associated with the key, null if none
+     */
+    public synchronized V remove(K key) {
+        if (! tree.containsKey(key))
+            return null;
+        append(REMOVE, key, null);
+        return tree.remove(key);
+    }
+
+    public synchronized V get(K key) {
+        return tree.get(key);
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return tree.containsKey(key);
+    }
+
+    public synchronized K min() {
+        return tree.min();
+    }
+
+    public synchronized K max() {
+        return tree.max();
+    }
+
+    public synchronized K pollFirst() {
+        K first = tree.min();
+        if (first != null)
+            remove(first);
+        return first;
+    }
+
+    public synchronized K pollLast() {
+        K last = tree.max();
+        if (last != null)
+            remove(last);
+        return last;
+    }
+
+    public synchronized int size() {
+        return tree.size();
+    }
+
+    public synchronized int rank(K key) {
+        return tree.rank(key);
+    }
+
+    public synchronized K select(int rank) {
+        return tree.select(rank);
+    }
+
+    public synchronized int countInRange(K lo, K hi) {
+        return tree.countInRange(lo, hi);
+    }
+
+    public synchronized K floor(K key) {
+        return tree.floor(key);
+    }
+
+    public synchronized K ceiling(K key) {
+        return tree.ceiling(key);
+    }
+
+    public synchronized K lower(K key) {
+        return tree.lower(key);
+    }
+
+    public synchronized K higher(K key) {
+        return tree.higher(key);
+    }
+
+    public synchronized Iterator<K> iterator() {
+        return tree.iterator();
+    }
+
+    public synchronized Iterable<K> subMap(K fromKey, K toKey) {
+        return tree.subMap(fromKey, toKey);
+    }
+
+    public synchronized Iterable<K> headMap(K toKey) {
+        return tree.headMap(toKey);
+    }
+
+    public synchronized Iterable<K> tailMap(K fromKey) {
+        return tree.tailMap(fromKey);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return tree.toString();
+    }
+}
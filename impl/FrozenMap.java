@@ -0,0 +1,343 @@
+package impl;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import adt.OrderedMap;
+
+/**
+ * FrozenMap
+ *
+ * An immutable ordered map for maps that are built once and then only
+ * read, made by RecursiveBSTMap.freeze(). The keys are stored in one
+ * array in Eytzinger order: the array is a complete binary search tree
+ * laid out level by level, with the root at index 1 and the children of
+ * index k at 2k and 2k + 1. A search needs no links, only index
+ * arithmetic, and the top levels of the tree, which every search visits,
+ * share a few cache lines at the front of the array.
+ *
+ * The descent is written without a data-dependent branch, so the JIT
+ * can compile the choice of child to a conditional move; the loop runs
+ * the full depth of the tree and the key found is recovered from the
+ * final index at the end. The array holds references, so each level
+ * still loads one key object.
+ *
+ * The keys are also kept in sorted order, for select and iteration,
+ * along with the rank of each Eytzinger slot. The methods that would
+ * change the map throw UnsupportedOperationException.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public final class FrozenMap<K extends Comparable<K>, V> implements OrderedMap<K, V> {
+
+    /**
+     * The keys and values in Eytzinger order, from index 1; index 0 is
+     * unused.
+     */
+    private final Object[] keys;
+    private final Object[] values;
+
+    /**
+     * The rank of the key in each slot of keys.
+     */
+    private final int[] ranks;
+
+    /**
+     * The keys in increasing order.
+     */
+    private final Object[] sorted;
+
+    /**
+     * The order of the keys, or null for their natural order.
+     */
+    private final Comparator<? super K> comparator;
+
+    /**
+     * Lay out a run of associations.
+     * @param comparator The order of the run, or null if natural
+     */
+    FrozenMap(SortedRun<K, V> run, Comparator<? super K> comparator) {
+        this.comparator = comparator;
+        int size = run.size;
+        keys = new Object[size + 1];
+        values = new Object[size + 1];
+        ranks = new int[size + 1];
+        sorted = new Object[size];
+        System.arraycopy(run.keys, 0, sorted, 0, size);
+        layOut(run, 1, 0);
+    }
+
+    /**
+     * Fill in the subtree at index k by an in-order walk of the implicit
+     * tree, which meets the slots in the order of the run.
+     * @param next The rank of the first association of the subtree
+     * @return The rank after the last one
+     */
+    private int layOut(SortedRun<K, V> run, int k, int next) {
+        if (k >= keys.length)
+            return next;
+        next = layOut(run, 2 * k, next);
+        keys[k] = run.keys[next];
+        values[k] = run.values[next];
+        ranks[k] = next;
+        return layOut(run, 2 * k + 1, next + 1);
+    }
+
+    private int compare(K a, K b) {
+        return comparator == null ? a.compareTo(b) : comparator.compare(a, b);
+    }
+
+    /**
+     * Get the order of the keys, or null if it is their natural order.
+     */
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K key(int k) {
+        return (K) keys[k];
+    }
+
+    /**
+     * Find the least key not less than a given key. Each step goes to
+     * the right child if the slot's key is less than key, else to the
+     * left; once past the leaves, the index has one trailing 1 bit for
+     * each right turn taken since the last left turn, and shifting away
+     * those and the last left turn gives the slot where it was taken.
+     * @return The slot of that key, or 0 if every key is less than key
+     */
+    private int lowerBound(K key) {
+        int n = keys.length;
+        int k = 1;
+        while (k < n)
+            k = 2 * k + (compare(key(k), key) < 0 ? 1 : 0);
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    /**
+     * The slot of a key, or 0 if the map does not have it.
+     */
+    private int find(K key) {
+        int k = lowerBound(key);
+        return k != 0 && compare(key(k), key) == 0 ? k : 0;
+    }
+
+    /**
+     * The number of keys less than the key in slot k, or the size of
+     * the map for slot 0.
+     */
+    private int rankOf(int k) {
+        return k == 0 ? sorted.length : ranks[k];
+    }
+
+    @SuppressWarnings("unchecked")
+    private K sorted(int rank) {
+        return rank < 0 || rank >= sorted.length ? null : (K) sorted[rank];
+    }
+
+    /**
+     * Get the value for a key.
+     * @param key The key whose value we're retrieving.
+     * @return The value associated with this key, null if none exists
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        return (V) values[find(key)];
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     * @param key The key to test.
+     * @return true if there is an association for this key, false otherwise
+     */
+    public boolean containsKey(K key) {
+        return find(key) != 0;
+    }
+
+    /**
+     * A frozen map cannot be changed.
+     * @throws UnsupportedOperationException always
+     */
+    public void put(K key, V val) {
+        throw new UnsupportedOperationException("a frozen map cannot be changed");
+    }
+
+    /**
+     * A frozen map cannot be changed.
+     * @throws UnsupportedOperationException always
+     */
+    public V remove(K key) {
+        throw new UnsupportedOperationException("a frozen map cannot be changed");
+    }
+
+    /**
+     * A frozen map cannot be changed.
+     * @throws UnsupportedOperationException always
+     */
+    public K pollFirst() {
+        throw new UnsupportedOperationException("a frozen map cannot be changed");
+    }
+
+    /**
+     * A frozen map cannot be changed.
+     * @throws UnsupportedOperationException always
+     */
+    public K pollLast() {
+        throw new UnsupportedOperationException("a frozen map cannot be changed");
+    }
+
+    /**
+     * Get the minimum element in the map, or null if none exists
+     */
+    public K min() {
+        return sorted(0);
+    }
+
+    /**
+     * Get the maximum element in the map, or null if none exists
+     */
+    public K max() {
+        return sorted(sorted.length - 1);
+    }
+
+    public int size() {
+        return sorted.length;
+    }
+
+    /**
+     * Find the number of keys that come before a key.
+     */
+    public int rank(K key) {
+        return rankOf(lowerBound(key));
+    }
+
+    /**
+     * Find the key with a given rank.
+     */
+    public K select(int rank) {
+        if (rank < 0 || rank >= sorted.length)
+            throw new IndexOutOfBoundsException();
+        return sorted(rank);
+    }
+
+    /**
+     * Count the keys k with lo <= k <= hi, by way of rank.
+     */
+    public int countInRange(K lo, K hi) {
+        if (compare(hi, lo) < 0)
+            return 0;
+        int count = rank(hi) - rank(lo);
+        if (containsKey(hi))
+            count++;
+        return count;
+    }
+
+    /**
+     * The greatest key less than or equal to key, or null if none.
+     */
+    public K floor(K key) {
+        int k = lowerBound(key);
+        return k != 0 && compare(key(k), key) == 0 ? key(k) : sorted(rankOf(k) - 1);
+    }
+
+    /**
+     * The least key greater than or equal to key, or null if none.
+     */
+    public K ceiling(K key) {
+        int k = lowerBound(key);
+        return k == 0 ? null : key(k);
+    }
+
+    /**
+     * The greatest key strictly less than key, or null if none.
+     */
+    public K lower(K key) {
+        return sorted(rank(key) - 1);
+    }
+
+    /**
+     * The least key strictly greater than key, or null if none.
+     */
+    public K higher(K key) {
+        int k = lowerBound(key);
+        return k != 0 && compare(key(k), key) == 0 ? sorted(ranks[k] + 1) : (k == 0 ? null : key(k));
+    }
+
+    /**
+     * Iterate over the keys of this map in order.
+     */
+    public Iterator<K> iterator() {
+        return new KeyIterator(0, sorted.length);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive).
+     */
+    public Iterable<K> subMap(final K fromKey, final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(rank(fromKey), rank(toKey));
+            }
+        };
+    }
+
+    /**
+     * The keys before toKey, in the manner of subMap.
+     */
+    public Iterable<K> headMap(final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(0, rank(toKey));
+            }
+        };
+    }
+
+    /**
+     * The keys from fromKey on, in the manner of subMap.
+     */
+    public Iterable<K> tailMap(final K fromKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(rank(fromKey), sorted.length);
+            }
+        };
+    }
+
+    /**
+     * Iterator over the keys with ranks from from (inclusive) to to
+     * (exclusive).
+     */
+    private class KeyIterator implements Iterator<K> {
+        private int next;
+        private final int to;
+
+        KeyIterator(int from, int to) {
+            next = from;
+            this.to = to;
+        }
+
+        public boolean hasNext() {
+            return next < to;
+        }
+
+        public K next() {
+            if (next >= to)
+                throw new NoSuchElementException();
+            return sorted(next++);
+        }
+    }
+
+    /**
+     * The keys in Eytzinger order, as they are laid out.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int k = 1; k < keys.length; k++)
+            builder.append(k == 1 ? "" : " ").append(keys[k]);
+        return builder.append(']').toString();
+    }
+}
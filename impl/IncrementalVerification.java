@@ -0,0 +1,57 @@
+package impl;
+
+import java.util.Comparator;
+
+/**
+ * IncrementalVerification
+ *
+ * A verification strategy that checks a put by looking only at what the
+ * put could have changed: the nodes on the search path for its key, which
+ * got new children, new heights or new colors, and their children, which
+ * rotations and color flips may have moved or recolored. Each of those is
+ * checked with the base strategy's verifyNode, which trusts what the
+ * children store about their own subtrees, so a put is verified in
+ * O(log n) instead of O(n). Every other check (before the put, after a
+ * get or a remove, after a bulk operation) is sampled, running the full
+ * verification on every Nth call.
+ */
+public class IncrementalVerification<K extends Comparable<K>, V, N extends RecursiveBSTMap.Node<K, V, ? super N>>
+        extends SamplingVerification<K, V, N> {
+
+    /**
+     * The order of the keys of the tree.
+     */
+    private final Comparator<? super K> order;
+
+    /**
+     * @param base The strategy whose verifyNode checks each node, and
+     * whose verify is sampled for everything else
+     * @param every Run the full verification on one call out of this many
+     * @param order The order of the keys of the tree
+     * @throws IllegalArgumentException if every is not positive
+     */
+    public IncrementalVerification(VerificationStrategy<K, V, N> base, int every, Comparator<? super K> order) {
+        super(base, every);
+        this.order = order;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void verifyPut(N root, K key) {
+        N node = root;
+        while (! node.isNull()) {
+            verifyNode(node);
+            N left = (N) node.left();
+            N right = (N) node.right();
+            if (! left.isNull())
+                verifyNode(left);
+            if (! right.isNull())
+                verifyNode(right);
+            int comp = order.compare(key, node.key());
+            if (comp == 0)
+                return;
+            node = comp < 0 ? left : right;
+        }
+        throw new IllegalStateException("The key just put is not in the tree: " + key);
+    }
+}
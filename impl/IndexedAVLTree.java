@@ -0,0 +1,673 @@
+package impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import adt.OrderedMap;
+import impl.AVLBSTMap.ImbalanceException;
+
+/**
+ * IndexedAVLTree
+ *
+ * The AVL machinery shared by the maps whose nodes are numbered records
+ * in some storage rather than objects (ArrayAVLMap, MappedAVLMap). A
+ * node is an int, record 0 is the null node with height and size 0,
+ * and the child classes supply the storage: the record accessors
+ * below, the root, and the allocation and release of records. The
+ * algorithms are those of AVLBSTMap, done iteratively along an index
+ * path in the manner of PrimitiveAVLTree.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+abstract class IndexedAVLTree<K extends Comparable<K>, V> implements OrderedMap<K, V> {
+
+    /**
+     * The number of the null node.
+     */
+    protected static final int NIL = 0;
+
+    /**
+     * The nodes on the search path of the current operation, root first,
+     * and for each whether the search went to its left child.
+     */
+    private int[] path = new int[32];
+    private boolean[] wentLeft = new boolean[32];
+
+    /**
+     * True if the map checks its invariants before and after each
+     * operation.
+     */
+    private final boolean verifying;
+
+    protected IndexedAVLTree(boolean verifying) {
+        this.verifying = verifying;
+    }
+
+    protected abstract int left(int node);
+
+    protected abstract int right(int node);
+
+    protected abstract int height(int node);
+
+    protected abstract int size(int node);
+
+    /**
+     * The key of a node, null for the null node.
+     */
+    protected abstract K key(int node);
+
+    /**
+     * The value of a node, null for the null node.
+     */
+    protected abstract V value(int node);
+
+    protected abstract void setLeft(int node, int child);
+
+    protected abstract void setRight(int node, int child);
+
+    protected abstract void setHeight(int node, int height);
+
+    protected abstract void setSize(int node, int size);
+
+    protected abstract void setValue(int node, V val);
+
+    /**
+     * The root, NIL when the map is empty.
+     */
+    protected abstract int root();
+
+    protected abstract void setRoot(int node);
+
+    /**
+     * Take a record for a new leaf, with height and size 1 and no
+     * children.
+     */
+    protected abstract int allocate(K key, V val);
+
+    /**
+     * Give back the record of a node that has left the tree.
+     */
+    protected abstract void release(int node);
+
+    /**
+     * Check the accounting of the records that is particular to the
+     * storage, after the tree itself has been checked.
+     */
+    protected abstract void checkStorage();
+
+    /**
+     * Build a perfectly balanced subtree of the given size from the next
+     * associations, splitting them as RecursiveBSTMap.buildFromSorted
+     * does. The map must be fresh, so the records are allocated one
+     * after the other in key order.
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    protected final int build(Iterator<K> keys, Iterator<V> values, int count) {
+        if (count == 0)
+            return NIL;
+        int leftSize = (count - 1) / 2;
+        int leftChild = build(keys, values, leftSize);
+        K key = keys.next();
+        int node = allocate(key, values.next());
+        if (node > 1 && key(node - 1).compareTo(key) >= 0)
+            throw new IllegalArgumentException("keys are not in increasing order at " + key);
+        int rightChild = build(keys, values, count - 1 - leftSize);
+        setLeft(node, leftChild);
+        setRight(node, rightChild);
+        recompute(node);
+        return node;
+    }
+
+    private void push(int depth, int node, boolean goLeft) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, depth * 2);
+            wentLeft = Arrays.copyOf(wentLeft, depth * 2);
+        }
+        path[depth] = node;
+        wentLeft[depth] = goLeft;
+    }
+
+    private void link(int parent, boolean goLeft, int child) {
+        if (goLeft)
+            setLeft(parent, child);
+        else
+            setRight(parent, child);
+    }
+
+    private void recompute(int node) {
+        int leftChild = left(node), rightChild = right(node);
+        int leftHeight = height(leftChild);
+        int rightHeight = height(rightChild);
+        setHeight(node, (leftHeight > rightHeight ? leftHeight : rightHeight) + 1);
+        setSize(node, size(leftChild) + size(rightChild) + 1);
+    }
+
+    /**
+     * Restore the AVL property at a node whose subtrees are AVL trees
+     * with heights differing by at most two.
+     * @return The root of the rebalanced subtree
+     */
+    private int rebalance(int node) {
+        int balance = height(left(node)) - height(right(node));
+        if (balance > 1) {
+            int child = left(node);
+            if (height(left(child)) < height(right(child)))
+                setLeft(node, rotateLeft(child));
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            int child = right(node);
+            if (height(right(child)) < height(left(child)))
+                setRight(node, rotateRight(child));
+            return rotateLeft(node);
+        }
+        recompute(node);
+        return node;
+    }
+
+    private int rotateLeft(int node) {
+        int newTop = right(node);
+        setRight(node, left(newTop));
+        setLeft(newTop, node);
+        recompute(node);
+        recompute(newTop);
+        return newTop;
+    }
+
+    private int rotateRight(int node) {
+        int newTop = left(node);
+        setLeft(node, right(newTop));
+        setRight(newTop, node);
+        recompute(node);
+        recompute(newTop);
+        return newTop;
+    }
+
+    /**
+     * Add an association to the map.
+     * @param key The key to this association
+     * @param val The value to which this key is associated
+     */
+    public void put(K key, V val) {
+        verify();
+        int depth = 0;
+        int current = root();
+        while (current != NIL) {
+            int compare = key.compareTo(key(current));
+            if (compare == 0) {
+                setValue(current, val);
+                verify();
+                return;
+            }
+            push(depth++, current, compare < 0);
+            current = compare < 0 ? left(current) : right(current);
+        }
+        // retrace while the height keeps changing; above that the
+        // ancestors only gain one in size
+        int child = allocate(key, val);
+        while (depth > 0) {
+            int parent = path[--depth];
+            link(parent, wentLeft[depth], child);
+            int oldHeight = height(parent);
+            child = rebalance(parent);
+            if (height(child) == oldHeight) {
+                if (depth > 0)
+                    link(path[depth - 1], wentLeft[depth - 1], child);
+                else
+                    setRoot(child);
+                while (depth > 0) {
+                    int ancestor = path[--depth];
+                    setSize(ancestor, size(ancestor) + 1);
+                }
+                verify();
+                return;
+            }
+        }
+        setRoot(child);
+        verify();
+    }
+
+    /**
+     * Remove the association for a key, if there is one. A node with
+     * two children is replaced by its successor, which keeps its record.
+     * @param key The key to remove
+     * @return The value that was associated with the key, null if none
+     */
+    public V remove(K key) {
+        verify();
+        int depth = 0;
+        int target = root();
+        while (target != NIL) {
+            int compare = key.compareTo(key(target));
+            if (compare == 0)
+                break;
+            push(depth++, target, compare < 0);
+            target = compare < 0 ? left(target) : right(target);
+        }
+        if (target == NIL)
+            return null;
+        V toReturn = value(target);
+        int child;
+        int top;
+        if (left(target) == NIL || right(target) == NIL) {
+            child = left(target) != NIL ? left(target) : right(target);
+            top = depth;
+        }
+        else {
+            push(depth, target, false);
+            top = depth + 1;
+            int successor = right(target);
+            while (left(successor) != NIL) {
+                push(top++, successor, true);
+                successor = left(successor);
+            }
+            child = right(successor);
+            setLeft(successor, left(target));
+            path[depth] = successor;
+        }
+        for (int i = top - 1; i >= 0; i--) {
+            int parent = path[i];
+            link(parent, wentLeft[i], child);
+            child = rebalance(parent);
+        }
+        setRoot(child);
+        release(target);
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * Find the node holding a key.
+     * @return The number of the node containing key, or NIL if there is none
+     */
+    private int findNode(K key) {
+        int current = root();
+        while (current != NIL) {
+            int compare = key.compareTo(key(current));
+            if (compare < 0)
+                current = left(current);
+            else if (compare == 0)
+                return current;
+            else
+                current = right(current);
+        }
+        return NIL;
+    }
+
+    /**
+     * Get the value for a key.
+     * @param key The key whose value we're retrieving.
+     * @return The value associated with this key, null if none exists
+     */
+    public V get(K key) {
+        verify();
+        V toReturn = value(findNode(key));
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     * @param key The key to test.
+     * @return true if there is an association for this key, false otherwise
+     */
+    public boolean containsKey(K key) {
+        verify();
+        boolean toReturn = findNode(key) != NIL;
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * Get the minimum element in the map, or null if none exists
+     */
+    public K min() {
+        int current = root();
+        if (current == NIL)
+            return null;
+        while (left(current) != NIL)
+            current = left(current);
+        return key(current);
+    }
+
+    /**
+     * Get the maximum element in the map, or null if none exists
+     */
+    public K max() {
+        int current = root();
+        if (current == NIL)
+            return null;
+        while (right(current) != NIL)
+            current = right(current);
+        return key(current);
+    }
+
+    /**
+     * Remove the minimum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public K pollFirst() {
+        K first = min();
+        if (first != null)
+            remove(first);
+        return first;
+    }
+
+    /**
+     * Remove the maximum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public K pollLast() {
+        K last = max();
+        if (last != null)
+            remove(last);
+        return last;
+    }
+
+    /**
+     * The stored size of the root is the size of the map.
+     */
+    public int size() {
+        return size(root());
+    }
+
+    /**
+     * Find the rank of a key in one descent, adding up the sizes of the
+     * left subtrees passed over.
+     */
+    public int rank(K key) {
+        verify();
+        int rank = 0;
+        int current = root();
+        while (current != NIL) {
+            int compare = key.compareTo(key(current));
+            if (compare < 0)
+                current = left(current);
+            else {
+                rank += size(left(current));
+                if (compare == 0)
+                    break;
+                rank++;
+                current = right(current);
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Find the key with a given rank in one descent, steering by the
+     * sizes of the left subtrees.
+     */
+    public K select(int rank) {
+        verify();
+        if (rank < 0 || rank >= size(root()))
+            throw new IndexOutOfBoundsException();
+        int current = root();
+        while (true) {
+            int leftSize = size(left(current));
+            if (rank < leftSize)
+                current = left(current);
+            else if (rank == leftSize)
+                return key(current);
+            else {
+                rank -= leftSize + 1;
+                current = right(current);
+            }
+        }
+    }
+
+    /**
+     * Count the keys k with lo <= k <= hi, by way of rank.
+     */
+    public int countInRange(K lo, K hi) {
+        if (hi.compareTo(lo) < 0)
+            return 0;
+        int count = rank(hi) - rank(lo);
+        if (findNode(hi) != NIL)
+            count++;
+        return count;
+    }
+
+    /**
+     * The greatest key less than or equal to key, or null if none.
+     */
+    public K floor(K key) {
+        return nearest(key, true, true);
+    }
+
+    /**
+     * The least key greater than or equal to key, or null if none.
+     */
+    public K ceiling(K key) {
+        return nearest(key, false, true);
+    }
+
+    /**
+     * The greatest key strictly less than key, or null if none.
+     */
+    public K lower(K key) {
+        return nearest(key, true, false);
+    }
+
+    /**
+     * The least key strictly greater than key, or null if none.
+     */
+    public K higher(K key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Find the key nearest to a given key on one side of it, in one
+     * descent, as RecursiveBSTMap does.
+     */
+    private K nearest(K key, boolean below, boolean inclusive) {
+        verify();
+        int current = root();
+        int best = NIL;
+        while (current != NIL) {
+            int compare = key.compareTo(key(current));
+            if (compare == 0 && inclusive) {
+                best = current;
+                break;
+            }
+            if (below ? compare > 0 : compare >= 0) {
+                if (below)
+                    best = current;
+                current = right(current);
+            }
+            else {
+                if (! below)
+                    best = current;
+                current = left(current);
+            }
+        }
+        return key(best);
+    }
+
+    /**
+     * Iterate over the keys of this map in order.
+     */
+    public Iterator<K> iterator() {
+        verify();
+        return new InOrderIterator(null, null);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive).
+     */
+    public Iterable<K> subMap(final K fromKey, final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                verify();
+                return new InOrderIterator(fromKey, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys before toKey, in the manner of subMap.
+     */
+    public Iterable<K> headMap(final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                verify();
+                return new InOrderIterator(null, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys from fromKey on, in the manner of subMap.
+     */
+    public Iterable<K> tailMap(final K fromKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                verify();
+                return new InOrderIterator(fromKey, null);
+            }
+        };
+    }
+
+    /**
+     * In-order iterator over the keys, with a stack of node numbers
+     * holding the left-link lineage of the next node, in the manner
+     * of the iterator of RecursiveBSTMap.
+     */
+    private class InOrderIterator implements Iterator<K> {
+
+        private int[] stack;
+
+        /**
+         * The (exclusive) upper bound, or null if there is none.
+         */
+        private final K toKey;
+
+        /**
+         * The number of nodes on the stack.
+         */
+        private int depth;
+
+        InOrderIterator(K fromKey, K toKey) {
+            stack = new int[Math.max(height(root()), 1)];
+            this.toKey = toKey;
+            if (fromKey == null)
+                pushLeftLineage(root());
+            else
+                seek(fromKey);
+            checkUpperBound();
+        }
+
+        private void push(int node) {
+            if (depth == stack.length)
+                stack = Arrays.copyOf(stack, depth * 2);
+            stack[depth++] = node;
+        }
+
+        /**
+         * Push the nodes on the path to fromKey that are not before it.
+         */
+        private void seek(K fromKey) {
+            int current = root();
+            while (current != NIL) {
+                if (key(current).compareTo(fromKey) >= 0) {
+                    push(current);
+                    current = left(current);
+                }
+                else
+                    current = right(current);
+            }
+        }
+
+        /**
+         * End the iteration if the next key is not before toKey.
+         */
+        private void checkUpperBound() {
+            if (toKey != null && depth > 0 && key(stack[depth - 1]).compareTo(toKey) >= 0)
+                depth = 0;
+        }
+
+        private void pushLeftLineage(int current) {
+            while (current != NIL) {
+                push(current);
+                current = left(current);
+            }
+        }
+
+        public boolean hasNext() {
+            verify();
+            return depth > 0;
+        }
+
+        public K next() {
+            verify();
+            if (depth == 0)
+                throw new NoSuchElementException();
+            int nextNode = stack[--depth];
+            pushLeftLineage(right(nextNode));
+            checkUpperBound();
+            return key(nextNode);
+        }
+    }
+
+    /**
+     * The tree in the same parenthesized form as RecursiveBSTMap.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder, root());
+        return builder.toString();
+    }
+
+    private void appendTo(StringBuilder builder, int node) {
+        if (node == NIL) {
+            builder.append("(:)");
+            return;
+        }
+        builder.append('(');
+        appendTo(builder, left(node));
+        builder.append(' ').append(key(node)).append(' ');
+        appendTo(builder, right(node));
+        builder.append(')');
+    }
+
+    /**
+     * Check the heights, balances and sizes of the whole tree, and the
+     * accounting of the storage, if this map is verifying itself.
+     */
+    public final void verify() {
+        if (! verifying)
+            return;
+        if (height(NIL) != 0 || size(NIL) != 0)
+            throw new IgnorantNodeException("The null node has height " + height(NIL) + " and size " + size(NIL));
+        check(root());
+        checkStorage();
+    }
+
+    /**
+     * Get whether or not the map is currently verifying itself.
+     */
+    public final boolean isVerifying() {
+        return verifying;
+    }
+
+    private int check(int node) {
+        if (node == NIL)
+            return 0;
+        int leftHeight = check(left(node));
+        int rightHeight = check(right(node));
+        if (Math.abs(leftHeight - rightHeight) > 1)
+            throw new ImbalanceException("Left Height =" + leftHeight + ", Right Height =" + rightHeight);
+        int actual = Math.max(leftHeight, rightHeight) + 1;
+        if (actual != height(node))
+            throw new IgnorantNodeException("A node thinks its height is " + height(node)
+                    + ", but it is actually " + actual);
+        int expectedSize = size(left(node)) + size(right(node)) + 1;
+        if (size(node) != expectedSize)
+            throw new IgnorantNodeException("A node thinks its size is " + size(node)
+                    + ", but it is actually " + expectedSize);
+        return actual;
+    }
+}
@@ -0,0 +1,77 @@
+package impl;
+
+import java.util.PrimitiveIterator;
+
+/**
+ * IntRedBlackTreeMap
+ *
+ * A red-black tree map from int keys to values. Keys are stored in
+ * primitive fields and compared with plain operators, so there is no
+ * boxing and no call to compareTo; each node is a small static object.
+ * The descents and iteration are shared with the other maps with
+ * primitive keys in PrimitiveTree, and the recoloring and rotations with
+ * LongRedBlackTreeMap in PrimitiveRedBlackTree.
+ *
+ * @param <V> The value type
+ */
+public class IntRedBlackTreeMap<V> extends PrimitiveRedBlackTree<V> {
+
+    /**
+     * Basic constructor for an empty map
+     */
+    public IntRedBlackTreeMap(boolean verifying) {
+        super(verifying);
+    }
+
+    /**
+     * Add an association to the map.
+     */
+    public void put(int key, V val) {
+        putKey(key, val);
+    }
+
+    /**
+     * Get the value for a key, or null if none exists.
+     */
+    public V get(int key) {
+        return getKey(key);
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     */
+    public boolean containsKey(int key) {
+        return hasKey(key);
+    }
+
+    /**
+     * Remove the association for a key, if there is one.
+     * @return The value that was associated with the key, null if none
+     */
+    public V remove(int key) {
+        return removeKey(key);
+    }
+
+    /**
+     * The least key.
+     * @throws java.util.NoSuchElementException if the map is empty
+     */
+    public int min() {
+        return (int) minKey();
+    }
+
+    /**
+     * The greatest key.
+     * @throws java.util.NoSuchElementException if the map is empty
+     */
+    public int max() {
+        return (int) maxKey();
+    }
+
+    /**
+     * Iterate over the keys in increasing order, without boxing.
+     */
+    public PrimitiveIterator.OfInt keyIterator() {
+        return intKeys();
+    }
+}
@@ -11,6 +11,22 @@ public class LLRBVerify<K extends Comparable<K>,V, N extends RBNode<K,V>> implem
     public void verify(N root) {
         getBlackHeight(root);
     }
+
+    /**
+     * Check the colors at one node, and that its children have the same
+     * black height.
+     */
+    @Override
+    public void verifyNode(N node) {
+        RBNode<K,V> left = node.left();
+        RBNode<K,V> right = node.right();
+        if (node.isRed() && (left.isRed() || right.isRed()))
+            throw new DoubleRedException("Double Red");
+        if (! node.isRed() && right.isRed())
+            throw new RedRightException("Red on the right");
+        if (left.blackHeight() != right.blackHeight())
+            throw new InconsistentBlackHeightException(node.toString(),left.blackHeight(),right.blackHeight());
+    }
     
     /**
      * Calculates the black height of the tree rooted at rooted, while
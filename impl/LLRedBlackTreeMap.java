@@ -1,5 +1,11 @@
 package impl;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
 
 /**
  * LLRedBlackTreeMap
@@ -61,43 +67,248 @@ public class LLRedBlackTreeMap<K extends Comparable<K>, V> extends RedBlackTreeM
          * The node on which this method is called,
          * currently the root of this subtree, might no longer be
          * the root; the root of the modified tree is returned.
+         * 
+         * This is the fixup a removal makes on its way back up. Because
+         * a node with two red children is split by a color flip here,
+         * on the way up, rather than on the way down, the tree stays
+         * the image of a 2-3 tree.
          * @return The root of the tree like this one but
          * satisfying the constraints.
          */
         public RBNode<K, V> putFixup() {
-             throw new UnsupportedOperationException();
-                
+            return balance();
         }        
 
-        
-        
-        // ------------------------------------------------
-        // The following two methods are suggested helper methods
-        // (which you would have to write) for fixup().
-        // These will be (nearly) identical to those you write
-        // for traditional RB trees, the only difference being
-        // the types of the nodes.
-        // -----------------------------------------------
-       
         /**
-         * Rotate this tree to the left.
+         * Rotate this tree to the left. The red link to the right child
+         * becomes a red link to the left child: the new root takes this
+         * node's color and this node becomes red.
+         * PRECONDITION: The right child is red.
          * @return The node that is the new root
          */
-        private RBNode<K, V> rotateLeft() {
-             throw new UnsupportedOperationException();
+        private LLRBRealNode rotateLeft() {
+            LLRBRealNode newTop = (LLRBRealNode) right;
+            right = newTop.left;
+            newTop.left = this;
+            copyColor(newTop, this);
+            redden();
+            recomputeBlackHeight();
+            newTop.recomputeBlackHeight();
+            metrics.rotations(1);
+            return newTop;
         }
         
         /**
-         * Rotate this tree to the right.
+         * Rotate this tree to the right. The mirror image of rotateLeft.
+         * PRECONDITION: The left child is red.
          * @return The node that is the new root
          */
-       private RBNode<K, V> rotateRight() {
-            throw new UnsupportedOperationException();
+       private LLRBRealNode rotateRight() {
+            LLRBRealNode newTop = (LLRBRealNode) left;
+            left = newTop.right;
+            newTop.right = this;
+            copyColor(newTop, this);
+            redden();
+            recomputeBlackHeight();
+            newTop.recomputeBlackHeight();
+            metrics.rotations(1);
+            return newTop;
+        }
+
+        /**
+         * Flip the colors of this node and both its children, splitting
+         * or joining the 4-node they represent.
+         * PRECONDITION: Both children are real nodes.
+         */
+        private void flipColors() {
+            flipColor(left);
+            flipColor(right);
+            flipColor(this);
+            left.recomputeBlackHeight();
+            right.recomputeBlackHeight();
+            recomputeBlackHeight();
+            metrics.colorFlip();
+        }
+
+        // -------- Removal, following Sedgewick's "Left-leaning
+        // Red-Black Trees" (2008): on the way down a red link is
+        // carried along, so that the node finally removed is red
+        // and no black height changes; on the way back up the
+        // tree is made left-leaning again by balance().
+
+        /**
+         * Remove the association for a key.
+         * PRECONDITION: The key is in this subtree, and either this
+         * node or its left child is red.
+         */
+        @Override
+        public RBNode<K, V> remove(K key) {
+            LLRBRealNode current = this;
+            if (compare(key, current.key) < 0) {
+                if (!current.left.isRed() && !current.left.left().isRed())
+                    current = current.moveRedLeft();
+                current.left = current.left.remove(key);
+            }
+            else {
+                if (current.left.isRed())
+                    current = current.rotateRight();
+                if (compare(key, current.key) == 0 && current.right.isNull())
+                    return nully;
+                if (!current.right.isRed() && !current.right.left().isRed())
+                    current = current.moveRedRight();
+                if (compare(key, current.key) == 0) {
+                    RealNode<K, V, RBNode<K, V>> successor = current.right.min();
+                    current.key = successor.key;
+                    current.value = successor.value;
+                    current.right = current.right.removeMin();
+                }
+                else
+                    current.right = current.right.remove(key);
+            }
+            return current.balance();
+        }
+
+        /**
+         * Remove the association with the minimum key.
+         * PRECONDITION: Either this node or its left child is red.
+         */
+        @Override
+        public RBNode<K, V> removeMin() {
+            if (left.isNull())
+                return nully;
+            LLRBRealNode current = this;
+            if (!current.left.isRed() && !current.left.left().isRed())
+                current = current.moveRedLeft();
+            current.left = current.left.removeMin();
+            return current.balance();
+        }
+
+        /**
+         * Make the left child or one of its children red, borrowing from
+         * the right sibling if it can spare a node.
+         * PRECONDITION: This node is red and both its children are black.
+         */
+        private LLRBRealNode moveRedLeft() {
+            LLRBRealNode current = this;
+            current.flipColors();
+            if (current.right.left().isRed()) {
+                current.right = ((LLRBRealNode) current.right).rotateRight();
+                current = current.rotateLeft();
+                current.flipColors();
+            }
+            return current;
+        }
+
+        /**
+         * Make the right child or one of its children red, the mirror
+         * image of moveRedLeft.
+         * PRECONDITION: This node is red and both its children are black.
+         */
+        private LLRBRealNode moveRedRight() {
+            LLRBRealNode current = this;
+            current.flipColors();
+            if (current.left.left().isRed()) {
+                current = current.rotateRight();
+                current.flipColors();
+            }
+            return current;
+        }
+
+        /**
+         * Restore the left-leaning property on the way back up from a
+         * removal: no right-leaning red links, no two reds in a row, and
+         * no node with two red children.
+         */
+        private LLRBRealNode balance() {
+            LLRBRealNode current = this;
+            if (current.right.isRed() && !current.left.isRed())
+                current = current.rotateLeft();
+            if (current.left.isRed() && current.left.left().isRed())
+                current = current.rotateRight();
+            if (current.left.isRed() && current.right.isRed())
+                current.flipColors();
+            current.recomputeBlackHeight();
+            return current;
         }
    }
+
+    /**
+     * Give a node the color of another.
+     */
+    private static void copyColor(RBNode<?, ?> to, RBNode<?, ?> from) {
+        if (from.isRed())
+            to.redden();
+        else
+            to.blacken();
+    }
+
+    /**
+     * Change a node's color to the other color.
+     */
+    private static void flipColor(RBNode<?, ?> node) {
+        if (node.isRed())
+            node.blacken();
+        else
+            node.redden();
+    }
    
    public LLRedBlackTreeMap(boolean verifying) {
-        super(new LLRBVerify<K,V,RBNode<K,V>>(),verifying);
+        this(null, verifying);
+    }
+
+    /**
+     * Constructor for an empty map whose keys are ordered by a comparator
+     * @param comparator The order of the keys, or null for their natural order
+     */
+    public LLRedBlackTreeMap(Comparator<? super K> comparator, boolean verifying) {
+        super(new LLRBVerify<K,V,RBNode<K,V>>(),verifying,comparator);
+    }
+
+    /**
+     * Build a map from associations sorted by key, in linear time.
+     * @param keys The keys, in strictly increasing order
+     * @param values The values, in the order of their keys
+     * @param size The number of associations to take
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> LLRedBlackTreeMap<K, V> fromSorted(Iterator<K> keys,
+            Iterator<V> values, int size, boolean verifying) {
+        LLRedBlackTreeMap<K, V> map = new LLRedBlackTreeMap<K, V>(verifying);
+        map.buildFromSorted(keys, values, size);
+        return map;
+    }
+
+    /**
+     * Build a map from parallel arrays of keys, in strictly increasing
+     * order, and values, in linear time.
+     */
+    public static <K extends Comparable<K>, V> LLRedBlackTreeMap<K, V> fromSorted(K[] keys, V[] values,
+            boolean verifying) {
+        return fromSorted(Arrays.asList(keys).iterator(), Arrays.asList(values).iterator(), keys.length, verifying);
+    }
+
+    /**
+     * Read a map from a snapshot written by writeSnapshot, in linear time,
+     * restoring the exact shape of the tree that was written.
+     */
+    public static <K extends Comparable<K>, V> LLRedBlackTreeMap<K, V> readSnapshot(ReadableByteChannel channel,
+            Codec<K> keyCodec, Codec<V> valueCodec, boolean verifying) throws IOException {
+        LLRedBlackTreeMap<K, V> map = new LLRedBlackTreeMap<K, V>(verifying);
+        map.loadSnapshot(channel, keyCodec, valueCodec);
+        return map;
+    }
+
+    /**
+     * The coloring of a perfectly balanced tree given by the parent
+     * class may have red right children, and black nodes with two red
+     * children. Balancing each node as it is built, as a removal does
+     * on the way back up, makes the tree left-leaning; each node needs
+     * at most one rotation or color flip.
+     */
+    @Override
+    protected RBNode<K, V> bulkNodeFactory(K key, V val, RBNode<K, V> left, RBNode<K, V> right,
+            boolean deepest) {
+        return ((LLRBRealNode) super.bulkNodeFactory(key, val, left, right, deepest)).balance();
     }
     
    /**
@@ -111,6 +322,20 @@ public class LLRedBlackTreeMap<K extends Comparable<K>, V> extends RedBlackTreeM
         return new LLRBRealNode(key, val, left, right);
     }
 
+    /**
+     * Removal expects the root or its left child to be red, so
+     * temporarily redden a root with two black children; 
+     * removeCleanup blackens it again.
+     */
+    @Override
+    protected RBNode<K, V> delete(K key) {
+        if (!root.left().isRed() && !root.right().isRed()) {
+            root.redden();
+            root.recomputeBlackHeight();
+        }
+        return root.remove(key);
+    }
+
     
     
 }
@@ -0,0 +1,77 @@
+package impl;
+
+import java.util.PrimitiveIterator;
+
+/**
+ * LongRedBlackTreeMap
+ *
+ * A red-black tree map from long keys to values. Keys are stored in
+ * primitive fields and compared with plain operators, so there is no
+ * boxing and no call to compareTo; each node is a small static object.
+ * The descents and iteration are shared with the other maps with
+ * primitive keys in PrimitiveTree, and the recoloring and rotations with
+ * IntRedBlackTreeMap in PrimitiveRedBlackTree.
+ *
+ * @param <V> The value type
+ */
+public class LongRedBlackTreeMap<V> extends PrimitiveRedBlackTree<V> {
+
+    /**
+     * Basic constructor for an empty map
+     */
+    public LongRedBlackTreeMap(boolean verifying) {
+        super(verifying);
+    }
+
+    /**
+     * Add an association to the map.
+     */
+    public void put(long key, V val) {
+        putKey(key, val);
+    }
+
+    /**
+     * Get the value for a key, or null if none exists.
+     */
+    public V get(long key) {
+        return getKey(key);
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     */
+    public boolean containsKey(long key) {
+        return hasKey(key);
+    }
+
+    /**
+     * Remove the association for a key, if there is one.
+     * @return The value that was associated with the key, null if none
+     */
+    public V remove(long key) {
+        return removeKey(key);
+    }
+
+    /**
+     * The least key.
+     * @throws java.util.NoSuchElementException if the map is empty
+     */
+    public long min() {
+        return minKey();
+    }
+
+    /**
+     * The greatest key.
+     * @throws java.util.NoSuchElementException if the map is empty
+     */
+    public long max() {
+        return maxKey();
+    }
+
+    /**
+     * Iterate over the keys in increasing order, without boxing.
+     */
+    public PrimitiveIterator.OfLong keyIterator() {
+        return longKeys();
+    }
+}
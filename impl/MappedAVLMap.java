@@ -0,0 +1,353 @@
+package impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * MappedAVLMap
+ *
+ * An AVL tree map kept in a memory-mapped file, so it outlives the
+ * process: opening an existing file maps it and the tree is ready,
+ * and a lookup only touches the pages of the records on its search
+ * path.
+ *
+ * The file is a header followed by fixed-size node records, laid out
+ * like the slots of ArrayAVLMap. Record 0 is the null node, links are
+ * record numbers, and freed records are chained into a free list
+ * through their left links. A record holds the left and right links,
+ * the size and height of its subtree, a flag for a null value, and
+ * the key and value encoded by the codecs given when the map is opened.
+ * The tree algorithms are those of IndexedAVLTree, over these records.
+ *
+ * The file is mapped in segments, each holding a whole number of
+ * records, and grows a segment at a time. Changes are written to the
+ * mapping directly; force() or close() writes them to the disk. A
+ * crash in the middle of an update can leave the file inconsistent.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class MappedAVLMap<K extends Comparable<K>, V> extends IndexedAVLTree<K, V> implements Closeable {
+
+    private static final int MAGIC = 0x41564c4d; // "AVLM"
+    private static final int VERSION = 1;
+
+    // the header
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_AT = 0, VERSION_AT = 4, KEY_WIDTH_AT = 8, VALUE_WIDTH_AT = 12,
+            ROOT_AT = 16, NEXT_AT = 20, FREE_AT = 24;
+
+    // a record
+    private static final int LEFT_AT = 0, RIGHT_AT = 4, SIZE_AT = 8, HEIGHT_AT = 12, FLAGS_AT = 13, KEY_AT = 14;
+    private static final byte NULL_VALUE = 1;
+
+    /**
+     * The approximate size in bytes of a mapped segment.
+     */
+    private static final int SEGMENT_BYTES = 1 << 24;
+
+    private final FileChannel channel;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int recordSize;
+    private final int valueAt;
+    private final int recordsPerSegment;
+
+    private final MappedByteBuffer header;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    // cached copies of the header fields
+    private int root;
+    private int next;
+    private int free;
+
+    /**
+     * Open the map stored in a file, creating an empty one if the file
+     * does not exist or is empty.
+     * @param keyCodec The codec for the keys; it must be the same as the
+     * one the file was created with
+     * @param valueCodec The codec for the values, likewise
+     * @throws IOException if the file cannot be opened or mapped, or is
+     * not a map file
+     * @throws IllegalArgumentException if the codecs do not match the file
+     */
+    public static <K extends Comparable<K>, V> MappedAVLMap<K, V> open(Path file, Codec<K> keyCodec,
+            Codec<V> valueCodec, boolean verifying) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new MappedAVLMap<K, V>(channel, keyCodec, valueCodec, verifying);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a map in an empty (or new) file from keys, in strictly
+     * increasing order, and their values, in linear time, in the manner
+     * of ArrayAVLMap.fromSorted.
+     * @throws IllegalArgumentException if the file already holds
+     * associations, or the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> MappedAVLMap<K, V> fromSorted(Path file, Codec<K> keyCodec,
+            Codec<V> valueCodec, Iterator<K> keys, Iterator<V> values, int size, boolean verifying)
+            throws IOException {
+        MappedAVLMap<K, V> map = open(file, keyCodec, valueCodec, verifying);
+        try {
+            if (map.next != 1)
+                throw new IllegalArgumentException("the file already holds a map");
+            map.setRoot(map.build(keys, values, size));
+        } catch (RuntimeException e) {
+            map.close();
+            throw e;
+        }
+        map.verify();
+        return map;
+    }
+
+    private MappedAVLMap(FileChannel channel, Codec<K> keyCodec, Codec<V> valueCodec, boolean verifying)
+            throws IOException {
+        super(verifying);
+        this.channel = channel;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        valueAt = KEY_AT + keyCodec.width();
+        recordSize = valueAt + valueCodec.width();
+        recordsPerSegment = Math.max(1, SEGMENT_BYTES / recordSize);
+        boolean fresh = channel.size() == 0;
+        if (! fresh && channel.size() < HEADER_SIZE)
+            throw new IOException("truncated header");
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (fresh) {
+            header.putInt(MAGIC_AT, MAGIC);
+            header.putInt(VERSION_AT, VERSION);
+            header.putInt(KEY_WIDTH_AT, keyCodec.width());
+            header.putInt(VALUE_WIDTH_AT, valueCodec.width());
+            setRoot(NIL);
+            setNext(1);
+            setFree(NIL);
+            // the null record is all zeros: no links, height and size 0
+            ensureMapped(NIL);
+        }
+        else {
+            if (header.getInt(MAGIC_AT) != MAGIC)
+                throw new IOException("not a map file");
+            if (header.getInt(VERSION_AT) != VERSION)
+                throw new IOException("unknown version " + header.getInt(VERSION_AT));
+            if (header.getInt(KEY_WIDTH_AT) != keyCodec.width()
+                    || header.getInt(VALUE_WIDTH_AT) != valueCodec.width())
+                throw new IllegalArgumentException("the codecs do not match the file");
+            root = header.getInt(ROOT_AT);
+            next = header.getInt(NEXT_AT);
+            free = header.getInt(FREE_AT);
+            ensureMapped(next - 1);
+        }
+        verify();
+    }
+
+    @Override
+    protected int root() {
+        return root;
+    }
+
+    @Override
+    protected void setRoot(int node) {
+        root = node;
+        header.putInt(ROOT_AT, node);
+    }
+
+    private void setNext(int node) {
+        next = node;
+        header.putInt(NEXT_AT, node);
+    }
+
+    private void setFree(int node) {
+        free = node;
+        header.putInt(FREE_AT, node);
+    }
+
+    /**
+     * Map the segments up to the one holding a record, growing the
+     * file if need be.
+     */
+    private void ensureMapped(int node) throws IOException {
+        int needed = node / recordsPerSegment + 1;
+        if (needed <= segments.length)
+            return;
+        MappedByteBuffer[] grown = Arrays.copyOf(segments, needed);
+        long segmentBytes = (long) recordsPerSegment * recordSize;
+        for (int i = segments.length; i < needed; i++)
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * segmentBytes, segmentBytes);
+        segments = grown;
+    }
+
+    private ByteBuffer segment(int node) {
+        return segments[node / recordsPerSegment];
+    }
+
+    private int offset(int node) {
+        return (node % recordsPerSegment) * recordSize;
+    }
+
+    @Override
+    protected int left(int node) {
+        return segment(node).getInt(offset(node) + LEFT_AT);
+    }
+
+    @Override
+    protected int right(int node) {
+        return segment(node).getInt(offset(node) + RIGHT_AT);
+    }
+
+    @Override
+    protected int size(int node) {
+        return segment(node).getInt(offset(node) + SIZE_AT);
+    }
+
+    @Override
+    protected int height(int node) {
+        return segment(node).get(offset(node) + HEIGHT_AT);
+    }
+
+    @Override
+    protected K key(int node) {
+        return node == NIL ? null : keyCodec.read(segment(node), offset(node) + KEY_AT);
+    }
+
+    @Override
+    protected V value(int node) {
+        if (node == NIL || segment(node).get(offset(node) + FLAGS_AT) == NULL_VALUE)
+            return null;
+        return valueCodec.read(segment(node), offset(node) + valueAt);
+    }
+
+    @Override
+    protected void setLeft(int node, int child) {
+        segment(node).putInt(offset(node) + LEFT_AT, child);
+    }
+
+    @Override
+    protected void setRight(int node, int child) {
+        segment(node).putInt(offset(node) + RIGHT_AT, child);
+    }
+
+    @Override
+    protected void setHeight(int node, int height) {
+        segment(node).put(offset(node) + HEIGHT_AT, (byte) height);
+    }
+
+    @Override
+    protected void setSize(int node, int size) {
+        segment(node).putInt(offset(node) + SIZE_AT, size);
+    }
+
+    @Override
+    protected void setValue(int node, V val) {
+        ByteBuffer segment = segment(node);
+        int offset = offset(node);
+        if (val == null)
+            segment.put(offset + FLAGS_AT, NULL_VALUE);
+        else {
+            valueCodec.write(segment, offset + valueAt, val);
+            segment.put(offset + FLAGS_AT, (byte) 0);
+        }
+    }
+
+    /**
+     * Take a record for a new leaf, from the free list if possible. The
+     * key and value are checked first, so one that does not fit leaves
+     * every record where it was.
+     * @throws IllegalArgumentException if the key or value is too long
+     * for its codec
+     */
+    @Override
+    protected int allocate(K key, V val) {
+        checkFits(keyCodec, key);
+        if (val != null)
+            checkFits(valueCodec, val);
+        int node;
+        if (free != NIL) {
+            node = free;
+            setFree(left(node));
+        }
+        else {
+            node = next;
+            try {
+                ensureMapped(node);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            setNext(node + 1);
+        }
+        ByteBuffer segment = segment(node);
+        int offset = offset(node);
+        keyCodec.write(segment, offset + KEY_AT, key);
+        setValue(node, val);
+        segment.putInt(offset + LEFT_AT, NIL);
+        segment.putInt(offset + RIGHT_AT, NIL);
+        segment.putInt(offset + SIZE_AT, 1);
+        segment.put(offset + HEIGHT_AT, (byte) 1);
+        return node;
+    }
+
+    private static <T> void checkFits(Codec<T> codec, T item) {
+        if (codec.length(item) > codec.width())
+            throw new IllegalArgumentException("\"" + item + "\" takes more than the " + codec.width()
+                    + " bytes of a record field");
+    }
+
+    /**
+     * Put a record on the free list.
+     */
+    @Override
+    protected void release(int node) {
+        ByteBuffer segment = segment(node);
+        int offset = offset(node);
+        segment.putInt(offset + LEFT_AT, free);
+        segment.putInt(offset + RIGHT_AT, NIL);
+        segment.putInt(offset + SIZE_AT, 0);
+        segment.put(offset + HEIGHT_AT, (byte) 0);
+        setFree(node);
+    }
+
+    /**
+     * Write all changes to the file to the disk.
+     */
+    public void force() {
+        header.force();
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    /**
+     * Write all changes to the disk and close the file. The mapping
+     * itself is released when the map is garbage collected, so the map
+     * must not be used after it is closed.
+     */
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * Check that every record is either in the tree or on the free list.
+     */
+    @Override
+    protected void checkStorage() {
+        int freeRecords = 0;
+        for (int node = free; node != NIL; node = left(node))
+            freeRecords++;
+        if (size(root) + freeRecords != next - 1)
+            throw new IgnorantNodeException((next - 1) + " records are used, but " + size(root)
+                    + " are in the tree and " + freeRecords + " are free");
+    }
+}
@@ -0,0 +1,178 @@
+package impl;
+
+import java.util.Iterator;
+
+import impl.AVLBSTMap.ImbalanceException;
+
+/**
+ * PersistentAVLMap
+ *
+ * A persistent AVL tree. put() and remove() rebuild the path to the
+ * change bottom-up, rebalancing each new node as AVLBSTMap's putFixup
+ * and removeFixup do, and share everything off the path with the map
+ * they were called on.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class PersistentAVLMap<K extends Comparable<K>, V>
+        extends PersistentTreeMap<K, V, PersistentAVLMap.AVLNode<K, V>> {
+
+    protected static final class AVLNode<KK, VV> extends PersistentTreeMap.Node<KK, VV, AVLNode<KK, VV>> {
+        /**
+         * The height of the subtree rooted here; a leaf has height 1
+         */
+        final int height;
+
+        AVLNode(KK key, VV value, AVLNode<KK, VV> left, AVLNode<KK, VV> right) {
+            super(key, value, left, right);
+            height = 1 + Math.max(height(left), height(right));
+        }
+    }
+
+    private static int height(AVLNode<?, ?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * Basic constructor for an empty map
+     */
+    public PersistentAVLMap(boolean verifying) {
+        this(null, verifying);
+    }
+
+    private PersistentAVLMap(AVLNode<K, V> root, boolean verifying) {
+        super(root, verifying);
+    }
+
+    /**
+     * Build a map from keys, in strictly increasing order, and their
+     * values, in linear time.
+     * @param size The number of associations to take from keys and values
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> PersistentAVLMap<K, V> fromSorted(Iterator<K> keys,
+            Iterator<V> values, int size, boolean verifying) {
+        PersistentAVLMap<K, V> empty = new PersistentAVLMap<K, V>(verifying);
+        PersistentAVLMap<K, V> map = empty.withRoot(empty.buildFromSorted(keys, values, size));
+        map.verify();
+        return map;
+    }
+
+    /**
+     * Build a map from parallel arrays of keys, in strictly increasing
+     * order, and values, in linear time.
+     */
+    public static <K extends Comparable<K>, V> PersistentAVLMap<K, V> fromSorted(K[] keys, V[] values,
+            boolean verifying) {
+        return fromSorted(iterate(keys), iterate(values), keys.length, verifying);
+    }
+
+    @Override
+    protected PersistentAVLMap<K, V> withRoot(AVLNode<K, V> root) {
+        return new PersistentAVLMap<K, V>(root, isVerifying());
+    }
+
+    @Override
+    public PersistentAVLMap<K, V> put(K key, V val) {
+        return (PersistentAVLMap<K, V>) super.put(key, val);
+    }
+
+    @Override
+    public PersistentAVLMap<K, V> remove(K key) {
+        return (PersistentAVLMap<K, V>) super.remove(key);
+    }
+
+    @Override
+    public PersistentAVLMap<K, V> removeFirst() {
+        return (PersistentAVLMap<K, V>) super.removeFirst();
+    }
+
+    @Override
+    public PersistentAVLMap<K, V> removeLast() {
+        return (PersistentAVLMap<K, V>) super.removeLast();
+    }
+
+    @Override
+    protected AVLNode<K, V> insert(AVLNode<K, V> node, K key, V val) {
+        if (node == null)
+            return new AVLNode<K, V>(key, val, null, null);
+        int compare = key.compareTo(node.key);
+        if (compare < 0)
+            return balance(node.key, node.value, insert(node.left, key, val), node.right);
+        if (compare > 0)
+            return balance(node.key, node.value, node.left, insert(node.right, key, val));
+        return new AVLNode<K, V>(key, val, node.left, node.right);
+    }
+
+    @Override
+    protected AVLNode<K, V> delete(AVLNode<K, V> node, K key) {
+        int compare = key.compareTo(node.key);
+        if (compare < 0)
+            return balance(node.key, node.value, delete(node.left, key), node.right);
+        if (compare > 0)
+            return balance(node.key, node.value, node.left, delete(node.right, key));
+        if (node.left == null)
+            return node.right;
+        if (node.right == null)
+            return node.left;
+        // replace the node by its successor, as RecursiveBSTMap does
+        AVLNode<K, V> successor = node.right;
+        while (successor.left != null)
+            successor = successor.left;
+        return balance(successor.key, successor.value, node.left, deleteMin(node.right));
+    }
+
+    private AVLNode<K, V> deleteMin(AVLNode<K, V> node) {
+        if (node.left == null)
+            return node.right;
+        return balance(node.key, node.value, deleteMin(node.left), node.right);
+    }
+
+    /**
+     * Make a node from subtrees whose heights differ by at most two,
+     * rotating if they differ by two.
+     * @return The root of the balanced subtree
+     */
+    private AVLNode<K, V> balance(K key, V val, AVLNode<K, V> left, AVLNode<K, V> right) {
+        int balance = height(left) - height(right);
+        if (balance > 1) {
+            if (height(left.left) >= height(left.right))
+                return new AVLNode<K, V>(left.key, left.value, left.left,
+                        new AVLNode<K, V>(key, val, left.right, right));
+            AVLNode<K, V> leftRight = left.right;
+            return new AVLNode<K, V>(leftRight.key, leftRight.value,
+                    new AVLNode<K, V>(left.key, left.value, left.left, leftRight.left),
+                    new AVLNode<K, V>(key, val, leftRight.right, right));
+        }
+        if (balance < -1) {
+            if (height(right.right) >= height(right.left))
+                return new AVLNode<K, V>(right.key, right.value, new AVLNode<K, V>(key, val, left, right.left),
+                        right.right);
+            AVLNode<K, V> rightLeft = right.left;
+            return new AVLNode<K, V>(rightLeft.key, rightLeft.value,
+                    new AVLNode<K, V>(key, val, left, rightLeft.left),
+                    new AVLNode<K, V>(right.key, right.value, rightLeft.right, right.right));
+        }
+        return new AVLNode<K, V>(key, val, left, right);
+    }
+
+    /**
+     * A perfectly balanced tree is an AVL tree as it stands.
+     */
+    @Override
+    protected AVLNode<K, V> bulkNode(K key, V val, AVLNode<K, V> left, AVLNode<K, V> right, boolean deepest) {
+        return new AVLNode<K, V>(key, val, left, right);
+    }
+
+    @Override
+    protected int checkBalance(AVLNode<K, V> node) {
+        if (node == null)
+            return 0;
+        int leftHeight = checkBalance(node.left);
+        int rightHeight = checkBalance(node.right);
+        if (Math.abs(leftHeight - rightHeight) > 1)
+            throw new ImbalanceException("Left Height =" + leftHeight + ", Right Height =" + rightHeight);
+        return node.height;
+    }
+}
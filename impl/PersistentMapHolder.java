@@ -0,0 +1,186 @@
+package impl;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import adt.OrderedMap;
+
+/**
+ * PersistentMapHolder
+ *
+ * An OrderedMap that holds the current version of a persistent tree in
+ * an atomic reference. Readers take the current version with snapshot()
+ * and then read it without any locking for as long as they like; it
+ * never changes. Each update makes a new version from the current one
+ * by path copying and publishes it with a compare-and-set, trying again
+ * from the newer version if another writer published first, so writers
+ * never block readers or each other.
+ *
+ * The OrderedMap methods each read the version current when they are
+ * called, so a sequence of calls may see different versions; take a
+ * snapshot to read one version consistently, and use update() to make
+ * several changes that readers see all at once.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class PersistentMapHolder<K extends Comparable<K>, V> implements OrderedMap<K, V> {
+
+    private final AtomicReference<PersistentTreeMap<K, V, ?>> current;
+
+    /**
+     * Hold a persistent map, typically an empty PersistentAVLMap or
+     * PersistentRedBlackTreeMap, as the first version.
+     */
+    public PersistentMapHolder(PersistentTreeMap<K, V, ?> initial) {
+        current = new AtomicReference<PersistentTreeMap<K, V, ?>>(initial);
+    }
+
+    /**
+     * The current version of the map, which will never change.
+     */
+    public PersistentTreeMap<K, V, ?> snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Replace the current version with one made from it, atomically. The
+     * function may be called more than once, if other writers publish
+     * versions in the meantime, so it should not have side effects.
+     * @return The version published
+     */
+    public PersistentTreeMap<K, V, ?> update(UnaryOperator<PersistentTreeMap<K, V, ?>> change) {
+        while (true) {
+            PersistentTreeMap<K, V, ?> before = current.get();
+            PersistentTreeMap<K, V, ?> after = change.apply(before);
+            if (after == before || current.compareAndSet(before, after))
+                return after;
+        }
+    }
+
+    /**
+     * Add an association to the map.
+     */
+    public void put(K key, V val) {
+        update(map -> map.put(key, val));
+    }
+
+    /**
+     * Remove the association for this key, if any.
+     * @return The value that was associated with this key, null if none existed
+     */
+    public V remove(K key) {
+        while (true) {
+            PersistentTreeMap<K, V, ?> before = current.get();
+            PersistentTreeMap<K, V, ?> after = before.remove(key);
+            if (after == before || current.compareAndSet(before, after))
+                return before.get(key);
+        }
+    }
+
+    /**
+     * Remove the minimum key and its association, if any.
+     * @return The key that was removed, or null if empty
+     */
+    public K pollFirst() {
+        while (true) {
+            PersistentTreeMap<K, V, ?> before = current.get();
+            if (before.isEmpty())
+                return null;
+            if (current.compareAndSet(before, before.removeFirst()))
+                return before.min();
+        }
+    }
+
+    /**
+     * Remove the maximum key and its association, if any.
+     * @return The key that was removed, or null if empty
+     */
+    public K pollLast() {
+        while (true) {
+            PersistentTreeMap<K, V, ?> before = current.get();
+            if (before.isEmpty())
+                return null;
+            if (current.compareAndSet(before, before.removeLast()))
+                return before.max();
+        }
+    }
+
+    public V get(K key) {
+        return snapshot().get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return snapshot().containsKey(key);
+    }
+
+    public K min() {
+        return snapshot().min();
+    }
+
+    public K max() {
+        return snapshot().max();
+    }
+
+    public int size() {
+        return snapshot().size();
+    }
+
+    public int rank(K key) {
+        return snapshot().rank(key);
+    }
+
+    public K select(int rank) {
+        return snapshot().select(rank);
+    }
+
+    public int countInRange(K lo, K hi) {
+        return snapshot().countInRange(lo, hi);
+    }
+
+    public K floor(K key) {
+        return snapshot().floor(key);
+    }
+
+    public K ceiling(K key) {
+        return snapshot().ceiling(key);
+    }
+
+    public K lower(K key) {
+        return snapshot().lower(key);
+    }
+
+    public K higher(K key) {
+        return snapshot().higher(key);
+    }
+
+    /**
+     * Iterate over the keys of the current version; later updates are
+     * not seen.
+     */
+    public Iterator<K> iterator() {
+        return snapshot().iterator();
+    }
+
+    /**
+     * A view of the keys from fromKey (inclusive) to toKey (exclusive);
+     * each iteration over it reads the version current when it starts.
+     */
+    public Iterable<K> subMap(K fromKey, K toKey) {
+        return () -> snapshot().subMap(fromKey, toKey).iterator();
+    }
+
+    public Iterable<K> headMap(K toKey) {
+        return () -> snapshot().headMap(toKey).iterator();
+    }
+
+    public Iterable<K> tailMap(K fromKey) {
+        return () -> snapshot().tailMap(fromKey).iterator();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,323 @@
+package impl;
+
+import java.util.Iterator;
+
+import impl.RedBlackTreeMap.DoubleRedException;
+import impl.RedBlackTreeMap.InconsistentBlackHeightException;
+
+/**
+ * PersistentRedBlackTreeMap
+ *
+ * A persistent red-black tree. Insertion is Okasaki's: the new red
+ * leaf is balanced on the way back up by turning any red node with a
+ * red child, under a black node, into a red node with two black
+ * children. Deletion is Kahrs': a subtree that loses a black node is
+ * rebalanced by its parent (balanceLeft/balanceRight), and the node
+ * removed is replaced by fusing its two subtrees. Both rebuild only
+ * the path to the change and the nodes next to it, and share the rest
+ * of the tree with the map they were called on.
+ *
+ * The trees are red-black trees in the sense of
+ * TraditionalRedBlackTreeMap (no red node has a red child, every path
+ * has the same number of black nodes, and the root is black), though
+ * not necessarily of the same shape as it would build.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class PersistentRedBlackTreeMap<K extends Comparable<K>, V>
+        extends PersistentTreeMap<K, V, PersistentRedBlackTreeMap.RBNode<K, V>> {
+
+    protected static final class RBNode<KK, VV> extends PersistentTreeMap.Node<KK, VV, RBNode<KK, VV>> {
+        final boolean red;
+
+        RBNode(boolean red, KK key, VV value, RBNode<KK, VV> left, RBNode<KK, VV> right) {
+            super(key, value, left, right);
+            this.red = red;
+        }
+
+        RBNode<KK, VV> blacken() {
+            return red ? new RBNode<KK, VV>(false, key, value, left, right) : this;
+        }
+
+        RBNode<KK, VV> redden() {
+            return red ? this : new RBNode<KK, VV>(true, key, value, left, right);
+        }
+    }
+
+    private static boolean isRed(RBNode<?, ?> node) {
+        return node != null && node.red;
+    }
+
+    private static boolean isBlack(RBNode<?, ?> node) {
+        return node != null && ! node.red;
+    }
+
+    private static <K, V> RBNode<K, V> red(K key, V val, RBNode<K, V> left, RBNode<K, V> right) {
+        return new RBNode<K, V>(true, key, val, left, right);
+    }
+
+    private static <K, V> RBNode<K, V> black(K key, V val, RBNode<K, V> left, RBNode<K, V> right) {
+        return new RBNode<K, V>(false, key, val, left, right);
+    }
+
+    /**
+     * Basic constructor for an empty map
+     */
+    public PersistentRedBlackTreeMap(boolean verifying) {
+        this(null, verifying);
+    }
+
+    private PersistentRedBlackTreeMap(RBNode<K, V> root, boolean verifying) {
+        super(root, verifying);
+    }
+
+    /**
+     * Build a map from keys, in strictly increasing order, and their
+     * values, in linear time.
+     * @param size The number of associations to take from keys and values
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> PersistentRedBlackTreeMap<K, V> fromSorted(Iterator<K> keys,
+            Iterator<V> values, int size, boolean verifying) {
+        PersistentRedBlackTreeMap<K, V> empty = new PersistentRedBlackTreeMap<K, V>(verifying);
+        RBNode<K, V> root = empty.buildFromSorted(keys, values, size);
+        PersistentRedBlackTreeMap<K, V> map = empty.withRoot(root == null ? null : root.blacken());
+        map.verify();
+        return map;
+    }
+
+    /**
+     * Build a map from parallel arrays of keys, in strictly increasing
+     * order, and values, in linear time.
+     */
+    public static <K extends Comparable<K>, V> PersistentRedBlackTreeMap<K, V> fromSorted(K[] keys, V[] values,
+            boolean verifying) {
+        return fromSorted(iterate(keys), iterate(values), keys.length, verifying);
+    }
+
+    @Override
+    protected PersistentRedBlackTreeMap<K, V> withRoot(RBNode<K, V> root) {
+        return new PersistentRedBlackTreeMap<K, V>(root, isVerifying());
+    }
+
+    @Override
+    public PersistentRedBlackTreeMap<K, V> put(K key, V val) {
+        return (PersistentRedBlackTreeMap<K, V>) super.put(key, val);
+    }
+
+    @Override
+    public PersistentRedBlackTreeMap<K, V> remove(K key) {
+        return (PersistentRedBlackTreeMap<K, V>) super.remove(key);
+    }
+
+    @Override
+    public PersistentRedBlackTreeMap<K, V> removeFirst() {
+        return (PersistentRedBlackTreeMap<K, V>) super.removeFirst();
+    }
+
+    @Override
+    public PersistentRedBlackTreeMap<K, V> removeLast() {
+        return (PersistentRedBlackTreeMap<K, V>) super.removeLast();
+    }
+
+    //-------------------------------------------------------------------
+    // insertion
+
+    /**
+     * The root is blackened afterwards, like the root of
+     * TraditionalRedBlackTreeMap after its putFixup.
+     */
+    @Override
+    protected RBNode<K, V> insert(RBNode<K, V> node, K key, V val) {
+        return upsert(node, key, val).blacken();
+    }
+
+    private RBNode<K, V> upsert(RBNode<K, V> node, K key, V val) {
+        if (node == null)
+            return red(key, val, null, null);
+        int compare = key.compareTo(node.key);
+        if (compare < 0)
+            return balanceLeft(node.red, node.key, node.value, upsert(node.left, key, val), node.right);
+        if (compare > 0)
+            return balanceRight(node.red, node.key, node.value, node.left, upsert(node.right, key, val));
+        return new RBNode<K, V>(node.red, key, val, node.left, node.right);
+    }
+
+    /**
+     * Make a node whose new left subtree may have a red root with a red
+     * child, repairing that if the node is black.
+     */
+    private RBNode<K, V> balanceLeft(boolean red, K key, V val, RBNode<K, V> left, RBNode<K, V> right) {
+        if (! red && isRed(left)) {
+            if (isRed(left.left))
+                return red(left.key, left.value, left.left.blacken(), black(key, val, left.right, right));
+            if (isRed(left.right))
+                return red(left.right.key, left.right.value, black(left.key, left.value, left.left, left.right.left),
+                        black(key, val, left.right.right, right));
+        }
+        return new RBNode<K, V>(red, key, val, left, right);
+    }
+
+    private RBNode<K, V> balanceRight(boolean red, K key, V val, RBNode<K, V> left, RBNode<K, V> right) {
+        if (! red && isRed(right)) {
+            if (isRed(right.left))
+                return red(right.left.key, right.left.value, black(key, val, left, right.left.left),
+                        black(right.key, right.value, right.left.right, right.right));
+            if (isRed(right.right))
+                return red(right.key, right.value, black(key, val, left, right.left), right.right.blacken());
+        }
+        return new RBNode<K, V>(red, key, val, left, right);
+    }
+
+    //-------------------------------------------------------------------
+    // deletion
+
+    @Override
+    protected RBNode<K, V> delete(RBNode<K, V> node, K key) {
+        RBNode<K, V> root = remove(node, key);
+        return root == null ? null : root.blacken();
+    }
+
+    /**
+     * Remove a key from a subtree. If the root of the subtree was black,
+     * the result has one fewer black node on every path, and the caller
+     * rebalances; otherwise the black height is unchanged.
+     * PRECONDITION: The key is in the subtree.
+     */
+    private RBNode<K, V> remove(RBNode<K, V> node, K key) {
+        int compare = key.compareTo(node.key);
+        if (compare < 0) {
+            RBNode<K, V> left = remove(node.left, key);
+            return isBlack(node.left) ? removeBalanceLeft(node.key, node.value, left, node.right)
+                    : red(node.key, node.value, left, node.right);
+        }
+        if (compare > 0) {
+            RBNode<K, V> right = remove(node.right, key);
+            return isBlack(node.right) ? removeBalanceRight(node.key, node.value, node.left, right)
+                    : red(node.key, node.value, node.left, right);
+        }
+        return fuse(node.left, node.right);
+    }
+
+    /**
+     * Make a node whose left subtree is one black node short.
+     */
+    private RBNode<K, V> removeBalanceLeft(K key, V val, RBNode<K, V> left, RBNode<K, V> right) {
+        if (isRed(left))
+            return red(key, val, left.blacken(), right);
+        if (isBlack(right))
+            return balance(key, val, left, right.redden());
+        if (isRed(right) && isBlack(right.left))
+            return red(right.left.key, right.left.value, black(key, val, left, right.left.left),
+                    balance(right.key, right.value, right.left.right, right.right.redden()));
+        throw new InconsistentBlackHeightException(String.valueOf(key), blackHeight(left), blackHeight(right));
+    }
+
+    /**
+     * Make a node whose right subtree is one black node short.
+     */
+    private RBNode<K, V> removeBalanceRight(K key, V val, RBNode<K, V> left, RBNode<K, V> right) {
+        if (isRed(right))
+            return red(key, val, left, right.blacken());
+        if (isBlack(left))
+            return balance(key, val, left.redden(), right);
+        if (isRed(left) && isBlack(left.right))
+            return red(left.right.key, left.right.value,
+                    balance(left.key, left.value, left.left.redden(), left.right.left),
+                    black(key, val, left.right.right, right));
+        throw new InconsistentBlackHeightException(String.valueOf(key), blackHeight(left), blackHeight(right));
+    }
+
+    /**
+     * Make a black node, repairing a red child of it that has a red child.
+     */
+    private RBNode<K, V> balance(K key, V val, RBNode<K, V> left, RBNode<K, V> right) {
+        if (isRed(left) && isRed(right))
+            return red(key, val, left.blacken(), right.blacken());
+        if (isRed(left)) {
+            if (isRed(left.left))
+                return red(left.key, left.value, left.left.blacken(), black(key, val, left.right, right));
+            if (isRed(left.right))
+                return red(left.right.key, left.right.value, black(left.key, left.value, left.left, left.right.left),
+                        black(key, val, left.right.right, right));
+        }
+        else if (isRed(right)) {
+            if (isRed(right.right))
+                return red(right.key, right.value, black(key, val, left, right.left), right.right.blacken());
+            if (isRed(right.left))
+                return red(right.left.key, right.left.value, black(key, val, left, right.left.left),
+                        black(right.key, right.value, right.left.right, right.right));
+        }
+        return black(key, val, left, right);
+    }
+
+    /**
+     * Join two subtrees of the same black height, all of whose keys in
+     * left come before those in right, into one; it is one black node
+     * short if the node they were under was black.
+     */
+    private RBNode<K, V> fuse(RBNode<K, V> left, RBNode<K, V> right) {
+        if (left == null)
+            return right;
+        if (right == null)
+            return left;
+        if (isRed(left) && isRed(right)) {
+            RBNode<K, V> middle = fuse(left.right, right.left);
+            if (isRed(middle))
+                return red(middle.key, middle.value, red(left.key, left.value, left.left, middle.left),
+                        red(right.key, right.value, middle.right, right.right));
+            return red(left.key, left.value, left.left, red(right.key, right.value, middle, right.right));
+        }
+        if (isBlack(left) && isBlack(right)) {
+            RBNode<K, V> middle = fuse(left.right, right.left);
+            if (isRed(middle))
+                return red(middle.key, middle.value, black(left.key, left.value, left.left, middle.left),
+                        black(right.key, right.value, middle.right, right.right));
+            return removeBalanceLeft(left.key, left.value, left.left,
+                    black(right.key, right.value, middle, right.right));
+        }
+        if (isRed(right))
+            return red(right.key, right.value, fuse(left, right.left), right.right);
+        return red(left.key, left.value, left.left, fuse(left.right, right));
+    }
+
+    //-------------------------------------------------------------------
+    // bulk building and verification
+
+    /**
+     * Color the nodes on the deepest, possibly incomplete, level red and
+     * the rest black, as RedBlackTreeMap.bulkNodeFactory does.
+     */
+    @Override
+    protected RBNode<K, V> bulkNode(K key, V val, RBNode<K, V> left, RBNode<K, V> right, boolean deepest) {
+        return new RBNode<K, V>(deepest, key, val, left, right);
+    }
+
+    private static int blackHeight(RBNode<?, ?> node) {
+        int height = 0;
+        for (; node != null; node = node.left)
+            if (! node.red)
+                height++;
+        return height;
+    }
+
+    @Override
+    protected int checkBalance(RBNode<K, V> node) {
+        if (isRed(root))
+            throw new DoubleRedException("The root is red");
+        return checkColors(node);
+    }
+
+    private int checkColors(RBNode<K, V> node) {
+        if (node == null)
+            return 0;
+        if (node.red && (isRed(node.left) || isRed(node.right)))
+            throw new DoubleRedException("Red node " + node.key + " has a red child");
+        int leftHeight = checkColors(node.left);
+        int rightHeight = checkColors(node.right);
+        if (leftHeight != rightHeight)
+            throw new InconsistentBlackHeightException(String.valueOf(node.key), leftHeight, rightHeight);
+        return leftHeight + (node.red ? 0 : 1);
+    }
+}
@@ -0,0 +1,478 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * PersistentTreeMap
+ *
+ * Class where the commonality of the persistent (immutable) balanced
+ * trees is pulled up. A persistent map never changes: put() and remove()
+ * return a new map, copying only the nodes on the path from the root to
+ * the change (and the few more a rebalancing touches) and sharing every
+ * other subtree with the map they started from. An update therefore
+ * allocates O(log n) nodes, and any number of threads can read any
+ * version of the map, without locking, while new versions are made.
+ * PersistentMapHolder publishes the latest version to such readers.
+ *
+ * The nodes are immutable and record the sizes of their subtrees, so
+ * the order statistics take logarithmic time as in RecursiveBSTMap.
+ * Child classes supply the nodes and the balancing, through insert()
+ * and delete(), which return the root of the new tree.
+ *
+ * These maps do not implement adt.Map, whose put() and remove() change
+ * the map they are called on; otherwise the methods mean what they do
+ * in adt.OrderedMap.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ * @param <N> The node type of the child class
+ */
+public abstract class PersistentTreeMap<K extends Comparable<K>, V, N extends PersistentTreeMap.Node<K, V, N>>
+        implements Iterable<K> {
+
+    /**
+     * An immutable node; child classes add their balancing information.
+     */
+    protected abstract static class Node<KK, VV, NN extends Node<KK, VV, NN>> {
+        protected final KK key;
+        protected final VV value;
+        protected final NN left;
+        protected final NN right;
+        /**
+         * The number of nodes in the subtree rooted here
+         */
+        protected final int size;
+
+        protected Node(KK key, VV value, NN left, NN right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            size = 1 + size(left) + size(right);
+        }
+    }
+
+    protected static int size(Node<?, ?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * The root of the tree, null if the map is empty
+     */
+    protected final N root;
+
+    private final boolean verifying;
+
+    protected PersistentTreeMap(N root, boolean verifying) {
+        this.root = root;
+        this.verifying = verifying;
+    }
+
+    /**
+     * Make a map of the same kind around a new tree.
+     */
+    protected abstract PersistentTreeMap<K, V, N> withRoot(N root);
+
+    /**
+     * Insert or overwrite a value for a key in a subtree, by path copying.
+     * @return The root of the new subtree
+     */
+    protected abstract N insert(N node, K key, V val);
+
+    /**
+     * Remove a key from a subtree, by path copying.
+     * PRECONDITION: The key is in the subtree.
+     * @return The root of the new subtree
+     */
+    protected abstract N delete(N node, K key);
+
+    /**
+     * Make a node for fromSorted, whose children have already been
+     * built, in the manner of RecursiveBSTMap.bulkNodeFactory.
+     * @param deepest Whether the node is on the deepest level of the tree,
+     * which is the only level that may be incomplete
+     */
+    protected abstract N bulkNode(K key, V val, N left, N right, boolean deepest);
+
+    /**
+     * Check the balance conditions of the child class on a subtree.
+     * @return The height, or black height, of the subtree
+     */
+    protected abstract int checkBalance(N node);
+
+    /**
+     * Build a perfectly balanced tree from keys, in strictly increasing
+     * order, and their values, in linear time, as
+     * RecursiveBSTMap.buildFromSorted does.
+     * @return The root of the tree
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    protected final N buildFromSorted(Iterator<K> keys, Iterator<V> values, int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("negative size " + size);
+        int deepest = size == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(size);
+        return build(keys, values, size, 0, deepest, new ArrayList<K>(1));
+    }
+
+    private N build(Iterator<K> keys, Iterator<V> values, int size, int depth, int deepest, ArrayList<K> previous) {
+        if (size == 0)
+            return null;
+        int leftSize = (size - 1) / 2;
+        N left = build(keys, values, leftSize, depth + 1, deepest, previous);
+        K key = keys.next();
+        V val = values.next();
+        if (previous.isEmpty())
+            previous.add(key);
+        else if (previous.set(0, key).compareTo(key) >= 0)
+            throw new IllegalArgumentException("keys are not in increasing order at " + key);
+        N right = build(keys, values, size - 1 - leftSize, depth + 1, deepest, previous);
+        return bulkNode(key, val, left, right, depth == deepest);
+    }
+
+    protected static <T> Iterator<T> iterate(T[] array) {
+        return Arrays.asList(array).iterator();
+    }
+
+    //-------------------------------------------------------------------
+    // updates
+
+    /**
+     * Make a map with an association added, sharing all but O(log n)
+     * nodes with this one. This map is unchanged.
+     * @return The new map, or this one if key already had the value val
+     */
+    public PersistentTreeMap<K, V, N> put(K key, V val) {
+        N node = findNode(key);
+        if (node != null && node.value == val)
+            return this;
+        PersistentTreeMap<K, V, N> toReturn = withRoot(insert(root, key, val));
+        toReturn.verify();
+        return toReturn;
+    }
+
+    /**
+     * Make a map with the association for a key removed, sharing all but
+     * O(log n) nodes with this one. This map is unchanged.
+     * @return The new map, or this one if it has no association for key
+     */
+    public PersistentTreeMap<K, V, N> remove(K key) {
+        if (findNode(key) == null)
+            return this;
+        PersistentTreeMap<K, V, N> toReturn = withRoot(delete(root, key));
+        toReturn.verify();
+        return toReturn;
+    }
+
+    /**
+     * Make a map without its minimum key, or this map if it is empty.
+     */
+    public PersistentTreeMap<K, V, N> removeFirst() {
+        return root == null ? this : remove(min());
+    }
+
+    /**
+     * Make a map without its maximum key, or this map if it is empty.
+     */
+    public PersistentTreeMap<K, V, N> removeLast() {
+        return root == null ? this : remove(max());
+    }
+
+    //-------------------------------------------------------------------
+    // queries
+
+    protected final N findNode(K key) {
+        N current = root;
+        while (current != null) {
+            int compare = key.compareTo(current.key);
+            if (compare == 0)
+                return current;
+            current = compare < 0 ? current.left : current.right;
+        }
+        return null;
+    }
+
+    /**
+     * Get the value for a key.
+     * @return The value associated with this key, null if none exists
+     */
+    public final V get(K key) {
+        N node = findNode(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     */
+    public final boolean containsKey(K key) {
+        return findNode(key) != null;
+    }
+
+    /**
+     * Return the number of associations in this map.
+     */
+    public final int size() {
+        return size(root);
+    }
+
+    public final boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Find the minimum key, or null if the map is empty.
+     */
+    public final K min() {
+        if (root == null)
+            return null;
+        N current = root;
+        while (current.left != null)
+            current = current.left;
+        return current.key;
+    }
+
+    /**
+     * Find the maximum key, or null if the map is empty.
+     */
+    public final K max() {
+        if (root == null)
+            return null;
+        N current = root;
+        while (current.right != null)
+            current = current.right;
+        return current.key;
+    }
+
+    /**
+     * Find the number of keys in the map that come before a key, which
+     * need not be in the map.
+     */
+    public final int rank(K key) {
+        int rank = 0;
+        N current = root;
+        while (current != null) {
+            int compare = key.compareTo(current.key);
+            if (compare <= 0)
+                current = current.left;
+            else {
+                rank += size(current.left) + 1;
+                current = current.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Find the key with a given rank.
+     * @throws IndexOutOfBoundsException if there is no such key
+     */
+    public final K select(int rank) {
+        if (rank < 0 || rank >= size())
+            throw new IndexOutOfBoundsException("rank " + rank + " in a map of size " + size());
+        N current = root;
+        while (true) {
+            int leftSize = size(current.left);
+            if (rank < leftSize)
+                current = current.left;
+            else if (rank == leftSize)
+                return current.key;
+            else {
+                rank -= leftSize + 1;
+                current = current.right;
+            }
+        }
+    }
+
+    /**
+     * Count the keys k in the map with lo <= k <= hi.
+     */
+    public final int countInRange(K lo, K hi) {
+        if (hi.compareTo(lo) < 0)
+            return 0;
+        return rank(hi) - rank(lo) + (containsKey(hi) ? 1 : 0);
+    }
+
+    /**
+     * The key nearest to key on one side of it.
+     * @param below Whether to look for keys before key (rather than after)
+     * @param inclusive Whether key itself is an acceptable answer
+     */
+    private K nearest(K key, boolean below, boolean inclusive) {
+        K best = null;
+        N current = root;
+        while (current != null) {
+            int compare = key.compareTo(current.key);
+            if (compare == 0 && inclusive)
+                return current.key;
+            if (below ? compare > 0 : compare < 0) {
+                best = current.key;
+                current = below ? current.right : current.left;
+            }
+            else
+                current = below ? current.left : current.right;
+        }
+        return best;
+    }
+
+    /**
+     * The greatest key less than or equal to key, or null if none.
+     */
+    public final K floor(K key) {
+        return nearest(key, true, true);
+    }
+
+    /**
+     * The least key greater than or equal to key, or null if none.
+     */
+    public final K ceiling(K key) {
+        return nearest(key, false, true);
+    }
+
+    /**
+     * The greatest key strictly less than key, or null if none.
+     */
+    public final K lower(K key) {
+        return nearest(key, true, false);
+    }
+
+    /**
+     * The least key strictly greater than key, or null if none.
+     */
+    public final K higher(K key) {
+        return nearest(key, false, false);
+    }
+
+    //-------------------------------------------------------------------
+    // iteration
+
+    /**
+     * Iterate over the keys in order. Since the map never changes, the
+     * iterator sees exactly the keys it had when the iterator was made.
+     */
+    public final Iterator<K> iterator() {
+        return new KeyIterator(null, null);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive).
+     */
+    public final Iterable<K> subMap(final K fromKey, final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(fromKey, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys before toKey.
+     */
+    public final Iterable<K> headMap(final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(null, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys from fromKey on.
+     */
+    public final Iterable<K> tailMap(final K fromKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(fromKey, null);
+            }
+        };
+    }
+
+    /**
+     * In-order iterator with an explicit stack of the nodes whose keys
+     * are still to come, starting from the first key not before fromKey.
+     */
+    private class KeyIterator implements Iterator<K> {
+
+        private final ArrayList<N> stack = new ArrayList<N>();
+
+        private final K toKey;
+
+        KeyIterator(K fromKey, K toKey) {
+            this.toKey = toKey;
+            N current = root;
+            while (current != null) {
+                if (fromKey == null || fromKey.compareTo(current.key) <= 0) {
+                    stack.add(current);
+                    current = current.left;
+                }
+                else
+                    current = current.right;
+            }
+        }
+
+        public boolean hasNext() {
+            return ! stack.isEmpty()
+                    && (toKey == null || stack.get(stack.size() - 1).key.compareTo(toKey) < 0);
+        }
+
+        public K next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            N node = stack.remove(stack.size() - 1);
+            for (N current = node.right; current != null; current = current.left)
+                stack.add(current);
+            return node.key;
+        }
+    }
+
+    /**
+     * The associations in the form described by adt.Map, in key order.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        appendTo(builder, root);
+        return builder.append(']').toString();
+    }
+
+    private void appendTo(StringBuilder builder, N node) {
+        if (node == null)
+            return;
+        appendTo(builder, node.left);
+        if (builder.length() > 1)
+            builder.append(", ");
+        builder.append(node.key).append('=').append(node.value);
+        appendTo(builder, node.right);
+    }
+
+    //-------------------------------------------------------------------
+    // verification
+
+    /**
+     * Check the order of the keys and the balance conditions of the child class, if this map is verifying
+     * itself. New maps made from this one are verified as they are made.
+     */
+    public final void verify() {
+        if (! verifying)
+            return;
+        checkOrder(root, null, null);
+        checkBalance(root);
+    }
+
+    /**
+     * Get whether or not the map is currently verifying itself.
+     */
+    public final boolean isVerifying() {
+        return verifying;
+    }
+
+    private void checkOrder(N node, K lo, K hi) {
+        if (node == null)
+            return;
+        if (lo != null && node.key.compareTo(lo) <= 0 || hi != null && node.key.compareTo(hi) >= 0)
+            throw new IgnorantNodeException("Keys out of order around " + node.key);
+        checkOrder(node.left, lo, node.key);
+        checkOrder(node.right, node.key, hi);
+    }
+}
@@ -0,0 +1,75 @@
+package impl;
+
+import java.util.Comparator;
+
+/**
+ * PrefixComparator
+ *
+ * A lexicographic order on keys that are sequences, such as strings, that
+ * can start comparing two keys past a prefix they are known to share.
+ * A tree ordered by a PrefixComparator searches by keeping, for the
+ * nearest keys passed on either side, how long a prefix they share with
+ * the key searched for. Every key between them shares at least the
+ * shorter of those two prefixes with it, so each comparison starts past
+ * that prefix instead of rescanning it. For keys with long common
+ * prefixes, like the URLs of one site, most of each comparison is
+ * skipped.
+ *
+ * @param <K> The key type
+ */
+public interface PrefixComparator<K> extends Comparator<K> {
+
+    /**
+     * Find how long a prefix two keys share.
+     * PRECONDITION: a and b share a prefix at least from long
+     * @return The length of the longest prefix a and b share
+     */
+    int commonPrefix(K a, K b, int from);
+
+    /**
+     * Compare two keys that share a prefix exactly prefix long, by the
+     * element after it.
+     * PRECONDITION: prefix = commonPrefix(a, b, 0)
+     */
+    int compareAfter(K a, K b, int prefix);
+
+    default int compare(K a, K b) {
+        return compareAfter(a, b, commonPrefix(a, b, 0));
+    }
+
+    /**
+     * Strings in their natural order, by char. This scans a char at a
+     * time, which is slower than the vectorized String.compareTo, so it
+     * pays off only when the prefixes it skips are long.
+     */
+    PrefixComparator<String> STRINGS = new PrefixComparator<String>() {
+        public int commonPrefix(String a, String b, int from) {
+            int length = Math.min(a.length(), b.length());
+            int i = from;
+            while (i < length && a.charAt(i) == b.charAt(i))
+                i++;
+            return i;
+        }
+
+        public int compareAfter(String a, String b, int prefix) {
+            if (prefix == a.length() || prefix == b.length())
+                return a.length() - b.length();
+            return a.charAt(prefix) - b.charAt(prefix);
+        }
+    };
+
+    /**
+     * Byte strings in their natural order, by unsigned byte.
+     */
+    PrefixComparator<Bytes> BYTES = new PrefixComparator<Bytes>() {
+        public int commonPrefix(Bytes a, Bytes b, int from) {
+            return a.mismatch(b, from);
+        }
+
+        public int compareAfter(Bytes a, Bytes b, int prefix) {
+            if (prefix == a.length() || prefix == b.length())
+                return a.length() - b.length();
+            return a.byteAt(prefix) - b.byteAt(prefix);
+        }
+    };
+}
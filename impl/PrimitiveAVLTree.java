@@ -0,0 +1,208 @@
+package impl;
+
+import impl.AVLBSTMap.ImbalanceException;
+
+/**
+ * PrimitiveAVLTree
+ *
+ * The AVL balancing of the maps with primitive keys (IntAVLMap,
+ * LongAVLMap). The descents in PrimitiveTree record the search path in
+ * the path buffer; the methods here then link in or unlink nodes along
+ * that path and rebalance it.
+ *
+ * Unlike AVLBSTMap, the nodes are static classes with no reference to
+ * the map, all nodes are handled without recursion, and a single
+ * sentinel node plays the part of the null objects.
+ *
+ * @param <V> The value type
+ */
+abstract class PrimitiveAVLTree<V> extends PrimitiveTree<V, PrimitiveAVLTree.Node<V>> {
+
+    static final class Node<V> extends PrimitiveTree.Node<V, Node<V>> {
+        /**
+         * The height of the subtree rooted here (0 for the sentinel)
+         */
+        int height;
+        /**
+         * The number of associations in the subtree rooted here
+         */
+        int size;
+
+        Node(long key, V value) {
+            super(key, value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected PrimitiveAVLTree(boolean verifying) {
+        super(new Node<V>(0, null), (Node<V>[]) new Node<?>[32], verifying);
+    }
+
+    @Override
+    protected final Node<V> newNode(long key, V value) {
+        return new Node<V>(key, value);
+    }
+
+    /**
+     * Link a new leaf in below the last node of the search path and
+     * retrace the path bottom-up while the height keeps changing; above
+     * that the ancestors only gain one in size.
+     * @param depth The length of the search path
+     */
+    @Override
+    protected final void insertAt(int depth, Node<V> leaf) {
+        leaf.left = leaf.right = nil;
+        leaf.height = leaf.size = 1;
+        Node<V> child = leaf;
+        while (depth > 0) {
+            Node<V> parent = path[--depth];
+            path[depth] = null;
+            link(parent, wentLeft[depth], child);
+            int oldHeight = parent.height;
+            child = rebalance(parent);
+            if (child.height == oldHeight) {
+                if (depth > 0)
+                    link(path[depth - 1], wentLeft[depth - 1], child);
+                else
+                    root = child;
+                while (depth > 0) {
+                    path[--depth].size++;
+                    path[depth] = null;
+                }
+                return;
+            }
+        }
+        root = child;
+    }
+
+    /**
+     * Unlink the last node of the search path. A node with two children
+     * is replaced by its successor, whose path is added to the search
+     * path; the path is then rebalanced bottom-up.
+     * @param depth The index in the search path of the node to remove
+     * @return The value of the removed node
+     */
+    @Override
+    protected final V removeAt(int depth) {
+        Node<V> target = path[depth];
+        Node<V> child;
+        int top;
+        if (target.left == nil || target.right == nil) {
+            child = target.left != nil ? target.left : target.right;
+            top = depth;
+        }
+        else {
+            wentLeft[depth] = false;
+            top = depth + 1;
+            Node<V> successor = target.right;
+            while (successor.left != nil) {
+                push(top++, successor, true);
+                successor = successor.left;
+            }
+            child = successor.right;
+            successor.left = target.left;
+            path[depth] = successor;
+        }
+        for (int i = top - 1; i >= 0; i--) {
+            Node<V> parent = path[i];
+            path[i] = null;
+            link(parent, wentLeft[i], child);
+            child = rebalance(parent);
+        }
+        root = child;
+        return target.value;
+    }
+
+    private static <V> void link(Node<V> parent, boolean left, Node<V> child) {
+        if (left)
+            parent.left = child;
+        else
+            parent.right = child;
+    }
+
+    private static <V> void recompute(Node<V> node) {
+        int leftHeight = node.left.height;
+        int rightHeight = node.right.height;
+        node.height = (leftHeight > rightHeight ? leftHeight : rightHeight) + 1;
+        node.size = node.left.size + node.right.size + 1;
+    }
+
+    /**
+     * Restore the AVL property at a node whose subtrees are AVL trees
+     * with heights differing by at most two.
+     * @return The root of the rebalanced subtree
+     */
+    private Node<V> rebalance(Node<V> node) {
+        int balance = node.left.height - node.right.height;
+        if (balance > 1) {
+            if (node.left.left.height < node.left.right.height)
+                node.left = rotateLeft(node.left);
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            if (node.right.right.height < node.right.left.height)
+                node.right = rotateRight(node.right);
+            return rotateLeft(node);
+        }
+        recompute(node);
+        return node;
+    }
+
+    private Node<V> rotateLeft(Node<V> node) {
+        Node<V> newTop = node.right;
+        node.right = newTop.left;
+        newTop.left = node;
+        recompute(node);
+        recompute(newTop);
+        return newTop;
+    }
+
+    private Node<V> rotateRight(Node<V> node) {
+        Node<V> newTop = node.left;
+        node.left = newTop.right;
+        newTop.right = node;
+        recompute(node);
+        recompute(newTop);
+        return newTop;
+    }
+
+    /**
+     * Return the number of associations in this map.
+     */
+    @Override
+    public final int size() {
+        return root.size;
+    }
+
+    @Override
+    protected final int heightBound() {
+        return Math.max(root.height, 1);
+    }
+
+    /**
+     * Check the heights, balances and sizes of the whole tree, if
+     * this tree is verifying itself.
+     */
+    @Override
+    public final void verify() {
+        if (isVerifying())
+            check(root);
+    }
+
+    private int check(Node<V> node) {
+        if (node == nil)
+            return 0;
+        int leftHeight = check(node.left);
+        int rightHeight = check(node.right);
+        if (Math.abs(leftHeight - rightHeight) > 1)
+            throw new ImbalanceException("Left Height =" + leftHeight + ", Right Height =" + rightHeight);
+        int height = Math.max(leftHeight, rightHeight) + 1;
+        if (height != node.height)
+            throw new IgnorantNodeException("A node thinks its height is " + node.height
+                    + ", but it is actually " + height);
+        if (node.size != node.left.size + node.right.size + 1)
+            throw new IgnorantNodeException("A node thinks its size is " + node.size
+                    + ", but it is actually " + (node.left.size + node.right.size + 1));
+        return height;
+    }
+}
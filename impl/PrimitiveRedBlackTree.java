@@ -0,0 +1,315 @@
+package impl;
+
+import impl.RedBlackTreeMap.DoubleRedException;
+import impl.RedBlackTreeMap.InconsistentBlackHeightException;
+
+/**
+ * PrimitiveRedBlackTree
+ *
+ * The (traditional) red-black balancing of the maps with primitive
+ * keys (IntRedBlackTreeMap, LongRedBlackTreeMap), in the manner of
+ * PrimitiveAVLTree: the descents in PrimitiveTree record the search
+ * path, and the fixups here work bottom-up along that path in place
+ * of parent links, following CLRS chapter 13.
+ *
+ * @param <V> The value type
+ */
+abstract class PrimitiveRedBlackTree<V> extends PrimitiveTree<V, PrimitiveRedBlackTree.Node<V>> {
+
+    /**
+     * A node; the sentinel standing for every null link is black and
+     * is never reddened.
+     */
+    static final class Node<V> extends PrimitiveTree.Node<V, Node<V>> {
+        boolean isRed;
+
+        Node(long key, V value) {
+            super(key, value);
+        }
+    }
+
+    /**
+     * The number of associations in the tree.
+     */
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    protected PrimitiveRedBlackTree(boolean verifying) {
+        super(new Node<V>(0, null), (Node<V>[]) new Node<?>[64], verifying);
+    }
+
+    @Override
+    protected final Node<V> newNode(long key, V value) {
+        return new Node<V>(key, value);
+    }
+
+    /**
+     * Replace one child of a node with another node; a null parent
+     * stands for the root link.
+     */
+    private void replaceChild(Node<V> parent, Node<V> oldChild, Node<V> newChild) {
+        if (parent == null)
+            root = newChild;
+        else if (parent.left == oldChild)
+            parent.left = newChild;
+        else
+            parent.right = newChild;
+    }
+
+    private Node<V> rotateLeft(Node<V> node) {
+        Node<V> newTop = node.right;
+        node.right = newTop.left;
+        newTop.left = node;
+        return newTop;
+    }
+
+    private Node<V> rotateRight(Node<V> node) {
+        Node<V> newTop = node.left;
+        node.left = newTop.right;
+        newTop.right = node;
+        return newTop;
+    }
+
+    /**
+     * Link a new (red) leaf in below the last node of the search path
+     * and fix double reds on the way up: red uncles are handled by
+     * recoloring and moving up two levels, black uncles by one or two
+     * rotations, which end the fixup.
+     * @param depth The length of the search path
+     */
+    @Override
+    protected final void insertAt(int depth, Node<V> leaf) {
+        leaf.left = leaf.right = nil;
+        leaf.isRed = true;
+        size++;
+        if (depth == 0) {
+            root = leaf;
+            root.isRed = false;
+            return;
+        }
+        if (wentLeft[depth - 1])
+            path[depth - 1].left = leaf;
+        else
+            path[depth - 1].right = leaf;
+
+        Node<V> current = leaf;
+        // i is the index of current's parent; a red parent is never the root
+        int i = depth - 1;
+        while (i >= 1 && path[i].isRed) {
+            Node<V> parent = path[i];
+            Node<V> grandparent = path[i - 1];
+            Node<V> greatGrandparent = i >= 2 ? path[i - 2] : null;
+            if (grandparent.left == parent) {
+                Node<V> uncle = grandparent.right;
+                if (uncle.isRed) {
+                    parent.isRed = false;
+                    uncle.isRed = false;
+                    grandparent.isRed = true;
+                    current = grandparent;
+                    i -= 2;
+                    continue;
+                }
+                if (parent.right == current) {
+                    grandparent.left = rotateLeft(parent);
+                    parent = current;
+                }
+                replaceChild(greatGrandparent, grandparent, rotateRight(grandparent));
+            }
+            else {
+                Node<V> uncle = grandparent.left;
+                if (uncle.isRed) {
+                    parent.isRed = false;
+                    uncle.isRed = false;
+                    grandparent.isRed = true;
+                    current = grandparent;
+                    i -= 2;
+                    continue;
+                }
+                if (parent.left == current) {
+                    grandparent.right = rotateRight(parent);
+                    parent = current;
+                }
+                replaceChild(greatGrandparent, grandparent, rotateLeft(grandparent));
+            }
+            parent.isRed = false;
+            grandparent.isRed = true;
+            break;
+        }
+        root.isRed = false;
+        clearPath(depth);
+    }
+
+    /**
+     * Unlink the last node of the search path. A node with two children
+     * is replaced by its successor (taking its color), whose path is
+     * added to the search path. If the node actually taken out of the
+     * tree was black, its replacement is one black node short, which
+     * is fixed on the way up.
+     * @param depth The index in the search path of the node to remove
+     * @return The value of the removed node
+     */
+    @Override
+    protected final V removeAt(int depth) {
+        Node<V> target = path[depth];
+        Node<V> replacement;
+        boolean removedRed;
+        int parentIndex;
+        boolean replacementIsLeft;
+        if (target.left == nil || target.right == nil) {
+            replacement = target.left != nil ? target.left : target.right;
+            removedRed = target.isRed;
+            replaceChild(depth > 0 ? path[depth - 1] : null, target, replacement);
+            parentIndex = depth - 1;
+            replacementIsLeft = depth > 0 && wentLeft[depth - 1];
+        }
+        else {
+            wentLeft[depth] = false;
+            int top = depth + 1;
+            Node<V> successor = target.right;
+            while (successor.left != nil) {
+                push(top++, successor, true);
+                successor = successor.left;
+            }
+            replacement = successor.right;
+            removedRed = successor.isRed;
+            if (top == depth + 1) {
+                parentIndex = depth;
+                replacementIsLeft = false;
+            }
+            else {
+                path[top - 1].left = replacement;
+                successor.right = target.right;
+                parentIndex = top - 1;
+                replacementIsLeft = true;
+            }
+            successor.left = target.left;
+            successor.isRed = target.isRed;
+            replaceChild(depth > 0 ? path[depth - 1] : null, target, successor);
+            path[depth] = successor;
+        }
+        size--;
+        if (! removedRed)
+            removeFixup(replacement, parentIndex, replacementIsLeft);
+        clearPath(Math.max(parentIndex + 1, depth + 1));
+        return target.value;
+    }
+
+    /**
+     * Make up for the subtree rooted at current being one black node
+     * short (CLRS RB-DELETE-FIXUP).
+     * @param i The index in the path of current's parent
+     * @param isLeft Whether current is its parent's left child
+     */
+    private void removeFixup(Node<V> current, int i, boolean isLeft) {
+        while (i >= 0 && ! current.isRed) {
+            Node<V> parent = path[i];
+            Node<V> grandparent = i > 0 ? path[i - 1] : null;
+            if (isLeft) {
+                Node<V> sibling = parent.right;
+                if (sibling.isRed) {
+                    sibling.isRed = false;
+                    parent.isRed = true;
+                    Node<V> top = rotateLeft(parent);
+                    replaceChild(grandparent, parent, top);
+                    grandparent = top;
+                    sibling = parent.right;
+                }
+                if (! sibling.left.isRed && ! sibling.right.isRed) {
+                    // if parent was made red just above, this ends the loop
+                    sibling.isRed = true;
+                    current = parent;
+                    i--;
+                    isLeft = i >= 0 && wentLeft[i];
+                    continue;
+                }
+                if (! sibling.right.isRed) {
+                    sibling.left.isRed = false;
+                    sibling.isRed = true;
+                    sibling = parent.right = rotateRight(sibling);
+                }
+                sibling.isRed = parent.isRed;
+                parent.isRed = false;
+                sibling.right.isRed = false;
+                replaceChild(grandparent, parent, rotateLeft(parent));
+            }
+            else {
+                Node<V> sibling = parent.left;
+                if (sibling.isRed) {
+                    sibling.isRed = false;
+                    parent.isRed = true;
+                    Node<V> top = rotateRight(parent);
+                    replaceChild(grandparent, parent, top);
+                    grandparent = top;
+                    sibling = parent.left;
+                }
+                if (! sibling.left.isRed && ! sibling.right.isRed) {
+                    sibling.isRed = true;
+                    current = parent;
+                    i--;
+                    isLeft = i >= 0 && wentLeft[i];
+                    continue;
+                }
+                if (! sibling.left.isRed) {
+                    sibling.right.isRed = false;
+                    sibling.isRed = true;
+                    sibling = parent.left = rotateLeft(sibling);
+                }
+                sibling.isRed = parent.isRed;
+                parent.isRed = false;
+                sibling.left.isRed = false;
+                replaceChild(grandparent, parent, rotateRight(parent));
+            }
+            current = root;
+            break;
+        }
+        current.isRed = false;
+    }
+
+    /**
+     * Return the number of associations in this map.
+     */
+    @Override
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * A red-black tree of n nodes is at most 2 lg(n + 1) high.
+     */
+    @Override
+    protected final int heightBound() {
+        return 2 * (32 - Integer.numberOfLeadingZeros(size)) + 1;
+    }
+
+    /**
+     * Check the colors, black heights and size of the whole tree, if
+     * this tree is verifying itself.
+     */
+    @Override
+    public final void verify() {
+        if (! isVerifying())
+            return;
+        if (root.isRed)
+            throw new DoubleRedException("Red root");
+        if (nil.isRed)
+            throw new RedBlackTreeMap.RedNullException();
+        int[] count = new int[1];
+        check(root, count);
+        if (count[0] != size)
+            throw new IgnorantNodeException("The tree thinks its size is " + size
+                    + ", but it is actually " + count[0]);
+    }
+
+    private int check(Node<V> node, int[] count) {
+        if (node == nil)
+            return 0;
+        count[0]++;
+        int leftBlackHeight = check(node.left, count);
+        int rightBlackHeight = check(node.right, count);
+        if (node.isRed && (node.left.isRed || node.right.isRed))
+            throw new DoubleRedException("Double Red");
+        if (leftBlackHeight != rightBlackHeight)
+            throw new InconsistentBlackHeightException("A node", leftBlackHeight, rightBlackHeight);
+        return leftBlackHeight + (node.isRed ? 0 : 1);
+    }
+}
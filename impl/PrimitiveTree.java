@@ -0,0 +1,324 @@
+package impl;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * PrimitiveTree
+ *
+ * The part of the maps with primitive keys (IntAVLMap, LongAVLMap,
+ * IntRedBlackTreeMap, LongRedBlackTreeMap) that does not depend on the
+ * balancing scheme: the nodes and their keys, the descents, which are
+ * the only code that compares keys, and the iteration. Keys are kept
+ * in a long field and compared with plain operators, so an int key
+ * is simply widened. The descents record the search path in the path
+ * buffer, and the balancing child class (PrimitiveAVLTree or
+ * PrimitiveRedBlackTree) then links in or unlinks nodes along that
+ * path; the concrete maps only choose a balancing scheme and the key
+ * type of their methods.
+ *
+ * @param <V> The value type
+ * @param <N> The node type of the balancing child class
+ */
+abstract class PrimitiveTree<V, N extends PrimitiveTree.Node<V, N>> {
+
+    /**
+     * Supertype of the nodes of the balancing child classes, which add
+     * the balancing information.
+     */
+    abstract static class Node<V, N extends Node<V, N>> {
+        final long key;
+        V value;
+        N left, right;
+
+        Node(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The sentinel standing for every null link. Its links are never
+     * followed.
+     */
+    protected final N nil;
+
+    /**
+     * The root of this tree, nil when the tree is empty.
+     */
+    protected N root;
+
+    /**
+     * The nodes on the search path of the current operation, root first,
+     * kept between operations and grown as needed.
+     */
+    protected N[] path;
+
+    /**
+     * For each node in path, whether the search went to its left child.
+     */
+    protected boolean[] wentLeft;
+
+    /**
+     * True if the tree checks its invariants before and after each
+     * operation.
+     */
+    private final boolean verifying;
+
+    /**
+     * @param path The initial search path buffer, of the node type of the
+     * child class
+     */
+    protected PrimitiveTree(N nil, N[] path, boolean verifying) {
+        this.nil = nil;
+        this.verifying = verifying;
+        root = nil;
+        this.path = path;
+        wentLeft = new boolean[path.length];
+    }
+
+    /**
+     * A new node, not yet linked in.
+     */
+    protected abstract N newNode(long key, V value);
+
+    /**
+     * Link a new leaf in below the last node of the search path and
+     * restore the balance, clearing the path.
+     * @param depth The length of the search path
+     */
+    protected abstract void insertAt(int depth, N leaf);
+
+    /**
+     * Unlink the last node of the search path and restore the balance,
+     * clearing the path.
+     * @param depth The index in the search path of the node to remove
+     * @return The value of the removed node
+     */
+    protected abstract V removeAt(int depth);
+
+    /**
+     * An upper bound on the number of nodes on any path from the root.
+     */
+    protected abstract int heightBound();
+
+    /**
+     * Return the number of associations in this map.
+     */
+    public abstract int size();
+
+    /**
+     * Check the invariants of the whole tree, if this tree is verifying
+     * itself.
+     */
+    public abstract void verify();
+
+    /**
+     * Record a node on the search path.
+     */
+    protected final void push(int depth, N node, boolean left) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, depth * 2);
+            wentLeft = Arrays.copyOf(wentLeft, depth * 2);
+        }
+        path[depth] = node;
+        wentLeft[depth] = left;
+    }
+
+    /**
+     * Forget the search path, so it does not keep nodes alive.
+     */
+    protected final void clearPath(int depth) {
+        Arrays.fill(path, 0, depth, null);
+    }
+
+    /**
+     * Add an association to the map.
+     */
+    protected final void putKey(long key, V val) {
+        verify();
+        int depth = 0;
+        N current = root;
+        while (current != nil) {
+            if (key < current.key) {
+                push(depth++, current, true);
+                current = current.left;
+            }
+            else if (key > current.key) {
+                push(depth++, current, false);
+                current = current.right;
+            }
+            else {
+                current.value = val;
+                clearPath(depth);
+                verify();
+                return;
+            }
+        }
+        insertAt(depth, newNode(key, val));
+        verify();
+    }
+
+    /**
+     * Get the value for a key, or null if none exists.
+     */
+    protected final V getKey(long key) {
+        N node = find(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     */
+    protected final boolean hasKey(long key) {
+        return find(key) != null;
+    }
+
+    private N find(long key) {
+        verify();
+        N current = root;
+        while (current != nil) {
+            if (key < current.key)
+                current = current.left;
+            else if (key > current.key)
+                current = current.right;
+            else
+                return current;
+        }
+        return null;
+    }
+
+    /**
+     * Remove the association for a key, if there is one.
+     * @return The value that was associated with the key, null if none
+     */
+    protected final V removeKey(long key) {
+        verify();
+        int depth = 0;
+        N current = root;
+        while (current != nil) {
+            if (key < current.key) {
+                push(depth++, current, true);
+                current = current.left;
+            }
+            else if (key > current.key) {
+                push(depth++, current, false);
+                current = current.right;
+            }
+            else {
+                push(depth, current, false);
+                V toReturn = removeAt(depth);
+                verify();
+                return toReturn;
+            }
+        }
+        clearPath(depth);
+        return null;
+    }
+
+    /**
+     * The least key.
+     * @throws NoSuchElementException if the tree is empty
+     */
+    protected final long minKey() {
+        if (root == nil)
+            throw new NoSuchElementException();
+        N current = root;
+        while (current.left != nil)
+            current = current.left;
+        return current.key;
+    }
+
+    /**
+     * The greatest key.
+     * @throws NoSuchElementException if the tree is empty
+     */
+    protected final long maxKey() {
+        if (root == nil)
+            throw new NoSuchElementException();
+        N current = root;
+        while (current.right != nil)
+            current = current.right;
+        return current.key;
+    }
+
+    public final boolean isEmpty() {
+        return root == nil;
+    }
+
+    public final boolean isVerifying() {
+        return verifying;
+    }
+
+    /**
+     * Iterate over the keys, which must be ints, in increasing order,
+     * without boxing.
+     */
+    protected final PrimitiveIterator.OfInt intKeys() {
+        verify();
+        final NodeIterator nodes = new NodeIterator();
+        return new PrimitiveIterator.OfInt() {
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            public int nextInt() {
+                return (int) nodes.nextNode().key;
+            }
+        };
+    }
+
+    /**
+     * Iterate over the keys in increasing order, without boxing.
+     */
+    protected final PrimitiveIterator.OfLong longKeys() {
+        verify();
+        final NodeIterator nodes = new NodeIterator();
+        return new PrimitiveIterator.OfLong() {
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            public long nextLong() {
+                return nodes.nextNode().key;
+            }
+        };
+    }
+
+    /**
+     * In-order iteration over the nodes, with an array stack sized from
+     * the bound on the height of the tree.
+     */
+    private final class NodeIterator {
+        private N[] stack;
+        private int depth;
+
+        @SuppressWarnings("unchecked")
+        NodeIterator() {
+            stack = (N[]) new Node<?, ?>[heightBound()];
+            pushLeftLineage(root);
+        }
+
+        private void pushLeftLineage(N current) {
+            while (current != nil) {
+                stack[depth++] = current;
+                current = current.left;
+            }
+        }
+
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        public N nextNode() {
+            verify();
+            if (depth == 0)
+                throw new NoSuchElementException();
+            N next = stack[--depth];
+            stack[depth] = null;
+            pushLeftLineage(next.right);
+            return next;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package impl;
 
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
 
 import adt.OrderedMap;
-import adt.Stack;
 
 /**
  * RecursiveBSTMap
@@ -48,6 +57,21 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
        
        NN putFixup();
        
+        /**
+         * Remove the association for a key, if any, possibly
+         * altering the tree.
+         * @return The root of the new tree resulting from this
+         * removal and any rebalancing that is triggered by it.
+         */
+        NN remove(KK key);
+
+        /**
+         * Remove the association with the minimum key in this subtree.
+         * PRECONDITION: This is a real node.
+         * @return The root of the new tree resulting from this
+         * removal and any rebalancing that is triggered by it.
+         */
+        NN removeMin();
 
         boolean containsKey(KK key);
 
@@ -99,6 +123,18 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
         public NN putFixup() {
             return (NN) this;
         }
+
+        /**
+         * No key is contained here, so there is nothing to remove.
+         */
+        @SuppressWarnings("unchecked")
+        public NN remove(KK key) {
+            return (NN) this;
+        }
+
+        public NN removeMin() {
+            throw new UnsupportedOperationException();
+        }
         /**
          * No key is contained here
          */
@@ -175,6 +211,15 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
         public String toString() {
             return "(" + left + " " + key + " " + right + ")";
         }
+
+        /**
+         * Compare two keys in the order of the tree. By default this is
+         * their natural order; the nodes of trees that may have a
+         * comparator use the tree's compare.
+         */
+        protected int compare(KK a, KK b) {
+            return a.compareTo(b);
+        }
         
 
         /**
@@ -198,7 +243,7 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
         	System.out.println("key = " + key);
         	*/
 
-            int compare = key.compareTo(this.key);
+            int compare = compare(key, this.key);
             if (compare < 0)
                 left = left.put(key, val);
             else if (compare == 0)
@@ -217,11 +262,70 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
          * satisfying the constraints.
          */
         public abstract NN putFixup();
+
+        /**
+         * Remove the association for a key, if it is in this subtree.
+         * A node with two children trades places with its successor,
+         * whose association is moved up into it; the node actually
+         * unlinked from the tree always has at most one real child.
+         * Every node on the way back up gets a removeFixup.
+         * @return The node at the root of the subtree
+         * that results from the removal and any
+         * rebalancing that it triggers.
+         */
+        public NN remove(KK key) {
+            int compare = compare(key, this.key);
+            if (compare < 0)
+                left = left.remove(key);
+            else if (compare > 0)
+                right = right.remove(key);
+            else if (left.isNull())
+                return unlink(right);
+            else if (right.isNull())
+                return unlink(left);
+            else {
+                RealNode<KK, VV, NN> successor = right.min();
+                this.key = successor.key;
+                this.value = successor.value;
+                right = right.removeMin();
+            }
+            return removeFixup();
+        }
+
+        public NN removeMin() {
+            if (left.isNull())
+                return unlink(right);
+            left = left.removeMin();
+            return removeFixup();
+        }
+
+        /**
+         * Take this node out of the tree.
+         * PRECONDITION: child is this node's only real child, or
+         * a null object if it has none.
+         * @return What takes this node's place; by default simply
+         * the child.
+         */
+        protected NN unlink(NN child) {
+            return child;
+        }
+
+        /**
+         * Fix this subtree to conform to the constraints of
+         * this variety of balanced tree, after a removal from one
+         * of its subtrees. By default there is nothing to fix.
+         * @return The root of the tree like this one but
+         * satisfying the constraints.
+         */
+        @SuppressWarnings("unchecked")
+        public NN removeFixup() {
+            return (NN) this;
+        }
          
         // Other map operations straightforward....
         
         public boolean containsKey(KK key) {
-            int compare = key.compareTo(this.key);
+            int compare = compare(key, this.key);
             if (compare < 0) 
                 return left.containsKey(key);
             else if (compare == 0) 
@@ -231,7 +335,7 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
         }
 
         public VV get(KK key) {
-            int compare = key.compareTo(this.key);
+            int compare = compare(key, this.key);
             if (compare < 0) 
                 return left.get(key);
             else if (compare == 0) 
@@ -283,24 +387,575 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
      */
     protected N root;
     /**
-     * The strategy used to verify the that the tree is correct.
+     * The null object of this tree. Every null link in the tree refers
+     * to this one node, so the lookup loops can test for the end of a 
+     * path by identity instead of calling isNull(). The constructor
+     * (of any child class) should set this along with root.
+     */
+    protected N nullNode;
+    /**
+     * Counts the changes that may have moved nodes, so that a finger can
+     * tell when the path it holds may no longer be in the tree.
+     */
+    private int modifications;
+    /**
+     * The strategy used to verify the that the tree is correct, which
+     * may be a cheaper mode wrapped around fullVs.
+     */
+    private VerificationStrategy<K,V,N> vs;
+    /**
+     * The strategy the tree was constructed with, which verifies the
+     * whole tree.
      */
-    private final VerificationStrategy<K,V,N> vs;
+    private final VerificationStrategy<K,V,N> fullVs;
     /**
      * True if the the tree is currently verifying itself. 
      */
     private final boolean verifying;
+    /**
+     * Where the tree reports the work it does; by default nowhere.
+     */
+    protected TreeMetrics metrics = TreeMetrics.NONE;
+    /**
+     * The order of the keys, or null for their natural order.
+     */
+    private final Comparator<? super K> comparator;
+    /**
+     * The comparator, if it is a PrefixComparator, whose searches skip
+     * the prefixes they have already matched; otherwise null.
+     */
+    protected final PrefixComparator<? super K> prefixComparator;
+    /**
+     * The nodes on the search path of the current insertion, root first.
+     * Kept between insertions so that put does not allocate; grown if the
+     * tree gets taller than it can hold.
+     */
+    private RealNode<K, V, N>[] path;
+    /**
+     * For each node in path, whether the search went to its left child.
+     */
+    private boolean[] wentLeft;
     
     /**
-     * This constructor simply sets up verification. The constructor (of any child class) s
-     * hould set root  to a null object.
+     * This constructor simply sets up verification. The constructor (of any child class) 
+     * should set root and nullNode to a null object.
      * @param vs The verification strategy used to verify the tree
      * @param verifying The tree will only be verified if verifying is true.
      */
     public RecursiveBSTMap(VerificationStrategy<K,V,N> vs, boolean verifying) {
+        this(vs, verifying, null);
+    }
+
+    /**
+     * This constructor sets up verification and the order of the keys.
+     * @param comparator The order of the keys, or null for their natural
+     * order. A PrefixComparator makes searches skip the prefixes of the
+     * keys they have already matched.
+     */
+    @SuppressWarnings("unchecked")
+    public RecursiveBSTMap(VerificationStrategy<K,V,N> vs, boolean verifying, Comparator<? super K> comparator) {
         this.vs = vs;
+        this.fullVs = vs;
         this.verifying = verifying;
+        this.comparator = comparator;
+        this.prefixComparator = comparator instanceof PrefixComparator
+                ? (PrefixComparator<? super K>) comparator : null;
+        this.path = (RealNode<K, V, N>[]) new RealNode<?, ?, ?>[32];
+        this.wentLeft = new boolean[32];
+    }
+
+    /**
+     * Compare two keys in the order of this map.
+     */
+    protected final int compare(K a, K b) {
+        return comparator == null ? a.compareTo(b) : comparator.compare(a, b);
+    }
+
+    /**
+     * Get the order of the keys, or null if it is their natural order.
+     */
+    public final Comparator<? super K> comparator() {
+        return comparator;
     }
+
+    /**
+     * The order of the keys as a comparator, even if it is natural.
+     */
+    final Comparator<? super K> order() {
+        return comparator == null ? Comparator.<K>naturalOrder() : comparator;
+    }
+    /**
+     * Replace the contents of this map with the given associations,
+     * building a perfectly balanced tree bottom-up in linear time, with 
+     * no comparisons beyond checking the order of the keys. Every level
+     * but the deepest is full. This is for the bulk-building factories
+     * of the child classes, which start from an empty map.
+     * @param keys The keys, in strictly increasing order
+     * @param values The values, in the order of their keys
+     * @param size The number of associations to take from keys and values
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    protected final void buildFromSorted(Iterator<K> keys, Iterator<V> values, int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("negative size " + size);
+        int deepest = size == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(size);
+        root = build(keys, values, size, 0, deepest, new ArrayList<K>(1));
+        modifications++;
+        putCleanup();
+        verify();
+    }
+
+    /**
+     * Build a subtree of the given size from the next associations.
+     * The left subtree gets the smaller half, so the sizes of sibling
+     * subtrees never differ by more than one.
+     * @param previous Holds the last key taken, to check the order
+     */
+    private N build(Iterator<K> keys, Iterator<V> values, int size, int depth, int deepest, ArrayList<K> previous) {
+        if (size == 0)
+            return nullNode;
+        int leftSize = (size - 1) / 2;
+        N left = build(keys, values, leftSize, depth + 1, deepest, previous);
+        K key = keys.next();
+        V val = values.next();
+        if (previous.isEmpty())
+            previous.add(key);
+        else if (compare(previous.set(0, key), key) >= 0)
+            throw new IllegalArgumentException("keys are not in increasing order at " + key);
+        N right = build(keys, values, size - 1 - leftSize, depth + 1, deepest, previous);
+        return bulkNodeFactory(key, val, left, right, depth == deepest);
+    }
+
+    /**
+     * Lay out the associations of this map in a run, in key order.
+     */
+    @SuppressWarnings("unchecked")
+    SortedRun<K, V> toSortedRun() {
+        SortedRun<K, V> run = new SortedRun<K, V>(16);
+        final N nil = nullNode;
+        RealNode<K, V, N>[] stack = (RealNode<K, V, N>[]) new RealNode<?, ?, ?>[Math.max(heightBound(), 1)];
+        int depth = 0;
+        N current = root;
+        while (true) {
+            while (current != nil) {
+                RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+                if (depth == stack.length)
+                    stack = Arrays.copyOf(stack, depth * 2);
+                stack[depth++] = node;
+                current = node.left;
+            }
+            if (depth == 0)
+                return run;
+            RealNode<K, V, N> node = stack[--depth];
+            run.add(node.key, node.value);
+            current = node.right;
+        }
+    }
+
+    /**
+     * Add every association of another map to this one. Where both maps
+     * have a key, its value becomes the result of merge applied to the
+     * value here and the value in other.
+     * 
+     * Rather than put()ting keys one at a time, this lays out other in a
+     * run and merges the run into the tree in one descent, as putAll
+     * does, so a small other costs about as many node visits as putting
+     * its keys would; for large maps the two sides of each split are 
+     * merged as separate tasks on the ForkJoin common pool.
+     * @param other The map to add; it is not changed
+     * @param merge The function combining values for keys in both maps
+     */
+    public final void union(RecursiveBSTMap<K, V, ?> other, BiFunction<? super V, ? super V, ? extends V> merge) {
+        combine(other, SortedRun.Operation.UNION, merge);
+    }
+
+    /**
+     * Remove every association whose key is not also in another map, 
+     * in the manner of union. Subtrees that no key of other reaches
+     * are dropped whole, without being visited.
+     * @param other The map whose keys to keep; it is not changed
+     */
+    public final void intersect(RecursiveBSTMap<K, V, ?> other) {
+        combine(other, SortedRun.Operation.INTERSECTION, null);
+    }
+
+    /**
+     * Remove every association whose key is in another map, in the 
+     * manner of union. Subtrees that no key of other reaches are kept
+     * whole, without being visited.
+     * @param other The map whose keys to remove; it is not changed
+     */
+    public final void subtract(RecursiveBSTMap<K, V, ?> other) {
+        combine(other, SortedRun.Operation.DIFFERENCE, null);
+    }
+
+    private void combine(RecursiveBSTMap<K, V, ?> other, SortedRun.Operation op,
+            BiFunction<? super V, ? super V, ? extends V> merge) {
+        if (! Objects.equals(comparator, other.comparator))
+            throw new IllegalArgumentException("The maps order their keys differently");
+        verify();
+        other.verify();
+        // the run is a copy, so other may even be this map
+        SortedRun<K, V> run = other.toSortedRun();
+        root = combine(root, run, op, merge);
+        modifications++;
+        putCleanup();
+        verify();
+    }
+
+    /**
+     * Merge a whole run into a subtree, in one task if it is small
+     * enough to gain nothing from the ForkJoin pool.
+     */
+    private N combine(N node, SortedRun<K, V> run, SortedRun.Operation op,
+            BiFunction<? super V, ? super V, ? extends V> merge) {
+        CombineTask task = new CombineTask(node, run, 0, run.size, op, merge);
+        return run.size > SortedRun.PARALLEL_THRESHOLD ? task.invoke() : task.compute();
+    }
+
+    /**
+     * Add a batch of associations, as if each were put in turn. The
+     * batch is sorted and then merged into the tree in one descent: each
+     * node splits the part of the batch that reaches it between its two
+     * subtrees, so the search paths of neighboring keys are shared, and
+     * subtrees that no key reaches are not visited at all. On the way
+     * back up each node is joined with its new subtrees, rebalancing
+     * once however many keys went into them.
+     * @param keys The keys, in any order
+     * @param values The values, parallel to keys
+     */
+    @Override
+    public final void putAll(K[] keys, V[] values) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException(keys.length + " keys but " + values.length + " values");
+        verify();
+        SortedRun<K, V> batch = SortedRun.sort(keys, values, order());
+        root = combine(root, batch, SortedRun.Operation.UNION, (mine, theirs) -> theirs);
+        modifications++;
+        putCleanup();
+        verify();
+    }
+
+    /**
+     * Task to merge the associations in [lo, hi) of a run into a
+     * subtree by a set operation. The run is split at the key of the
+     * subtree's root, each part is merged into the child it belongs
+     * in, and the root is joined back between the results -- or, if the
+     * operation drops it, the results are concatenated without it. A range
+     * of more than SortedRun.PARALLEL_THRESHOLD associations is merged
+     * into the two children as separate tasks.
+     * PRECONDITION: Every key in the range belongs in this subtree.
+     */
+    private class CombineTask extends RecursiveTask<N> {
+
+        private static final long serialVersionUID = 4180532245427380716L;
+
+        private final N node;
+        private final SortedRun<K, V> run;
+        private final int lo, hi;
+        private final SortedRun.Operation op;
+        private final BiFunction<? super V, ? super V, ? extends V> merge;
+
+        CombineTask(N node, SortedRun<K, V> run, int lo, int hi, SortedRun.Operation op,
+                BiFunction<? super V, ? super V, ? extends V> merge) {
+            this.node = node;
+            this.run = run;
+            this.lo = lo;
+            this.hi = hi;
+            this.op = op;
+            this.merge = merge;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected N compute() {
+            if (lo == hi)
+                return op == SortedRun.Operation.INTERSECTION ? nullNode : node;
+            RealNode<K, V, N> middle;
+            int leftHi, rightLo;
+            boolean inRun;
+            if (node == nullNode) {
+                if (op != SortedRun.Operation.UNION)
+                    return nullNode;
+                // the rest of the run goes here; split it at its median
+                leftHi = (lo + hi) >>> 1;
+                rightLo = leftHi + 1;
+                middle = (RealNode<K, V, N>) bulkNodeFactory(run.key(leftHi), run.value(leftHi),
+                        nullNode, nullNode, true);
+                inRun = false;
+            }
+            else {
+                middle = (RealNode<K, V, N>) node;
+                leftHi = rightLo = run.lowerBound(lo, hi, middle.key, order());
+                inRun = leftHi < hi && compare(run.key(leftHi), middle.key) == 0;
+                if (inRun)
+                    rightLo++;
+            }
+            CombineTask leftTask = new CombineTask(middle.left, run, lo, leftHi, op, merge);
+            CombineTask rightTask = new CombineTask(middle.right, run, rightLo, hi, op, merge);
+            N left, right;
+            if (hi - lo > SortedRun.PARALLEL_THRESHOLD) {
+                rightTask.fork();
+                left = leftTask.compute();
+                right = rightTask.join();
+            }
+            else {
+                left = leftTask.compute();
+                right = rightTask.compute();
+            }
+            switch (op) {
+            case UNION:
+                if (inRun)
+                    middle.value = merge.apply(middle.value, run.value(leftHi));
+                return RecursiveBSTMap.this.join(left, (N) middle, right);
+            case INTERSECTION:
+                return inRun ? RecursiveBSTMap.this.join(left, (N) middle, right) : concatenate(left, right);
+            default:
+                return inRun ? concatenate(left, right) : RecursiveBSTMap.this.join(left, (N) middle, right);
+            }
+        }
+    }
+
+    /**
+     * Make one tree of two trees, every key of left being less than
+     * every key of right, by taking the least node out of right and
+     * joining the trees on it.
+     * PRECONDITION: As for join(left, middle, right).
+     */
+    @SuppressWarnings("unchecked")
+    private N concatenate(N left, N right) {
+        if (left == nullNode)
+            return right;
+        if (right == nullNode)
+            return left;
+        ArrayList<RealNode<K, V, N>> least = new ArrayList<RealNode<K, V, N>>(1);
+        N rest = removeLeast(right, least);
+        return join(left, (N) least.get(0), rest);
+    }
+
+    /**
+     * Take the node with the least key out of a subtree, rebuilding the
+     * path to it with join.
+     * @param least Receives the node taken out
+     * @return The root of what is left of the subtree
+     */
+    @SuppressWarnings("unchecked")
+    private N removeLeast(N node, ArrayList<RealNode<K, V, N>> least) {
+        RealNode<K, V, N> real = (RealNode<K, V, N>) node;
+        N right = real.right;
+        if (real.left == nullNode) {
+            least.add(real);
+            return right;
+        }
+        return join(removeLeast(real.left, least), node, right);
+    }
+
+    /**
+     * Make one tree of two trees and a node whose key lies between them,
+     * rebalancing as this variety of tree requires. This is how putAll
+     * puts a subtree back together once the batch has been merged into
+     * its children, which may have grown by any amount. By default the
+     * node is simply linked between the trees, which is all that an
+     * unbalanced tree needs.
+     * PRECONDITION: left and right satisfy the constraints of this
+     * variety of tree, except that the root of either may be red; every
+     * key in left is less than the key of middle and every key in right
+     * greater. middle is a real node that is not in either tree; its
+     * children are replaced.
+     * @return The root of the joined tree, which satisfies the
+     * constraints except that its root may be red.
+     */
+    @SuppressWarnings("unchecked")
+    protected N join(N left, N middle, N right) {
+        RealNode<K, V, N> node = (RealNode<K, V, N>) middle;
+        node.left = left;
+        node.right = right;
+        return middle;
+    }
+
+    /**
+     * Make a node for buildFromSorted, whose children have already been
+     * built.
+     * @param deepest Whether the node is on the deepest level of the tree,
+     * which is the only level that may be incomplete
+     * @return The root of the subtree made from the node and its children
+     */
+    protected abstract N bulkNodeFactory(K key, V val, N left, N right, boolean deepest);
+
+    /**
+     * Make an immutable copy of this map, laid out for reading (see
+     * FrozenMap), in the same order. Later changes to this map do not
+     * show in the copy.
+     */
+    public final FrozenMap<K, V> freeze() {
+        verify();
+        return new FrozenMap<K, V>(toSortedRun(), comparator);
+    }
+
+    /**
+     * Write a binary snapshot of this tree to a channel (see Snapshot
+     * for the format). The nodes are written in pre-order with their
+     * shape and colors, so the tree can be reloaded exactly as it is, 
+     * in linear time and without any rebalancing. The channel is left
+     * open.
+     * @param keyCodec The codec for the keys
+     * @param valueCodec The codec for the values
+     */
+    @SuppressWarnings("unchecked")
+    public final void writeSnapshot(WritableByteChannel channel, Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        verify();
+        final N nil = nullNode;
+        Snapshot.Writer<K, V> writer = new Snapshot.Writer<K, V>(channel, keyCodec, valueCodec, root == nil);
+        RealNode<K, V, N>[] stack = (RealNode<K, V, N>[]) new RealNode<?, ?, ?>[Math.max(heightBound(), 1)];
+        int depth = 0;
+        if (root != nil)
+            stack[depth++] = (RealNode<K, V, N>) root;
+        while (depth > 0) {
+            RealNode<K, V, N> node = stack[--depth];
+            stack[depth] = null;
+            int flags = isRedForSnapshot((N) node) ? Snapshot.RED : 0;
+            if (node.right != nil) {
+                flags |= Snapshot.HAS_RIGHT;
+                if (depth == stack.length)
+                    stack = Arrays.copyOf(stack, depth * 2);
+                stack[depth++] = (RealNode<K, V, N>) node.right;
+            }
+            if (node.left != nil) {
+                flags |= Snapshot.HAS_LEFT;
+                if (depth == stack.length)
+                    stack = Arrays.copyOf(stack, depth * 2);
+                stack[depth++] = (RealNode<K, V, N>) node.left;
+            }
+            writer.writeNode(flags, node.key, node.value);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Replace the contents of this map with a tree read from a snapshot
+     * written by writeSnapshot, rebuilding its exact shape and colors.
+     * This is for the snapshot-reading factories of the child classes,
+     * which start from an empty map.
+     * @throws IllegalArgumentException if the codecs do not match the
+     * ones the snapshot was written with
+     */
+    protected final void loadSnapshot(ReadableByteChannel channel, Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        Snapshot.Reader<K, V> reader = new Snapshot.Reader<K, V>(channel, keyCodec, valueCodec);
+        root = reader.isEmpty() ? nullNode : readTree(reader);
+        modifications++;
+        putCleanup();
+        verify();
+    }
+
+    /**
+     * Rebuild the tree from the nodes of a snapshot in pre-order, with an
+     * explicit stack like the one writeSnapshot uses, so a deep tree
+     * cannot overflow the call stack. A node waits on the stack while
+     * its subtrees are read; its stage says whether it is reading its
+     * left subtree (1) or its right one (2), which says which side of
+     * it a finished subtree goes on.
+     */
+    @SuppressWarnings("unchecked")
+    private N readTree(Snapshot.Reader<K, V> reader) throws IOException {
+        int capacity = Math.max(heightBound(), 1);
+        Object[] keys = new Object[capacity];
+        Object[] values = new Object[capacity];
+        Object[] lefts = new Object[capacity];
+        int[] flags = new int[capacity];
+        int[] stages = new int[capacity];
+        int depth = 0;
+        boolean read = true;
+        N subtree = null;
+        while (true) {
+            if (read) {
+                if (depth == keys.length) {
+                    keys = Arrays.copyOf(keys, depth * 2);
+                    values = Arrays.copyOf(values, depth * 2);
+                    lefts = Arrays.copyOf(lefts, depth * 2);
+                    flags = Arrays.copyOf(flags, depth * 2);
+                    stages = Arrays.copyOf(stages, depth * 2);
+                }
+                flags[depth] = reader.readNode();
+                keys[depth] = reader.key;
+                values[depth] = reader.value;
+                lefts[depth] = nullNode;
+                stages[depth] = 0;
+                depth++;
+                read = false;
+            }
+            int top = depth - 1;
+            N right = nullNode;
+            if (subtree != null) {
+                if (stages[top] == 1)
+                    lefts[top] = subtree;
+                else
+                    right = subtree;
+                subtree = null;
+            }
+            if (stages[top] == 0) {
+                stages[top] = 1;
+                if ((flags[top] & Snapshot.HAS_LEFT) != 0) {
+                    read = true;
+                    continue;
+                }
+            }
+            if (stages[top] == 1) {
+                stages[top] = 2;
+                if ((flags[top] & Snapshot.HAS_RIGHT) != 0) {
+                    read = true;
+                    continue;
+                }
+            }
+            subtree = snapshotNodeFactory((K) keys[top], (V) values[top], (N) lefts[top], right,
+                    (flags[top] & Snapshot.RED) != 0);
+            keys[top] = values[top] = lefts[top] = null;
+            if (--depth == 0)
+                return subtree;
+        }
+    }
+
+    /**
+     * Copy the tree into new nodes, for verifying it while this tree
+     * goes on changing.
+     */
+    private N copyTree(N node) {
+        if (node.isNull())
+            return node;
+        return copyNode(node, copyTree(node.left()), copyTree(node.right()));
+    }
+
+    /**
+     * Make a copy of a real node, with the given copies of its children,
+     * keeping whatever it stores about its subtree as it is, right or
+     * wrong, so that verifying the copy verifies the original. By default
+     * this is a snapshot node with the original's color.
+     */
+    @SuppressWarnings("unchecked")
+    protected N copyNode(N node, N left, N right) {
+        V val = ((RealNode<K, V, N>) node).value;
+        return snapshotNodeFactory(node.key(), val, left, right, isRedForSnapshot(node));
+    }
+
+    /**
+     * Whether a node is recorded as red in a snapshot. Only red-black
+     * trees have colors, so by default no node is red.
+     */
+    protected boolean isRedForSnapshot(N node) {
+        return false;
+    }
+
+    /**
+     * Make a node read from a snapshot, whose children have already been
+     * read. By default this is a bulk-built node, which for trees without
+     * colors recomputes whatever it stores from its children.
+     * @param red Whether the node was red when the snapshot was written
+     */
+    protected N snapshotNodeFactory(K key, V val, N left, N right, boolean red) {
+        return bulkNodeFactory(key, val, left, right, false);
+    }
+
     /** 
      * Get the maximum element in the map, or null if none exists
      */
@@ -322,15 +977,95 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
      */
     public final void put(K key, V val) {
         verify();
-        // The recursive implementation of put in the
-        // nodes returns the root of the transformed
-        // tree.
-        root = root.put(key, val);
+        long start = metrics.start();
+        root = insert(key, val);
+        modifications++;
         putCleanup();
-        verify();
+        metrics.finish(TreeMetrics.Operation.PUT, start);
+        verifyPut(key);
+    }
+
+    /**
+     * A non-final helper method that does the work of put, allowing
+     * children of RecursiveBSTMap to replace the insertion algorithm
+     * without overriding put. By default this inserts iteratively
+     * instead of through RealNode.put, so the depth of the tree is not
+     * limited by the depth of the stack: the search records its path in
+     * the path buffer, and fixPath retraces it once the new leaf is
+     * attached, so a child class changes only how the path is fixed up.
+     * With a PrefixComparator the search skips the prefixes it has
+     * already matched, as findNode does.
+     * @return The root of the tree after the insertion and any
+     * rebalancing it triggered.
+     */
+    @SuppressWarnings("unchecked")
+    protected N insert(K key, V val) {
+        final PrefixComparator<? super K> prefixes = prefixComparator;
+        final N nil = nullNode;
+        int lowPrefix = 0, highPrefix = 0;
+        int depth = 0;
+        N current = root;
+        while (current != nil) {
+            RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+            int compare;
+            if (prefixes == null)
+                compare = compare(key, node.key);
+            else {
+                int prefix = prefixes.commonPrefix(key, node.key, Math.min(lowPrefix, highPrefix));
+                compare = prefixes.compareAfter(key, node.key, prefix);
+                if (compare < 0)
+                    highPrefix = prefix;
+                else
+                    lowPrefix = prefix;
+            }
+            if (compare == 0) {
+                // overwrite; the shape of the tree does not change
+                node.value = val;
+                Arrays.fill(path, 0, depth, null);
+                metrics.search(depth + 1);
+                return root;
+            }
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+                wentLeft = Arrays.copyOf(wentLeft, depth * 2);
+            }
+            path[depth] = node;
+            wentLeft[depth] = compare < 0;
+            depth++;
+            current = compare < 0 ? node.left : node.right;
+        }
+        metrics.search(depth);
+        N newRoot = fixPath(path, wentLeft, depth, nil.put(key, val));
+        Arrays.fill(path, 0, depth, null);
+        return newRoot;
     }
 
 
+    /**
+     * Attach the root of a changed subtree at the end of a search path
+     * and fix up the path back to the root, as RealNode.put does on its
+     * way back up. By default every node on the path gets a putFixup;
+     * child classes may stop once the fixups can have no more effect.
+     * The path is left as it is, though its nodes may have moved.
+     * @param path The nodes from the root down to the parent of child
+     * @param wentLeft For each node in path, whether child is below its
+     * left side
+     * @param depth The length of the path
+     * @return The root of the tree after the fixups
+     */
+    protected N fixPath(RealNode<K, V, N>[] path, boolean[] wentLeft, int depth, N child) {
+        for (int i = depth - 1; i >= 0; i--) {
+            RealNode<K, V, N> parent = path[i];
+            if (wentLeft[i])
+                parent.left = child;
+            else
+                parent.right = child;
+            child = parent.putFixup();
+        }
+        metrics.fixup(depth);
+        return child;
+    }
+
     /** 
      * A non-final helper method that allows children of RecursiveBSTMap to clean up 
      * after a put without overriding put.
@@ -338,6 +1073,465 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
     protected void putCleanup() {}
 
 
+    /**
+     * Remove the association for a key, if there is one.
+     * @param key The key to remove
+     * @return The value that was associated with the key, null if none
+     */
+    public final V remove(K key) {
+        verify();
+        long start = metrics.start();
+        RealNode<K, V, N> found = findNode(key);
+        V toReturn = null;
+        if (found != null) {
+            toReturn = found.value;
+            root = delete(key);
+            modifications++;
+            removeCleanup();
+        }
+        metrics.finish(TreeMetrics.Operation.REMOVE, start);
+        verify();
+        return toReturn;
+    }
+
+    /**
+     * A non-final helper method that does the work of remove, in the 
+     * manner of insert. It is only called when the key is present.
+     * By default this uses the recursive implementation of remove 
+     * in the nodes.
+     * @return The root of the tree after the removal and any
+     * rebalancing it triggered.
+     */
+    protected N delete(K key) {
+        return root.remove(key);
+    }
+
+    /** 
+     * A non-final helper method that allows children of RecursiveBSTMap to clean up 
+     * after a removal without overriding remove.
+     */
+    protected void removeCleanup() {}
+
+    /**
+     * Remove the minimum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public final K pollFirst() {
+        K first = min();
+        if (first != null)
+            remove(first);
+        return first;
+    }
+
+    /**
+     * Remove the maximum key, if any.
+     * @return The key that was removed, or null if the map was empty
+     */
+    public final K pollLast() {
+        K last = max();
+        if (last != null)
+            remove(last);
+        return last;
+    }
+
+    /**
+     * Return the number of associations in this map. This counts
+     * the nodes; child classes that store subtree sizes should 
+     * override it.
+     */
+    public int size() {
+        int size = 0;
+        for (Iterator<K> it = iterator(); it.hasNext(); it.next())
+            size++;
+        return size;
+    }
+
+    /**
+     * Find the number of keys that come before a key. This walks
+     * the keys in order up to key; child classes that store subtree 
+     * sizes should override it.
+     */
+    public int rank(K key) {
+        int rank = 0;
+        for (Iterator<K> it = iterator(); it.hasNext() && compare(it.next(), key) < 0; )
+            rank++;
+        return rank;
+    }
+
+    /**
+     * Find the key with a given rank. This walks the keys in order 
+     * up to the one wanted; child classes that store subtree sizes
+     * should override it.
+     */
+    public K select(int rank) {
+        if (rank < 0)
+            throw new IndexOutOfBoundsException();
+        Iterator<K> it = iterator();
+        for (int i = 0; i < rank && it.hasNext(); i++)
+            it.next();
+        if (! it.hasNext())
+            throw new IndexOutOfBoundsException();
+        return it.next();
+    }
+
+    /**
+     * Count the keys k with lo <= k <= hi, by way of rank.
+     */
+    public final int countInRange(K lo, K hi) {
+        if (compare(hi, lo) < 0)
+            return 0;
+        int count = rank(hi) - rank(lo);
+        if (findNode(hi) != null)
+            count++;
+        return count;
+    }
+
+    /**
+     * The greatest key less than or equal to key, or null if none.
+     */
+    public final K floor(K key) {
+        return nearest(key, true, true);
+    }
+
+    /**
+     * The least key greater than or equal to key, or null if none.
+     */
+    public final K ceiling(K key) {
+        return nearest(key, false, true);
+    }
+
+    /**
+     * The greatest key strictly less than key, or null if none.
+     */
+    public final K lower(K key) {
+        return nearest(key, true, false);
+    }
+
+    /**
+     * The least key strictly greater than key, or null if none.
+     */
+    public final K higher(K key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Find the key nearest to a given key on one side of it, in one 
+     * descent: every node passed on the wanted side is a candidate,
+     * and the last one passed is the nearest.
+     * @param key The key to search from
+     * @param below Whether to look for keys before key (rather than after)
+     * @param inclusive Whether key itself is an acceptable answer
+     * @return The nearest key found, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    private K nearest(K key, boolean below, boolean inclusive) {
+        verify();
+        final N nil = nullNode;
+        N current = root;
+        K best = null;
+        while (current != nil) {
+            RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+            int compare = compare(key, node.key);
+            if (compare == 0 && inclusive) {
+                best = node.key;
+                break;
+            }
+            if (below ? compare > 0 : compare >= 0) {
+                if (below)
+                    best = node.key;
+                current = node.right;
+            }
+            else {
+                if (! below)
+                    best = node.key;
+                current = node.left;
+            }
+        }
+        verify();
+        return best;
+    }
+
+    /**
+     * Find the node holding a key. This walks down from the root
+     * in a loop rather than recursing through the nodes, so the
+     * whole descent is one frame with no calls through Node.
+     * @param key The key to look for.
+     * @return The node containing key, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    protected final RealNode<K, V, N> findNode(K key) {
+        if (prefixComparator != null)
+            return findNodeByPrefix(key);
+        final N nil = nullNode;
+        N current = root;
+        int comparisons = 0;
+        while (current != nil) {
+            RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+            int compare = compare(key, node.key);
+            comparisons++;
+            if (compare < 0)
+                current = node.left;
+            else if (compare == 0) {
+                metrics.search(comparisons);
+                return node;
+            }
+            else  // if (compare > 0)
+                current = node.right;
+        }
+        metrics.search(comparisons);
+        return null;
+    }
+
+    /**
+     * Find the node holding a key, as findNode does, in a tree ordered
+     * by a PrefixComparator. The search keeps how long a prefix the key
+     * shares with the nearest keys passed on either side; every key
+     * between those shares at least the shorter prefix with it, so each
+     * comparison starts past that prefix.
+     */
+    @SuppressWarnings("unchecked")
+    private RealNode<K, V, N> findNodeByPrefix(K key) {
+        final PrefixComparator<? super K> order = prefixComparator;
+        final N nil = nullNode;
+        N current = root;
+        int comparisons = 0;
+        // the prefixes the key shares with the nearest keys passed on the
+        // left (those below it) and on the right (those above it)
+        int lowPrefix = 0, highPrefix = 0;
+        while (current != nil) {
+            RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+            int prefix = order.commonPrefix(key, node.key, Math.min(lowPrefix, highPrefix));
+            int compare = order.compareAfter(key, node.key, prefix);
+            comparisons++;
+            if (compare < 0) {
+                highPrefix = prefix;
+                current = node.left;
+            }
+            else if (compare == 0) {
+                metrics.search(comparisons);
+                return node;
+            }
+            else {  // if (compare > 0)
+                lowPrefix = prefix;
+                current = node.right;
+            }
+        }
+        metrics.search(comparisons);
+        return null;
+    }
+
+    /**
+     * Make a finger into this map, for a run of accesses to keys near
+     * one another, such as ascending puts or clustered gets.
+     */
+    public final Finger finger() {
+        return new Finger();
+    }
+
+    /**
+     * Finger
+     *
+     * A cursor that remembers the path to the node it last reached,
+     * along with the range of keys that each node on the path may have
+     * below it. The next access climbs only as far as the first node
+     * whose range holds its key and searches down from there. There are
+     * no level links, so that node is the lowest common ancestor of the
+     * two keys, which is not always near them: keys on either side of a
+     * split point high in the tree, such as the root's key, need a climb
+     * to that node and a search down from it, O(log n) comparisons
+     * however close the keys are. Only over a monotone run, such as
+     * ascending puts or gets in key order, do the climbs and searches
+     * average out to O(log d) comparisons for a key d positions past
+     * the last, since each high split point is crossed once in the run.
+     *
+     * A put that adds a key attaches it at the end of the path and fixes
+     * up the path back to the root as put does; the part of the path
+     * that rebalancing leaves in place is kept. Any change made to the
+     * map other than through this finger, including through another
+     * finger, sends it back to the root for its next access.
+     */
+    public final class Finger {
+
+        /**
+         * The nodes from the root down to the one last reached
+         */
+        private RealNode<K, V, N>[] path;
+
+        /**
+         * The exclusive bounds on the keys in the subtree of each node
+         * on the path, null where there is none
+         */
+        private Object[] lower, upper;
+
+        /**
+         * For each node on the path, whether the search went to its
+         * left child
+         */
+        private boolean[] wentLeft;
+
+        private int depth;
+
+        /**
+         * The count of modifications of the map when the path was found
+         */
+        private int expected;
+
+        @SuppressWarnings("unchecked")
+        private Finger() {
+            path = (RealNode<K, V, N>[]) new RealNode<?, ?, ?>[Math.max(heightBound(), 16)];
+            lower = new Object[path.length];
+            upper = new Object[path.length];
+            wentLeft = new boolean[path.length];
+            expected = modifications;
+        }
+
+        /**
+         * Get the value for a key.
+         * @return The value associated with this key, null if none exists
+         */
+        public V get(K key) {
+            verify();
+            RealNode<K, V, N> found = seek(key);
+            V toReturn = found == null ? null : found.value;
+            verify();
+            return toReturn;
+        }
+
+        /**
+         * Test if the map contains an association for this key.
+         */
+        public boolean containsKey(K key) {
+            verify();
+            boolean toReturn = seek(key) != null;
+            verify();
+            return toReturn;
+        }
+
+        /**
+         * Add an association to the map.
+         */
+        public void put(K key, V val) {
+            verify();
+            RealNode<K, V, N> found = seek(key);
+            if (found != null)
+                found.value = val;
+            else
+                attach(key, val);
+            verifyPut(key);
+        }
+
+        /**
+         * Find the node holding a key, leaving the path at it or, if
+         * there is none, at the last node the search passed through.
+         * @return The node holding key, or null if there is none
+         */
+        @SuppressWarnings("unchecked")
+        private RealNode<K, V, N> seek(K key) {
+            if (expected != modifications) {
+                Arrays.fill(path, 0, depth, null);
+                depth = 0;
+                expected = modifications;
+            }
+            while (depth > 0 && ! holds(depth - 1, key))
+                path[--depth] = null;
+            N current;
+            Object low, high;
+            if (depth == 0) {
+                current = root;
+                low = high = null;
+            }
+            else {
+                // search on from the deepest node that may hold key
+                depth--;
+                current = (N) path[depth];
+                low = lower[depth];
+                high = upper[depth];
+            }
+            final N nil = nullNode;
+            while (current != nil) {
+                RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+                push(node, low, high);
+                int compare = compare(key, node.key);
+                if (compare == 0)
+                    return node;
+                wentLeft[depth - 1] = compare < 0;
+                if (compare < 0) {
+                    high = node.key;
+                    current = node.left;
+                }
+                else {
+                    low = node.key;
+                    current = node.right;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Is key in the range of the node at this depth of the path?
+         */
+        @SuppressWarnings("unchecked")
+        private boolean holds(int at, K key) {
+            return (lower[at] == null || compare(key, (K) lower[at]) > 0)
+                    && (upper[at] == null || compare(key, (K) upper[at]) < 0);
+        }
+
+        private void push(RealNode<K, V, N> node, Object low, Object high) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+                lower = Arrays.copyOf(lower, depth * 2);
+                upper = Arrays.copyOf(upper, depth * 2);
+                wentLeft = Arrays.copyOf(wentLeft, depth * 2);
+            }
+            path[depth] = node;
+            lower[depth] = low;
+            upper[depth] = high;
+            depth++;
+        }
+
+        /**
+         * Insert a key where the last seek for it ended, and fix up each
+         * node on the path from there to the root, as RealNode.put does
+         * on its way back up. Rebalancing may have moved nodes anywhere
+         * along the path, so it is cut back to the part that is still
+         * linked from the root, with the new node on the end if that is
+         * all of it.
+         * PRECONDITION: The last seek was for key, which was not found.
+         */
+        @SuppressWarnings("unchecked")
+        private void attach(K key, V val) {
+            N added = nullNode.put(key, val);
+            root = fixPath(path, wentLeft, depth, added);
+            putCleanup();
+            modifications++;
+            expected = modifications;
+            int kept = 0;
+            while (kept < depth && (N) path[kept] == (kept == 0 ? root : childOnPath(kept - 1)))
+                kept++;
+            if (kept == depth && added == (depth == 0 ? root : childOnPath(depth - 1))) {
+                Object low = depth == 0 ? null : lower[depth - 1];
+                Object high = depth == 0 ? null : upper[depth - 1];
+                if (depth > 0 && wentLeft[depth - 1])
+                    high = path[depth - 1].key;
+                else if (depth > 0)
+                    low = path[depth - 1].key;
+                push((RealNode<K, V, N>) added, low, high);
+            }
+            else {
+                Arrays.fill(path, kept, depth, null);
+                depth = kept;
+            }
+        }
+
+        /**
+         * The child of the node at this depth of the path on the side
+         * the search went.
+         */
+        private N childOnPath(int at) {
+            return wentLeft[at] ? path[at].left : path[at].right;
+        }
+    }
+
     /**
      * Get the value for a key.
      * @param key The key whose value we're retrieving.
@@ -345,7 +1539,10 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
      */
    public final V get(K key) {
         verify();
-        V toReturn =  root.get(key);
+        long start = metrics.start();
+        RealNode<K, V, N> found = findNode(key);
+        V toReturn = found == null ? null : found.value;
+        metrics.finish(TreeMetrics.Operation.GET, start);
         verify();
         return toReturn;
     }
@@ -358,49 +1555,176 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
     */
     public final boolean containsKey(K key) {
         verify();
-        boolean toReturn = root.containsKey(key);
+        long start = metrics.start();
+        boolean toReturn = findNode(key) != null;
+        metrics.finish(TreeMetrics.Operation.CONTAINS, start);
         verify();
         return toReturn;
     }
     
     /**
      * Iterate over the elements of this map "BST" order, which
-     * corresponds to a pre-order depth-first traversal.
+     * corresponds to an in-order depth-first traversal.
      */
     public final Iterator<K> iterator() {
         verify();
-        // The stack contains the left-link lineage of the 
-        // the next node, including the next node itself;
-        // the next node is the top element
-        final Stack<N> st = new ListStackTopFront<N>();
-        for (N current = root; ! current.isNull();
-                current = current.left())
-            st.push(current);
-
-        return new Iterator<K>() {
-            public boolean hasNext() {
+        return new InOrderIterator(null, null);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive). Each iterator
+     * seeks directly to fromKey and stops at toKey, so iterating over the 
+     * view takes O(log n + k) time for k keys.
+     */
+    public final Iterable<K> subMap(final K fromKey, final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
                 verify();
-                boolean toReturn = ! st.isEmpty();
+                return new InOrderIterator(fromKey, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys before toKey, in the manner of subMap.
+     */
+    public final Iterable<K> headMap(final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
                 verify();
-                return toReturn;
+                return new InOrderIterator(null, toKey);
             }
+        };
+    }
 
-            public K next() {
+    /**
+     * The keys from fromKey on, in the manner of subMap.
+     */
+    public final Iterable<K> tailMap(final K fromKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
                 verify();
-                if (st.isEmpty())
-                    throw new NoSuchElementException();
-                else {
-                    N nextNode = st.pop();
-                    for (N current = nextNode.right(); ! current.isNull(); 
-                            current = current.left())
-                        st.push(current);
-                    verify();
-                    return nextNode.key();
-                }
+                return new InOrderIterator(fromKey, null);
             }
-            
         };
     }
+
+    /**
+     * An upper bound on the number of nodes on any path from the root
+     * to a leaf, used to size the stack of a new iterator. Child classes
+     * that store heights should override this; the default is only a
+     * starting size, and the iterator grows its stack if the tree is
+     * taller.
+     */
+    protected int heightBound() {
+        return 32;
+    }
+
+    /**
+     * In-order iterator over the keys. The stack is an array allocated
+     * once per iterator, so stepping through the tree creates no garbage.
+     * It contains the left-link lineage of the next node, including the
+     * next node itself; the next node is the top element.
+     * 
+     * The iteration may be bounded: the stack is first filled with the
+     * path to the least key not before the lower bound, and is emptied
+     * as soon as the next key would reach the upper bound.
+     */
+    private class InOrderIterator implements Iterator<K> {
+
+        private RealNode<K, V, N>[] stack;
+
+        /**
+         * The (exclusive) upper bound, or null if there is none.
+         */
+        private final K toKey;
+
+        /**
+         * The number of nodes on the stack.
+         */
+        private int depth;
+
+        /**
+         * @param fromKey The (inclusive) lower bound, or null for none
+         * @param toKey The (exclusive) upper bound, or null for none
+         */
+        @SuppressWarnings("unchecked")
+        InOrderIterator(K fromKey, K toKey) {
+            stack = (RealNode<K, V, N>[]) new RealNode<?, ?, ?>[Math.max(heightBound(), 1)];
+            this.toKey = toKey;
+            if (fromKey == null)
+                pushLeftLineage(root);
+            else
+                seek(fromKey);
+            checkUpperBound();
+        }
+
+        /**
+         * Push the nodes on the path to fromKey that are not before it;
+         * those are exactly the ones an unbounded iteration would still
+         * have on its stack when it reached fromKey.
+         */
+        @SuppressWarnings("unchecked")
+        private void seek(K fromKey) {
+            final N nil = nullNode;
+            N current = root;
+            while (current != nil) {
+                RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+                if (compare(node.key, fromKey) >= 0) {
+                    if (depth == stack.length)
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    stack[depth++] = node;
+                    current = node.left;
+                }
+                else
+                    current = node.right;
+            }
+        }
+
+        /**
+         * End the iteration if the next key is not before toKey.
+         */
+        private void checkUpperBound() {
+            if (toKey != null && depth > 0 && compare(stack[depth - 1].key, toKey) >= 0) {
+                Arrays.fill(stack, 0, depth, null);
+                depth = 0;
+            }
+        }
+
+        /**
+         * Push the given node and its chain of left descendants.
+         */
+        @SuppressWarnings("unchecked")
+        private void pushLeftLineage(N current) {
+            final N nil = nullNode;
+            while (current != nil) {
+                RealNode<K, V, N> node = (RealNode<K, V, N>) current;
+                if (depth == stack.length)
+                    stack = Arrays.copyOf(stack, depth * 2);
+                stack[depth++] = node;
+                current = node.left;
+            }
+        }
+
+        public boolean hasNext() {
+            verify();
+            boolean toReturn = depth > 0;
+            verify();
+            return toReturn;
+        }
+
+        public K next() {
+            verify();
+            if (depth == 0)
+                throw new NoSuchElementException();
+            RealNode<K, V, N> nextNode = stack[--depth];
+            stack[depth] = null;
+            pushLeftLineage(nextNode.right);
+            checkUpperBound();
+            verify();
+            return nextNode.key;
+        }
+    }
     
     @Override
     public String toString() {
@@ -416,6 +1740,64 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
         if (verifying)
             vs.verify(root);
     }
+
+    /**
+     * Verify the tree after a put of key, which the current verification
+     * strategy may do by checking only the nodes the put could change.
+     */
+    private void verifyPut(K key) {
+        if (verifying)
+            vs.verifyPut(root, key);
+    }
+
+    /**
+     * Go back to verifying the whole tree on every check, with the
+     * strategy the tree was constructed with.
+     */
+    public final void verifyFully() {
+        vs = fullVs;
+    }
+
+    /**
+     * Verify the whole tree on only one check out of every, so that a
+     * verifying tree costs much less per operation.
+     * @throws IllegalArgumentException if every is not positive
+     */
+    public final void verifySampled(int every) {
+        vs = new SamplingVerification<K,V,N>(fullVs, every);
+    }
+
+    /**
+     * Verify each put by checking only the nodes on its search path and
+     * their children, and verify the whole tree on one other check out
+     * of every.
+     * @throws IllegalArgumentException if every is not positive
+     */
+    public final void verifyIncrementally(int every) {
+        vs = new IncrementalVerification<K,V,N>(fullVs, every, order());
+    }
+
+    /**
+     * Verify the whole tree on one check out of every, on a copy of the
+     * tree, in the background. A failure is thrown from a later check or
+     * from awaitVerification.
+     * @param executor Runs the verifications
+     * @throws IllegalArgumentException if every is not positive
+     */
+    public final void verifyInBackground(int every, Executor executor) {
+        vs = new AsyncVerification<K,V,N>(fullVs, every, this::copyTree, executor);
+    }
+
+    /**
+     * Wait for the background verification, if one is running, to finish.
+     * @throws RuntimeException the first failure found in the background
+     * that has not yet been thrown
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public final void awaitVerification() throws InterruptedException {
+        if (vs instanceof AsyncVerification)
+            ((AsyncVerification<K,V,N>) vs).await();
+    }
     
     /**
      * Get the current verification strategy being used.
@@ -424,6 +1806,21 @@ public abstract class RecursiveBSTMap<K extends Comparable<K>, V, N extends Recu
         return vs;
     }
     
+    /**
+     * Report the work the tree does to metrics from now on, or to nowhere
+     * if metrics is TreeMetrics.NONE.
+     */
+    public final void setMetrics(TreeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get where the tree reports the work it does.
+     */
+    public final TreeMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Get whether or not the tree is currently verifying itself.
      */
@@ -1,5 +1,7 @@
 package impl;
 
+import java.util.Comparator;
+
 /**
  * RedBlackTreeMap
  * 
@@ -152,6 +154,11 @@ public abstract class RedBlackTreeMap<K extends Comparable<K>, V>
         
         public boolean isRed() { return isRed; }
 
+        @Override
+        protected int compare(K a, K b) {
+            return RedBlackTreeMap.this.compare(a, b);
+        }
+
         public int blackHeight() { return blackHeight; }
         
         public void blacken() { isRed = false;}
@@ -253,8 +260,159 @@ public abstract class RedBlackTreeMap<K extends Comparable<K>, V>
      * Basic constructor for an empty map
      */
     public RedBlackTreeMap(VerificationStrategy<K,V,RBNode<K,V>> vs, boolean verifying) {
-        super(vs,verifying);
-        root = nully = new RBNullNode();
+        this(vs, verifying, null);
+    }
+
+    /**
+     * Constructor for an empty map whose keys are ordered by a comparator
+     * @param comparator The order of the keys, or null for their natural order
+     */
+    public RedBlackTreeMap(VerificationStrategy<K,V,RBNode<K,V>> vs, boolean verifying,
+            Comparator<? super K> comparator) {
+        super(vs,verifying,comparator);
+        root = nullNode = nully = new RBNullNode();
+    }
+
+    /**
+     * In a perfectly balanced tree every level but the deepest is full,
+     * so coloring the deepest level red and the rest black gives every 
+     * path the same number of black nodes.
+     */
+    @Override
+    protected RBNode<K, V> bulkNodeFactory(K key, V val, RBNode<K, V> left, RBNode<K, V> right,
+            boolean deepest) {
+        RBNode<K, V> node = realNodeFactory(key, val, left, right);
+        if (! deepest) {
+            node.blacken();
+            node.recomputeBlackHeight();
+        }
+        return node;
+    }
+
+    /**
+     * Join red-black trees of any black heights. The roots of both are
+     * blackened first. If one has the greater black height, the node
+     * is joined into its inner spine as a red node, in place of the
+     * first black subtree with the black height of the other tree; that
+     * is just like a red node being inserted, so putFixup repairs any
+     * double red on the way back up.
+     */
+    @Override
+    protected RBNode<K, V> join(RBNode<K, V> left, RBNode<K, V> middle, RBNode<K, V> right) {
+        left.blacken();
+        left.recomputeBlackHeight();
+        right.blacken();
+        right.recomputeBlackHeight();
+        if (left.blackHeight() > right.blackHeight())
+            return joinRight(left, middle, right);
+        if (right.blackHeight() > left.blackHeight())
+            return joinLeft(left, middle, right);
+        return redJoin(left, middle, right);
+    }
+
+    /**
+     * Join into the right spine of left.
+     * PRECONDITION: left has at least the black height of right, which
+     * is black.
+     */
+    private RBNode<K, V> joinRight(RBNode<K, V> left, RBNode<K, V> middle, RBNode<K, V> right) {
+        if (! left.isRed() && left.blackHeight() == right.blackHeight())
+            return redJoin(left, middle, right);
+        RBRealNode node = (RBRealNode) left;
+        node.right = joinRight(node.right, middle, right);
+        return node.putFixup();
+    }
+
+    /**
+     * Join into the left spine of right; the mirror image of joinRight.
+     */
+    private RBNode<K, V> joinLeft(RBNode<K, V> left, RBNode<K, V> middle, RBNode<K, V> right) {
+        if (! right.isRed() && right.blackHeight() == left.blackHeight())
+            return redJoin(left, middle, right);
+        RBRealNode node = (RBRealNode) right;
+        node.left = joinLeft(left, middle, node.left);
+        return node.putFixup();
+    }
+
+    /**
+     * Make middle a red node over two black trees of the same black
+     * height.
+     */
+    private RBNode<K, V> redJoin(RBNode<K, V> left, RBNode<K, V> middle, RBNode<K, V> right) {
+        RBRealNode node = (RBRealNode) middle;
+        node.left = left;
+        node.right = right;
+        node.redden();
+        node.recomputeBlackHeight();
+        return node;
+    }
+
+    /**
+     * A black subtree root can make no double red with its parent, so the
+     * fixups stop at the first one; the nodes above are left as they are.
+     */
+    @Override
+    protected RBNode<K, V> fixPath(RealNode<K, V, RBNode<K, V>>[] path, boolean[] wentLeft, int depth,
+            RBNode<K, V> child) {
+        for (int i = depth - 1; i >= 0; i--) {
+            RealNode<K, V, RBNode<K, V>> parent = path[i];
+            if (wentLeft[i])
+                parent.left = child;
+            else
+                parent.right = child;
+            if (! child.isRed()) {
+                metrics.fixup(depth - 1 - i);
+                return root;
+            }
+            child = parent.putFixup();
+        }
+        metrics.fixup(depth);
+        return child;
+    }
+
+    /**
+     * Snapshots record the colors of the nodes.
+     */
+    @Override
+    protected boolean isRedForSnapshot(RBNode<K, V> node) {
+        return node.isRed();
+    }
+
+    /**
+     * A node read from a snapshot gets the color it was written with,
+     * so the tree comes back exactly as it was, with no fixups.
+     */
+    @Override
+    protected RBNode<K, V> snapshotNodeFactory(K key, V val, RBNode<K, V> left, RBNode<K, V> right,
+            boolean red) {
+        RBNode<K, V> node = realNodeFactory(key, val, left, right);
+        if (! red) {
+            node.blacken();
+            node.recomputeBlackHeight();
+        }
+        return node;
+    }
+
+    /**
+     * A copy keeps the color and the black height the original stores,
+     * instead of recomputing the black height. Children whose black
+     * heights differ are caught already, by the copy's constructor.
+     */
+    @Override
+    protected RBNode<K, V> copyNode(RBNode<K, V> node, RBNode<K, V> left, RBNode<K, V> right) {
+        RBRealNode copy = (RBRealNode) realNodeFactory(node.key(), ((RBRealNode) node).value, left, right);
+        copy.isRed = node.isRed();
+        copy.blackHeight = node.blackHeight();
+        return copy;
+    }
+
+    /**
+     * No path has two red nodes in a row, so no path is more than
+     * twice the black height (plus one for a red root mid-put).
+     */
+    @Override
+    protected int heightBound() {
+        return 2 * root.blackHeight() + 1;
     }
 
     /**
@@ -265,5 +423,13 @@ public abstract class RedBlackTreeMap<K extends Comparable<K>, V>
         root.blacken();
         root.recomputeBlackHeight();
     }
+
+    /**
+     * ensures the root is black.
+     */
+    @Override
+    public final void removeCleanup() {
+        putCleanup();
+    }
     
 }
@@ -0,0 +1,58 @@
+package impl;
+
+/**
+ * SamplingVerification
+ *
+ * A verification strategy that runs another strategy's full verification
+ * on only every Nth call, so that a verifying tree costs O(n / every) per
+ * operation instead of O(n). A broken tree is still caught, just a few
+ * operations later than it would have been by full verification.
+ */
+public class SamplingVerification<K extends Comparable<K>, V, N extends RecursiveBSTMap.Node<K, V, ? super N>>
+        implements VerificationStrategy<K, V, N> {
+
+    /**
+     * The strategy run on the sampled calls.
+     */
+    private final VerificationStrategy<K, V, N> base;
+
+    /**
+     * The number of calls per verification.
+     */
+    private final int every;
+
+    /**
+     * The calls since the last verification.
+     */
+    private int calls;
+
+    /**
+     * @param base The strategy run on the sampled calls
+     * @param every Verify on one call out of this many
+     * @throws IllegalArgumentException if every is not positive
+     */
+    public SamplingVerification(VerificationStrategy<K, V, N> base, int every) {
+        if (every < 1)
+            throw new IllegalArgumentException("every must be positive: " + every);
+        this.base = base;
+        this.every = every;
+    }
+
+    public void verify(N root) {
+        if (++calls >= every) {
+            calls = 0;
+            base.verify(root);
+        }
+    }
+
+    public void verifyNode(N node) {
+        base.verifyNode(node);
+    }
+
+    /**
+     * Get the strategy run on the sampled calls.
+     */
+    public VerificationStrategy<K, V, N> getBase() {
+        return base;
+    }
+}
@@ -0,0 +1,767 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import adt.OrderedMap;
+
+/**
+ * ShardedMap
+ *
+ * A thread-safe OrderedMap that partitions the key space into ranges,
+ * each held by its own RecursiveBSTMap (an AVLBSTMap or a red-black tree)
+ * under its own read-write lock, so writers to different ranges do not
+ * wait for each other. A shard holds the keys from its lower bound up
+ * to the lower bound of the next shard; the first shard has no lower
+ * bound.
+ *
+ * Shards split as they get hot: once a shard has taken splitThreshold
+ * writes since it was made, and at least as many writes as it has keys
+ * (so the linear cost of a split is spread over the writes that caused
+ * it), it is split at its median into two new shards, until there are
+ * maxShards of them. Splitting replaces the table of shards; the old
+ * shard is marked retired, and an operation that finds its shard
+ * retired looks the key up again in the new table.
+ *
+ * Since the shards are ranges, their trees in order hold the keys in
+ * order: min() is the min of the first non-empty shard, and iterators
+ * walk the shards one after the other. Each operation on one key is
+ * atomic; those that span shards (size, the order statistics,
+ * navigation across a shard boundary and iteration) lock one shard at a
+ * time, so they are weakly consistent while other threads update the
+ * map. Iterators copy keys out a batch at a time under the shard's read
+ * lock and never fail because of concurrent updates.
+ *
+ * The keys are in the order of the trees: their comparator if they
+ * were made with one, else the natural order. All the trees emptyTree
+ * makes must have the same order.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ShardedMap<K extends Comparable<K>, V> implements OrderedMap<K, V> {
+
+    public static final int DEFAULT_SPLIT_THRESHOLD = 1 << 14;
+    public static final int DEFAULT_MAX_SHARDS = 256;
+
+    /**
+     * How many keys an iterator copies out of a shard at a time
+     */
+    private static final int ITERATOR_BATCH = 256;
+
+    private static final class Shard<K extends Comparable<K>, V> {
+        /**
+         * The least key this shard may hold, or null for the first shard
+         */
+        final K lowerBound;
+        final RecursiveBSTMap<K, V, ?> tree;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // guarded by the write lock
+        boolean retired;
+        int writes;
+        /**
+         * The size of the tree when it was last counted, which is
+         * only done once writes reaches it
+         */
+        int countedSize;
+
+        Shard(K lowerBound, RecursiveBSTMap<K, V, ?> tree) {
+            this.lowerBound = lowerBound;
+            this.tree = tree;
+        }
+    }
+
+    private final Supplier<? extends RecursiveBSTMap<K, V, ?>> emptyTree;
+
+    /**
+     * The order of the keys, that of the trees
+     */
+    private final Comparator<? super K> order;
+
+    private final int splitThreshold;
+    private final int maxShards;
+
+    /**
+     * The shards in key order. The array is replaced, never changed,
+     * and replacements are made holding tableLock.
+     */
+    private volatile Shard<K, V>[] shards;
+    private final Object tableLock = new Object();
+
+    /**
+     * Make an empty map of one shard that splits as it is written.
+     * @param emptyTree Makes the empty trees for the shards, e.g.
+     * () -> new AVLBSTMap<K, V>(false)
+     */
+    public ShardedMap(Supplier<? extends RecursiveBSTMap<K, V, ?>> emptyTree) {
+        this(emptyTree, null, DEFAULT_SPLIT_THRESHOLD, DEFAULT_MAX_SHARDS);
+    }
+
+    /**
+     * Make an empty map with shards for given ranges to start with.
+     * @param boundaries The lower bounds of the second and later shards,
+     * in strictly increasing order, or null for one shard
+     * @param splitThreshold The writes a shard takes before it may split
+     * @param maxShards The number of shards beyond which none split
+     * @throws IllegalArgumentException if the boundaries are not increasing
+     */
+    public ShardedMap(Supplier<? extends RecursiveBSTMap<K, V, ?>> emptyTree, K[] boundaries, int splitThreshold,
+            int maxShards) {
+        if (splitThreshold < 1 || maxShards < 1)
+            throw new IllegalArgumentException("splitThreshold and maxShards must be positive");
+        this.emptyTree = emptyTree;
+        this.splitThreshold = splitThreshold;
+        this.maxShards = maxShards;
+        int count = boundaries == null ? 1 : boundaries.length + 1;
+        Shard<K, V>[] table = newTable(count);
+        table[0] = new Shard<K, V>(null, emptyTree.get());
+        order = table[0].tree.order();
+        for (int i = 1; i < count; i++) {
+            if (i > 1 && order.compare(boundaries[i - 2], boundaries[i - 1]) >= 0)
+                throw new IllegalArgumentException("boundaries are not in increasing order at " + boundaries[i - 1]);
+            table[i] = new Shard<K, V>(boundaries[i - 1], emptyTree.get());
+        }
+        shards = table;
+    }
+
+    /**
+     * Build a map from keys, in strictly increasing order, and their
+     * values, in linear time, spread evenly over a number of shards.
+     * @throws IllegalArgumentException if the keys are not increasing
+     */
+    public static <K extends Comparable<K>, V> ShardedMap<K, V> fromSorted(
+            Supplier<? extends RecursiveBSTMap<K, V, ?>> emptyTree, K[] keys, V[] values, int shardCount,
+            int splitThreshold, int maxShards) {
+        ShardedMap<K, V> map = new ShardedMap<K, V>(emptyTree, null, splitThreshold, maxShards);
+        for (int i = 1; i < keys.length; i++)
+            if (map.order.compare(keys[i - 1], keys[i]) >= 0)
+                throw new IllegalArgumentException("keys are not in increasing order at " + keys[i]);
+        shardCount = Math.max(1, Math.min(shardCount, keys.length));
+        Shard<K, V>[] table = newTable(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int lo = (int) ((long) keys.length * i / shardCount);
+            int hi = (int) ((long) keys.length * (i + 1) / shardCount);
+            RecursiveBSTMap<K, V, ?> tree = emptyTree.get();
+            tree.buildFromSorted(Arrays.asList(keys).subList(lo, hi).iterator(),
+                    Arrays.asList(values).subList(lo, hi).iterator(), hi - lo);
+            table[i] = new Shard<K, V>(i == 0 ? null : keys[lo], tree);
+        }
+        map.shards = table;
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>, V> Shard<K, V>[] newTable(int size) {
+        return (Shard<K, V>[]) new Shard<?, ?>[size];
+    }
+
+    /**
+     * The index of the shard for a key: the last whose lower bound is not
+     * after the key.
+     */
+    private int indexOf(Shard<K, ?>[] table, K key) {
+        int lo = 0, hi = table.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (order.compare(table[mid].lowerBound, key) <= 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Get the order of the keys, or null if it is their natural order.
+     */
+    public Comparator<? super K> comparator() {
+        return shards[0].tree.comparator();
+    }
+
+    private Shard<K, V> shardFor(K key) {
+        Shard<K, V>[] table = shards;
+        return table[indexOf(table, key)];
+    }
+
+    /**
+     * The number of shards the key space is split into at the moment.
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    //-------------------------------------------------------------------
+    // single-key operations
+
+    /**
+     * Get the value for a key, under the read lock of its shard.
+     * @return The value associated with this key, null if none exists
+     */
+    public V get(K key) {
+        while (true) {
+            Shard<K, V> shard = shardFor(key);
+            Lock lock = shard.lock.readLock();
+            lock.lock();
+            try {
+                if (! shard.retired)
+                    return shard.tree.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Test if this map contains an association for this key.
+     */
+    public boolean containsKey(K key) {
+        while (true) {
+            Shard<K, V> shard = shardFor(key);
+            Lock lock = shard.lock.readLock();
+            lock.lock();
+            try {
+                if (! shard.retired)
+                    return shard.tree.containsKey(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Add an association to the map, under the write lock of its shard,
+     * and split the shard if it has become hot.
+     * @param key The key to this association
+     * @param val The value to which this key is associated
+     */
+    public void put(K key, V val) {
+        while (true) {
+            Shard<K, V> shard = shardFor(key);
+            Lock lock = shard.lock.writeLock();
+            lock.lock();
+            try {
+                if (! shard.retired) {
+                    shard.tree.put(key, val);
+                    if (++shard.writes >= splitThreshold && shard.writes >= shard.countedSize) {
+                        // counting is linear, so count no more than once per size writes
+                        shard.countedSize = shard.tree.size();
+                        if (shard.writes >= shard.countedSize)
+                            split(shard);
+                    }
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Remove the association for this key, if any.
+     * @return The value that was associated with this key, null if none existed
+     */
+    public V remove(K key) {
+        while (true) {
+            Shard<K, V> shard = shardFor(key);
+            Lock lock = shard.lock.writeLock();
+            lock.lock();
+            try {
+                if (! shard.retired) {
+                    shard.writes++;
+                    return shard.tree.remove(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replace a shard by two, each with half of its keys, and publish a
+     * new table with them in its place.
+     * PRECONDITION: The write lock of the shard is held, and its
+     * countedSize is current.
+     */
+    private void split(Shard<K, V> shard) {
+        int size = shard.countedSize;
+        if (size < 2 || shards.length >= maxShards) {
+            shard.writes = 0;
+            return;
+        }
+        SortedRun<K, V> run = shard.tree.toSortedRun();
+        int mid = size / 2;
+        Shard<K, V> lower = new Shard<K, V>(shard.lowerBound, buildTree(run, 0, mid));
+        Shard<K, V> upper = new Shard<K, V>(run.key(mid), buildTree(run, mid, size));
+        synchronized (tableLock) {
+            Shard<K, V>[] table = shards;
+            int at = Arrays.asList(table).indexOf(shard);
+            Shard<K, V>[] replacement = newTable(table.length + 1);
+            System.arraycopy(table, 0, replacement, 0, at);
+            replacement[at] = lower;
+            replacement[at + 1] = upper;
+            System.arraycopy(table, at + 1, replacement, at + 2, table.length - at - 1);
+            shard.retired = true;
+            shards = replacement;
+        }
+    }
+
+    private RecursiveBSTMap<K, V, ?> buildTree(final SortedRun<K, V> run, final int lo, final int hi) {
+        RecursiveBSTMap<K, V, ?> tree = emptyTree.get();
+        tree.buildFromSorted(new Iterator<K>() {
+            int next = lo;
+
+            public boolean hasNext() {
+                return next < hi;
+            }
+
+            public K next() {
+                return run.key(next++);
+            }
+        }, new Iterator<V>() {
+            int next = lo;
+
+            public boolean hasNext() {
+                return next < hi;
+            }
+
+            public V next() {
+                return run.value(next++);
+            }
+        }, hi - lo);
+        return tree;
+    }
+
+    //-------------------------------------------------------------------
+    // operations across shards
+
+    /**
+     * Get the minimum key in the map, or null if none exists.
+     */
+    public K min() {
+        Shard<K, V>[] table = shards;
+        for (int i = 0; i < table.length; i++) {
+            Object found = readShard(table[i], Query.MIN, null);
+            if (found == RETIRED)
+                return min();
+            if (found != null)
+                return key(found);
+        }
+        return null;
+    }
+
+    /**
+     * Get the maximum key in the map, or null if none exists.
+     */
+    public K max() {
+        Shard<K, V>[] table = shards;
+        for (int i = table.length - 1; i >= 0; i--) {
+            Object found = readShard(table[i], Query.MAX, null);
+            if (found == RETIRED)
+                return max();
+            if (found != null)
+                return key(found);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the minimum key and its association, if any.
+     * @return The key that was removed, or null if empty
+     */
+    public K pollFirst() {
+        Shard<K, V>[] table = shards;
+        for (int i = 0; i < table.length; i++) {
+            Shard<K, V> shard = table[i];
+            Lock lock = shard.lock.writeLock();
+            lock.lock();
+            try {
+                if (shard.retired)
+                    return pollFirst();
+                K key = shard.tree.pollFirst();
+                if (key != null) {
+                    shard.writes++;
+                    return key;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the maximum key and its association, if any.
+     * @return The key that was removed, or null if empty
+     */
+    public K pollLast() {
+        Shard<K, V>[] table = shards;
+        for (int i = table.length - 1; i >= 0; i--) {
+            Shard<K, V> shard = table[i];
+            Lock lock = shard.lock.writeLock();
+            lock.lock();
+            try {
+                if (shard.retired)
+                    return pollLast();
+                K key = shard.tree.pollLast();
+                if (key != null) {
+                    shard.writes++;
+                    return key;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The queries answered by one shard for the operations across shards
+     */
+    private enum Query { MIN, MAX, FLOOR, CEILING, LOWER, HIGHER }
+
+    /**
+     * Returned by readShard when the shard has been retired, so the
+     * operation must start again with the new table.
+     */
+    private static final Object RETIRED = new Object();
+
+    @SuppressWarnings("unchecked")
+    private K key(Object found) {
+        return (K) found;
+    }
+
+    /**
+     * Answer a query about one shard under its read lock.
+     * @return The answer, or RETIRED
+     */
+    private Object readShard(Shard<K, V> shard, Query query, K key) {
+        Lock lock = shard.lock.readLock();
+        lock.lock();
+        try {
+            if (shard.retired)
+                return RETIRED;
+            RecursiveBSTMap<K, V, ?> tree = shard.tree;
+            switch (query) {
+            case MIN:
+                return tree.min();
+            case MAX:
+                return tree.max();
+            case FLOOR:
+                return tree.floor(key);
+            case CEILING:
+                return tree.ceiling(key);
+            case LOWER:
+                return tree.lower(key);
+            default:
+                return tree.higher(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Look for the nearest key on one side of key in its shard, and then
+     * in the shards beyond it in that direction.
+     */
+    private K nearest(K key, Query query) {
+        while (true) {
+            Shard<K, V>[] table = shards;
+            int at = indexOf(table, key);
+            Object found = readShard(table[at], query, key);
+            if (found == RETIRED)
+                continue;
+            if (found != null)
+                return key(found);
+            boolean below = query == Query.FLOOR || query == Query.LOWER;
+            for (int i = below ? at - 1 : at + 1; found == null && i >= 0 && i < table.length;
+                    i += below ? -1 : 1)
+                found = readShard(table[i], below ? Query.MAX : Query.MIN, null);
+            if (found != RETIRED)
+                return key(found);
+        }
+    }
+
+    /**
+     * The greatest key less than or equal to key, or null if none.
+     */
+    public K floor(K key) {
+        return nearest(key, Query.FLOOR);
+    }
+
+    /**
+     * The least key greater than or equal to key, or null if none.
+     */
+    public K ceiling(K key) {
+        return nearest(key, Query.CEILING);
+    }
+
+    /**
+     * The greatest key strictly less than key, or null if none.
+     */
+    public K lower(K key) {
+        return nearest(key, Query.LOWER);
+    }
+
+    /**
+     * The least key strictly greater than key, or null if none.
+     */
+    public K higher(K key) {
+        return nearest(key, Query.HIGHER);
+    }
+
+    /**
+     * The size of a shard under its read lock, or -1 if it is retired
+     */
+    private int sizeOf(Shard<K, V> shard) {
+        Lock lock = shard.lock.readLock();
+        lock.lock();
+        try {
+            return shard.retired ? -1 : shard.tree.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of associations in this map, adding up the
+     * sizes of the shards.
+     */
+    public int size() {
+        Shard<K, V>[] table = shards;
+        int size = 0;
+        for (Shard<K, V> shard : table) {
+            int shardSize = sizeOf(shard);
+            if (shardSize < 0)
+                return size();
+            size += shardSize;
+        }
+        return size;
+    }
+
+    /**
+     * Find the rank of a key: the sizes of the shards before its shard,
+     * plus its rank there.
+     */
+    public int rank(K key) {
+        while (true) {
+            Shard<K, V>[] table = shards;
+            int at = indexOf(table, key);
+            int rank = 0;
+            for (int i = 0; i < at && rank >= 0; i++) {
+                int shardSize = sizeOf(table[i]);
+                rank = shardSize < 0 ? -1 : rank + shardSize;
+            }
+            if (rank < 0)
+                continue;
+            Shard<K, V> shard = table[at];
+            Lock lock = shard.lock.readLock();
+            lock.lock();
+            try {
+                if (! shard.retired)
+                    return rank + shard.tree.rank(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Find the key with a given rank, skipping whole shards by their sizes.
+     */
+    public K select(int rank) {
+        if (rank < 0)
+            throw new IndexOutOfBoundsException();
+        retry: while (true) {
+            int remaining = rank;
+            for (Shard<K, V> shard : shards) {
+                Lock lock = shard.lock.readLock();
+                lock.lock();
+                try {
+                    if (shard.retired)
+                        continue retry;
+                    int shardSize = shard.tree.size();
+                    if (remaining < shardSize)
+                        return shard.tree.select(remaining);
+                    remaining -= shardSize;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Count the keys k with lo <= k <= hi.
+     */
+    public int countInRange(K lo, K hi) {
+        if (order.compare(hi, lo) < 0)
+            return 0;
+        return rank(hi) - rank(lo) + (containsKey(hi) ? 1 : 0);
+    }
+
+    //-------------------------------------------------------------------
+    // iteration
+
+    /**
+     * Iterate over the keys of this map in order, shard by shard.
+     */
+    public Iterator<K> iterator() {
+        return new KeyIterator(null, null);
+    }
+
+    /**
+     * The keys from fromKey (inclusive) to toKey (exclusive).
+     */
+    public Iterable<K> subMap(final K fromKey, final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(fromKey, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys before toKey, in the manner of subMap.
+     */
+    public Iterable<K> headMap(final K toKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(null, toKey);
+            }
+        };
+    }
+
+    /**
+     * The keys from fromKey on, in the manner of subMap.
+     */
+    public Iterable<K> tailMap(final K fromKey) {
+        return new Iterable<K>() {
+            public Iterator<K> iterator() {
+                return new KeyIterator(fromKey, null);
+            }
+        };
+    }
+
+    /**
+     * Iterator that copies the keys out of the shards, a batch at a time,
+     * under their read locks. Each batch resumes after the last key of
+     * the one before, looking it up in the current table, so the shards
+     * may split in between.
+     */
+    private class KeyIterator implements Iterator<K> {
+
+        private final K toKey;
+
+        /**
+         * Where the next batch starts, null for the start of the map
+         */
+        private K from;
+        private boolean inclusive = true;
+        private boolean finished;
+
+        private final ArrayList<K> batch = new ArrayList<K>(ITERATOR_BATCH);
+        private int next;
+
+        KeyIterator(K fromKey, K toKey) {
+            from = fromKey;
+            this.toKey = toKey;
+        }
+
+        /**
+         * Fill the batch from the shard of from, or failing that from
+         * the shards after it.
+         * @return Whether there are keys in the batch
+         */
+        private boolean fill() {
+            batch.clear();
+            next = 0;
+            while (! finished) {
+                Shard<K, V>[] table = shards;
+                int at = from == null ? 0 : indexOf(table, from);
+                Shard<K, V> shard = table[at];
+                Lock lock = shard.lock.readLock();
+                lock.lock();
+                try {
+                    if (shard.retired)
+                        continue;
+                    Iterable<K> keys = from == null ? shard.tree : shard.tree.tailMap(from);
+                    for (K key : keys) {
+                        if (! inclusive && order.compare(key, from) == 0)
+                            continue;
+                        if (toKey != null && order.compare(key, toKey) >= 0) {
+                            finished = true;
+                            break;
+                        }
+                        batch.add(key);
+                        if (batch.size() == ITERATOR_BATCH)
+                            break;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (! batch.isEmpty()) {
+                    from = batch.get(batch.size() - 1);
+                    inclusive = false;
+                    return true;
+                }
+                if (at == table.length - 1)
+                    finished = true;
+                else {
+                    from = table[at + 1].lowerBound;
+                    inclusive = true;
+                }
+            }
+            return false;
+        }
+
+        public boolean hasNext() {
+            return next < batch.size() || fill();
+        }
+
+        public K next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            return batch.get(next++);
+        }
+    }
+
+    /**
+     * The associations in the form described by adt.Map, in key order.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (K key : this) {
+            if (builder.length() > 1)
+                builder.append(", ");
+            builder.append(key).append('=').append(get(key));
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * Verify the tree of every shard, and that every key is in the range
+     * of its shard. This is only meaningful when no other thread is
+     * updating the map.
+     */
+    public void verify() {
+        Shard<K, V>[] table = shards;
+        for (int i = 0; i < table.length; i++) {
+            RecursiveBSTMap<K, V, ?> tree = table[i].tree;
+            tree.verify();
+            if (tree.min() == null)
+                continue;
+            if (i > 0 && order.compare(tree.min(), table[i].lowerBound) < 0
+                    || i < table.length - 1 && order.compare(tree.max(), table[i + 1].lowerBound) >= 0)
+                throw new IgnorantNodeException("Shard " + i + " holds keys outside its range");
+        }
+    }
+}
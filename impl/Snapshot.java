@@ -0,0 +1,200 @@
+package impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Snapshot
+ *
+ * The binary snapshot format of RecursiveBSTMap, with buffered
+ * streaming over NIO channels. A snapshot is a header (magic number,
+ * version, the widths of the key and value codecs, and whether the
+ * tree is empty) followed by the nodes in pre-order. Each node is a
+ * flags byte, saying which children the node has, whether it is red
+ * and whether its value is null, then its key and value as encoded
+ * by the codecs. The flags are enough to rebuild the exact shape of
+ * the tree without comparing any keys.
+ *
+ * The records are not padded to the widths of the codecs. A key or
+ * value from a codec that is not fixed-width is preceded by the number
+ * of bytes it takes, as a varint of seven bits a byte, low bits first,
+ * and takes only those bytes; one from a fixed-width codec takes its
+ * width with no prefix.
+ */
+final class Snapshot {
+
+    static final int MAGIC = 0x42535453; // "BSTS"
+    static final int VERSION = 2;
+
+    static final byte HAS_LEFT = 1, HAS_RIGHT = 2, RED = 4, NULL_VALUE = 8;
+
+    private static final int HEADER_SIZE = 17;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The most bytes a length prefix takes; lengths are at most a
+     * codec's width, which fits in 21 bits.
+     */
+    private static final int LENGTH_BYTES = 3;
+
+    private Snapshot() {}
+
+    /**
+     * The most bytes a node can take, which the buffers must hold.
+     */
+    private static int maxRecordSize(Codec<?> keyCodec, Codec<?> valueCodec) {
+        return 1 + keyCodec.width() + valueCodec.width() + 2 * LENGTH_BYTES;
+    }
+
+    /**
+     * Writes a snapshot, one node at a time, through a buffer.
+     */
+    static final class Writer<K, V> {
+        private final WritableByteChannel channel;
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private final ByteBuffer buffer;
+
+        Writer(WritableByteChannel channel, Codec<K> keyCodec, Codec<V> valueCodec, boolean empty)
+                throws IOException {
+            this.channel = channel;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, maxRecordSize(keyCodec, valueCodec)));
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(keyCodec.width()).putInt(valueCodec.width());
+            buffer.put((byte) (empty ? 1 : 0));
+        }
+
+        void writeNode(int flags, K key, V val) throws IOException {
+            int keyLength = keyCodec.length(key);
+            int valueLength = val == null ? 0 : valueCodec.length(val);
+            if (buffer.remaining() < 1 + keyLength + valueLength + 2 * LENGTH_BYTES)
+                drain();
+            if (val == null)
+                flags |= NULL_VALUE;
+            buffer.put((byte) flags);
+            put(keyCodec, key, keyLength);
+            if (val != null)
+                put(valueCodec, val, valueLength);
+        }
+
+        private <T> void put(Codec<T> codec, T item, int length) {
+            if (!codec.isFixedWidth())
+                for (int rest = length; ; rest >>>= 7) {
+                    if (rest < 0x80) {
+                        buffer.put((byte) rest);
+                        break;
+                    }
+                    buffer.put((byte) (rest | 0x80));
+                }
+            int position = buffer.position();
+            codec.write(buffer, position, item);
+            buffer.position(position + length);
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        /**
+         * Write out whatever is left in the buffer. This does not close
+         * the channel.
+         */
+        void finish() throws IOException {
+            drain();
+        }
+    }
+
+    /**
+     * Reads a snapshot, one node at a time, through a buffer.
+     */
+    static final class Reader<K, V> {
+        private final ReadableByteChannel channel;
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private final ByteBuffer buffer;
+        private final boolean empty;
+
+        /**
+         * The key and value of the node last read.
+         */
+        K key;
+        V value;
+
+        Reader(ReadableByteChannel channel, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+            this.channel = channel;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, maxRecordSize(keyCodec, valueCodec)));
+            buffer.limit(0);
+            fill(HEADER_SIZE);
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("not a snapshot");
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("unknown snapshot version " + version);
+            if (buffer.getInt() != keyCodec.width() || buffer.getInt() != valueCodec.width())
+                throw new IllegalArgumentException("the codecs do not match the snapshot");
+            empty = buffer.get() != 0;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * Make sure the buffer holds at least the given number of bytes.
+         * @throws EOFException if the channel ends first
+         */
+        private void fill(int needed) throws IOException {
+            if (buffer.remaining() >= needed)
+                return;
+            buffer.compact();
+            while (buffer.position() < needed)
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("snapshot ends in the middle of a node");
+            buffer.flip();
+        }
+
+        /**
+         * Read the next node, leaving its key and value in key and value.
+         * @return The flags of the node
+         */
+        int readNode() throws IOException {
+            fill(1);
+            int flags = buffer.get();
+            key = get(keyCodec);
+            value = (flags & NULL_VALUE) != 0 ? null : get(valueCodec);
+            return flags;
+        }
+
+        private <T> T get(Codec<T> codec) throws IOException {
+            int length = codec.width();
+            if (!codec.isFixedWidth()) {
+                length = 0;
+                for (int shift = 0; ; shift += 7) {
+                    fill(1);
+                    byte b = buffer.get();
+                    length |= (b & 0x7f) << shift;
+                    if (b >= 0)
+                        break;
+                    if (shift == 7 * (LENGTH_BYTES - 1))
+                        throw new IOException("bad length in snapshot");
+                }
+                if (length > codec.width())
+                    throw new IOException("bad length in snapshot");
+            }
+            fill(length);
+            int position = buffer.position();
+            T item = codec.read(buffer, position);
+            buffer.position(position + length);
+            return item;
+        }
+    }
+}
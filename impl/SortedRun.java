@@ -0,0 +1,155 @@
+package impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * SortedRun
+ *
+ * The associations of a map laid out in parallel arrays in key order.
+ * This is the intermediate form for the bulk operations of
+ * RecursiveBSTMap: a batch for putAll, or the other map of a set
+ * operation, is laid out in a run, and the run is merged into the
+ * tree.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+final class SortedRun<K extends Comparable<K>, V> {
+
+    /**
+     * The set operations that can be used to merge a run into a tree.
+     */
+    enum Operation {
+        /**
+         * Keys in either; a key in both gets the merged value.
+         */
+        UNION,
+        /**
+         * Keys in both, with the value from the tree.
+         */
+        INTERSECTION,
+        /**
+         * Keys in the tree but not the run.
+         */
+        DIFFERENCE
+    }
+
+    /**
+     * Runs of at most this many associations are merged into a tree
+     * sequentially; larger ones are split between tasks.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    Object[] keys;
+    Object[] values;
+    int size;
+
+    SortedRun(int capacity) {
+        keys = new Object[Math.max(capacity, 1)];
+        values = new Object[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Append an association.
+     * PRECONDITION: key comes after every key already in the run.
+     */
+    void add(K key, V val) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = val;
+        size++;
+    }
+
+    /**
+     * Make a run of a batch of associations in any order, sorting it by
+     * key. Where a key appears more than once, the run keeps the value
+     * that came last, as if the batch had been put in order.
+     * @param order The order of the keys
+     */
+    static <K extends Comparable<K>, V> SortedRun<K, V> sort(K[] keys, V[] values, Comparator<? super K> order) {
+        SortedRun<K, V> run = new SortedRun<K, V>(keys.length);
+        System.arraycopy(keys, 0, run.keys, 0, keys.length);
+        System.arraycopy(values, 0, run.values, 0, values.length);
+        run.size = keys.length;
+        SortedRun.<K>sort(run.keys, run.values, run.keys.clone(), run.values.clone(), 0, run.size, order);
+        // the sort is stable, so the last of equal keys has the last value
+        int last = 0;
+        for (int i = 1; i < run.size; i++) {
+            if (order.compare(run.key(i), run.key(last)) != 0)
+                last++;
+            run.keys[last] = run.keys[i];
+            run.values[last] = run.values[i];
+        }
+        if (run.size > 0)
+            run.size = last + 1;
+        Arrays.fill(run.keys, run.size, keys.length, null);
+        Arrays.fill(run.values, run.size, values.length, null);
+        return run;
+    }
+
+    /**
+     * Sort [lo, hi) of keys stably, moving the values with their keys.
+     * This is a plain merge sort on both arrays at once, which skips
+     * the merge when the halves are already in order, so a batch that
+     * is already sorted takes only a linear scan.
+     * PRECONDITION: auxKeys and auxValues hold the same as keys and
+     * values in [lo, hi); they are used as scratch space.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> void sort(Object[] keys, Object[] values, Object[] auxKeys,
+            Object[] auxValues, int lo, int hi, Comparator<? super K> order) {
+        if (hi - lo < 2)
+            return;
+        int mid = (lo + hi) >>> 1;
+        // sort each half of the scratch arrays, using these as their
+        // scratch, and then merge the halves back here
+        SortedRun.<K>sort(auxKeys, auxValues, keys, values, lo, mid, order);
+        SortedRun.<K>sort(auxKeys, auxValues, keys, values, mid, hi, order);
+        if (order.compare((K) auxKeys[mid - 1], (K) auxKeys[mid]) <= 0) {
+            System.arraycopy(auxKeys, lo, keys, lo, hi - lo);
+            System.arraycopy(auxValues, lo, values, lo, hi - lo);
+            return;
+        }
+        int i = lo, j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j == hi || i < mid && order.compare((K) auxKeys[i], (K) auxKeys[j]) <= 0) {
+                keys[k] = auxKeys[i];
+                values[k] = auxValues[i++];
+            }
+            else {
+                keys[k] = auxKeys[j];
+                values[k] = auxValues[j++];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    K key(int i) {
+        return (K) keys[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    V value(int i) {
+        return (V) values[i];
+    }
+
+    /**
+     * The first index in [lo, hi) whose key is not before key, or hi
+     * if there is none.
+     * @param order The order of the keys
+     */
+    int lowerBound(int lo, int hi, K key, Comparator<? super K> order) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (order.compare(key(mid), key) >= 0)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+}
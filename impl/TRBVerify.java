@@ -11,6 +11,24 @@ public class TRBVerify<K extends Comparable<K>,V, N extends RBNode<K,V>> impleme
     public void verify(N root) {
         getBlackHeight(root);
     }
+
+    /**
+     * Check the colors and the black height stored at one node against
+     * its children.
+     */
+    @Override
+    public void verifyNode(N node) {
+        RBNode<K,V> left = node.left();
+        RBNode<K,V> right = node.right();
+        if (node.isRed() && (left.isRed() || right.isRed()))
+            throw new DoubleRedException("Double Red");
+        if (left.blackHeight() != right.blackHeight())
+            throw new InconsistentBlackHeightException("Inconsistent Black Height: "+ node.toString(),left.blackHeight(),right.blackHeight());
+        int height = left.blackHeight() + (node.isRed() ? 0 : 1);
+        if (height != node.blackHeight())
+            throw new IgnorantNodeException("The root of: "+node.toString()+
+                    " thinks its black height is "+node.blackHeight() +",but it is actually "+height);
+    }
     
     public int getBlackHeight(RBNode<K,V> root) {
         int rightBlackHeight;
@@ -1,5 +1,11 @@
 package impl;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
 /**
  * TraditionalRedBlackTreeMap
  * 
@@ -63,6 +69,7 @@ public class TraditionalRedBlackTreeMap<K extends Comparable<K>, V> extends RedB
 					oldRight.left = newRight.right();
 					newRight.right = oldRight;
 					current.right = newRight;
+					metrics.rotations(1);
 				}
 
 				// right-right red violation
@@ -82,6 +89,7 @@ public class TraditionalRedBlackTreeMap<K extends Comparable<K>, V> extends RedB
 						current.left.recomputeBlackHeight();
 						current.right.recomputeBlackHeight();
 						current.recomputeBlackHeight();
+						metrics.colorFlip();
 					}
 				}
 			}
@@ -97,6 +105,7 @@ public class TraditionalRedBlackTreeMap<K extends Comparable<K>, V> extends RedB
 					oldLeft.right = newLeft.left();
 					newLeft.left = oldLeft;
 					current.left = newLeft;
+					metrics.rotations(1);
 				}
 
 				// left-left red violation
@@ -115,11 +124,147 @@ public class TraditionalRedBlackTreeMap<K extends Comparable<K>, V> extends RedB
 						current.left.recomputeBlackHeight();
 						current.right.recomputeBlackHeight();
 						current.recomputeBlackHeight();
+						metrics.colorFlip();
 					}
 				}
 			}
 			return current;
 		}
+		/**
+		 * Take this node out of the tree. Removing a red node changes no
+		 * black heights. Removing a black node whose only child is red is
+		 * made up for by blackening the child; otherwise the subtree comes
+		 * out one black node short, which removeFixup of the parent repairs.
+		 */
+		@Override
+		protected RBNode<K, V> unlink(RBNode<K, V> child) {
+			if (!isRed() && child.isRed()) {
+				child.blacken();
+				child.recomputeBlackHeight();
+			}
+			return child;
+		}
+
+		/**
+		 * Fix this subtree to conform to the constraints of RB trees after a
+		 * removal. PRECONDITION: left and right subtrees are red-black trees,
+		 * except that one of them may have a black height one less than the
+		 * other. POSTCONDITION: This tree has been modified to contain the
+		 * same information as before and to satisfy the RB constraints,
+		 * except that its root may be red and, if the shortfall could not
+		 * be made up here, its black height may be one less than before (to
+		 * be fixed by the parent). The root of the modified tree is
+		 * returned.
+		 * 
+		 * @return The root of the tree like this one but satisfying the
+		 *         constraints.
+		 */
+		@Override
+		public RBNode<K, V> removeFixup() {
+			int leftBlackHeight = left.blackHeight();
+			int rightBlackHeight = right.blackHeight();
+			if (leftBlackHeight < rightBlackHeight)
+				return fixShortLeft();
+			else if (leftBlackHeight > rightBlackHeight)
+				return fixShortRight();
+			recomputeBlackHeight();
+			return this;
+		}
+
+		/**
+		 * Make up for the left subtree being one black node short. The
+		 * cases are those of CLRS 13.4.
+		 */
+		private RBNode<K, V> fixShortLeft() {
+			TradRBRealNode sibling = (TraditionalRedBlackTreeMap<K, V>.TradRBRealNode) right;
+
+			// red sibling: rotate it up so that the new sibling is black,
+			// then fix this node (now red) as one of the cases below
+			if (sibling.isRed()) {
+				TradRBRealNode top = (TraditionalRedBlackTreeMap<K, V>.TradRBRealNode) rotateLeft();
+				top.left = fixShortLeft();
+				top.recomputeBlackHeight();
+				return top;
+			}
+
+			// black sibling with black children: shorten the sibling's side
+			// too, and make up for both by blackening this node if it is red
+			if (!sibling.left.isRed() && !sibling.right.isRed()) {
+				sibling.redden();
+				sibling.recomputeBlackHeight();
+				blacken();
+				recomputeBlackHeight();
+				return this;
+			}
+
+			// black sibling with red inner child: rotate that child up so
+			// the sibling's outer child is red
+			if (!sibling.right.isRed()) {
+				sibling = (TraditionalRedBlackTreeMap<K, V>.TradRBRealNode) sibling.rotateRight();
+				sibling.right.recomputeBlackHeight();
+				sibling.recomputeBlackHeight();
+				right = sibling;
+			}
+
+			// black sibling with red outer child: rotate the sibling up,
+			// giving it this node's color
+			right = sibling.left;
+			sibling.left = this;
+			if (isRed())
+				sibling.redden();
+			else
+				sibling.blacken();
+			blacken();
+			sibling.right.blacken();
+			recomputeBlackHeight();
+			sibling.right.recomputeBlackHeight();
+			sibling.recomputeBlackHeight();
+			return sibling;
+		}
+
+		/**
+		 * Make up for the right subtree being one black node short; the
+		 * mirror image of fixShortLeft.
+		 */
+		private RBNode<K, V> fixShortRight() {
+			TradRBRealNode sibling = (TraditionalRedBlackTreeMap<K, V>.TradRBRealNode) left;
+
+			if (sibling.isRed()) {
+				TradRBRealNode top = (TraditionalRedBlackTreeMap<K, V>.TradRBRealNode) rotateRight();
+				top.right = fixShortRight();
+				top.recomputeBlackHeight();
+				return top;
+			}
+
+			if (!sibling.left.isRed() && !sibling.right.isRed()) {
+				sibling.redden();
+				sibling.recomputeBlackHeight();
+				blacken();
+				recomputeBlackHeight();
+				return this;
+			}
+
+			if (!sibling.left.isRed()) {
+				sibling = (TraditionalRedBlackTreeMap<K, V>.TradRBRealNode) sibling.rotateLeft();
+				sibling.left.recomputeBlackHeight();
+				sibling.recomputeBlackHeight();
+				left = sibling;
+			}
+
+			left = sibling.right;
+			sibling.right = this;
+			if (isRed())
+				sibling.redden();
+			else
+				sibling.blacken();
+			blacken();
+			sibling.left.blacken();
+			recomputeBlackHeight();
+			sibling.left.recomputeBlackHeight();
+			sibling.recomputeBlackHeight();
+			return sibling;
+		}
+
 		// ------------------------------------------------
 		// The following two methods are suggested helper methods
 		// (which you would have to write) for fixup()
@@ -139,6 +284,7 @@ public class TraditionalRedBlackTreeMap<K extends Comparable<K>, V> extends RedB
 			newTop.left = oldTop;
 			newTop.blacken();
 			oldTop.redden();
+			metrics.rotations(1);
 
 			// return the new subtree's root
 			return newTop;
@@ -158,6 +304,7 @@ public class TraditionalRedBlackTreeMap<K extends Comparable<K>, V> extends RedB
 			newTop.right = oldTop;
 			newTop.blacken();
 			oldTop.redden();
+			metrics.rotations(1);
 
 			// return the new subtree's root
 			return newTop;
@@ -165,7 +312,56 @@ public class TraditionalRedBlackTreeMap<K extends Comparable<K>, V> extends RedB
 	}
 
 	public TraditionalRedBlackTreeMap(boolean verifying) {
-		super(new TRBVerify<K, V, RBNode<K, V>>(), verifying);
+		this(null, verifying);
+	}
+
+	/**
+	 * Constructor for an empty map whose keys are ordered by a comparator
+	 * 
+	 * @param comparator The order of the keys, or null for their natural
+	 *            order
+	 */
+	public TraditionalRedBlackTreeMap(Comparator<? super K> comparator, boolean verifying) {
+		super(new TRBVerify<K, V, RBNode<K, V>>(), verifying, comparator);
+	}
+
+	/**
+	 * Build a map from associations sorted by key, in linear time.
+	 * 
+	 * @param keys
+	 *            The keys, in strictly increasing order
+	 * @param values
+	 *            The values, in the order of their keys
+	 * @param size
+	 *            The number of associations to take
+	 * @throws IllegalArgumentException
+	 *             if the keys are not increasing
+	 */
+	public static <K extends Comparable<K>, V> TraditionalRedBlackTreeMap<K, V> fromSorted(Iterator<K> keys,
+			Iterator<V> values, int size, boolean verifying) {
+		TraditionalRedBlackTreeMap<K, V> map = new TraditionalRedBlackTreeMap<K, V>(verifying);
+		map.buildFromSorted(keys, values, size);
+		return map;
+	}
+
+	/**
+	 * Build a map from parallel arrays of keys, in strictly increasing
+	 * order, and values, in linear time.
+	 */
+	public static <K extends Comparable<K>, V> TraditionalRedBlackTreeMap<K, V> fromSorted(K[] keys, V[] values,
+			boolean verifying) {
+		return fromSorted(Arrays.asList(keys).iterator(), Arrays.asList(values).iterator(), keys.length, verifying);
+	}
+
+	/**
+	 * Read a map from a snapshot written by writeSnapshot, in linear time,
+	 * restoring the exact shape of the tree that was written.
+	 */
+	public static <K extends Comparable<K>, V> TraditionalRedBlackTreeMap<K, V> readSnapshot(ReadableByteChannel channel,
+			Codec<K> keyCodec, Codec<V> valueCodec, boolean verifying) throws IOException {
+		TraditionalRedBlackTreeMap<K, V> map = new TraditionalRedBlackTreeMap<K, V>(verifying);
+		map.loadSnapshot(channel, keyCodec, valueCodec);
+		return map;
 	}
 
 	/**
@@ -0,0 +1,65 @@
+package impl;
+
+/**
+ * TreeMetrics
+ *
+ * Receives events from a RecursiveBSTMap as it works: the operations it
+ * performs and how long they take, the comparisons made by each search
+ * from the root, and the rotations, color flips and fixups that keep it
+ * balanced. Every method does nothing by default, and a map starts with
+ * NONE, so that a map nobody is watching pays only for calls the JIT
+ * inlines to nothing. TreeStatistics collects the events and exports
+ * them over JMX.
+ */
+public interface TreeMetrics {
+
+    /**
+     * The operations that are timed.
+     */
+    enum Operation { GET, CONTAINS, PUT, REMOVE }
+
+    /**
+     * Metrics that ignore every event.
+     */
+    TreeMetrics NONE = new TreeMetrics() {};
+
+    /**
+     * Called as an operation starts.
+     * @return A start time to pass to finish; by default 0, so that the
+     * clock is not read
+     */
+    default long start() {
+        return 0;
+    }
+
+    /**
+     * Called as an operation finishes.
+     * @param start What start returned when the operation started
+     */
+    default void finish(Operation op, long start) {}
+
+    /**
+     * Called after a search down from the root.
+     * @param comparisons The number of keys compared, which is the depth
+     * at which the search ended
+     */
+    default void search(int comparisons) {}
+
+    /**
+     * Called for each rebalancing, with the number of rotations it made.
+     */
+    default void rotations(int count) {}
+
+    /**
+     * Called for each color flip, in which a node and its two children
+     * all change color.
+     */
+    default void colorFlip() {}
+
+    /**
+     * Called after a search path has been fixed up from the bottom.
+     * @param levels The number of nodes on the path that were fixed up
+     * before the fixups could have no more effect
+     */
+    default void fixup(int levels) {}
+}
@@ -0,0 +1,215 @@
+package impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * TreeStatistics
+ *
+ * Metrics that count the events of the maps they are given to, and export
+ * the counts over JMX as a TreeStatisticsMXBean. The counts are LongAdders,
+ * so one TreeStatistics can be shared by maps used from different threads,
+ * such as the shards of a ShardedMap. Operations are timed with
+ * System.nanoTime, which costs a few tens of nanoseconds per operation.
+ */
+public class TreeStatistics implements TreeMetrics, TreeStatisticsMXBean {
+
+    /**
+     * The number of buckets in each histogram.
+     */
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] operations = newAdders(Operation.values().length);
+    private final LongAdder latency = new LongAdder();
+    private final LongAdder[] latencies = newAdders(BUCKETS);
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder comparisons = new LongAdder();
+    private final LongAdder[] comparisonCounts = newAdders(BUCKETS);
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder colorFlips = new LongAdder();
+    private final LongAdder fixups = new LongAdder();
+    private final LongAdder fixupLevels = new LongAdder();
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++)
+            sums[i] = adders[i].sum();
+        return sums;
+    }
+
+    private static double mean(long total, long count) {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    // ---------- events
+
+    @Override
+    public long start() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void finish(Operation op, long start) {
+        long nanos = Math.max(System.nanoTime() - start, 0);
+        operations[op.ordinal()].increment();
+        latency.add(nanos);
+        latencies[Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1)].increment();
+    }
+
+    @Override
+    public void search(int comparisons) {
+        searches.increment();
+        this.comparisons.add(comparisons);
+        comparisonCounts[Math.min(comparisons, BUCKETS - 1)].increment();
+    }
+
+    @Override
+    public void rotations(int count) {
+        rotations.add(count);
+    }
+
+    @Override
+    public void colorFlip() {
+        colorFlips.increment();
+    }
+
+    @Override
+    public void fixup(int levels) {
+        fixups.increment();
+        fixupLevels.add(levels);
+    }
+
+    // ---------- counts
+
+    public long getGets() {
+        return operations[Operation.GET.ordinal()].sum();
+    }
+
+    public long getContains() {
+        return operations[Operation.CONTAINS.ordinal()].sum();
+    }
+
+    public long getPuts() {
+        return operations[Operation.PUT.ordinal()].sum();
+    }
+
+    public long getRemoves() {
+        return operations[Operation.REMOVE.ordinal()].sum();
+    }
+
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    public long getComparisons() {
+        return comparisons.sum();
+    }
+
+    public double getMeanComparisons() {
+        return mean(comparisons.sum(), searches.sum());
+    }
+
+    public int getMaxComparisons() {
+        for (int i = BUCKETS - 1; i > 0; i--)
+            if (comparisonCounts[i].sum() != 0)
+                return i;
+        return 0;
+    }
+
+    public long[] getComparisonHistogram() {
+        return sums(comparisonCounts);
+    }
+
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    public long getColorFlips() {
+        return colorFlips.sum();
+    }
+
+    public long getFixups() {
+        return fixups.sum();
+    }
+
+    public long getFixupLevels() {
+        return fixupLevels.sum();
+    }
+
+    public double getMeanLatencyNanos() {
+        long count = 0;
+        for (LongAdder adder : operations)
+            count += adder.sum();
+        return mean(latency.sum(), count);
+    }
+
+    public long[] getLatencyHistogram() {
+        return sums(latencies);
+    }
+
+    public void reset() {
+        for (LongAdder adder : operations)
+            adder.reset();
+        for (LongAdder adder : latencies)
+            adder.reset();
+        for (LongAdder adder : comparisonCounts)
+            adder.reset();
+        latency.reset();
+        searches.reset();
+        comparisons.reset();
+        rotations.reset();
+        colorFlips.reset();
+        fixups.reset();
+        fixupLevels.reset();
+    }
+
+    // ---------- JMX
+
+    /**
+     * Register these statistics with the platform MBean server.
+     * @param name The name of the statistics, which becomes the name key
+     * of the object name impl:type=TreeStatistics,name=...
+     * @return The object name they were registered under
+     * @throws IllegalArgumentException if the name is not a legal object
+     * name value, or is already registered
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = objectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Cannot register " + name, e);
+        }
+    }
+
+    /**
+     * Remove the statistics registered under a name from the platform
+     * MBean server, if there are any.
+     */
+    public static void unregister(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(name);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Cannot unregister " + name, e);
+        }
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("impl:type=TreeStatistics,name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,72 @@
+package impl;
+
+/**
+ * TreeStatisticsMXBean
+ *
+ * What TreeStatistics exports over JMX. Histograms are arrays of counts
+ * indexed by bucket, as described on each getter.
+ */
+public interface TreeStatisticsMXBean {
+
+    long getGets();
+
+    long getContains();
+
+    long getPuts();
+
+    long getRemoves();
+
+    /**
+     * The number of searches down from the root.
+     */
+    long getSearches();
+
+    /**
+     * The keys compared by all the searches from the root.
+     */
+    long getComparisons();
+
+    double getMeanComparisons();
+
+    /**
+     * The most keys compared by one search, which is at most the height
+     * of the tree.
+     */
+    int getMaxComparisons();
+
+    /**
+     * Element i counts the searches that compared i keys (the last
+     * element counting that many or more).
+     */
+    long[] getComparisonHistogram();
+
+    long getRotations();
+
+    long getColorFlips();
+
+    /**
+     * The number of search paths fixed up from the bottom.
+     */
+    long getFixups();
+
+    /**
+     * The nodes fixed up on all those paths.
+     */
+    long getFixupLevels();
+
+    /**
+     * The mean time of a timed operation, in nanoseconds.
+     */
+    double getMeanLatencyNanos();
+
+    /**
+     * Element i counts the operations that took less than 2^i but at
+     * least 2^(i-1) nanoseconds.
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * Set every count back to zero.
+     */
+    void reset();
+}
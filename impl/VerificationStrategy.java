@@ -6,4 +6,22 @@ public interface VerificationStrategy<K extends Comparable<K>,V,N extends Recurs
      */
         public void verify(N root);
 
+    /**
+     * Verify the tree after a put of key. A put changes only the nodes
+     * on the search path for key and their children, which is what
+     * IncrementalVerification checks; by default the whole tree is
+     * verified.
+     */
+    public default void verifyPut(N root, K key) {
+        verify(root);
+    }
+
+    /**
+     * Check the rules at one node only, trusting what its children
+     * store about their own subtrees. This is what incremental
+     * verification is built from; by default nothing is checked.
+     * PRECONDITION: node is a real node.
+     */
+    public default void verifyNode(N node) {}
+
 }
@@ -21,4 +21,9 @@ public class AVLBSTMTest extends MapStressTest {
         
     }
 
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = AVLBSTMap.fromSorted(keys, vals, true);
+    }
+
 }
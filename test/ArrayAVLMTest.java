@@ -0,0 +1,26 @@
+package test;
+
+import impl.ArrayAVLMap;
+
+public class ArrayAVLMTest extends MapStressTest {
+
+    @Override
+    protected void reset() {
+        ArrayAVLMap<String,String> tree = new ArrayAVLMap<String,String>(true);
+        assert(tree.isVerifying());
+        testMap = tree;
+    }
+    @Override
+    protected void resetInteger() {
+        // start small, so the tests make the arrays grow
+        ArrayAVLMap<Integer,Integer> tree = new ArrayAVLMap<Integer,Integer>(1, true);
+        assert(tree.isVerifying());
+        testMapInt = tree;
+    }
+
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = ArrayAVLMap.fromSorted(keys, vals, true);
+    }
+
+}
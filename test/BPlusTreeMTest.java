@@ -0,0 +1,26 @@
+package test;
+
+import impl.BPlusTreeMap;
+
+public class BPlusTreeMTest extends MapStressTest {
+
+    @Override
+    protected void reset() {
+        BPlusTreeMap<String,String> tree = new BPlusTreeMap<String,String>(true);
+        assert(tree.isVerifying());
+        testMap = tree;
+    }
+    @Override
+    protected void resetInteger() {
+        // the smallest fan-out, so the tests split and merge a lot
+        BPlusTreeMap<Integer,Integer> tree = new BPlusTreeMap<Integer,Integer>(3, true);
+        assert(tree.isVerifying());
+        testMapInt = tree;
+    }
+
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = BPlusTreeMap.fromSorted(keys, vals, 4, true);
+    }
+
+}
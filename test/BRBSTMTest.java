@@ -14,4 +14,9 @@ public class BRBSTMTest extends MapStressTest {
         
     }
 
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = BasicRecursiveBSTMap.fromSorted(keys, vals, false);
+    }
+
 }
@@ -0,0 +1,177 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import impl.AVLBSTMap;
+import impl.BasicRecursiveBSTMap;
+import impl.Bytes;
+import impl.FrozenMap;
+import impl.LLRedBlackTreeMap;
+import impl.PrefixComparator;
+import impl.RecursiveBSTMap;
+import impl.TraditionalRedBlackTreeMap;
+
+public class ComparatorTest {
+
+    private static final int SIZE = 3000;
+
+    private Random rand = new Random(2718);
+
+    /**
+     * Put, remove and get random keys in both a map and a TreeMap with
+     * the same comparator, and check that they agree throughout and
+     * iterate in the same order.
+     */
+    private <K extends Comparable<K>> void checkLikeTreeMap(RecursiveBSTMap<K, Integer, ?> map,
+            Comparator<? super K> comparator, Function<Integer, K> keyOf) {
+        assertSame(comparator, map.comparator());
+        TreeMap<K, Integer> correctMap = new TreeMap<K, Integer>(comparator);
+        for (int i = 0; i < SIZE; i++) {
+            K key = keyOf.apply(rand.nextInt(SIZE));
+            switch (rand.nextInt(4)) {
+            case 0:
+                assertEquals(correctMap.remove(key), map.remove(key));
+                break;
+            case 1:
+                assertEquals(correctMap.get(key), map.get(key));
+                assertEquals(correctMap.containsKey(key), map.containsKey(key));
+                break;
+            default:
+                correctMap.put(key, i);
+                map.put(key, i);
+            }
+        }
+        Iterator<K> it = map.iterator();
+        for (K key : correctMap.keySet()) {
+            assertEquals(key, it.next());
+            assertEquals(correctMap.get(key), map.get(key));
+        }
+        assertFalse(it.hasNext());
+        assertEquals(correctMap.firstKey(), map.min());
+        assertEquals(correctMap.lastKey(), map.max());
+    }
+
+    private static String url(int i) {
+        return "https://www.example.com/catalog/products/item-" + (i * 7919 % 10007);
+    }
+
+    private static Bytes bytes(int i) {
+        // a shared prefix, then bytes above 0x7f, which only unsigned
+        // comparison orders correctly
+        byte[] key = new byte[24];
+        key[20] = (byte) (i >>> 24);
+        key[21] = (byte) (i >>> 16);
+        key[22] = (byte) (i >>> 8);
+        key[23] = (byte) (i * 37);
+        return Bytes.wrap(key);
+    }
+
+    @Test
+    public void avl() {
+        checkLikeTreeMap(new AVLBSTMap<Integer, Integer>(Comparator.reverseOrder(), true),
+                Comparator.reverseOrder(), Function.identity());
+        checkLikeTreeMap(new AVLBSTMap<String, Integer>(String.CASE_INSENSITIVE_ORDER, true),
+                String.CASE_INSENSITIVE_ORDER, i -> (i % 2 == 0 ? "KEY" : "key") + i % 700);
+    }
+
+    @Test
+    public void traditionalRedBlack() {
+        checkLikeTreeMap(new TraditionalRedBlackTreeMap<Integer, Integer>(Comparator.reverseOrder(), true),
+                Comparator.reverseOrder(), Function.identity());
+    }
+
+    @Test
+    public void leftLeaningRedBlack() {
+        checkLikeTreeMap(new LLRedBlackTreeMap<Integer, Integer>(Comparator.reverseOrder(), true),
+                Comparator.reverseOrder(), Function.identity());
+    }
+
+    @Test
+    public void basic() {
+        checkLikeTreeMap(new BasicRecursiveBSTMap<Integer, Integer>(Comparator.reverseOrder(), true),
+                Comparator.reverseOrder(), Function.identity());
+    }
+
+    @Test
+    public void prefixStrings() {
+        checkLikeTreeMap(new AVLBSTMap<String, Integer>(PrefixComparator.STRINGS, true),
+                PrefixComparator.STRINGS, ComparatorTest::url);
+        checkLikeTreeMap(new TraditionalRedBlackTreeMap<String, Integer>(PrefixComparator.STRINGS, true),
+                PrefixComparator.STRINGS, ComparatorTest::url);
+        // keys that are prefixes of one another
+        AVLBSTMap<String, Integer> map = new AVLBSTMap<String, Integer>(PrefixComparator.STRINGS, true);
+        String key = "";
+        for (int i = 0; i < 100; i++, key += (char) ('a' + i % 3))
+            map.put(key, i);
+        key = "";
+        for (int i = 0; i < 100; i++, key += (char) ('a' + i % 3))
+            assertEquals(Integer.valueOf(i), map.get(key));
+        assertNull(map.get("c"));
+        assertEquals("", map.min());
+    }
+
+    @Test
+    public void prefixBytes() {
+        checkLikeTreeMap(new AVLBSTMap<Bytes, Integer>(PrefixComparator.BYTES, true), PrefixComparator.BYTES,
+                ComparatorTest::bytes);
+        // the natural order of Bytes is the same
+        checkLikeTreeMap(new AVLBSTMap<Bytes, Integer>(true), null, ComparatorTest::bytes);
+        for (int i = 0; i < 200; i++) {
+            String a = url(rand.nextInt(500)) + rand.nextInt(3);
+            String b = url(rand.nextInt(500)) + rand.nextInt(3);
+            assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(PrefixComparator.STRINGS.compare(a, b)));
+            Bytes x = Bytes.wrap(a.getBytes(StandardCharsets.ISO_8859_1));
+            Bytes y = Bytes.wrap(b.getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals(Integer.signum(x.compareTo(y)), Integer.signum(PrefixComparator.BYTES.compare(x, y)));
+        }
+    }
+
+    @Test
+    public void bulkOperationsUseTheComparator() {
+        AVLBSTMap<Integer, Integer> map = new AVLBSTMap<Integer, Integer>(Comparator.reverseOrder(), true);
+        map.putAll(new Integer[] { 1, 5, 3, 5 }, new Integer[] { 1, 2, 3, 4 });
+        AVLBSTMap<Integer, Integer> other = new AVLBSTMap<Integer, Integer>(Comparator.reverseOrder(), true);
+        other.putAll(new Integer[] { 2, 3 }, new Integer[] { 20, 30 });
+        map.union(other, (a, b) -> a + b);
+        Iterator<Integer> it = map.iterator();
+        for (int key : new int[] { 5, 3, 2, 1 })
+            assertEquals(Integer.valueOf(key), it.next());
+        assertFalse(it.hasNext());
+        assertEquals(Integer.valueOf(33), map.get(3));
+        assertEquals(Integer.valueOf(4), map.get(5));
+        map.verifyIncrementally(10);
+        for (int i = 0; i < 100; i++)
+            map.put(rand.nextInt(1000), i);
+    }
+
+    @Test
+    public void freezeKeepsTheOrder() {
+        AVLBSTMap<String, Integer> map = new AVLBSTMap<String, Integer>(PrefixComparator.STRINGS, true);
+        for (int i = 0; i < 500; i++)
+            map.put(url(i), i);
+        FrozenMap<String, Integer> frozen = map.freeze();
+        assertSame(PrefixComparator.STRINGS, frozen.comparator());
+        Iterator<String> it = frozen.iterator();
+        for (String key : map) {
+            assertEquals(key, it.next());
+            assertEquals(map.get(key), frozen.get(key));
+            assertEquals(map.higher(key + "0"), frozen.higher(key + "0"));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setOperationsNeedTheSameOrder() {
+        AVLBSTMap<Integer, Integer> map = new AVLBSTMap<Integer, Integer>(Comparator.reverseOrder(), true);
+        map.intersect(new AVLBSTMap<Integer, Integer>(true));
+    }
+}
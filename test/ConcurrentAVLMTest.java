@@ -0,0 +1,167 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import impl.ConcurrentAVLMap;
+
+public class ConcurrentAVLMTest extends MapStressTest {
+
+    @Override
+    protected void reset() {
+        ConcurrentAVLMap<String,String> tree = new ConcurrentAVLMap<String,String>(true);
+        assert(tree.isVerifying());
+        testMap = tree;
+    }
+    @Override
+    protected void resetInteger() {
+        ConcurrentAVLMap<Integer,Integer> tree = new ConcurrentAVLMap<Integer,Integer>(true);
+        assert(tree.isVerifying());
+        testMapInt = tree;
+    }
+
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = ConcurrentAVLMap.fromSorted(keys, vals, true);
+    }
+
+    /**
+     * A thread that has grown a subtree must not leave the parent of the
+     * subtree for good on seeing nothing wrong with it while another
+     * thread holds the parent's lock, as that thread may be about to
+     * give the parent a height worked out from the subtree's old height.
+     * The test plays that thread: it holds the root's lock while a put
+     * grows the root's left subtree to the height of its right one, and
+     * stores the root's height as it was before. The put has to wait for
+     * the lock and then find the damage.
+     */
+    @Test
+    public void repairWaitsForTheLockHolder() throws Exception {
+        final ConcurrentAVLMap<Integer, Integer> map = ConcurrentAVLMap.fromSorted(
+                new Integer[] { 0, 10, 20, 30 }, new Integer[] { 0, 10, 20, 30 }, false);
+        Field holderField = ConcurrentAVLMap.class.getDeclaredField("rootHolder");
+        holderField.setAccessible(true);
+        Object holder = holderField.get(map);
+        Field right = holder.getClass().getDeclaredField("right");
+        Field height = holder.getClass().getDeclaredField("height");
+        right.setAccessible(true);
+        height.setAccessible(true);
+        // 10, with 0 on its left and 20 and 30 on its right
+        Object root = right.get(holder);
+        assertEquals(3, height.getInt(root));
+        Thread writer = new Thread() {
+            public void run() {
+                map.put(5, 5);
+            }
+        };
+        synchronized (root) {
+            writer.start();
+            while (writer.isAlive() && writer.getState() != Thread.State.BLOCKED)
+                Thread.yield();
+            assertTrue("the put did not wait for the lock of the root", writer.isAlive());
+            height.setInt(root, 2);
+        }
+        writer.join();
+        map.verifyNow();
+        assertEquals(Integer.valueOf(5), map.get(5));
+    }
+
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 20000;
+
+    /**
+     * Writers put and remove keys in their own ranges while readers look
+     * keys up and walk the map; once they have all finished, the map
+     * must hold exactly the keys each writer left and be a valid AVL tree.
+     */
+    @Test
+    public void concurrentUpdates() throws InterruptedException {
+        final ConcurrentAVLMap<Integer, Integer> map = new ConcurrentAVLMap<Integer, Integer>(false);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> writers = new ArrayList<Thread>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            writers.add(new Thread() {
+                public void run() {
+                    try {
+                        Random rand = new Random(thread);
+                        // interleave the ranges so the writers meet in the tree
+                        for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                            int key = rand.nextInt(KEYS_PER_THREAD) * THREADS + thread;
+                            if (rand.nextInt(3) == 0)
+                                map.remove(key);
+                            else
+                                map.put(key, key);
+                        }
+                        // leave only the even-numbered slots of this range
+                        for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                            int key = i * THREADS + thread;
+                            if (i % 2 == 0)
+                                map.put(key, -key);
+                            else
+                                map.remove(key);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers.add(new Thread() {
+                public void run() {
+                    try {
+                        Random rand = new Random(-thread);
+                        while (! done.get()) {
+                            int key = rand.nextInt(KEYS_PER_THREAD * THREADS);
+                            Integer val = map.get(key);
+                            assertTrue(val == null || Math.abs(val) == key);
+                            Integer previous = null;
+                            int steps = 0;
+                            for (Integer k : map.tailMap(key)) {
+                                assertTrue(previous == null || previous < k);
+                                previous = k;
+                                if (++steps == 20)
+                                    break;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread reader : readers)
+            reader.start();
+        for (Thread writer : writers)
+            writer.start();
+        for (Thread writer : writers)
+            writer.join();
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        map.verifyNow();
+        assertEquals(KEYS_PER_THREAD * THREADS / 2, map.size());
+        for (int t = 0; t < THREADS; t++)
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                int key = i * THREADS + t;
+                if (i % 2 == 0)
+                    assertEquals(Integer.valueOf(-key), map.get(key));
+                else
+                    assertFalse(map.containsKey(key));
+            }
+    }
+}
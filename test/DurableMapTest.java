@@ -0,0 +1,184 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import impl.AVLBSTMap;
+import impl.Codec;
+import impl.DurableMap;
+import impl.TraditionalRedBlackTreeMap;
+
+public class DurableMapTest {
+
+    private List<Path> directories = new ArrayList<Path>();
+
+    private Random rand = new Random(14);
+
+    private Path newDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("durable");
+        directories.add(directory);
+        return directory;
+    }
+
+    @After
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories)
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                    Files.delete(file);
+            }
+    }
+
+    private static DurableMap<Integer, String> open(Path directory, long budget, long checkpointBytes)
+            throws IOException {
+        return DurableMap.open(directory, () -> new AVLBSTMap<Integer, String>(true), Codec.INTEGER,
+                Codec.string(12), budget, checkpointBytes);
+    }
+
+    /**
+     * Copy the files of a map that is still open, as a crash would
+     * leave them.
+     */
+    private Path crashCopy(Path directory) throws IOException {
+        Path copy = newDirectory();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.collect(Collectors.toList()))
+                Files.copy(file, copy.resolve(file.getFileName()));
+        }
+        return copy;
+    }
+
+    /**
+     * Make random updates to the map and to expected alike.
+     */
+    private void update(DurableMap<Integer, String> map, TreeMap<Integer, String> expected, int count) {
+        for (int i = 0; i < count; i++) {
+            int key = rand.nextInt(500);
+            if (rand.nextInt(4) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else {
+                String value = rand.nextInt(10) == 0 ? null : "v" + i;
+                map.put(key, value);
+                expected.put(key, value);
+            }
+        }
+    }
+
+    private static void checkSame(TreeMap<Integer, String> expected, DurableMap<Integer, String> map) {
+        assertEquals(expected.size(), map.size());
+        Iterator<Integer> it = map.iterator();
+        for (Integer key : expected.keySet()) {
+            assertEquals(key, it.next());
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        Path directory = newDirectory();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        DurableMap<Integer, String> map = open(directory, 5, Long.MAX_VALUE);
+        update(map, expected, 2000);
+        map.close();
+        map = open(directory, 5, Long.MAX_VALUE);
+        checkSame(expected, map);
+        update(map, expected, 500);
+        map.close();
+        map = open(directory, 5, Long.MAX_VALUE);
+        checkSame(expected, map);
+        map.close();
+    }
+
+    @Test
+    public void crashAfterSync() throws IOException {
+        Path directory = newDirectory();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        DurableMap<Integer, String> map = open(directory, 1000, Long.MAX_VALUE);
+        update(map, expected, 1000);
+        map.sync();
+        Path copy = crashCopy(directory);
+        map.close();
+        DurableMap<Integer, String> recovered = open(copy, 1000, Long.MAX_VALUE);
+        checkSame(expected, recovered);
+        recovered.close();
+    }
+
+    @Test
+    public void tornRecord() throws IOException {
+        Path directory = newDirectory();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        DurableMap<Integer, String> map = open(directory, 5, Long.MAX_VALUE);
+        update(map, expected, 300);
+        map.close();
+        // half a record of garbage, as a crash in the middle of a write leaves
+        try (FileChannel log = FileChannel.open(directory.resolve("log-0"), StandardOpenOption.APPEND)) {
+            log.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+        }
+        map = open(directory, 5, Long.MAX_VALUE);
+        checkSame(expected, map);
+        // the garbage is cut off, so new records follow the good ones
+        update(map, expected, 300);
+        map.close();
+        map = open(directory, 5, Long.MAX_VALUE);
+        checkSame(expected, map);
+        map.close();
+    }
+
+    @Test
+    public void syncEveryUpdate() throws IOException {
+        Path directory = newDirectory();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        DurableMap<Integer, String> map = open(directory, 0, Long.MAX_VALUE);
+        update(map, expected, 50);
+        Path copy = crashCopy(directory);
+        map.close();
+        DurableMap<Integer, String> recovered = open(copy, 0, Long.MAX_VALUE);
+        checkSame(expected, recovered);
+        recovered.close();
+    }
+
+    @Test
+    public void checkpoints() throws IOException {
+        Path directory = newDirectory();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        DurableMap<Integer, String> map = DurableMap.open(directory,
+                () -> new TraditionalRedBlackTreeMap<Integer, String>(true), Codec.INTEGER, Codec.string(12), 1,
+                4096);
+        for (int round = 0; round < 5; round++) {
+            update(map, expected, 400);
+            map.checkpoint();
+        }
+        update(map, expected, 100);
+        map.sync();
+        Path copy = crashCopy(directory);
+        map.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            // one generation is left: a snapshot and its log
+            assertEquals(2, files.count());
+        }
+        for (Path dir : new Path[] { directory, copy }) {
+            map = DurableMap.open(dir, () -> new TraditionalRedBlackTreeMap<Integer, String>(true),
+                    Codec.INTEGER, Codec.string(12), 1, 4096);
+            checkSame(expected, map);
+            map.close();
+        }
+    }
+}
@@ -22,4 +22,9 @@ public class LLRBTMTest extends MapStressTest {
         
     }
 
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = LLRedBlackTreeMap.fromSorted(keys, vals, true);
+    }
+
 }
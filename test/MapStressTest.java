@@ -1,21 +1,42 @@
 package test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
 
-import adt.Map;
+import adt.OrderedMap;
+import impl.FrozenMap;
+import impl.RecursiveBSTMap;
+import impl.TreeMetrics;
+import impl.TreeStatistics;
 
 
 public abstract class MapStressTest extends MapTest {
-    protected Map<Integer, Integer> testMapInt;
+    protected OrderedMap<Integer, Integer> testMapInt;
     
     protected abstract void resetInteger();
+
+    /**
+     * Set testMapInt to a map built with the bulk-building factory.
+     */
+    protected abstract void loadSortedInteger(Integer[] keys, Integer[] vals);
     
     @Test
     public void putDuplicate() {
@@ -182,6 +203,489 @@ public abstract class MapStressTest extends MapTest {
         }
     }
 
+    @Test
+    public void putRemoveLotsRandom() {
+        resetInteger();
+        TreeMap<Integer, Integer> correctMap = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < 5000; i++) {
+            Integer key = rand.nextInt(500);
+            if (rand.nextInt(3) == 0) {
+                assertEquals(correctMap.remove(key), testMapInt.remove(key));
+            } else {
+                correctMap.put(key, i);
+                testMapInt.put(key, i);
+            }
+        }
+        Iterator<Integer> it = testMapInt.iterator();
+        for (Integer key : correctMap.keySet()) {
+            assert (it.hasNext());
+            assertEquals(key, it.next());
+            assertEquals(correctMap.get(key), testMapInt.get(key));
+        }
+        assert (! it.hasNext());
+    }
+
+    @Test
+    public void putAllBatches() {
+        resetInteger();
+        TreeMap<Integer, Integer> correctMap = new TreeMap<Integer, Integer>();
+        for (int batch = 0; batch < 40; batch++) {
+            // batches of every size from empty to larger than the map
+            int size = batch % 4 == 0 ? rand.nextInt(3) : rand.nextInt(batch * 10 + 1);
+            Integer[] keys = new Integer[size];
+            Integer[] vals = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = rand.nextInt(2000);
+                vals[i] = rand.nextInt();
+                correctMap.put(keys[i], vals[i]);
+            }
+            testMapInt.putAll(keys, vals);
+            Integer key = rand.nextInt(2000);
+            assertEquals(correctMap.remove(key), testMapInt.remove(key));
+        }
+        Iterator<Integer> it = testMapInt.iterator();
+        for (Integer key : correctMap.keySet()) {
+            assert (it.hasNext());
+            assertEquals(key, it.next());
+            assertEquals(correctMap.get(key), testMapInt.get(key));
+        }
+        assert (! it.hasNext());
+    }
+
+    @Test
+    public void putAllLastValueWins() {
+        resetInteger();
+        testMapInt.put(5, 0);
+        testMapInt.putAll(new Integer[] { 5, 3, 5, 3, 7 }, new Integer[] { 1, 2, 3, 4, 5 });
+        assertEquals(Integer.valueOf(3), testMapInt.get(5));
+        assertEquals(Integer.valueOf(4), testMapInt.get(3));
+        assertEquals(Integer.valueOf(5), testMapInt.get(7));
+        assertEquals(3, testMapInt.size());
+    }
+
+    @Test
+    public void fingerAscending() {
+        // fingers belong to the recursive trees
+        resetInteger();
+        assumeTrue(testMapInt instanceof RecursiveBSTMap);
+        RecursiveBSTMap<Integer, Integer, ?>.Finger finger = ((RecursiveBSTMap<Integer, Integer, ?>) testMapInt)
+                .finger();
+        for (int i = 0; i < 300; i++)
+            finger.put(i, -i);
+        for (int i = 299; i >= 0; i--) {
+            assertEquals(Integer.valueOf(-i), finger.get(i));
+            assertEquals(Integer.valueOf(-i), testMapInt.get(i));
+        }
+        assertEquals(null, finger.get(300));
+        assertEquals(300, testMapInt.size());
+    }
+
+    @Test
+    public void fingerClustered() {
+        resetInteger();
+        assumeTrue(testMapInt instanceof RecursiveBSTMap);
+        RecursiveBSTMap<Integer, Integer, ?> map = (RecursiveBSTMap<Integer, Integer, ?>) testMapInt;
+        RecursiveBSTMap<Integer, Integer, ?>.Finger finger = map.finger();
+        RecursiveBSTMap<Integer, Integer, ?>.Finger other = map.finger();
+        TreeMap<Integer, Integer> correctMap = new TreeMap<Integer, Integer>();
+        int cursor = 500;
+        for (int i = 0; i < 3000; i++) {
+            // wander around cursor, with changes made behind the finger's back
+            cursor = Math.max(0, Math.min(999, cursor + rand.nextInt(9) - 4));
+            switch (rand.nextInt(6)) {
+            case 0:
+                assertEquals(correctMap.remove(cursor), map.remove(cursor));
+                break;
+            case 1:
+                correctMap.put(cursor + 1, i);
+                other.put(cursor + 1, i);
+                break;
+            case 2:
+                assertEquals(correctMap.containsKey(cursor), finger.containsKey(cursor));
+                break;
+            case 3:
+                assertEquals(correctMap.get(cursor), finger.get(cursor));
+                break;
+            default:
+                correctMap.put(cursor, i);
+                finger.put(cursor, i);
+            }
+        }
+        Iterator<Integer> it = testMapInt.iterator();
+        for (Integer key : correctMap.keySet()) {
+            assertEquals(key, it.next());
+            assertEquals(correctMap.get(key), finger.get(key));
+        }
+        assert (! it.hasNext());
+    }
+
+    @Test
+    public void verificationModes() throws InterruptedException {
+        // the verification modes belong to the recursive trees
+        resetInteger();
+        assumeTrue(testMapInt instanceof RecursiveBSTMap);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int mode = 0; mode < 4; mode++) {
+                resetInteger();
+                RecursiveBSTMap<Integer, Integer, ?> map = (RecursiveBSTMap<Integer, Integer, ?>) testMapInt;
+                switch (mode) {
+                case 0:
+                    map.verifySampled(7);
+                    break;
+                case 1:
+                    map.verifyIncrementally(50);
+                    break;
+                case 2:
+                    map.verifyInBackground(20, executor);
+                    break;
+                default:
+                    map.verifyIncrementally(1);
+                    map.verifyFully();
+                }
+                RecursiveBSTMap<Integer, Integer, ?>.Finger finger = map.finger();
+                TreeMap<Integer, Integer> correctMap = new TreeMap<Integer, Integer>();
+                for (int i = 0; i < 2000; i++) {
+                    int key = rand.nextInt(500);
+                    switch (rand.nextInt(5)) {
+                    case 0:
+                        assertEquals(correctMap.remove(key), map.remove(key));
+                        break;
+                    case 1:
+                        assertEquals(correctMap.get(key), map.get(key));
+                        break;
+                    case 2:
+                        correctMap.put(key, i);
+                        finger.put(key, i);
+                        break;
+                    default:
+                        correctMap.put(key, i);
+                        map.put(key, i);
+                    }
+                }
+                map.awaitVerification();
+                checkSame(correctMap, map);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        // the metrics belong to the recursive trees
+        resetInteger();
+        assumeTrue(testMapInt instanceof RecursiveBSTMap);
+        RecursiveBSTMap<Integer, Integer, ?> map = (RecursiveBSTMap<Integer, Integer, ?>) testMapInt;
+        assertEquals(TreeMetrics.NONE, map.getMetrics());
+        TreeStatistics statistics = new TreeStatistics();
+        map.setMetrics(statistics);
+        for (int i = 0; i < 1000; i++)
+            map.put(i, i);
+        for (int i = 0; i < 1000; i += 2)
+            assertEquals(Integer.valueOf(i), map.get(i));
+        assertTrue(map.containsKey(999));
+        for (int i = 0; i < 1000; i += 3)
+            assertEquals(Integer.valueOf(i), map.remove(i));
+        assertEquals(1000, statistics.getPuts());
+        assertEquals(500, statistics.getGets());
+        assertEquals(1, statistics.getContains());
+        assertEquals(334, statistics.getRemoves());
+        long[] latencies = statistics.getLatencyHistogram();
+        long timed = 0;
+        for (long count : latencies)
+            timed += count;
+        assertEquals(1835, timed);
+        // gets, contains and removes all search from the root
+        assertTrue(statistics.getSearches() >= 835);
+        assertTrue(statistics.getComparisons() >= statistics.getSearches());
+        long[] comparisons = statistics.getComparisonHistogram();
+        assertTrue(comparisons[statistics.getMaxComparisons()] > 0);
+
+        String name = getClass().getSimpleName() + ".metrics";
+        TreeStatistics.unregister(name);
+        ObjectName objectName = statistics.register(name);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1000L, server.getAttribute(objectName, "Puts"));
+            server.invoke(objectName, "reset", null, null);
+            assertEquals(0L, statistics.getPuts());
+            assertEquals(0L, statistics.getComparisons());
+        } finally {
+            TreeStatistics.unregister(name);
+        }
+        map.setMetrics(TreeMetrics.NONE);
+        map.put(-1, -1);
+        assertEquals(0L, statistics.getPuts());
+    }
+
+    @Test
+    public void freeze() {
+        resetInteger();
+        assumeTrue(testMapInt instanceof RecursiveBSTMap);
+        RecursiveBSTMap<Integer, Integer, ?> map = (RecursiveBSTMap<Integer, Integer, ?>) testMapInt;
+        // every size up to a few complete trees, so every shape of the
+        // last level is laid out
+        for (int size = 0; size < 70; size++) {
+            FrozenMap<Integer, Integer> frozen = map.freeze();
+            assertEquals(size, frozen.size());
+            for (int key = -1; key < 2 * size + 1; key++) {
+                assertEquals(map.get(key), frozen.get(key));
+                assertEquals(map.containsKey(key), frozen.containsKey(key));
+                assertEquals(map.floor(key), frozen.floor(key));
+                assertEquals(map.ceiling(key), frozen.ceiling(key));
+                assertEquals(map.lower(key), frozen.lower(key));
+                assertEquals(map.higher(key), frozen.higher(key));
+                assertEquals(map.rank(key), frozen.rank(key));
+            }
+            for (int rank = 0; rank < size; rank++)
+                assertEquals(map.select(rank), frozen.select(rank));
+            assertEquals(map.min(), frozen.min());
+            assertEquals(map.max(), frozen.max());
+            assertEquals(map.countInRange(3, size), frozen.countInRange(3, size));
+            checkRange(map, frozen);
+            checkRange(map.subMap(3, size), frozen.subMap(3, size));
+            checkRange(map.headMap(size), frozen.headMap(size));
+            checkRange(map.tailMap(size), frozen.tailMap(size));
+            map.put(2 * size, size);
+        }
+        // the frozen map is a copy, and cannot be changed
+        FrozenMap<Integer, Integer> frozen = map.freeze();
+        map.remove(0);
+        assertEquals(Integer.valueOf(0), frozen.get(0));
+        try {
+            frozen.put(1, 1);
+            assert (false);
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void removeAscendingDescending() {
+        resetInteger();
+        for (int i = 0; i < 300; i++)
+            testMapInt.put(i, i);
+        for (int i = 0; i < 150; i++)
+            assertEquals(Integer.valueOf(i), testMapInt.remove(i));
+        for (int i = 299; i >= 150; i--)
+            assertEquals(Integer.valueOf(i), testMapInt.remove(i));
+        assertEquals(null, testMapInt.min());
+        assert (! testMapInt.iterator().hasNext());
+    }
+
+    @Test
+    public void pollFirstLast() {
+        resetInteger();
+        assertEquals(null, testMapInt.pollFirst());
+        assertEquals(null, testMapInt.pollLast());
+        for (int i = 0; i < 200; i++)
+            testMapInt.put(rand.nextInt(1000), i);
+        Integer previous = testMapInt.pollFirst();
+        Integer last = testMapInt.pollLast();
+        while (testMapInt.min() != null) {
+            Integer first = testMapInt.pollFirst();
+            assert (previous.compareTo(first) < 0);
+            assert (first.compareTo(last) < 0);
+            assert (! testMapInt.containsKey(first));
+            previous = first;
+            if (testMapInt.max() != null) {
+                Integer nextLast = testMapInt.pollLast();
+                assert (nextLast.compareTo(last) < 0);
+                last = nextLast;
+            }
+        }
+    }
+
+    @Test
+    public void orderStatistics() {
+        resetInteger();
+        assertEquals(0, testMapInt.size());
+        assertEquals(0, testMapInt.rank(5));
+        TreeMap<Integer, Integer> correctMap = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < 500; i++) {
+            Integer key = rand.nextInt(2000);
+            correctMap.put(key, i);
+            testMapInt.put(key, i);
+        }
+        for (int i = 0; i < 100; i++)
+            testMapInt.remove(correctMap.pollFirstEntry().getKey());
+        assertEquals(correctMap.size(), testMapInt.size());
+        Integer[] keys = correctMap.keySet().toArray(new Integer[0]);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], testMapInt.select(i));
+            assertEquals(i, testMapInt.rank(keys[i]));
+        }
+        for (int i = 0; i < 200; i++) {
+            Integer lo = rand.nextInt(2100) - 50;
+            Integer hi = rand.nextInt(2100) - 50;
+            assertEquals(correctMap.headMap(lo).size(), testMapInt.rank(lo));
+            int expected = hi < lo ? 0 : correctMap.subMap(lo, true, hi, true).size();
+            assertEquals(expected, testMapInt.countInRange(lo, hi));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void selectPastEnd() {
+        resetInteger();
+        for (int i = 0; i < 10; i++)
+            testMapInt.put(i, i);
+        testMapInt.select(10);
+    }
+
+    @Test
+    public void navigation() {
+        resetInteger();
+        assertEquals(null, testMapInt.floor(3));
+        assertEquals(null, testMapInt.higher(3));
+        TreeMap<Integer, Integer> correctMap = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < 300; i++) {
+            Integer key = 2 * rand.nextInt(500);
+            correctMap.put(key, i);
+            testMapInt.put(key, i);
+        }
+        for (int key = -2; key < 1002; key++) {
+            assertEquals(correctMap.floorKey(key), testMapInt.floor(key));
+            assertEquals(correctMap.ceilingKey(key), testMapInt.ceiling(key));
+            assertEquals(correctMap.lowerKey(key), testMapInt.lower(key));
+            assertEquals(correctMap.higherKey(key), testMapInt.higher(key));
+        }
+    }
+
+    private void checkRange(Iterable<Integer> expected, Iterable<Integer> actual) {
+        Iterator<Integer> it = actual.iterator();
+        for (Integer key : expected) {
+            assert (it.hasNext());
+            assertEquals(key, it.next());
+        }
+        assert (! it.hasNext());
+    }
+
+    @Test
+    public void rangeViews() {
+        resetInteger();
+        checkRange(new ArrayList<Integer>(), testMapInt.subMap(0, 10));
+        TreeMap<Integer, Integer> correctMap = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < 300; i++) {
+            Integer key = 2 * rand.nextInt(500);
+            correctMap.put(key, i);
+            testMapInt.put(key, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            Integer lo = rand.nextInt(1100) - 50;
+            Integer hi = lo + rand.nextInt(200);
+            checkRange(correctMap.subMap(lo, hi).keySet(), testMapInt.subMap(lo, hi));
+            checkRange(correctMap.headMap(hi).keySet(), testMapInt.headMap(hi));
+            checkRange(correctMap.tailMap(lo).keySet(), testMapInt.tailMap(lo));
+        }
+    }
+
+    @Test
+    public void fromSorted() {
+        for (int size = 0; size < 300; size++) {
+            Integer[] keys = new Integer[size];
+            Integer[] vals = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = 3 * i;
+                vals[i] = i;
+            }
+            loadSortedInteger(keys, vals);
+            assertEquals(size, testMapInt.size());
+            Iterator<Integer> it = testMapInt.iterator();
+            for (int i = 0; i < size; i++) {
+                assertEquals(keys[i], it.next());
+                assertEquals(vals[i], testMapInt.get(keys[i]));
+                assert (! testMapInt.containsKey(keys[i] + 1));
+            }
+            assert (! it.hasNext());
+            // the result is an ordinary tree that can go on changing
+            testMapInt.put(-1, -1);
+            testMapInt.put(1, 1);
+            testMapInt.remove(3);
+            assertEquals(size < 2 ? size + 2 : size + 1, testMapInt.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromUnsorted() {
+        loadSortedInteger(new Integer[] { 1, 2, 4, 3, 5 }, new Integer[] { 1, 2, 3, 4, 5 });
+    }
+
+    /**
+     * Build a map of the type under test holding the given keys,
+     * each associated with its own negation.
+     */
+    @SuppressWarnings("unchecked")
+    private RecursiveBSTMap<Integer, Integer, ?> loadKeys(TreeMap<Integer, Integer> correctMap) {
+        Integer[] keys = correctMap.keySet().toArray(new Integer[0]);
+        Integer[] vals = correctMap.values().toArray(new Integer[0]);
+        loadSortedInteger(keys, vals);
+        return (RecursiveBSTMap<Integer, Integer, ?>) testMapInt;
+    }
+
+    private TreeMap<Integer, Integer> randomKeys(int size, int range) {
+        TreeMap<Integer, Integer> keys = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < size; i++) {
+            int key = rand.nextInt(range);
+            keys.put(key, -key);
+        }
+        return keys;
+    }
+
+    /**
+     * Check the keys in order and the values of a sample of them. 
+     * Iterating over a verifying map verifies it at every step, which
+     * is too slow for large maps, so the keys are read from toString().
+     */
+    private void checkSame(TreeMap<Integer, Integer> correctMap, RecursiveBSTMap<Integer, Integer, ?> map) {
+        Matcher keys = Pattern.compile("-?[0-9]+").matcher(map.toString());
+        for (Integer key : correctMap.keySet()) {
+            assertTrue(keys.find());
+            assertEquals(key, Integer.valueOf(keys.group()));
+        }
+        assertFalse(keys.find());
+        Integer[] sample = correctMap.keySet().toArray(new Integer[0]);
+        for (int i = 0; i < sample.length; i += 1 + sample.length / 100)
+            assertEquals(correctMap.get(sample[i]), map.get(sample[i]));
+    }
+
+    @Test
+    public void setOperations() {
+        // the bulk set operations belong to the recursive trees
+        resetInteger();
+        assumeTrue(testMapInt instanceof RecursiveBSTMap);
+        // large enough for the merges to be split into tasks, and a few
+        // keys against many both ways round
+        for (int[] sizes : new int[][] { { 0, 0 }, { 10, 5 }, { 1000, 500 }, { 40000, 20000 }, { 20000, 5 },
+                { 5, 20000 }, { 0, 100 }, { 100, 0 } }) {
+            int range = 3 * Math.max(sizes[0], sizes[1]) + 1;
+            TreeMap<Integer, Integer> first = randomKeys(sizes[0], range);
+            TreeMap<Integer, Integer> second = randomKeys(sizes[1], range);
+            for (Integer key : second.keySet())
+                second.put(key, 1);
+
+            TreeMap<Integer, Integer> union = new TreeMap<Integer, Integer>(first);
+            for (Integer key : second.keySet())
+                union.put(key, union.containsKey(key) ? union.get(key) + 1000000 : 1);
+            RecursiveBSTMap<Integer, Integer, ?> map = loadKeys(first);
+            map.union(loadKeys(second), (a, b) -> a + 1000000 * b);
+            checkSame(union, map);
+
+            TreeMap<Integer, Integer> intersection = new TreeMap<Integer, Integer>(first);
+            intersection.keySet().retainAll(second.keySet());
+            map = loadKeys(first);
+            map.intersect(loadKeys(second));
+            checkSame(intersection, map);
+
+            TreeMap<Integer, Integer> difference = new TreeMap<Integer, Integer>(first);
+            difference.keySet().removeAll(second.keySet());
+            map = loadKeys(first);
+            map.subtract(loadKeys(second));
+            checkSame(difference, map);
+            map.subtract(map);
+            assertEquals(null, map.min());
+        }
+    }
+
     /* The following test the cases of traditional RB trees,
       * but all maps should be able to pass them */
 
@@ -174,6 +174,46 @@ public abstract class MapTest extends CollectionTest{
         assertEquals(null, testMap.get("Colorado"));
     }
 
+    /* Testing remove */
+
+    @Test
+    public void emptyRemove() {
+        reset();
+        for (int i = 0; i < getData().length; i += 2)
+            assertEquals(null, testMap.remove(getData()[i]));
+        assertFalse(testMap.iterator().hasNext());
+    }
+
+    @Test
+    public void putRemove() {
+        reset();
+        populate(getData().length / 2);
+        assertEquals("Vasilia", testMap.remove("Alaska"));
+        assertFalse(testMap.containsKey("Alaska"));
+        assertEquals(null, testMap.get("Alaska"));
+        assertEquals(null, testMap.remove("Alaska"));
+        for (int i = 0; i < otherData.length; i++)
+            assertEquals(null, testMap.remove(otherData[i]));
+        for (int i = 0; i < getData().length; i += 2)
+            if (! getData()[i].equals("Alaska"))
+                assertEquals(getData()[i+1], testMap.get(getData()[i]));
+    }
+
+    @Test
+    public void removeAll() {
+        reset();
+        populate(getData().length / 2);
+        for (int i = 0; i < getData().length; i += 2) {
+            assertEquals(getData()[i+1], testMap.remove(getData()[i]));
+            for (int j = 0; j < getData().length; j += 2)
+                assertEquals(j > i, testMap.containsKey(getData()[j]));
+        }
+        assertFalse(testMap.iterator().hasNext());
+        populate(getData().length / 2);
+        for (int i = 0; i < getData().length; i += 2)
+            assertEquals(getData()[i+1], testMap.get(getData()[i]));
+    }
+
     @Test
     public void stressComparison() {
         reset();
@@ -0,0 +1,132 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import impl.Codec;
+import impl.MappedAVLMap;
+
+public class MappedAVLMTest extends MapStressTest {
+
+    private static Path tempFile() {
+        try {
+            Path file = Files.createTempFile("avl", ".map");
+            file.toFile().deleteOnExit();
+            Files.delete(file);
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected void reset() {
+        try {
+            MappedAVLMap<String,String> tree = MappedAVLMap.open(tempFile(), Codec.string(64), Codec.string(64), true);
+            assert(tree.isVerifying());
+            testMap = tree;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    @Override
+    protected void resetInteger() {
+        try {
+            MappedAVLMap<Integer,Integer> tree = MappedAVLMap.open(tempFile(), Codec.INTEGER, Codec.INTEGER, true);
+            assert(tree.isVerifying());
+            testMapInt = tree;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        try {
+            testMapInt = MappedAVLMap.fromSorted(tempFile(), Codec.INTEGER, Codec.INTEGER,
+                    Arrays.asList(keys).iterator(), Arrays.asList(vals).iterator(), keys.length, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        Path file = tempFile();
+        MappedAVLMap<Integer,String> map = MappedAVLMap.open(file, Codec.INTEGER, Codec.string(16), true);
+        for (int i = 0; i < 2000; i++)
+            map.put(i * 7 % 2000, "v" + i);
+        for (int i = 0; i < 2000; i += 3)
+            map.remove(i);
+        map.put(5, null);
+        map.close();
+
+        map = MappedAVLMap.open(file, Codec.INTEGER, Codec.string(16), true);
+        assertEquals(2000 - 667, map.size());
+        Iterator<Integer> it = map.iterator();
+        for (int i = 0; i < 2000; i++) {
+            if (i % 3 == 0)
+                assertFalse(map.containsKey(i));
+            else {
+                assertEquals(Integer.valueOf(i), it.next());
+                if (i != 5)
+                    assertEquals("v" + (i * 1143 % 2000), map.get(i));
+            }
+        }
+        assertFalse(it.hasNext());
+        assertNull(map.get(5));
+        assertTrue(map.containsKey(5));
+        // freed records are reused
+        map.put(3, "three");
+        assertEquals("three", map.get(3));
+        map.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongCodec() throws IOException {
+        Path file = tempFile();
+        MappedAVLMap.open(file, Codec.INTEGER, Codec.INTEGER, true).close();
+        MappedAVLMap.open(file, Codec.LONG, Codec.INTEGER, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keyTooLong() throws IOException {
+        MappedAVLMap.open(tempFile(), Codec.string(4), Codec.INTEGER, false).put("Wisconsin", 1);
+    }
+
+    /**
+     * A key or value that does not fit is refused before any record is
+     * taken for it, so the map stays whole and goes on working.
+     */
+    @Test
+    public void tooLongLeavesTheMapWhole() throws IOException {
+        MappedAVLMap<String,String> map = MappedAVLMap.open(tempFile(), Codec.string(4), Codec.string(4), true);
+        map.put("a", "ok");
+        try {
+            map.put("Wisconsin", "ok");
+            fail("the key does not fit");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            map.put("b", "much too long");
+            fail("the value does not fit");
+        } catch (IllegalArgumentException e) {
+        }
+        map.verify();
+        map.put("c", "ok");
+        map.put("d", null);
+        assertEquals(3, map.size());
+        assertEquals("ok", map.get("c"));
+        assertFalse(map.containsKey("b"));
+        map.verify();
+    }
+
+}
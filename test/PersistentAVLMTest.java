@@ -0,0 +1,29 @@
+package test;
+
+import impl.PersistentAVLMap;
+import impl.PersistentMapHolder;
+
+public class PersistentAVLMTest extends PersistentMapStressTest {
+
+    public PersistentAVLMTest() {
+        super(() -> new PersistentAVLMap<Integer,Integer>(true));
+    }
+
+    @Override
+    protected void reset() {
+        PersistentAVLMap<String,String> tree = new PersistentAVLMap<String,String>(true);
+        assert(tree.isVerifying());
+        testMap = new PersistentMapHolder<String,String>(tree);
+    }
+    @Override
+    protected void resetInteger() {
+        PersistentAVLMap<Integer,Integer> tree = new PersistentAVLMap<Integer,Integer>(true);
+        assert(tree.isVerifying());
+        testMapInt = new PersistentMapHolder<Integer,Integer>(tree);
+    }
+
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = new PersistentMapHolder<Integer,Integer>(PersistentAVLMap.fromSorted(keys, vals, true));
+    }
+}
@@ -0,0 +1,76 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import impl.PersistentTreeMap;
+
+/**
+ * The stress tests, through a PersistentMapHolder, and the tests of
+ * persistence itself, for a kind of persistent tree.
+ */
+public abstract class PersistentMapStressTest extends MapStressTest {
+
+    private final Supplier<PersistentTreeMap<Integer, Integer, ?>> empty;
+
+    /**
+     * @param empty Makes an empty, verifying map of the kind tested
+     */
+    protected PersistentMapStressTest(Supplier<PersistentTreeMap<Integer, Integer, ?>> empty) {
+        this.empty = empty;
+    }
+
+    /**
+     * Every version keeps the associations it was made with, whatever
+     * is done to the versions made from it.
+     */
+    @Test
+    public void versionsAreUnchanged() {
+        List<PersistentTreeMap<Integer, Integer, ?>> versions = new ArrayList<PersistentTreeMap<Integer, Integer, ?>>();
+        List<TreeMap<Integer, Integer>> expected = new ArrayList<TreeMap<Integer, Integer>>();
+        PersistentTreeMap<Integer, Integer, ?> map = empty.get();
+        TreeMap<Integer, Integer> correct = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < 300; i++) {
+            int key = rand.nextInt(100);
+            if (rand.nextInt(3) == 0) {
+                map = map.remove(key);
+                correct.remove(key);
+            } else {
+                map = map.put(key, i);
+                correct.put(key, i);
+            }
+            versions.add(map);
+            expected.add(new TreeMap<Integer, Integer>(correct));
+        }
+        for (int i = 0; i < versions.size(); i++) {
+            PersistentTreeMap<Integer, Integer, ?> version = versions.get(i);
+            assertEquals(expected.get(i).size(), version.size());
+            Iterator<Integer> it = version.iterator();
+            for (java.util.Map.Entry<Integer, Integer> entry : expected.get(i).entrySet()) {
+                assertEquals(entry.getKey(), it.next());
+                assertEquals(entry.getValue(), version.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void unchangedMapsAreShared() {
+        PersistentTreeMap<Integer, Integer, ?> map = empty.get();
+        Integer one = 1;
+        map = map.put(1, one).put(2, 2);
+        assertSame(map, map.put(1, one));
+        assertSame(map, map.remove(3));
+        PersistentTreeMap<Integer, Integer, ?> removed = map.remove(1);
+        assertNull(removed.get(1));
+        assertEquals(one, map.get(1));
+    }
+}
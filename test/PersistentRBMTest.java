@@ -0,0 +1,29 @@
+package test;
+
+import impl.PersistentRedBlackTreeMap;
+import impl.PersistentMapHolder;
+
+public class PersistentRBMTest extends PersistentMapStressTest {
+
+    public PersistentRBMTest() {
+        super(() -> new PersistentRedBlackTreeMap<Integer,Integer>(true));
+    }
+
+    @Override
+    protected void reset() {
+        PersistentRedBlackTreeMap<String,String> tree = new PersistentRedBlackTreeMap<String,String>(true);
+        assert(tree.isVerifying());
+        testMap = new PersistentMapHolder<String,String>(tree);
+    }
+    @Override
+    protected void resetInteger() {
+        PersistentRedBlackTreeMap<Integer,Integer> tree = new PersistentRedBlackTreeMap<Integer,Integer>(true);
+        assert(tree.isVerifying());
+        testMapInt = new PersistentMapHolder<Integer,Integer>(tree);
+    }
+
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = new PersistentMapHolder<Integer,Integer>(PersistentRedBlackTreeMap.fromSorted(keys, vals, true));
+    }
+}
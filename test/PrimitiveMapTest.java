@@ -0,0 +1,152 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import impl.IntAVLMap;
+import impl.IntRedBlackTreeMap;
+import impl.LongAVLMap;
+import impl.LongRedBlackTreeMap;
+
+public class PrimitiveMapTest {
+
+    private static final int OPERATIONS = 3000;
+
+    private static final int RANGE = 500;
+
+    @Test
+    public void intAVLRandom() {
+        IntAVLMap<String> map = new IntAVLMap<String>(true);
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        Random rand = new Random(10);
+        for (int i = 0; i < OPERATIONS; i++) {
+            int key = rand.nextInt(RANGE) - RANGE / 2;
+            if (rand.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else {
+                map.put(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.containsKey(key + 1), map.containsKey(key + 1));
+        }
+        assertEquals((int) expected.firstKey(), map.min());
+        assertEquals((int) expected.lastKey(), map.max());
+        checkKeys(expected.keySet().iterator(), map.keyIterator());
+    }
+
+    @Test
+    public void intRedBlackRandom() {
+        IntRedBlackTreeMap<String> map = new IntRedBlackTreeMap<String>(true);
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        Random rand = new Random(11);
+        for (int i = 0; i < OPERATIONS; i++) {
+            int key = rand.nextInt(RANGE) - RANGE / 2;
+            if (rand.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else {
+                map.put(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.containsKey(key + 1), map.containsKey(key + 1));
+        }
+        assertEquals((int) expected.firstKey(), map.min());
+        assertEquals((int) expected.lastKey(), map.max());
+        checkKeys(expected.keySet().iterator(), map.keyIterator());
+    }
+
+    @Test
+    public void longAVLRandom() {
+        LongAVLMap<String> map = new LongAVLMap<String>(true);
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+        Random rand = new Random(12);
+        for (int i = 0; i < OPERATIONS; i++) {
+            // spread the keys beyond the range of int
+            long key = (rand.nextInt(RANGE) - RANGE / 2) * (1L << 40);
+            if (rand.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else {
+                map.put(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals((long) expected.firstKey(), map.min());
+        assertEquals((long) expected.lastKey(), map.max());
+        checkKeys(expected.keySet().iterator(), map.keyIterator());
+    }
+
+    @Test
+    public void longRedBlackRandom() {
+        LongRedBlackTreeMap<String> map = new LongRedBlackTreeMap<String>(true);
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+        Random rand = new Random(13);
+        for (int i = 0; i < OPERATIONS; i++) {
+            long key = (rand.nextInt(RANGE) - RANGE / 2) * (1L << 40);
+            if (rand.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else {
+                map.put(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals((long) expected.firstKey(), map.min());
+        assertEquals((long) expected.lastKey(), map.max());
+        checkKeys(expected.keySet().iterator(), map.keyIterator());
+    }
+
+    @Test
+    public void ascendingDescending() {
+        IntAVLMap<Integer> avl = new IntAVLMap<Integer>(true);
+        IntRedBlackTreeMap<Integer> rb = new IntRedBlackTreeMap<Integer>(true);
+        for (int i = 0; i < 1000; i++) {
+            avl.put(i, i);
+            rb.put(i, i);
+        }
+        for (int i = 999; i >= 0; i -= 2) {
+            assertEquals((Integer) i, avl.remove(i));
+            assertEquals((Integer) i, rb.remove(i));
+        }
+        assertEquals(500, avl.size());
+        assertEquals(500, rb.size());
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals((Integer) i, avl.remove(i));
+            assertEquals((Integer) i, rb.remove(i));
+        }
+        assertTrue(avl.isEmpty());
+        assertTrue(rb.isEmpty());
+        assertNull(avl.remove(0));
+        assertNull(rb.remove(0));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void emptyMin() {
+        new IntAVLMap<String>(true).min();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void emptyMax() {
+        new LongRedBlackTreeMap<String>(true).max();
+    }
+
+    private static void checkKeys(Iterator<? extends Number> expected, PrimitiveIterator<?, ?> actual) {
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            assertEquals(expected.next(), actual.next());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
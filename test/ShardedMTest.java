@@ -0,0 +1,152 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import impl.AVLBSTMap;
+import impl.ShardedMap;
+import impl.TraditionalRedBlackTreeMap;
+
+public class ShardedMTest extends MapStressTest {
+
+    /**
+     * Small enough that the stress tests split shards many times
+     */
+    private static final int SPLIT_THRESHOLD = 16;
+    private static final int MAX_SHARDS = 32;
+
+    @Override
+    protected void reset() {
+        testMap = new ShardedMap<String,String>(() -> new AVLBSTMap<String,String>(true), null,
+                SPLIT_THRESHOLD, MAX_SHARDS);
+    }
+    @Override
+    protected void resetInteger() {
+        testMapInt = new ShardedMap<Integer,Integer>(() -> new TraditionalRedBlackTreeMap<Integer,Integer>(true),
+                null, SPLIT_THRESHOLD, MAX_SHARDS);
+    }
+
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = ShardedMap.fromSorted(() -> new AVLBSTMap<Integer,Integer>(true), keys, vals, 4,
+                SPLIT_THRESHOLD, MAX_SHARDS);
+    }
+
+    @Test
+    public void hotShardsSplit() {
+        ShardedMap<Integer, Integer> map = new ShardedMap<Integer, Integer>(
+                () -> new AVLBSTMap<Integer, Integer>(true), new Integer[] { 1000 }, SPLIT_THRESHOLD, MAX_SHARDS);
+        assertEquals(2, map.shardCount());
+        for (int i = 0; i < 500; i++)
+            map.put(i, i);
+        map.verify();
+        // only the shard below 1000 was written, so only it split
+        assertTrue(map.shardCount() > 2);
+        assertEquals(Integer.valueOf(0), map.min());
+        assertEquals(Integer.valueOf(499), map.max());
+        assertEquals(Integer.valueOf(499), map.floor(999));
+        assertEquals(null, map.ceiling(500));
+        assertEquals(250, map.rank(250));
+        assertEquals(Integer.valueOf(250), map.select(250));
+    }
+
+    /**
+     * Shards of trees in reverse order are ranges of that order: the
+     * boundaries decrease, and min, iteration and navigation follow the
+     * trees' comparator, across splits too.
+     */
+    @Test
+    public void shardsFollowTheTreeOrder() {
+        ShardedMap<Integer, Integer> map = new ShardedMap<Integer, Integer>(
+                () -> new AVLBSTMap<Integer, Integer>(Comparator.reverseOrder(), true), new Integer[] { 300, 100 },
+                SPLIT_THRESHOLD, MAX_SHARDS);
+        assertEquals(Comparator.reverseOrder(), map.comparator());
+        for (int i = 0; i < 400; i++)
+            map.put(i, i);
+        map.verify();
+        assertTrue(map.shardCount() > 3);
+        assertEquals(400, map.size());
+        assertEquals(Integer.valueOf(399), map.min());
+        assertEquals(Integer.valueOf(0), map.max());
+        assertEquals(Integer.valueOf(150), map.get(150));
+        assertEquals(Integer.valueOf(299), map.higher(300));
+        assertEquals(Integer.valueOf(101), map.lower(100));
+        assertEquals(0, map.rank(399));
+        assertEquals(Integer.valueOf(99), map.select(300));
+        assertEquals(101, map.countInRange(200, 100));
+        Iterator<Integer> it = map.iterator();
+        for (int key = 399; key >= 0; key--)
+            assertEquals(Integer.valueOf(key), it.next());
+        assertTrue(! it.hasNext());
+        Integer expected = 300;
+        for (Integer key : map.subMap(300, 100))
+            assertEquals(expected--, key);
+        assertEquals(Integer.valueOf(100), expected);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundariesFollowTheTreeOrder() {
+        new ShardedMap<Integer, Integer>(() -> new AVLBSTMap<Integer, Integer>(Comparator.reverseOrder(), true),
+                new Integer[] { 100, 300 }, SPLIT_THRESHOLD, MAX_SHARDS);
+    }
+
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 20000;
+
+    /**
+     * Writers fill interleaved ranges while readers iterate; afterwards
+     * the map holds every key once, in order, in valid shards.
+     */
+    @Test
+    public void concurrentWriters() throws InterruptedException {
+        final ShardedMap<Integer, Integer> map = new ShardedMap<Integer, Integer>(
+                () -> new AVLBSTMap<Integer, Integer>(false), null, 256, 64);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        Random rand = new Random(thread);
+                        for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                            int key = i * THREADS + thread;
+                            map.put(key, key);
+                            if (i % 100 == 0) {
+                                Integer previous = null;
+                                for (Integer k : map.tailMap(rand.nextInt(KEYS_PER_THREAD * THREADS))) {
+                                    assertTrue(previous == null || previous < k);
+                                    previous = k;
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        map.verify();
+        assertEquals(THREADS * KEYS_PER_THREAD, map.size());
+        Iterator<Integer> it = map.iterator();
+        for (int key = 0; key < THREADS * KEYS_PER_THREAD; key++)
+            assertEquals(Integer.valueOf(key), it.next());
+        assertTrue(! it.hasNext());
+        assertTrue(map.shardCount() > 1);
+    }
+}
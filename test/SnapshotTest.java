@@ -0,0 +1,154 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import impl.AVLBSTMap;
+import impl.BasicRecursiveBSTMap;
+import impl.Codec;
+import impl.LLRedBlackTreeMap;
+import impl.RecursiveBSTMap;
+import impl.TraditionalRedBlackTreeMap;
+
+public class SnapshotTest {
+
+    private static final int SIZE = 5000;
+
+    private Random rand = new Random(345);
+
+    private static byte[] write(RecursiveBSTMap<Integer, String, ?> map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.writeSnapshot(Channels.newChannel(bytes), Codec.INTEGER, Codec.string(16));
+        return bytes.toByteArray();
+    }
+
+    private static ReadableByteChannel read(byte[] bytes) {
+        return Channels.newChannel(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Put random keys into a map and remove some of them again, so the
+     * tree has an irregular shape.
+     */
+    private void fill(RecursiveBSTMap<Integer, String, ?> map) {
+        for (int i = 0; i < SIZE; i++)
+            map.put(rand.nextInt(4 * SIZE), "v" + i);
+        for (int i = 0; i < SIZE / 4; i++)
+            map.remove(rand.nextInt(4 * SIZE));
+    }
+
+    /**
+     * The reloaded tree has the same shape, which toString() shows,
+     * and the same values.
+     */
+    private static void checkSame(RecursiveBSTMap<Integer, String, ?> expected,
+            RecursiveBSTMap<Integer, String, ?> actual) {
+        assertEquals(expected.toString(), actual.toString());
+        for (int key = 0; key < 4 * SIZE; key += 7)
+            assertEquals(expected.get(key), actual.get(key));
+    }
+
+    @Test
+    public void avl() throws IOException {
+        AVLBSTMap<Integer, String> map = new AVLBSTMap<Integer, String>(false);
+        fill(map);
+        AVLBSTMap<Integer, String> copy = AVLBSTMap.readSnapshot(read(write(map)), Codec.INTEGER,
+                Codec.string(16), true);
+        checkSame(map, copy);
+        assertEquals(map.size(), copy.size());
+        // the copy is an ordinary tree that can go on changing
+        copy.put(-1, "new");
+        assertEquals("new", copy.get(-1));
+    }
+
+    @Test
+    public void traditionalRedBlack() throws IOException {
+        TraditionalRedBlackTreeMap<Integer, String> map = new TraditionalRedBlackTreeMap<Integer, String>(false);
+        fill(map);
+        TraditionalRedBlackTreeMap<Integer, String> copy = TraditionalRedBlackTreeMap.readSnapshot(
+                read(write(map)), Codec.INTEGER, Codec.string(16), true);
+        checkSame(map, copy);
+        copy.put(-1, "new");
+        assertEquals("new", copy.get(-1));
+    }
+
+    @Test
+    public void leftLeaningRedBlack() throws IOException {
+        Integer[] keys = new Integer[SIZE];
+        String[] values = new String[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = 2 * i;
+            values[i] = "v" + i;
+        }
+        LLRedBlackTreeMap<Integer, String> map = LLRedBlackTreeMap.fromSorted(keys, values, false);
+        for (int i = 0; i < SIZE / 4; i++)
+            map.remove(rand.nextInt(2 * SIZE));
+        LLRedBlackTreeMap<Integer, String> copy = LLRedBlackTreeMap.readSnapshot(read(write(map)),
+                Codec.INTEGER, Codec.string(16), true);
+        checkSame(map, copy);
+    }
+
+    @Test
+    public void basic() throws IOException {
+        BasicRecursiveBSTMap<Integer, String> map = new BasicRecursiveBSTMap<Integer, String>(false);
+        fill(map);
+        BasicRecursiveBSTMap<Integer, String> copy = BasicRecursiveBSTMap.readSnapshot(read(write(map)),
+                Codec.INTEGER, Codec.string(16), true);
+        checkSame(map, copy);
+    }
+
+    @Test
+    public void emptyAndNullValues() throws IOException {
+        AVLBSTMap<Integer, String> map = new AVLBSTMap<Integer, String>(true);
+        AVLBSTMap<Integer, String> copy = AVLBSTMap.readSnapshot(read(write(map)), Codec.INTEGER,
+                Codec.string(16), true);
+        assertNull(copy.min());
+        map.put(1, null);
+        map.put(2, "two");
+        copy = AVLBSTMap.readSnapshot(read(write(map)), Codec.INTEGER, Codec.string(16), true);
+        assertTrue(copy.containsKey(1));
+        assertNull(copy.get(1));
+        assertEquals("two", copy.get(2));
+    }
+
+    @Test
+    public void stringsAreNotPadded() throws IOException {
+        AVLBSTMap<Integer, String> map = new AVLBSTMap<Integer, String>(true);
+        for (int i = 0; i < SIZE; i++)
+            map.put(i, "v" + i + "\u00e9\ud83d\ude00");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.writeSnapshot(Channels.newChannel(bytes), Codec.INTEGER, Codec.string(2048));
+        // a flags byte, the key, a length byte and the string
+        assertTrue(bytes.size() < SIZE * 24);
+        AVLBSTMap<Integer, String> copy = AVLBSTMap.readSnapshot(read(bytes.toByteArray()), Codec.INTEGER,
+                Codec.string(2048), true);
+        checkSame(map, copy);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongCodec() throws IOException {
+        AVLBSTMap<Integer, String> map = new AVLBSTMap<Integer, String>(true);
+        map.put(1, "one");
+        AVLBSTMap.readSnapshot(read(write(map)), Codec.INTEGER, Codec.string(8), true);
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncated() throws IOException {
+        AVLBSTMap<Integer, String> map = new AVLBSTMap<Integer, String>(true);
+        for (int i = 0; i < 100; i++)
+            map.put(i, "v" + i);
+        byte[] bytes = write(map);
+        AVLBSTMap.readSnapshot(read(Arrays.copyOf(bytes, bytes.length - 5)), Codec.INTEGER,
+                Codec.string(16), true);
+    }
+}
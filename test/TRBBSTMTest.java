@@ -21,4 +21,9 @@ public class TRBBSTMTest extends MapStressTest {
         testMapInt = tree;
     }
 
+    @Override
+    protected void loadSortedInteger(Integer[] keys, Integer[] vals) {
+        testMapInt = TraditionalRedBlackTreeMap.fromSorted(keys, vals, true);
+    }
+
 }